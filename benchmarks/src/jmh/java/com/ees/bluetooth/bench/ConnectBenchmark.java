@@ -0,0 +1,64 @@
+package com.ees.bluetooth.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ees.bluetooth.ConnectionState;
+
+/**
+ * Establish and terminate cycle: the client dials the server, waits for the
+ * channel, drops it and waits until the server listens again.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConnectBenchmark {
+
+	@Param({ "pipe", "tcp" })
+	String transport;
+
+	private Loopback mLoopback;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		mLoopback = Loopback.create(transport, 1, null);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		mLoopback.close();
+	}
+
+	@Benchmark
+	public int connectAndTerminate() {
+		String address = mLoopback.addresses[0];
+		int attempts = 0;
+		do {
+			// The server may still be reopening its listener, dial again then.
+			attempts++;
+			mLoopback.client.connect(address);
+			while(mLoopback.client.getState(address) == ConnectionState.CONNECTING) {
+				Thread.yield();
+			}
+		} while(mLoopback.client.getState(address) != ConnectionState.CONNECTED);
+		mLoopback.client.terminateAll();
+		Loopback.awaitState(mLoopback.servers[0], null, ConnectionState.LISTENING);
+		return attempts;
+	}
+}
@@ -0,0 +1,82 @@
+package com.ees.bluetooth.bench;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.ees.bluetooth.FrameCodec;
+import com.ees.bluetooth.FrameDecoder;
+
+/**
+ * Cost of encoding and incrementally decoding one frame, without the link.
+ * Decoding feeds the stream in chunks of the default read window, so frames
+ * bigger than a chunk are reassembled.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameCodecBenchmark {
+
+	private static final int CHUNK = 1024;
+
+	@Param({ "16", "256", "4096", "65536" })
+	int messageSize;
+
+	@Param({ "false", "true" })
+	boolean checksum;
+
+	private FrameCodec mCodec;
+
+	private FrameDecoder mDecoder;
+
+	private byte[] mPayload;
+
+	private byte[] mFrame;
+
+	private int mFrameLength;
+
+	private Blackhole mBlackhole;
+
+	@Setup
+	public void setUp(Blackhole blackhole) {
+		mBlackhole = blackhole;
+		mCodec = new FrameCodec(FrameCodec.DEFAULT_MAX_FRAME_SIZE, checksum);
+		mPayload = new byte[messageSize];
+		mFrame = new byte[mCodec.frameSize(messageSize)];
+		mFrameLength = mCodec.encode(mPayload, 0, messageSize, mFrame, 0);
+		mDecoder = new FrameDecoder(mCodec, new FrameDecoder.FrameHandler() {
+			@Override
+			public void onFrame(ByteBuffer frame) {
+				mBlackhole.consume(frame.remaining());
+			}
+		});
+	}
+
+	@Benchmark
+	public int encode() {
+		return mCodec.encode(mPayload, 0, messageSize, mFrame, 0);
+	}
+
+	@Benchmark
+	public void decode() throws IOException {
+		for(int off = 0; off < mFrameLength; off += CHUNK) {
+			mDecoder.decode(mFrame, off, Math.min(CHUNK, mFrameLength - off));
+		}
+	}
+}
@@ -0,0 +1,88 @@
+package com.ees.bluetooth.bench;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ees.bluetooth.ConnectionManager;
+import com.ees.bluetooth.FrameCodec;
+import com.ees.bluetooth.MessageListener;
+
+/**
+ * Per message round trip: the client writes a message, the server echoes it
+ * from its message listener and the benchmark thread waits for the echo.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LatencyBenchmark {
+
+	@Param({ "16", "256", "4096", "65536" })
+	int messageSize;
+
+	@Param({ "pipe", "tcp" })
+	String transport;
+
+	private Loopback mLoopback;
+
+	private byte[] mPayload;
+
+	private volatile Thread mWaiter;
+
+	private volatile long mEchoes;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		mLoopback = Loopback.create(transport, 1, new FrameCodec(FrameCodec.DEFAULT_MAX_FRAME_SIZE, false));
+		final ConnectionManager server = mLoopback.servers[0];
+		server.setMessageListener(new MessageListener() {
+			@Override
+			public void onMessageReceived(String address, ByteBuffer message) {
+				server.send(address, message, null);
+			}
+		});
+		mLoopback.client.setMessageListener(new MessageListener() {
+			@Override
+			public void onMessageReceived(String address, ByteBuffer message) {
+				mEchoes++;
+				LockSupport.unpark(mWaiter);
+			}
+		});
+		mLoopback.connect();
+		mPayload = new byte[messageSize];
+		mWaiter = Thread.currentThread();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		mLoopback.close();
+	}
+
+	@Benchmark
+	public long roundTrip() {
+		mWaiter = Thread.currentThread();
+		long expected = mEchoes + 1;
+		mLoopback.client.write(mLoopback.addresses[0], mPayload, 0, mPayload.length, null);
+		while(mEchoes < expected) {
+			LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+		}
+		return expected;
+	}
+}
@@ -0,0 +1,159 @@
+package com.ees.bluetooth.bench;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import com.ees.bluetooth.ConnectionManager;
+import com.ees.bluetooth.ConnectionState;
+import com.ees.bluetooth.FrameCodec;
+import com.ees.bluetooth.PipeTransport;
+import com.ees.bluetooth.TcpTransport;
+import com.ees.bluetooth.Transport;
+
+/**
+ * One multi connection client connected to a number of servers over a
+ * loopback transport, used as the stand-in for RFCOMM links.
+ */
+final class Loopback {
+
+	/** Keeps in-process addresses unique across trials. */
+	private static final AtomicInteger sCounter = new AtomicInteger();
+
+	/** The time to wait for a link to come up. */
+	private static final long TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+	final ConnectionManager client;
+
+	final ConnectionManager[] servers;
+
+	final String[] addresses;
+
+	private Loopback(ConnectionManager client, ConnectionManager[] servers, String[] addresses) {
+		this.client = client;
+		this.servers = servers;
+		this.addresses = addresses;
+	}
+
+	/**
+	 * Creates a transport of given kind.
+	 *
+	 * @param kind "pipe" or "tcp"
+	 * @return the transport
+	 */
+	static Transport transport(String kind) {
+		if("tcp".equals(kind)) {
+			// A fixed port keeps the address stable when the server listens again.
+			return new TcpTransport(freePort());
+		}
+		return new PipeTransport("bench-" + sCounter.incrementAndGet(), 256 * 1024);
+	}
+
+	/**
+	 * Finds a free loopback port.
+	 *
+	 * @return the port
+	 */
+	private static int freePort() {
+		ServerSocket socket = null;
+		try {
+			socket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+			return socket.getLocalPort();
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		} finally {
+			if(socket != null) {
+				try {
+					socket.close();
+				} catch (IOException e) {
+					// ignored
+				}
+			}
+		}
+	}
+
+	/**
+	 * Gets the address a client dials to reach the listening transport.
+	 *
+	 * @param transport the listening transport
+	 * @return the address
+	 * @throws IOException Signals that the address could not be resolved.
+	 */
+	static String address(Transport transport) throws IOException {
+		if(transport instanceof TcpTransport) {
+			return ((TcpTransport) transport).getLocalAddress();
+		}
+		return ((PipeTransport) transport).getAddress();
+	}
+
+	/**
+	 * Opens the client and the servers, framing is enabled on all of them
+	 * when codec is given. Listeners have to be set on the returned servers
+	 * by the caller before any data flow.
+	 *
+	 * @param kind the transport kind
+	 * @param peers the number of servers
+	 * @param codec the frame codec or null
+	 * @return the loopback, not yet connected
+	 * @throws IOException Signals that a server could not listen.
+	 */
+	static Loopback create(String kind, int peers, FrameCodec codec) throws IOException {
+		ConnectionManager client = new ConnectionManager(transport(kind), true);
+		client.setFrameCodec(codec);
+		ConnectionManager[] servers = new ConnectionManager[peers];
+		String[] addresses = new String[peers];
+		for(int i = 0; i < peers; i++) {
+			Transport transport = transport(kind);
+			servers[i] = new ConnectionManager(transport, false);
+			servers[i].setFrameCodec(codec);
+			servers[i].start();
+			addresses[i] = address(transport);
+		}
+		return new Loopback(client, servers, addresses);
+	}
+
+	/**
+	 * Connects the client to all servers and waits for the links.
+	 */
+	void connect() {
+		for(String address : addresses) {
+			client.connect(address);
+		}
+		for(String address : addresses) {
+			awaitState(client, address, ConnectionState.CONNECTED);
+		}
+		for(ConnectionManager server : servers) {
+			awaitState(server, null, ConnectionState.CONNECTED);
+		}
+	}
+
+	/**
+	 * Closes all managers.
+	 */
+	void close() {
+		client.terminateAll();
+		for(ConnectionManager server : servers) {
+			server.terminateAll();
+		}
+	}
+
+	/**
+	 * Waits for the state of the manager or of one of its links.
+	 *
+	 * @param manager the manager
+	 * @param address the link address or null for the manager state
+	 * @param state the expected state
+	 */
+	static void awaitState(ConnectionManager manager, String address, ConnectionState state) {
+		long deadline = System.nanoTime() + TIMEOUT_NANOS;
+		while((address == null ? manager.getState() : manager.getState(address)) != state) {
+			if(System.nanoTime() > deadline) {
+				throw new IllegalStateException("Timeout waiting for state " + state + " of " + address);
+			}
+			LockSupport.parkNanos(1000);
+		}
+	}
+}
@@ -0,0 +1,83 @@
+package com.ees.bluetooth.bench;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ees.bluetooth.FrameCodec;
+import com.ees.bluetooth.MessageListener;
+
+/**
+ * Sustained message throughput of ConnectionManager.write through the write
+ * queue, the channel writer, the receive ring and the frame decoder. The
+ * write queue blocks when full, so the score is what the link sustains.
+ * Bytes per second are the score times the message size.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ThroughputBenchmark {
+
+	@Param({ "16", "256", "4096", "65536" })
+	int messageSize;
+
+	@Param({ "1", "4" })
+	int channels;
+
+	@Param({ "pipe", "tcp" })
+	String transport;
+
+	private Loopback mLoopback;
+
+	private byte[] mPayload;
+
+	private int mNext;
+
+	private final AtomicLong mReceived = new AtomicLong();
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		mLoopback = Loopback.create(transport, channels, new FrameCodec(FrameCodec.DEFAULT_MAX_FRAME_SIZE, false));
+		for(int i = 0; i < channels; i++) {
+			mLoopback.servers[i].setMessageListener(new MessageListener() {
+				@Override
+				public void onMessageReceived(String address, ByteBuffer message) {
+					mReceived.addAndGet(message.remaining());
+				}
+			});
+		}
+		mLoopback.connect();
+		mPayload = new byte[messageSize];
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		mLoopback.close();
+	}
+
+	@Benchmark
+	public boolean write() {
+		String address = mLoopback.addresses[mNext];
+		if(++mNext == channels) {
+			mNext = 0;
+		}
+		return mLoopback.client.write(address, mPayload, 0, mPayload.length, null);
+	}
+}
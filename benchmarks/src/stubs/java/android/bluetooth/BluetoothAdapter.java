@@ -0,0 +1,26 @@
+package android.bluetooth;
+
+import java.io.IOException;
+import java.util.UUID;
+
+/**
+ * JVM stand-in, there is no Bluetooth adapter outside of a device.
+ */
+public final class BluetoothAdapter {
+
+	private BluetoothAdapter() {
+	}
+
+	public static BluetoothAdapter getDefaultAdapter() {
+		return null;
+	}
+
+	public BluetoothDevice getRemoteDevice(String address) {
+		throw new UnsupportedOperationException("No Bluetooth on JVM");
+	}
+
+	public BluetoothServerSocket listenUsingInsecureRfcommWithServiceRecord(String name, UUID uuid)
+			throws IOException {
+		throw new IOException("No Bluetooth on JVM");
+	}
+}
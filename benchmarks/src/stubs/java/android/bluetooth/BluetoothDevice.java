@@ -0,0 +1,31 @@
+package android.bluetooth;
+
+import java.io.IOException;
+import java.util.UUID;
+
+/**
+ * JVM stand-in, only the members the connection engine links against.
+ */
+public final class BluetoothDevice {
+
+	public static final int BOND_NONE = 10;
+
+	public static final int BOND_BONDING = 11;
+
+	public static final int BOND_BONDED = 12;
+
+	private BluetoothDevice() {
+	}
+
+	public String getAddress() {
+		throw new UnsupportedOperationException("No Bluetooth on JVM");
+	}
+
+	public String getName() {
+		throw new UnsupportedOperationException("No Bluetooth on JVM");
+	}
+
+	public BluetoothSocket createInsecureRfcommSocketToServiceRecord(UUID uuid) throws IOException {
+		throw new IOException("No Bluetooth on JVM");
+	}
+}
@@ -0,0 +1,19 @@
+package android.bluetooth;
+
+import java.io.IOException;
+
+/**
+ * JVM stand-in, only the members the connection engine links against.
+ */
+public final class BluetoothServerSocket {
+
+	private BluetoothServerSocket() {
+	}
+
+	public BluetoothSocket accept() throws IOException {
+		throw new IOException("No Bluetooth on JVM");
+	}
+
+	public void close() throws IOException {
+	}
+}
@@ -0,0 +1,33 @@
+package android.bluetooth;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * JVM stand-in, only the members the connection engine links against.
+ */
+public final class BluetoothSocket {
+
+	private BluetoothSocket() {
+	}
+
+	public void connect() throws IOException {
+		throw new IOException("No Bluetooth on JVM");
+	}
+
+	public InputStream getInputStream() throws IOException {
+		throw new IOException("No Bluetooth on JVM");
+	}
+
+	public OutputStream getOutputStream() throws IOException {
+		throw new IOException("No Bluetooth on JVM");
+	}
+
+	public BluetoothDevice getRemoteDevice() {
+		throw new UnsupportedOperationException("No Bluetooth on JVM");
+	}
+
+	public void close() throws IOException {
+	}
+}
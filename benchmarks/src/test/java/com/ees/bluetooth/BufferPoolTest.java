@@ -0,0 +1,41 @@
+package com.ees.bluetooth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+/**
+ * Tests of buffer reuse across size classes.
+ */
+public class BufferPoolTest {
+
+	@Test
+	public void bigBuffersAreReusedFromTheirClass() {
+		BufferPool pool = new BufferPool(1024, 16 << 10, 8);
+		assertEquals(16 << 10, pool.getMaxBufferSize());
+
+		PooledBuffer text = pool.acquire(1500);
+		assertEquals(2048, text.capacity());
+		text.release();
+		assertSame(text, pool.acquire(2048));
+
+		PooledBuffer chunk = pool.acquire(16 << 10);
+		chunk.release();
+		assertSame(chunk, pool.acquire(9000));
+
+		// Small requests never take buffers of bigger classes.
+		PooledBuffer small = pool.acquire(100);
+		assertEquals(1024, small.capacity());
+	}
+
+	@Test
+	public void oversizedBuffersAreNotPooled() {
+		BufferPool pool = new BufferPool(1024, 4096, 8);
+		PooledBuffer big = pool.acquire(5000);
+		assertEquals(5000, big.capacity());
+		big.release();
+		assertNotSame(big, pool.acquire(5000));
+	}
+}
@@ -0,0 +1,86 @@
+package com.ees.bluetooth;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests of file transfers losing chunks on a live link.
+ */
+public class FileTransferTest {
+
+	@Rule
+	public TemporaryFolder mFolder = new TemporaryFolder();
+
+	private ConnectionManager mReceiver;
+
+	private ConnectionManager mSender;
+
+	@After
+	public void tearDown() {
+		Pipes.terminate(mSender, mReceiver);
+	}
+
+	@Test
+	public void fileArrivesThroughDroppingQueue() throws Exception {
+		// Four queued messages hold a small part of the window, most chunks are dropped.
+		WriteQueueConfig queue = new WriteQueueConfig(4, 4096, 0, BackpressurePolicy.DROP_OLDEST);
+		transfer(queue, null);
+	}
+
+	@Test
+	public void fileArrivesThroughBlockingQueueUnderFlowControl() throws Exception {
+		// Readers waiting for room in their own queue would stop taking the credit which makes it.
+		WriteQueueConfig queue = new WriteQueueConfig(4, 4096, 0, BackpressurePolicy.BLOCK);
+		transfer(queue, new FlowControlConfig(32 << 10, 0, true, 0));
+	}
+
+	private void transfer(WriteQueueConfig queue, FlowControlConfig flowControl) throws Exception {
+		String receiver = Pipes.address("receiver");
+		String sender = Pipes.address("sender");
+		FrameCodec codec = new FrameCodec(64 << 10, true, null, true);
+		mReceiver = Pipes.manager(receiver, false, codec);
+		mSender = Pipes.manager(sender, false, codec);
+		mReceiver.setWriteQueueConfig(queue);
+		mSender.setWriteQueueConfig(queue);
+		mReceiver.setFlowControlConfig(flowControl);
+		mSender.setFlowControlConfig(flowControl);
+		File inbox = mFolder.newFolder("inbox");
+		new FileTransfer(mReceiver, inbox, null);
+		FileTransfer transfer = new FileTransfer(mSender, mFolder.newFolder("outbox"), null);
+		mReceiver.start();
+		mSender.connect(receiver);
+		Pipes.awaitConnected(mSender, receiver);
+
+		byte[] content = new byte[1 << 20];
+		new Random(18).nextBytes(content);
+		File file = mFolder.newFile("data.bin");
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(content);
+		} finally {
+			out.close();
+		}
+
+		assertEquals(file, transfer.sendFile(receiver, file).get(30, TimeUnit.SECONDS));
+		byte[] received = new byte[content.length];
+		RandomAccessFile in = new RandomAccessFile(new File(inbox, "data.bin"), "r");
+		try {
+			assertEquals(content.length, in.length());
+			in.readFully(received);
+		} finally {
+			in.close();
+		}
+		assertArrayEquals(content, received);
+	}
+}
@@ -0,0 +1,70 @@
+package com.ees.bluetooth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Tests of dead peer detection between devices of different settings.
+ */
+public class HeartbeatTest {
+
+	private ConnectionManager mServer;
+
+	private ConnectionManager mClient;
+
+	@After
+	public void tearDown() {
+		Pipes.terminate(mClient, mServer);
+	}
+
+	@Test
+	public void idleLinkSurvivesPeerWithoutHeartbeat() throws Exception {
+		String server = Pipes.address("server");
+		String client = Pipes.address("client");
+		FrameCodec codec = new FrameCodec(64 << 10, true, null, true);
+		mServer = Pipes.manager(server, false, codec);
+		mClient = Pipes.manager(client, false, codec);
+		mClient.setReconnectPolicy(null);
+		mClient.setHeartbeatConfig(new HeartbeatConfig(50, 3));
+		mServer.start();
+		mClient.connect(server);
+		Pipes.awaitConnected(mClient, server);
+
+		// Nothing is sent, the link is kept alive by pongs of the server only.
+		Thread.sleep(new HeartbeatConfig(50, 3).getDetectionTimeMillis() * 3);
+		assertEquals(ConnectionState.CONNECTED, mClient.getState(server));
+		assertEquals(ConnectionState.CONNECTED, mServer.getState(client));
+		assertEquals(0, mClient.getMetrics(server).getDisconnectCount());
+		assertTrue(mClient.getMetrics(server).getRoundTrip().getTotalCount() > 0);
+	}
+
+	@Test
+	public void creditStallDropsLink() throws Exception {
+		final String server = Pipes.address("server");
+		String client = Pipes.address("client");
+		FrameCodec codec = new FrameCodec(64 << 10, true, null, true);
+		mServer = Pipes.manager(server, false, codec);
+		mClient = Pipes.manager(client, false, codec);
+		mClient.setReconnectPolicy(null);
+		// The server never returns credit, the client gives up waiting for it.
+		mServer.setFlowControlConfig(new FlowControlConfig(1024, 0, false, 0));
+		mClient.setFlowControlConfig(new FlowControlConfig(1024, 0, false, 100));
+		mServer.start();
+		mClient.connect(server);
+		Pipes.awaitConnected(mClient, server);
+
+		for(int i = 0; i < 4; i++) {
+			assertTrue(mClient.write(server, new byte[1024]));
+		}
+		Pipes.await("stalled link dropped", new Pipes.Condition() {
+			@Override
+			public boolean holds() {
+				return mClient.getState(server) != ConnectionState.CONNECTED;
+			}
+		});
+		assertEquals(1, mClient.getMetrics(server).getDisconnectCount());
+	}
+}
@@ -0,0 +1,110 @@
+package com.ees.bluetooth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Tests of a hub sending to clients which do not keep up.
+ */
+public class HubTest {
+
+	private static final int CLIENTS = 3;
+
+	private ConnectionManager mHub;
+
+	private final ConnectionManager[] mClients = new ConnectionManager[CLIENTS];
+
+	@After
+	public void tearDown() {
+		Pipes.terminate(mClients);
+		Pipes.terminate(mHub);
+	}
+
+	@Test(timeout = 60000)
+	public void stalledClientNeverBlocksOthers() throws Exception {
+		final String hub = Pipes.address("hub");
+		FrameCodec codec = new FrameCodec(64 << 10, true, null, true);
+		mHub = Pipes.manager(hub, true, codec);
+		// The configured policy would wait for the stalled client, the hub policy applies instead.
+		mHub.setWriteQueueConfig(new WriteQueueConfig(4, 4096, 0, BackpressurePolicy.BLOCK));
+		mHub.setHubConfig(new HubConfig(CLIENTS, BackpressurePolicy.DROP_OLDEST));
+		mHub.start();
+
+		final CountDownLatch stalled = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final AtomicInteger[] last = new AtomicInteger[CLIENTS];
+		for(int i = 0; i < CLIENTS; i++) {
+			final boolean slow = i == 0;
+			final AtomicInteger received = new AtomicInteger(-1);
+			last[i] = received;
+			// A small pipe fills at once while the client is stalled.
+			mClients[i] = new ConnectionManager(new PipeTransport(Pipes.address("client"), 256), false);
+			mClients[i].setFrameCodec(codec);
+			mClients[i].setMessageListener(new MessageListener() {
+				@Override
+				public void onMessageReceived(String address, ByteBuffer message) {
+					received.set(message.getInt());
+					if(slow) {
+						stalled.countDown();
+						try {
+							release.await();
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+						}
+					}
+				}
+			});
+			mClients[i].connect(hub);
+			Pipes.awaitConnected(mClients[i], hub);
+		}
+		Pipes.await("all clients accepted", new Pipes.Condition() {
+			@Override
+			public boolean holds() {
+				return mHub.getClientCount() == CLIENTS;
+			}
+		});
+
+		final int count = 2000;
+		byte[] message = new byte[300];
+		for(int i = 0; i < count; i++) {
+			ByteBuffer.wrap(message).putInt(i);
+			if(i % 2 == 0) {
+				assertEquals(CLIENTS, mHub.broadcast(message));
+			} else {
+				assertTrue(mHub.send(message, 0, message.length));
+			}
+			if(i == 0) {
+				assertTrue(stalled.await(Pipes.TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+			}
+		}
+		for(int i = 1; i < CLIENTS; i++) {
+			final AtomicInteger received = last[i];
+			Pipes.await("last message on a fast client", new Pipes.Condition() {
+				@Override
+				public boolean holds() {
+					return received.get() == count - 1;
+				}
+			});
+		}
+		assertEquals(0, last[0].get());
+
+		// The stalled client skips to recent messages once it reads again.
+		release.countDown();
+		final AtomicInteger received = last[0];
+		Pipes.await("last message on the stalled client", new Pipes.Condition() {
+			@Override
+			public boolean holds() {
+				return received.get() == count - 1;
+			}
+		});
+		assertEquals(CLIENTS, mHub.getClientCount());
+	}
+}
@@ -0,0 +1,227 @@
+package com.ees.bluetooth;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Tests of the in-process pipe transport and managers linked by it.
+ */
+public class PipeTransportTest {
+
+	private ConnectionManager mServer;
+
+	private ConnectionManager mClient;
+
+	@After
+	public void tearDown() {
+		Pipes.terminate(mClient, mServer);
+	}
+
+	@Test
+	public void messagesArriveInOrder() throws Exception {
+		String server = Pipes.address("server");
+		FrameCodec codec = new FrameCodec(64 << 10, false);
+		mServer = Pipes.manager(server, false, codec);
+		mClient = Pipes.manager(Pipes.address("client"), false, codec);
+		final List<Integer> received = Collections.synchronizedList(new ArrayList<Integer>());
+		mServer.setMessageListener(new MessageListener() {
+			@Override
+			public void onMessageReceived(String address, ByteBuffer message) {
+				received.add(message.getInt());
+			}
+		});
+		mServer.start();
+		mClient.connect(server);
+		Pipes.awaitConnected(mClient, server);
+
+		final int count = 10000;
+		byte[] message = new byte[300];
+		for(int i = 0; i < count; i++) {
+			ByteBuffer.wrap(message).putInt(i);
+			assertTrue(mClient.send(message, 0, message.length));
+		}
+		Pipes.await("all messages", new Pipes.Condition() {
+			@Override
+			public boolean holds() {
+				return received.size() == count;
+			}
+		});
+		for(int i = 0; i < count; i++) {
+			assertEquals(i, received.get(i).intValue());
+		}
+	}
+
+	@Test
+	public void droppingQueueKeepsNewestWrite() throws Exception {
+		String server = Pipes.address("server");
+		FrameCodec codec = new FrameCodec(64 << 10, false);
+		mServer = Pipes.manager(server, false, codec);
+		// A small pipe fills at once while the server is stalled.
+		mClient = new ConnectionManager(new PipeTransport(Pipes.address("client"), 64), false);
+		mClient.setFrameCodec(codec);
+		mClient.setWriteQueueConfig(new WriteQueueConfig(2, 4096, 0, BackpressurePolicy.DROP_OLDEST));
+		final CountDownLatch release = new CountDownLatch(1);
+		final AtomicInteger last = new AtomicInteger(-1);
+		mServer.setMessageListener(new MessageListener() {
+			@Override
+			public void onMessageReceived(String address, ByteBuffer message) {
+				last.set(message.getInt());
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+		mServer.start();
+		mClient.connect(server);
+		Pipes.awaitConnected(mClient, server);
+
+		final AtomicInteger dropped = new AtomicInteger();
+		WriteCallback callback = new WriteCallback() {
+			@Override
+			public void onWriteCompleted(String address, int length, IOException error) {
+				if(error != null) {
+					dropped.incrementAndGet();
+				}
+			}
+		};
+		final int count = 100;
+		for(int i = 0; i < count; i++) {
+			ByteBuffer message = ByteBuffer.allocate(300);
+			message.putInt(0, i);
+			assertTrue(mClient.send(server, message, callback));
+		}
+		assertTrue(dropped.get() > 0);
+		release.countDown();
+		Pipes.await("newest message", new Pipes.Condition() {
+			@Override
+			public boolean holds() {
+				return last.get() == count - 1;
+			}
+		});
+	}
+
+	@Test
+	public void stateListenersRunWithoutManagerLock() throws Exception {
+		String server = Pipes.address("server");
+		FrameCodec codec = new FrameCodec(64 << 10, false);
+		mServer = Pipes.manager(server, false, codec);
+		mClient = Pipes.manager(Pipes.address("client"), false, codec);
+		final AtomicInteger blocked = new AtomicInteger();
+		mClient.addStateListener(new ConnectionStateListener() {
+			@Override
+			public void onStateChanged(String address, ConnectionState previous, ConnectionState state) {
+				// Another thread taking the manager lock must not wait for the transition.
+				Thread other = new Thread() {
+					@Override
+					public void run() {
+						mClient.getMaxThreads();
+					}
+				};
+				other.start();
+				try {
+					other.join(1000);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				if(other.isAlive()) {
+					blocked.incrementAndGet();
+				}
+			}
+		});
+		mServer.start();
+		mClient.connect(server);
+		Pipes.awaitConnected(mClient, server);
+		assertEquals(0, blocked.get());
+	}
+
+	@Test
+	public void compressionOnOneSideDropsLink() throws Exception {
+		final String server = Pipes.address("server");
+		mServer = Pipes.manager(server, false, new FrameCodec(64 << 10, false, new CompressionConfig()));
+		mClient = Pipes.manager(Pipes.address("client"), false, new FrameCodec(64 << 10, false));
+		mClient.setReconnectPolicy(null);
+		final AtomicInteger received = new AtomicInteger();
+		mClient.setMessageListener(new MessageListener() {
+			@Override
+			public void onMessageReceived(String address, ByteBuffer message) {
+				received.incrementAndGet();
+			}
+		});
+		mServer.start();
+		mClient.connect(server);
+		Pipes.await("mismatched link dropped", new Pipes.Condition() {
+			@Override
+			public boolean holds() {
+				return mClient.getMetrics(server).getDisconnectCount() > 0;
+			}
+		});
+		// The hello frame of the server is not mistaken for a message.
+		assertEquals(0, received.get());
+	}
+
+	@Test
+	public void interruptedReadFailsAndPipeStillCloses() throws Exception {
+		String address = Pipes.address("pipe");
+		PipeTransport transport = new PipeTransport(address, 16);
+		TransportServerSocket server = transport.listen("test", null);
+		TransportSocket client = new PipeTransport(Pipes.address("dialer")).createSocket(address, null);
+		client.connect();
+		final TransportSocket accepted = server.accept();
+
+		final AtomicReference<IOException> failure = new AtomicReference<IOException>();
+		final CountDownLatch done = new CountDownLatch(1);
+		Thread reader = new Thread() {
+			@Override
+			public void run() {
+				try {
+					InputStream in = accepted.getInputStream();
+					in.read(new byte[8]);
+				} catch (IOException e) {
+					failure.set(e);
+				}
+				done.countDown();
+			}
+		};
+		reader.start();
+		Thread.sleep(50);
+		reader.interrupt();
+		assertTrue("reader still blocked", done.await(5, TimeUnit.SECONDS));
+		assertTrue(String.valueOf(failure.get()), failure.get() instanceof InterruptedIOException);
+
+		// The pipe lock is free, so the other side can write and close.
+		client.getOutputStream().write(new byte[] {1, 2});
+		client.close();
+		byte[] rest = new byte[2];
+		InputStream in = accepted.getInputStream();
+		assertEquals(2, in.read(rest));
+		assertArrayEquals(new byte[] {1, 2}, rest);
+		try {
+			if(in.read(rest) >= 0) {
+				fail("end of stream expected");
+			}
+		} catch (IOException e) {
+			// A closed peer may also be reported as failure.
+		}
+		accepted.close();
+		server.close();
+	}
+}
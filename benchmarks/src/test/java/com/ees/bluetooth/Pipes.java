@@ -0,0 +1,102 @@
+package com.ees.bluetooth;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Helpers of tests linking managers over {@link PipeTransport}.
+ */
+final class Pipes {
+
+	/** Keeps in-process addresses unique across tests. */
+	private static final AtomicInteger sCounter = new AtomicInteger();
+
+	/** The time to wait for a condition. */
+	static final long TIMEOUT_MILLIS = 10000;
+
+	/**
+	 * The Interface Condition. Polled until it holds.
+	 */
+	interface Condition {
+
+		/**
+		 * Checks the condition.
+		 *
+		 * @return true, if it holds
+		 */
+		boolean holds();
+	}
+
+	private Pipes() {
+	}
+
+	/**
+	 * Gets an address not used by any other test.
+	 *
+	 * @param name the readable part
+	 * @return the address
+	 */
+	static String address(String name) {
+		return name + "-" + sCounter.incrementAndGet();
+	}
+
+	/**
+	 * Creates a manager on a new pipe transport.
+	 *
+	 * @param address the address
+	 * @param multiConnection true to enable multi connection mode
+	 * @param codec the frame codec, may be null
+	 * @return the manager
+	 */
+	static ConnectionManager manager(String address, boolean multiConnection, FrameCodec codec) {
+		ConnectionManager manager = new ConnectionManager(new PipeTransport(address), multiConnection);
+		manager.setFrameCodec(codec);
+		return manager;
+	}
+
+	/**
+	 * Waits until the condition holds.
+	 *
+	 * @param what the description used in the failure
+	 * @param condition the condition
+	 * @throws AssertionError when it does not hold within the timeout
+	 */
+	static void await(String what, Condition condition) {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MILLIS);
+		while(!condition.holds()) {
+			if(System.nanoTime() > deadline) {
+				throw new AssertionError("Timeout waiting for " + what);
+			}
+			LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+		}
+	}
+
+	/**
+	 * Waits until the link of the manager with the device is connected.
+	 *
+	 * @param manager the manager
+	 * @param address the device address
+	 */
+	static void awaitConnected(final ConnectionManager manager, final String address) {
+		await(address + " connected", new Condition() {
+			@Override
+			public boolean holds() {
+				return manager.getState(address) == ConnectionState.CONNECTED;
+			}
+		});
+	}
+
+	/**
+	 * Terminates the managers.
+	 *
+	 * @param managers the managers, null entries are skipped
+	 */
+	static void terminate(ConnectionManager... managers) {
+		for(ConnectionManager manager : managers) {
+			if(manager != null) {
+				manager.terminateAll();
+			}
+		}
+	}
+}
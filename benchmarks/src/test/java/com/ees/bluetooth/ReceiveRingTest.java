@@ -0,0 +1,34 @@
+package com.ees.bluetooth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests of the receive ring footprint.
+ */
+public class ReceiveRingTest {
+
+	@Test
+	public void idleRingShrinksWithoutRead() throws Exception {
+		ReceiveRing ring = new ReceiveRing(new ReceiveBufferConfig(256, 1024, 32 << 10));
+		// Full reads grow the window up to the maximum.
+		for(int i = 0; i < 16; i++) {
+			PooledBuffer segment = ring.acquire();
+			ring.commit(segment, segment.capacity());
+			segment.release();
+		}
+		assertEquals(32 << 10, ring.getWindow());
+		ring.acquire().release();
+		assertEquals(128 << 10, ring.getCapacity());
+
+		// A busy link keeps its ring.
+		assertFalse(ring.trim());
+		Thread.sleep(ReceiveRing.IDLE_NANOS / 1000000L + 200);
+		assertTrue(ring.trim());
+		assertEquals(256, ring.getWindow());
+		assertEquals(1024, ring.getCapacity());
+	}
+}
@@ -0,0 +1,93 @@
+package com.ees.bluetooth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Tests of state synchronization losing updates on a live link.
+ */
+public class StateSyncTest {
+
+	private ConnectionManager mReceiver;
+
+	private ConnectionManager mSender;
+
+	@After
+	public void tearDown() {
+		Pipes.terminate(mSender, mReceiver);
+	}
+
+	@Test
+	public void droppedKeyframeIsSentAgain() throws Exception {
+		final String receiver = Pipes.address("receiver");
+		final String sender = Pipes.address("sender");
+		FrameCodec codec = new FrameCodec(64 << 10, true, null, true);
+		mReceiver = Pipes.manager(receiver, false, codec);
+		// A small pipe fills while the receiver is stalled, a message which does not fit the queue then fails.
+		mSender = new ConnectionManager(new PipeTransport(sender, 64), false);
+		mSender.setFrameCodec(codec);
+		mSender.setWriteQueueConfig(new WriteQueueConfig(1, 4096, 0, BackpressurePolicy.FAIL_FAST));
+		final StateSync in = new StateSync(mReceiver, new SyncState(SyncFieldType.INT, SyncFieldType.INT));
+		final CountDownLatch stalled = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		in.setListener(new StateSyncListener() {
+			@Override
+			public void onStateUpdated(String address, SyncState state, boolean keyframe) {
+				stalled.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+		mReceiver.start();
+		mSender.connect(receiver);
+		Pipes.awaitConnected(mSender, receiver);
+		Pipes.awaitConnected(mReceiver, sender);
+		SyncState local = new SyncState(SyncFieldType.INT, SyncFieldType.INT);
+		final StateSync out = new StateSync(mSender, local);
+
+		local.setInt(0, 1);
+		local.setInt(1, 1);
+		assertEquals(1, out.publish());
+		assertTrue(stalled.await(Pipes.TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+		// The writer blocks on the first filler, the second one fills the queue.
+		mSender.send(new byte[400], 0, 400);
+		Pipes.await("filler taken by the writer", new Pipes.Condition() {
+			@Override
+			public boolean holds() {
+				return mSender.getMetrics(receiver).getWriteQueueDepth() == 0;
+			}
+		});
+		mSender.send(new byte[400], 0, 400);
+		// Both fields changed, keyframe 2 does not fit the queue.
+		local.setInt(0, 2);
+		local.setInt(1, 2);
+		out.publish();
+		release.countDown();
+		Pipes.await("queue drained", new Pipes.Condition() {
+			@Override
+			public boolean holds() {
+				return mSender.getMetrics(receiver).getWriteQueueDepth() == 0;
+			}
+		});
+
+		// Only the first field changed, a delta would leave the second one at 1.
+		local.setInt(0, 3);
+		out.publish();
+		Pipes.await("receiver state 3,2", new Pipes.Condition() {
+			@Override
+			public boolean holds() {
+				SyncState state = in.getRemoteState(sender);
+				return state.getInt(0) == 3 && state.getInt(1) == 2;
+			}
+		});
+	}
+}
@@ -3,17 +3,22 @@ package com.ees.bluetooth;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Set;
+import java.util.UUID;
 
 import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothClass;
 import android.bluetooth.BluetoothDevice;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.os.Build;
+import android.os.ParcelUuid;
+import android.os.Parcelable;
 import android.util.Log;
 
 /**
  * The Class BTDevicesReceiver which is able to detect new Bluetooth devices in its own BT range.
+ * Found devices and bond changes are put into the {@link DeviceRegistry} as broadcasts arrive.
  */
 public class BTDevicesReceiver extends BroadcastReceiver {
 
@@ -23,43 +28,108 @@ public class BTDevicesReceiver extends BroadcastReceiver {
     /** The extra device address. */
     public static String EXTRA_DEVICE_ADDRESS = "device_address";
 
+    /** The flag of service UUIDs available, BluetoothDevice.getUuids() and ACTION_UUID came with API 15. */
+    static final boolean HAS_UUIDS = Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH_MR1;
+
     /** The m bt adapter. */
     private BluetoothAdapter mBtAdapter;
     
-    /** The m paired devices list. */
-    private List<BluetoothDevice> mPairedDevicesList = new ArrayList<BluetoothDevice>();
+    /** The device registry. */
+    private final DeviceRegistry mRegistry;
     
-    /** The m new devices list. */
-    private List<BluetoothDevice> mNewDevicesList = new ArrayList<BluetoothDevice>();
+    /** The discovery listener or null. */
+    private DiscoveryListener mListener;
     
+    /** The filter of reported devices or null. */
+    private DeviceFilter mFilter;
 
     /**
-     * Instantiates a new bT devices receiver.
+     * Instantiates a new bT devices receiver with a registry of its own,
+     * the constructor used for a receiver declared in the manifest.
      */
     public BTDevicesReceiver() {
+    	this(new DeviceRegistry());
+    }
+
+    /**
+     * Instantiates a new bT devices receiver.
+     *
+     * @param registry the registry found devices are put into
+     */
+    public BTDevicesReceiver(DeviceRegistry registry) {
     	mBtAdapter = BluetoothAdapter.getDefaultAdapter();
-    	Set<BluetoothDevice> boundedDevs = mBtAdapter.getBondedDevices();
-    	for(BluetoothDevice item : boundedDevs) {
-    		mPairedDevicesList.add(item);
-    	}
+    	mRegistry = registry;
+    	updatePairedDevices();
+    }
+    
+    /**
+     * Gets the device registry.
+     *
+     * @return the registry
+     */
+    public DeviceRegistry getRegistry() {
+    	return mRegistry;
     }
     
     /**
      * Gets the new devices.
      *
-     * @return the new devices
+     * @return the found devices which are not bonded
+     * @deprecated Use {@link #getRegistry()}, which also keeps name, signal and bond state.
      */
+    @Deprecated
     public List<BluetoothDevice> getNewDevices() {
-    	return mNewDevicesList;
+    	return getDevices(false);
     }
     
     /**
      * Gets the paired devices.
      *
-     * @return the paired devices
+     * @return the bonded devices
+     * @deprecated Use {@link #getRegistry()}, which also keeps name, signal and bond state.
      */
+    @Deprecated
     public List<BluetoothDevice> getPairedDevices() {
-    	return mPairedDevicesList;
+    	return getDevices(true);
+    }
+    
+    /**
+     * Gets the devices of the registry by bond state.
+     *
+     * @param bonded true for bonded devices, false for the others
+     * @return the devices
+     */
+    private List<BluetoothDevice> getDevices(boolean bonded) {
+    	List<BluetoothDevice> result = new ArrayList<BluetoothDevice>();
+    	for(DeviceInfo info : mRegistry.getDevices().values()) {
+    		if((info.getBondState() == BluetoothDevice.BOND_BONDED) == bonded) {
+    			result.add(mBtAdapter.getRemoteDevice(info.getAddress()));
+    		}
+    	}
+    	return result;
+    }
+    
+    /**
+     * Sets the discovery listener. Found devices matching the filter are
+     * reported to the listener as their broadcasts arrive.
+     *
+     * @param filter the filter, null reports all devices
+     * @param listener the listener, null stops reporting
+     */
+    public synchronized void setDiscoveryListener(DeviceFilter filter, DiscoveryListener listener) {
+    	mFilter = filter;
+    	mListener = listener;
+    }
+    
+    /**
+     * Update paired devices. Bonded devices are put into the registry, they
+     * are never evicted while bonded.
+     */
+    public void updatePairedDevices() {
+    	for(BluetoothDevice item : mBtAdapter.getBondedDevices()) {
+    		mRegistry.update(item.getAddress(), item.getName(), BluetoothDevice.BOND_BONDED,
+    				DeviceInfo.RSSI_UNKNOWN);
+    	}
     }
 
     /**
@@ -88,16 +158,91 @@ public class BTDevicesReceiver extends BroadcastReceiver {
 		if (BluetoothDevice.ACTION_FOUND.equals(action)) {
 			// Get the BluetoothDevice object from the Intent
 			BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
-			// If it's already paired, skip it, because it's been listed already
-			Log.i(TAG, "Found device: " + device.getName() + ", state: " + device.getBondState());
-			if (device.getBondState() != BluetoothDevice.BOND_BONDED) {
-				mNewDevicesList.add(device);
+			// Name and signal come with the broadcast, ask the service for the name only when missing
+			String name = intent.getStringExtra(BluetoothDevice.EXTRA_NAME);
+			String address = device.getAddress();
+			DeviceInfo known = mRegistry.get(address);
+			if (name == null && (known == null || known.getName() == null)) {
+				name = device.getName();
+			}
+			int rssi = intent.getShortExtra(BluetoothDevice.EXTRA_RSSI, (short) DeviceInfo.RSSI_UNKNOWN);
+			BluetoothClass btClass = intent.getParcelableExtra(BluetoothDevice.EXTRA_CLASS);
+			int deviceClass = btClass != null ? btClass.getDeviceClass() : DeviceInfo.CLASS_UNKNOWN;
+			int bondState = device.getBondState();
+			UUID[] uuids = null;
+			if (HAS_UUIDS && bondState == BluetoothDevice.BOND_BONDED
+					&& (known == null || known.getUuids().length == 0)) {
+				// Bonded devices have their services cached since pairing
+				uuids = toUuids(device.getUuids());
+			}
+			DeviceInfo info = mRegistry.update(address, name, bondState, rssi, deviceClass, uuids);
+			Log.i(TAG, "Found device: " + info.getName() + ", state: " + info.getBondState());
+			notifyFound(info);
+		} else if (BluetoothDevice.ACTION_UUID.equals(action)) {
+			BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+			DeviceInfo info = mRegistry.setUuids(device.getAddress(),
+					toUuids(intent.getParcelableArrayExtra(BluetoothDevice.EXTRA_UUID)));
+			if (info != null) {
+				notifyFound(info);
 			}
+		} else if (BluetoothDevice.ACTION_BOND_STATE_CHANGED.equals(action)) {
+			BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+			int state = intent.getIntExtra(BluetoothDevice.EXTRA_BOND_STATE, BluetoothDevice.BOND_NONE);
+			mRegistry.setBondState(device.getAddress(), state);
 		} else if (BluetoothAdapter.ACTION_DISCOVERY_FINISHED.equals(action)) {
-			Log.v(TAG, "No new devices has been found.");
-
+			Log.v(TAG, "Discovery finished.");
+			DiscoveryListener listener;
+			synchronized (this) {
+				listener = mListener;
+			}
+			if (listener != null) {
+				try {
+					listener.onDiscoveryFinished();
+				} catch (RuntimeException e) {
+					Log.e(TAG, "Discovery listener failed", e);
+				}
+			}
 		}
 		
 	}
 
+    /**
+     * Reports the device to the discovery listener when it matches the filter.
+     *
+     * @param device the device
+     */
+    private void notifyFound(DeviceInfo device) {
+    	DiscoveryListener listener;
+    	DeviceFilter filter;
+    	synchronized (this) {
+    		listener = mListener;
+    		filter = mFilter;
+    	}
+    	if (listener == null || (filter != null && !filter.matches(device))) {
+    		return;
+    	}
+    	try {
+    		listener.onDeviceFound(device);
+    	} catch (RuntimeException e) {
+    		Log.e(TAG, "Discovery listener failed", e);
+    	}
+    }
+
+    /**
+     * Converts parcelled service UUIDs.
+     *
+     * @param parcels the parcelled UUIDs, may be null
+     * @return the UUIDs or null
+     */
+    private static UUID[] toUuids(Parcelable[] parcels) {
+    	if (parcels == null) {
+    		return null;
+    	}
+    	UUID[] result = new UUID[parcels.length];
+    	for (int i = 0; i < parcels.length; i++) {
+    		result[i] = ((ParcelUuid) parcels[i]).getUuid();
+    	}
+    	return result;
+    }
+
 }
@@ -1,6 +1,10 @@
 package com.ees.bluetooth;
 
-import java.util.HashMap;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -33,11 +37,11 @@ public class BTFacade {
 	/** The m receiver. */
 	private BTDevicesReceiver mReceiver;
 	
-	/** The m new dev map. */
-	private Map<String, BluetoothDevice> mNewDevMap = new HashMap<String,BluetoothDevice>();
+	/** The registry of known devices keyed by address. */
+	private final DeviceRegistry mRegistry = new DeviceRegistry();
 	
-	/** The m paired dev map. */
-	private Map<String, BluetoothDevice> mPairedDevMap = new HashMap<String,BluetoothDevice>();
+	/** The flag of registered receiver. */
+	private boolean mReceiverRegistered;
 	
 	/**
 	 * Instantiates a new bT facade.
@@ -47,22 +51,23 @@ public class BTFacade {
 	public BTFacade(Activity activity) {
 		mActivity = activity;
 		mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
-		mReceiver = new BTDevicesReceiver();
+		mReceiver = new BTDevicesReceiver(mRegistry);
 	}
 	
 	/**
-	 * Update paired devices. Method update internal map of paired devices.
-	 * Paired device mans that the device had been previously connected successfully
-	 * with this device.
+	 * Gets the names of registered devices of given bond.
+	 *
+	 * @param bonded true for paired devices, false for new ones
+	 * @return the device names
 	 */
-	private void updatePairedDevices() {
-		mPairedDevMap.clear();
-		List<BluetoothDevice> devList = mReceiver.getPairedDevices();
-		Log.i(TAG, "Paired devices count: " + devList.size());
-		for(BluetoothDevice item : devList) {
-			mPairedDevMap.put(item.getName(), item);
-			Log.i(TAG, "DevName: " + item.getName());
+	private Set<String> getDeviceNames(boolean bonded) {
+		Set<String> result = new HashSet<String>();
+		for(DeviceInfo item : mRegistry.getDevices().values()) {
+			if((item.getBondState() == BluetoothDevice.BOND_BONDED) == bonded && item.getName() != null) {
+				result.add(item.getName());
+			}
 		}
+		return result;
 	}
 	
 	/**
@@ -128,21 +133,86 @@ public class BTFacade {
 	 * @return true, if successful
 	 */
 	public synchronized boolean startDiscovery() {
-		// Clear current map devices
-		mNewDevMap.clear();
-		
-		Context ctx = mActivity.getApplicationContext();
-		// Register for broadcasts when a device is discovered
-        IntentFilter filter = new IntentFilter(BluetoothDevice.ACTION_FOUND);
-        ctx.registerReceiver(mReceiver, filter);
-
-        // Register for broadcasts when discovery has finished
-        filter = new IntentFilter(BluetoothAdapter.ACTION_DISCOVERY_FINISHED);
-        ctx.registerReceiver(mReceiver, filter);
+		if(!mReceiverRegistered) {
+			Context ctx = mActivity.getApplicationContext();
+			// Register for found devices, end of discovery, their services
+			// and bond changes to keep the registry up to date
+			IntentFilter filter = new IntentFilter(BluetoothDevice.ACTION_FOUND);
+			filter.addAction(BluetoothAdapter.ACTION_DISCOVERY_FINISHED);
+			if(BTDevicesReceiver.HAS_UUIDS) {
+				filter.addAction(BluetoothDevice.ACTION_UUID);
+			}
+			filter.addAction(BluetoothDevice.ACTION_BOND_STATE_CHANGED);
+			ctx.registerReceiver(mReceiver, filter);
+			mReceiverRegistered = true;
+		}
         
 		return mReceiver.doDiscovery();
 	}
 	
+	/**
+	 * Start discovery.
+	 * Method initializes scanning process and reports every found device
+	 * matching the filter to the listener as soon as it is found, instead of
+	 * waiting for the end of discovery.
+	 *
+	 * @param filter the filter, null reports all devices
+	 * @param listener the listener
+	 * @return true, if successful
+	 */
+	public synchronized boolean startDiscovery(DeviceFilter filter, DiscoveryListener listener) {
+		mReceiver.setDiscoveryListener(filter, listener);
+		return startDiscovery();
+	}
+	
+	/**
+	 * Discover and connect.
+	 * Method starts discovery and connects to the first found device matching
+	 * the filter. Discovery is cancelled the instant the device is found,
+	 * connecting while discovering would be slow. The future completes with
+	 * the device when connecting starts, connection state is reported as
+	 * usual. It fails when discovery ends without a match, cancelling the
+	 * future stops discovery.
+	 *
+	 * @param filter the filter
+	 * @return the future of matched device
+	 */
+	public ResultFuture<DeviceInfo> discoverAndConnect(DeviceFilter filter) {
+		final ResultFuture<DeviceInfo> result = new ResultFuture<DeviceInfo>();
+		final DiscoveryListener listener = new DiscoveryListener() {
+			@Override
+			public void onDeviceFound(DeviceInfo device) {
+				if(!result.complete(device)) {
+					return;
+				}
+				mReceiver.setDiscoveryListener(null, null);
+				stopDiscovery();
+				Log.i(TAG, "Found " + device.getAddress() + " while discovering, lets connect.");
+				connMgr.connect(device.getAddress());
+			}
+			
+			@Override
+			public void onDiscoveryFinished() {
+				mReceiver.setDiscoveryListener(null, null);
+				result.fail(new IOException("No matching device found"));
+			}
+		};
+		result.addListener(new ResultFuture.Listener<DeviceInfo>() {
+			@Override
+			public void onComplete(ResultFuture<DeviceInfo> future) {
+				if(future.isCancelled()) {
+					mReceiver.setDiscoveryListener(null, null);
+					stopDiscovery();
+				}
+			}
+		});
+		if(!startDiscovery(filter, listener)) {
+			mReceiver.setDiscoveryListener(null, null);
+			result.fail(new IOException("Discovery not started"));
+		}
+		return result;
+	}
+	
 	/**
 	 * Stop discovery.
 	 * Method deinitialize scanning process.
@@ -155,21 +225,33 @@ public class BTFacade {
 	
 	/**
 	 * Gets the new devices.
-	 * Method returns all new found devices, but not attached yes.
-	 * These devices are not paired yet. 
+	 * Method returns names of all found devices which are not paired yet.
+	 * Devices are added as discovery finds them, so the result is available
+	 * while discovering too.
 	 *
 	 * @return the new devices
 	 */
-	public synchronized Set<String> getNewDevices() {
-		if(!isDiscovering()) {
-			mNewDevMap.clear();
-			for(BluetoothDevice item : mReceiver.getNewDevices()) {
-				mNewDevMap.put(item.getName(), item);
-			}
-			return mNewDevMap.keySet();
-		}
-		// BT is discovering, try again later.
-		return null;
+	public Set<String> getNewDevices() {
+		return getDeviceNames(false);
+	}
+	
+	/**
+	 * Gets the snapshot of all known devices.
+	 * The map is immutable, it is not changed by further discovery.
+	 *
+	 * @return the devices keyed by address
+	 */
+	public Map<String, DeviceInfo> getDevices() {
+		return mRegistry.getDevices();
+	}
+	
+	/**
+	 * Gets the device registry.
+	 *
+	 * @return the registry
+	 */
+	public DeviceRegistry getDeviceRegistry() {
+		return mRegistry;
 	}
 	
 	/**
@@ -189,31 +271,29 @@ public class BTFacade {
 	 * @return the paired devices
 	 */
 	public Set<String> getPairedDevices() {
-		updatePairedDevices();
-		return mPairedDevMap.keySet();
+		mReceiver.updatePairedDevices();
+		return getDeviceNames(true);
 	}
 	
 	/**
 	 * Connect.
-	 * Method connects to the device by given name. 
+	 * Method connects to the device by given address or name. Names are not
+	 * unique, of devices with the same name the most recently seen is used.
 	 *
-	 * @param name the name
+	 * @param name the address or name
 	 * @return true, if successfully device has been found 
 	 */
 	public boolean connect(String name) {
 		stopDiscovery();
-		updatePairedDevices();
-		BluetoothDevice device = mPairedDevMap.get(name);
-		if(device != null) {
-			Log.i(TAG, "Found in paired, lets connect.");
-			connMgr.connect(device);
-			return true;
+		DeviceInfo device = findDevice(name);
+		if(device == null) {
+			// Paired meanwhile, reload bonded devices.
+			mReceiver.updatePairedDevices();
+			device = findDevice(name);
 		}
-		
-		device = mNewDevMap.get(name);
 		if(device != null) {
-			Log.i(TAG, "Found in new, lets connect.");
-			connMgr.connect(device);
+			Log.i(TAG, "Found " + device.getAddress() + ", lets connect.");
+			connMgr.connect(device.getAddress());
 			return true;
 		}
 		
@@ -222,6 +302,42 @@ public class BTFacade {
 		return false;
 	}
 	
+	/**
+	 * Connect any.
+	 * Method dials all given devices concurrently and keeps the first one
+	 * which connects, see {@link ConnectionManager#connectAny(Collection, long)}.
+	 *
+	 * @param names the addresses or names of equivalent devices in order of preference
+	 * @param staggerMillis the delay between starts of attempts, 0 dials all at once
+	 * @return the future of the address of connected device, null when none of devices is known
+	 */
+	public ResultFuture<String> connectAny(Collection<String> names, long staggerMillis) {
+		stopDiscovery();
+		List<String> addresses = new ArrayList<String>(names.size());
+		for(String name : names) {
+			DeviceInfo device = findDevice(name);
+			if(device != null) {
+				addresses.add(device.getAddress());
+			}
+		}
+		if(addresses.isEmpty()) {
+			Log.e(TAG, "Devices not found.");
+			return null;
+		}
+		return connMgr.connectAny(addresses, staggerMillis);
+	}
+	
+	/**
+	 * Finds the registered device by address or name.
+	 *
+	 * @param name the address or name
+	 * @return the device or null
+	 */
+	private DeviceInfo findDevice(String name) {
+		DeviceInfo device = mRegistry.get(name);
+		return device != null ? device : mRegistry.findByName(name);
+	}
+	
 	/**
 	 * Disconnect.
 	 * Method drops all connections.
@@ -242,23 +358,134 @@ public class BTFacade {
 	
 	/**
 	 * Send data.
-	 * Method send data to paired and connected device.
+	 * Method send data to paired and connected device. Text is encoded as
+	 * UTF-8 straight into a pooled buffer, queued and written by the channel
+	 * writer thread, so the call neither allocates nor blocks on the radio link.
 	 * @param data the data
 	 */
 	public void sendData(String data) {
 		if(connMgr!=null) {
-			Log.d(TAG, "Sending data.");
-			connMgr.write(data.getBytes());
+			connMgr.send(data);
+		}
+	}
+	
+	/**
+	 * Send data.
+	 * Method queues data for the connected device and returns immediately,
+	 * the callback is notified once the data are written or the write fails.
+	 *
+	 * @param data the data
+	 * @param callback the completion callback, {@link WriteFuture} can be used
+	 *            to wait for the result
+	 * @return true, if data has been queued
+	 */
+	public boolean sendData(String data, WriteCallback callback) {
+		String address = getConnectedAddress();
+		if(address == null) {
+			Log.i(TAG, "Try to send data, but device is not connected.");
+			if(callback != null) {
+				callback.onWriteCompleted(null, 0, new IOException("Device not connected"));
+			}
+			return false;
 		}
+		return connMgr.send(address, data, callback);
+	}
+	
+	/**
+	 * Send binary data.
+	 * Bytes are copied into a pooled buffer, the array can be reused
+	 * as soon as the call returns.
+	 *
+	 * @param data the data
+	 * @param offset the offset
+	 * @param length the length
+	 * @return true, if data has been queued
+	 */
+	public boolean sendData(byte[] data, int offset, int length) {
+		return connMgr.send(data, offset, length);
+	}
+	
+	/**
+	 * Send binary data.
+	 * Remaining bytes of heap or direct buffer are copied into a pooled buffer
+	 * and the buffer position is advanced over them.
+	 *
+	 * @param data the data
+	 * @return true, if data has been queued
+	 */
+	public boolean sendData(ByteBuffer data) {
+		return connMgr.send(data);
+	}
+	
+	/**
+	 * Send binary data gathered from several buffers as one message.
+	 *
+	 * @param data the data
+	 * @return true, if data has been queued
+	 */
+	public boolean sendData(ByteBuffer... data) {
+		return connMgr.send(data);
+	}
+	
+	/**
+	 * Gets the address of connected device.
+	 *
+	 * @return the address, null when not connected
+	 */
+	private String getConnectedAddress() {
+		Set<String> addresses = connMgr.getConnectedAddresses();
+		return addresses.isEmpty() ? null : addresses.iterator().next();
+	}
+	
+	/**
+	 * Sets the receive listener.
+	 * Listener gets data received from connected devices in pooled buffers,
+	 * each buffer has to be released by the listener.
+	 *
+	 * @param listener the listener
+	 */
+	public void setReceiveListener(ReceiveListener listener) {
+		connMgr.setReceiveListener(listener);
+	}
+	
+	/**
+	 * Enables message framing.
+	 * Every sent data becomes one message and received messages are
+	 * delivered whole to the message listener. Both devices have to enable
+	 * framing with the same settings before connecting.
+	 *
+	 * @param codec the frame codec, null disables framing
+	 */
+	public void setFrameCodec(FrameCodec codec) {
+		connMgr.setFrameCodec(codec);
+	}
+	
+	/**
+	 * Sets the write queue settings.
+	 * Settings apply to connections established afterwards.
+	 *
+	 * @param config the write queue config
+	 */
+	public void setWriteQueueConfig(WriteQueueConfig config) {
+		connMgr.setWriteQueueConfig(config);
+	}
+	
+	/**
+	 * Sets the message listener.
+	 *
+	 * @param listener the listener
+	 */
+	public void setMessageListener(MessageListener listener) {
+		connMgr.setMessageListener(listener);
 	}
 	
 	/**
 	 * Gets the state.
 	 * Method returns current state of BT connection.
-	 * @return the state
+	 * @return the state code, see {@link ConnectionState#getValue()}
 	 */
 	public int getState() {
-		return connMgr.getState();
+		return connMgr.getState().getValue();
 	}
 	
 	/**
@@ -0,0 +1,21 @@
+package com.ees.bluetooth;
+
+/**
+ * The Enum BackpressurePolicy. Decides what happens to a write when the
+ * write queue of the channel is full.
+ */
+public enum BackpressurePolicy {
+
+	/** The caller waits until the queue has room. */
+	BLOCK,
+
+	/**
+	 * The oldest pending write is dropped and failed to make room. A hub
+	 * broadcast under the slow client policy drops only older broadcasts,
+	 * it fails when no broadcast is pending.
+	 */
+	DROP_OLDEST,
+
+	/** The new write is rejected and failed immediately. */
+	FAIL_FAST
+}
@@ -0,0 +1,174 @@
+package com.ees.bluetooth;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * The Class BufferPool. Pool of {@link PooledBuffer}s shared by all channels
+ * for outgoing data. Buffers come in size classes doubling from the buffer
+ * size up to the maximum buffer size, a request gets a buffer of the
+ * smallest class holding it. Free buffers are kept in a preallocated queue
+ * per class, so neither acquire nor recycle allocate once the pool is warmed
+ * up. Each class keeps about as many bytes as the smallest one, bigger
+ * classes keep fewer buffers.
+ */
+public class BufferPool {
+
+	/** The default buffer size. */
+	public static final int DEFAULT_BUFFER_SIZE = 1024;
+
+	/** The default size of the biggest pooled buffer, the default frame limit. */
+	public static final int DEFAULT_MAX_BUFFER_SIZE = 64 * 1024;
+
+	/** The default number of pooled buffers of the smallest class. */
+	public static final int DEFAULT_MAX_POOLED = 256;
+
+	/** The default pool shared by all channels. */
+	private static final BufferPool sDefault = new BufferPool(DEFAULT_BUFFER_SIZE, DEFAULT_MAX_BUFFER_SIZE,
+			DEFAULT_MAX_POOLED);
+
+	/** The buffer size of the smallest class. */
+	private final int mBufferSize;
+
+	/** The buffer size of the biggest class. */
+	private final int mMaxBufferSize;
+
+	/** The free buffers of each class, the smallest first. */
+	private final BlockingQueue<PooledBuffer>[] mFree;
+
+	/** The recycler handed to the buffers. */
+	private final BufferRecycler mRecycler = new BufferRecycler() {
+		@Override
+		public void recycle(PooledBuffer buffer) {
+			BufferPool.this.recycle(buffer);
+		}
+	};
+
+	/**
+	 * Instantiates a new buffer pool with classes up to the default maximum
+	 * buffer size.
+	 *
+	 * @param bufferSize the size of each buffer of the smallest class
+	 * @param maxPooled the maximum number of free buffers of the smallest class kept for reuse
+	 */
+	public BufferPool(int bufferSize, int maxPooled) {
+		this(bufferSize, Math.max(bufferSize, DEFAULT_MAX_BUFFER_SIZE), maxPooled);
+	}
+
+	/**
+	 * Instantiates a new buffer pool.
+	 *
+	 * @param bufferSize the size of each buffer of the smallest class
+	 * @param maxBufferSize the size of the biggest pooled buffer, equal to the buffer size for one class
+	 * @param maxPooled the maximum number of free buffers of the smallest class kept for reuse
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public BufferPool(int bufferSize, int maxBufferSize, int maxPooled) {
+		if(bufferSize <= 0 || maxBufferSize < bufferSize || maxPooled <= 0) {
+			throw new IllegalArgumentException("Invalid buffer pool settings");
+		}
+		int classes = 1;
+		while((long) bufferSize << classes <= maxBufferSize) {
+			classes++;
+		}
+		mBufferSize = bufferSize;
+		mMaxBufferSize = bufferSize << (classes - 1);
+		mFree = new BlockingQueue[classes];
+		for(int i = 0; i < classes; i++) {
+			mFree[i] = new ArrayBlockingQueue<PooledBuffer>(Math.max(1, maxPooled >> i));
+		}
+	}
+
+	/**
+	 * Gets the default pool.
+	 *
+	 * @return the default pool
+	 */
+	public static BufferPool getDefault() {
+		return sDefault;
+	}
+
+	/**
+	 * Gets the buffer size of the smallest class.
+	 *
+	 * @return the buffer size
+	 */
+	public int getBufferSize() {
+		return mBufferSize;
+	}
+
+	/**
+	 * Gets the buffer size of the biggest class.
+	 *
+	 * @return the maximum buffer size
+	 */
+	public int getMaxBufferSize() {
+		return mMaxBufferSize;
+	}
+
+	/**
+	 * Acquire. Returns free buffer of the smallest class holding single
+	 * reference, new one is created only when the pool is empty.
+	 *
+	 * @return the pooled buffer
+	 */
+	public PooledBuffer acquire() {
+		return acquire(0, mBufferSize);
+	}
+
+	/**
+	 * Acquire buffer of at least given capacity from the smallest class
+	 * holding it. Requests bigger than the maximum buffer size get a
+	 * dedicated buffer which is not pooled.
+	 *
+	 * @param minCapacity the minimal capacity
+	 * @return the pooled buffer
+	 */
+	public PooledBuffer acquire(int minCapacity) {
+		if(minCapacity > mMaxBufferSize) {
+			PooledBuffer buffer = new PooledBuffer(mRecycler, minCapacity);
+			buffer.acquired();
+			return buffer;
+		}
+		int index = 0;
+		int size = mBufferSize;
+		while(size < minCapacity) {
+			size <<= 1;
+			index++;
+		}
+		return acquire(index, size);
+	}
+
+	/**
+	 * Acquire buffer of given class.
+	 *
+	 * @param index the class index
+	 * @param size the buffer size of the class
+	 * @return the pooled buffer
+	 */
+	private PooledBuffer acquire(int index, int size) {
+		PooledBuffer buffer = mFree[index].poll();
+		if(buffer == null) {
+			buffer = new PooledBuffer(mRecycler, size);
+		}
+		buffer.acquired();
+		return buffer;
+	}
+
+	/**
+	 * Recycle. Called when the last reference is released, the buffer is
+	 * dropped when its class is full or it belongs to none.
+	 *
+	 * @param buffer the buffer
+	 */
+	private void recycle(PooledBuffer buffer) {
+		int capacity = buffer.capacity();
+		int size = mBufferSize;
+		for(int i = 0; i < mFree.length; i++, size <<= 1) {
+			if(capacity == size) {
+				mFree[i].offer(buffer);
+				return;
+			}
+		}
+	}
+}
@@ -0,0 +1,15 @@
+package com.ees.bluetooth;
+
+/**
+ * The Interface BufferRecycler. Owner of {@link PooledBuffer}s taking them
+ * back once their last reference is released.
+ */
+interface BufferRecycler {
+
+	/**
+	 * Recycle the buffer whose last reference has been released.
+	 *
+	 * @param buffer the buffer
+	 */
+	void recycle(PooledBuffer buffer);
+}
@@ -3,20 +3,23 @@ package com.ees.bluetooth;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
-import android.bluetooth.BluetoothSocket;
 import android.util.Log;
 
 /**
- * The Class Channel.
+ * The Class Channel. Reader of an established link, run on the manager
+ * executor together with its writer.
  */
-public class Channel extends Thread {
+public class Channel implements Runnable {
 	
 	/** The Constant TAG. */
 	private static final String TAG = Channel.class.toString();
 	
 	/** The mm socket. */
-	private final BluetoothSocket mmSocket;
+	private final TransportSocket mmSocket;
     
     /** The mm in stream. */
     private final InputStream mmInStream;
@@ -24,22 +27,71 @@ public class Channel extends Thread {
     /** The mm out stream. */
     private final OutputStream mmOutStream;
     
+    /** The remote device address. */
+    private final String mmAddress;
+    
     /** The manager. */
     private ConnectionManager mManager;
     
+    /** The frame decoder, null when framing is disabled. */
+    private final FrameDecoder mDecoder;
+    
+    /** The flag of frames starting with flags. */
+    private final boolean mHeader;
+    
+    /** The decompressor, null when compression is disabled. */
+    private final FrameDecompressor mDecompressor;
+    
+    /** The assembler of chunked messages, null when streams are disabled. */
+    private final StreamAssembler mAssembler;
+    
+    /** The credit state, null when flow control is disabled. */
+    private final FlowControl mFlow;
+    
+    /** The heartbeat, null when disabled. */
+    private final Heartbeat mHeartbeat;
+    
+    /** The writer task. */
+    private final ChannelWriter mWriter;
+    
+    /** The frame codec, null for raw streams. */
+    private final FrameCodec mCodec;
+    
+    /** The receive ring. */
+    private final ReceiveRing mRing;
+    
+    /** The first byte read after the idle wait. */
+    private final byte[] mFirstByte = new byte[1];
+    
+    /** The metrics of the remote device. */
+    private final ConnectionMetrics mMetrics;
+    
+    /** The recorder of trace events. */
+    private final FlightRecorder mRecorder;
+    
+    /** The connection id of trace events. */
+    private final int mTraceId;
+    
+    /** The closed flag. */
+    private volatile boolean mClosed;
+    
+    /** The reason of dropping the link, null when cancelled on purpose. */
+    private volatile String mDropReason;
+    
     /**
      * Instantiates a new channel.
      *
      * @param socket the socket
      * @param manager the manager
      */
-    public Channel(BluetoothSocket socket, ConnectionManager manager) {
+    public Channel(TransportSocket socket, ConnectionManager manager) {
     	mmSocket = socket;
+    	mmAddress = socket.getRemoteAddress();
     	this.mManager  = manager;
     	InputStream tmpIn = null;
         OutputStream tmpOut = null;
 
-        // Get the BluetoothSocket input and output streams
+        // Get the socket input and output streams
         try {
             tmpIn = socket.getInputStream();
             tmpOut = socket.getOutputStream();
@@ -50,6 +102,52 @@ public class Channel extends Thread {
         mmInStream = tmpIn;
         mmOutStream = tmpOut;
 
+        FrameCodec codec = manager.getFrameCodec();
+        mCodec = codec;
+        if (codec != null) {
+            mDecoder = new FrameDecoder(codec, new FrameDecoder.FrameHandler() {
+                @Override
+                public void onFrame(ByteBuffer frame) throws IOException {
+                    if (mHeader) {
+                        dispatchFrame(frame);
+                    } else {
+                        dispatchMessage(0, frame);
+                    }
+                }
+            });
+        } else {
+            mDecoder = null;
+        }
+        mHeader = codec != null && codec.headerSize() != 0;
+        mDecompressor = codec != null && codec.getCompression() != null
+                ? new FrameDecompressor(codec.getCompression(), codec.getMaxFrameSize()) : null;
+        mAssembler = codec != null && codec.hasStreams() ? new StreamAssembler(codec.getMaxFrameSize()) : null;
+        mRing = new ReceiveRing(manager.getReceiveBufferConfig());
+        mMetrics = manager.getConnectionMetrics(mmAddress);
+        mRecorder = manager.getFlightRecorder();
+        mTraceId = mRecorder.register(mmAddress);
+        FlowControlConfig flow = manager.getFlowControlConfig();
+        if (flow != null && mHeader) {
+            mFlow = new FlowControl(flow, codec.getMaxFrameSize());
+        } else {
+            if (flow != null) {
+                Log.w(TAG, "Flow control needs frames with header, enable compression or streams");
+            }
+            mFlow = null;
+        }
+        HeartbeatConfig heartbeat = manager.getHeartbeatConfig();
+        if (mHeader) {
+            // Pings of the other device are answered even without own heartbeat.
+            mHeartbeat = new Heartbeat(heartbeat, this, mMetrics);
+        } else {
+            if (heartbeat != null) {
+                Log.w(TAG, "Heartbeat needs frames with header, enable compression or streams");
+            }
+            mHeartbeat = null;
+        }
+        mWriter = new ChannelWriter(this, mmOutStream, codec != null ? codec.copy() : null,
+                manager.getWriteQueueConfig(), mFlow, mHeartbeat, mMetrics, mRecorder);
+
     }
     
     /* (non-Javadoc)
@@ -57,43 +155,437 @@ public class Channel extends Thread {
      */
     public void run() {
         Log.i(TAG, "BEGIN mConnectedThread");
-        byte[] buffer = new byte[1024];
+        PooledBuffer buffer = null;
         int bytes;
+        boolean writing = mManager.execute(mWriter);
+        boolean formatChecked = false;
+        ScheduledFuture<?> heartbeat = null;
+        if (writing && mHeartbeat != null && mHeartbeat.getConfig() != null) {
+            long interval = mHeartbeat.getConfig().getIntervalMillis();
+            heartbeat = mManager.getScheduler().scheduleAtFixedRate(mHeartbeat, interval, interval,
+                    TimeUnit.MILLISECONDS);
+        }
+        // The ring of an idle link shrinks while the reader waits without a segment.
+        ScheduledFuture<?> trim = null;
+        if (writing) {
+            trim = mManager.getScheduler().scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    mRing.trim();
+                }
+            }, ReceiveRing.IDLE_NANOS, ReceiveRing.IDLE_NANOS, TimeUnit.NANOSECONDS);
+        }
 
         // Keep listening to the InputStream while connected
         while (true) {
             try {
-                // Read from the InputStream
-                bytes = mmInStream.read(buffer);
-                Log.i(TAG, "Received data with size = " + bytes + "bytes.");
+                if (!writing) {
+                    throw new IOException("Writer not started");
+                }
+                if (mCodec != null && !formatChecked) {
+                    readFormat();
+                    formatChecked = true;
+                }
+                if (mRing.isEmpty() && mmInStream.available() == 0) {
+                    // Wait for data holding no segment, so the ring can shrink meanwhile
+                    if (mmInStream.read(mFirstByte, 0, 1) < 0) {
+                        throw new IOException("End of stream");
+                    }
+                    buffer = mRing.acquire();
+                    buffer.array()[buffer.offset()] = mFirstByte[0];
+                    int available = Math.min(mmInStream.available(), buffer.capacity() - 1);
+                    bytes = 1 + (available > 0 ? mmInStream.read(buffer.array(), buffer.offset() + 1, available) : 0);
+                } else {
+                    buffer = mRing.acquire();
+                    // Read from the InputStream straight into the receive ring
+                    bytes = mmInStream.read(buffer.array(), buffer.offset(), buffer.capacity());
+                    if (bytes < 0) {
+                        throw new IOException("End of stream");
+                    }
+                }
+                mRecorder.record(mTraceId, FlightRecorder.EVENT_READ, bytes);
+                mRing.commit(buffer, bytes);
+                mMetrics.onRead(bytes);
+                if (mHeartbeat != null) {
+                    mHeartbeat.onRead();
+                }
 
-                // Send the obtained bytes to the UI Activity
-                //TODO: mHandler.obtainMessage(BluetoothChat.MESSAGE_READ, bytes, -1, buffer).sendToTarget();
+                if (mDecoder != null) {
+                    // Cut the stream into messages, frames are views of the ring
+                    mDecoder.decode(buffer);
+                    buffer.release();
+                    buffer = null;
+                } else {
+                    // Hand the obtained bytes over to the listener, it releases the buffer
+                    PooledBuffer received = buffer;
+                    buffer = null;
+                    dispatch(received);
+                }
             } catch (IOException e) {
+                if (buffer != null) {
+                    buffer.release();
+                }
                 Log.e(TAG, "disconnected", e);
+                mRecorder.record(mTraceId, FlightRecorder.EVENT_LOST, 0);
+                // Only a deliberate cancel is no error.
+                String reason = mDropReason;
+                if ((!mClosed || reason != null) && mRecorder.isDumpOnError()) {
+                    mRecorder.dumpToLog(mmAddress, reason != null ? reason : "Link lost");
+                }
+                mClosed = true;
+                mWriter.cancel();
                 Log.i(TAG, "Restart connection manager");
-                mManager.start();
+                mManager.connectionLost(this, mmAddress);
                 break;
             }
         }
+        if (heartbeat != null) {
+            heartbeat.cancel(false);
+        }
+        if (trim != null) {
+            trim.cancel(false);
+        }
+        if (mDecompressor != null) {
+            mDecompressor.end();
+        }
+    }
+
+    /**
+     * Reads the format frame of the other device, the first bytes of
+     * framing channel.
+     *
+     * @throws IOException Signals that the devices frame differently or the read failed.
+     */
+    private void readFormat() throws IOException {
+        byte[] format = new byte[FrameCodec.FORMAT_SIZE];
+        int read = 0;
+        while (read < format.length) {
+            int n = mmInStream.read(format, read, format.length - read);
+            if (n < 0) {
+                throw new IOException("End of stream");
+            }
+            read += n;
+        }
+        mRecorder.record(mTraceId, FlightRecorder.EVENT_READ, read);
+        mMetrics.onRead(read);
+        mCodec.checkFormat(format);
+    }
+
+    /**
+     * Dispatch frame according to its flags. Control frames are consumed
+     * here, chunks are joined into messages of their streams.
+     *
+     * @param frame the frame payload starting with flags
+     * @throws IOException Signals malformed frame.
+     */
+    private void dispatchFrame(ByteBuffer frame) throws IOException {
+        if (frame.remaining() < (mAssembler != null ? 2 : 1)) {
+            throw new FrameException("Frame without header");
+        }
+        byte flags = frame.get();
+        int streamId = mAssembler != null ? frame.get() & 0xff : 0;
+        if (flags == FrameCodec.FLAG_CONTROL) {
+            byte type = frame.hasRemaining() ? frame.get() : 0;
+            if (type == FrameCompressor.CONTROL_HELLO) {
+                mWriter.onHello(frame);
+            } else if (type == FlowControl.CONTROL_CREDIT && mFlow != null) {
+                mFlow.onCredit(frame);
+                mWriter.wakeup();
+            } else if (type == Heartbeat.CONTROL_PING && mHeartbeat != null) {
+                if (mHeartbeat.onPing(frame)) {
+                    mWriter.sendControl();
+                }
+            } else if (type == Heartbeat.CONTROL_PONG && mHeartbeat != null) {
+                mHeartbeat.onPong(frame);
+            } else {
+                // Control frames of newer versions are skipped.
+                Log.w(TAG, "Unknown control frame ignored");
+            }
+            return;
+        }
+        if ((flags & ~(FrameCodec.FLAG_DEFLATE | FrameCodec.FLAG_MORE)) != 0
+                || ((flags & FrameCodec.FLAG_DEFLATE) != 0 && mDecompressor == null)
+                || ((flags & FrameCodec.FLAG_MORE) != 0 && mAssembler == null)) {
+            throw new FrameException("Unknown frame flags " + flags);
+        }
+        ByteBuffer message = frame;
+        if ((flags & FrameCodec.FLAG_DEFLATE) != 0) {
+            message = mDecompressor.decompress(frame);
+        }
+        boolean last = (flags & FrameCodec.FLAG_MORE) == 0;
+        int length = message.remaining();
+        if (mFlow != null) {
+            mFlow.onReceived(length, last);
+        }
+        if (mAssembler != null) {
+            message = mAssembler.add(streamId, message, !last);
+            if (message == null) {
+                // The chunk is drained into the reassembly buffer.
+                if (mFlow != null && mFlow.release(length, 0)) {
+                    mWriter.sendControl();
+                }
+                return;
+            }
+        }
+        int size = message.remaining();
+        if (mFlow != null && size > length) {
+            mFlow.borrow(size - length);
+        }
+        dispatchMessage(streamId, message);
+        if (mFlow != null) {
+            if (!mFlow.getConfig().isAutoGrant()) {
+                mFlow.hold(size);
+            } else if (mFlow.release(size, 1)) {
+                mWriter.sendControl();
+            }
+        }
+    }
+
+    /**
+     * Dispatch received data to the receive listener.
+     *
+     * @param data the data
+     */
+    private void dispatch(PooledBuffer data) {
+        mMetrics.onMessageReceived();
+        ReceiveListener listener = mManager.getReceiveListener();
+        if (listener == null) {
+            data.release();
+            return;
+        }
+        try {
+            listener.onDataReceived(mmAddress, data);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Receive listener failed", e);
+        }
+    }
+
+    /**
+     * Dispatch decoded message to the message listener, messages of other
+     * than the default stream to the stream listener.
+     *
+     * @param streamId the stream id
+     * @param message the message
+     */
+    private void dispatchMessage(int streamId, ByteBuffer message) {
+        mMetrics.onMessageReceived();
+        mRecorder.record(mTraceId, FlightRecorder.EVENT_MESSAGE, message.remaining());
+        try {
+            if (streamId == 0) {
+                MessageListener listener = mManager.getMessageListener();
+                if (listener != null) {
+                    listener.onMessageReceived(mmAddress, message);
+                }
+            } else {
+                StreamListener listener = mManager.getStreamListener(streamId);
+                if (listener != null) {
+                    listener.onMessageReceived(mmAddress, streamId, message);
+                }
+            }
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Message listener failed", e);
+        }
+    }
+
+    /**
+     * Gets the remote device address.
+     *
+     * @return the address
+     */
+    public String getAddress() {
+        return mmAddress;
+    }
+
+    /**
+     * Wakes the writer to send a ping.
+     */
+    void wakeWriter() {
+        mWriter.sendControl();
     }
 
     /**
      * Write to the connected OutStream.
+     * The bytes are queued and written by the channel writer thread, the
+     * array must not be modified afterwards. When framing is enabled the
+     * bytes are sent as one frame.
      * @param buffer  The bytes to write
+     * @return true, if the bytes were queued
      */
-    public void write(byte[] buffer) {
-        try {
-            mmOutStream.write(buffer);
-        } catch (IOException e) {
-            Log.e(TAG, "Exception during write", e);
+    public boolean write(byte[] buffer) {
+        return mWriter.enqueue(buffer, 0, buffer.length, null, null);
+    }
+
+    /**
+     * Write part of array to the connected OutStream.
+     * The range must not be modified until the callback is notified.
+     *
+     * @param buffer the bytes to write
+     * @param offset the offset
+     * @param length the length
+     * @param callback the completion callback, may be null
+     * @return true, if the bytes were queued
+     */
+    public boolean write(byte[] buffer, int offset, int length, WriteCallback callback) {
+        return mWriter.enqueue(buffer, offset, length, null, callback);
+    }
+
+    /**
+     * Write part of array to given stream.
+     * The range must not be modified until the callback is notified.
+     *
+     * @param streamId the stream id
+     * @param priority the priority class of the stream
+     * @param buffer the bytes to write
+     * @param offset the offset
+     * @param length the length
+     * @param callback the completion callback, may be null
+     * @return true, if the bytes were queued
+     */
+    public boolean write(int streamId, StreamPriority priority, byte[] buffer, int offset, int length,
+            WriteCallback callback) {
+        return mWriter.enqueue(streamId, priority, buffer, offset, length, null, callback);
+    }
+
+    /**
+     * Write content of pooled buffer to given stream.
+     * The channel takes over the reference to the buffer.
+     *
+     * @param streamId the stream id
+     * @param priority the priority class of the stream
+     * @param data the data
+     * @param callback the completion callback, may be null
+     * @return true, if the data were queued
+     */
+    public boolean write(int streamId, StreamPriority priority, PooledBuffer data, WriteCallback callback) {
+        return mWriter.enqueue(streamId, priority, data.array(), data.offset(), data.length(), data, callback);
+    }
+
+    /**
+     * Write content of pooled buffer to given stream, handling a full write
+     * queue by given policy in place of the configured one.
+     * The channel takes over the reference to the buffer.
+     *
+     * @param streamId the stream id
+     * @param priority the priority class of the stream
+     * @param data the data
+     * @param policy the backpressure policy
+     * @param callback the completion callback, may be null
+     * @return true, if the data were queued
+     */
+    public boolean write(int streamId, StreamPriority priority, PooledBuffer data, BackpressurePolicy policy,
+            WriteCallback callback) {
+        return mWriter.enqueue(streamId, priority, data.array(), data.offset(), data.length(), data, callback,
+                policy);
+    }
+
+    /**
+     * Write content of pooled buffer sent to every hub client. Under
+     * {@link BackpressurePolicy#DROP_OLDEST} a broadcast drops only older
+     * broadcasts, which are the only writes dropped for it.
+     * The channel takes over the reference to the buffer.
+     *
+     * @param streamId the stream id
+     * @param priority the priority class of the stream
+     * @param data the data
+     * @param policy the slow client policy
+     * @param callback the completion callback, may be null
+     * @return true, if the data were queued
+     */
+    boolean broadcast(int streamId, StreamPriority priority, PooledBuffer data, BackpressurePolicy policy,
+            WriteCallback callback) {
+        return mWriter.enqueue(streamId, priority, data.array(), data.offset(), data.length(), data, callback,
+                policy, true);
+    }
+
+    /**
+     * Write array sent to every hub client, dropped only for newer
+     * broadcasts like {@link #broadcast(int, StreamPriority, PooledBuffer, BackpressurePolicy, WriteCallback)}.
+     * The array must not be modified until the write completes.
+     *
+     * @param streamId the stream id
+     * @param priority the priority class of the stream
+     * @param buffer the bytes to write
+     * @param policy the slow client policy
+     * @return true, if the bytes were queued
+     */
+    boolean broadcast(int streamId, StreamPriority priority, byte[] buffer, BackpressurePolicy policy) {
+        return mWriter.enqueue(streamId, priority, buffer, 0, buffer.length, null, null, policy, true);
+    }
+
+    /**
+     * Write content of pooled buffer to the connected OutStream.
+     * The channel takes over the reference to the buffer and releases it
+     * once the data are written.
+     *
+     * @param data the data
+     * @param callback the completion callback, may be null
+     * @return true, if the data were queued
+     */
+    public boolean write(PooledBuffer data, WriteCallback callback) {
+        return mWriter.enqueue(data.array(), data.offset(), data.length(), data, callback);
+    }
+
+    /**
+     * Returns credit of messages the application finished processing, when
+     * flow control does not grant credit automatically. Messages are
+     * granted in the order they were received.
+     *
+     * @param messages the number of processed messages
+     */
+    public void grantCredit(int messages) {
+        if (mFlow != null && mFlow.grant(messages)) {
+            mWriter.sendControl();
+        }
+    }
+
+    /**
+     * Gets the current read window of the receive ring.
+     *
+     * @return the read window in bytes
+     */
+    public int getReadWindow() {
+        return mRing.getWindow();
+    }
+
+    /**
+     * Gets the number of writes waiting in the queue.
+     *
+     * @return the queue depth
+     */
+    public int getWriteQueueDepth() {
+        return mWriter.getQueueDepth();
+    }
+
+    /**
+     * Checks if the channel is open.
+     *
+     * @return true, until the link is lost or the channel is cancelled
+     */
+    public boolean isOpen() {
+        return !mClosed;
+    }
+
+    /**
+     * Drops the link on error, a heartbeat timeout or a failed writer. Unlike
+     * {@link #cancel()} the flight recorder is dumped when enabled.
+     *
+     * @param reason the reason logged ahead of the events
+     */
+    void drop(String reason) {
+        if (mClosed) {
+            return;
         }
+        mDropReason = reason;
+        cancel();
     }
 
     /**
      * Cancel.
      */
     public void cancel() {
+        mClosed = true;
+        mWriter.cancel();
+        mRing.close();
         try {
             mmSocket.close();
         } catch (IOException e) {
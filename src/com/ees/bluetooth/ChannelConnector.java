@@ -2,14 +2,12 @@ package com.ees.bluetooth;
 
 import java.io.IOException;
 
-import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothSocket;
 import android.util.Log;
 
 /**
- * The Class ChannelConnector.
+ * The Class ChannelConnector. Dials a remote device, run on the manager executor.
  */
-public class ChannelConnector extends Thread {
+public class ChannelConnector implements Runnable {
 	
 	/** The Constant TAG. */
 	private static final String TAG = ChannelConnector.class.getSimpleName();
@@ -18,24 +16,39 @@ public class ChannelConnector extends Thread {
 	private ConnectionManager mManager;
     
     /** The mm socket. */
-    private final BluetoothSocket mmSocket;
+    private final TransportSocket mmSocket;
     
-    /** The mm device. */
-    private final BluetoothDevice mmDevice;
+    /** The mm address. */
+    private final String mmAddress;
+    
+    /** The race this attempt belongs to, null for plain connect. */
+    private final ConnectRace mRace;
 
     /**
      * Instantiates a new channel connector.
      *
-     * @param device the device
+     * @param address the remote device address
+     * @param manager the manager
+     */
+	public ChannelConnector(String address, ConnectionManager manager) {
+		this(address, manager, null);
+	}
+
+    /**
+     * Instantiates a new channel connector reporting to the race.
+     *
+     * @param address the remote device address
      * @param manager the manager
+     * @param race the race or null
      */
-	public ChannelConnector(BluetoothDevice device, ConnectionManager manager) {
-        mmDevice = device;
+	ChannelConnector(String address, ConnectionManager manager, ConnectRace race) {
+        mmAddress = address;
         mManager = manager;
-        BluetoothSocket tmp = null;
+        mRace = race;
+        TransportSocket tmp = null;
 
         try {
-        	tmp = device.createInsecureRfcommSocketToServiceRecord(mManager.getUUID());
+        	tmp = manager.getTransport().createSocket(address, mManager.getUUID());
         } catch (Exception e) {
             Log.e(TAG, "Socket create() failed", e);
         }
@@ -47,24 +60,28 @@ public class ChannelConnector extends Thread {
      */
     public void run() {
         Log.i(TAG, "Start connection to BT channel by given BT device. ");
+        if (mmSocket == null) {
+            failed();
+            return;
+        }
 
         // Make a connection to the BluetoothSocket
         try {
             // This is a blocking call and will only return on a
             // successful connection or an exception
-        	Log.i(TAG, "Connect via given socket to dev: " + mmSocket.getRemoteDevice().getName());
+        	Log.i(TAG, "Connect via given socket to dev: " + mmAddress);
+            long start = System.nanoTime();
             mmSocket.connect();
+            mManager.getConnectionMetrics(mmAddress).onConnected(System.nanoTime() - start);
         } catch (IOException e) {
         	Log.e(TAG, "Cannot connect to device.", e);
-        	mManager.setState(ConnectionState.NONE);
             // Close the socket
             try {
                 mmSocket.close();
             } catch (IOException e2) {
                 Log.e(TAG, "unable to close() socket during connection failure", e2);
             }
-            Log.i(TAG, "Restart connection manager");
-            mManager.start();
+            failed();
             return;
         }
 
@@ -76,7 +93,31 @@ public class ChannelConnector extends Thread {
 
         // Establish BT connection, and make possible data exchanging.
         Log.i(TAG, "Establish connection.");
-        mManager.establishConnection(mmSocket, mmDevice);
+        if (mRace != null) {
+            mRace.onConnected(this, mmSocket);
+        } else {
+            mManager.connected(this, mmSocket);
+        }
+    }
+
+    /**
+     * Reports the failed attempt.
+     */
+    private void failed() {
+        if (mRace != null) {
+            mRace.onFailed(this);
+        } else {
+            mManager.connectionFailed(this, mmAddress);
+        }
+    }
+
+    /**
+     * Gets the remote device address.
+     *
+     * @return the address
+     */
+    public String getAddress() {
+        return mmAddress;
     }
 
     /**
@@ -84,6 +125,9 @@ public class ChannelConnector extends Thread {
      * Method cancels this thread by closing socket. 
      */
     public void cancel() {
+        if (mmSocket == null) {
+            return;
+        }
         try {
             mmSocket.close();
         } catch (IOException e) {
@@ -2,24 +2,26 @@ package com.ees.bluetooth;
 
 import java.io.IOException;
 
-import android.bluetooth.BluetoothServerSocket;
-import android.bluetooth.BluetoothSocket;
 import android.util.Log;
 
 /**
- * 
+ * The Class ChannelInviteListener. Accepts incoming links, run on the
+ * manager executor.
  */
-public class ChannelInviteListener extends Thread{
+public class ChannelInviteListener implements Runnable {
 	
 	/** The Constant TAG. */
 	private static final String TAG = ChannelInviteListener.class.toString();
 	
 	/** The mm server socket. */
-	private final BluetoothServerSocket mmServerSocket;
+	private final TransportServerSocket mmServerSocket;
 	
 	/** The manager. */
 	private ConnectionManager mManager;
 	
+	/** The active flag, cleared when accepting ends. */
+	private volatile boolean mActive = true;
+	
 	/**
 	 * Instantiates a new channel invite listener.
 	 *
@@ -27,10 +29,10 @@ public class ChannelInviteListener extends Thread{
 	 */
 	public ChannelInviteListener(ConnectionManager manager) {
 		this.mManager = manager;
-        BluetoothServerSocket tmp = null;
+        TransportServerSocket tmp = null;
 
         try {
-             tmp = manager.getAdapter().listenUsingInsecureRfcommWithServiceRecord("BTAPPUnity3d", manager.getUUID());
+             tmp = manager.getTransport().listen(manager.getServiceName(), manager.getUUID());
         } catch (IOException e) {
             Log.e(TAG, "Socket listen() failed", e);
         }
@@ -43,54 +45,59 @@ public class ChannelInviteListener extends Thread{
     public void run() {
         Log.d(TAG, "Start scanning BT devices, " + this);
 
-        BluetoothSocket socket = null;
+        TransportSocket socket = null;
+        if (mmServerSocket == null) {
+            Log.e(TAG, "Server socket not opened.");
+            mActive = false;
+            return;
+        }
 
-        // Listen to the server socket if we're not connected
-        while (mManager.getState() != ConnectionState.CONNECTED) {
+        // Listen to the server socket until cancelled, which the manager
+        // does once connected, in hub mode once the client limit is reached.
+        while (mActive) {
             try {
                 // This is a blocking call and will only return on a
                 // successful connection or an exception
                 socket = mmServerSocket.accept();
             } catch (IOException e) {
-                Log.e(TAG, "Socket accept() failed", e);
+                if (mActive) {
+                    Log.e(TAG, "Socket accept() failed", e);
+                }
                 break;
             }
 
             // If a connection was accepted
             if (socket != null) {
-            	// TODO: synch is not necessary here, atomic is used
-                synchronized (mManager) { 
-                    switch (mManager.getState()) {
-                    case ConnectionState.LISTENING:
-                    case ConnectionState.CONNECTING:
-                        // Situation normal. Start the connected thread.
-                    	mManager.establishConnection(socket, socket.getRemoteDevice());
-                    	Log.v(TAG, "Scanned result: " + socket.getRemoteDevice().getName());
-                        break;
-                    case ConnectionState.NONE:
-                    	Log.e(TAG, "Not initialized ConnectionManager.");
-                    case ConnectionState.CONNECTED:
-                        // Either not ready or already connected. Terminate new socket.
-                    	Log.e(TAG, "Already connected. Socket termination.");
-                        try {
-                            socket.close();
-                        } catch (IOException e) {
-                            Log.e(TAG, "Could not close unwanted socket", e);
-                        }
-                        break;
-                    }
-                }
+                mManager.getConnectionMetrics(socket.getRemoteAddress()).onAccepted();
+                // The manager drops the link itself when not ready, terminated
+                // meanwhile or already connected to as many devices as it takes.
+                mManager.accepted(this, socket);
+                Log.v(TAG, "Scanned result: " + socket.getRemoteName());
             }
         }
         
+        mActive = false;
         Log.i(TAG, "END Scanning");
 
     }
 
+    /**
+     * Checks if the listener is accepting.
+     *
+     * @return true, until accepting ends or the listener is cancelled
+     */
+    public boolean isActive() {
+        return mActive;
+    }
+
     /**
      * Cancel.
      */
     public void cancel() {
+        mActive = false;
+        if (mmServerSocket == null) {
+            return;
+        }
         Log.d(TAG, "Socket " + mmServerSocket.toString() + "cancel " + this);
         try {
             mmServerSocket.close();
@@ -0,0 +1,659 @@
+package com.ees.bluetooth;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import android.util.Log;
+
+/**
+ * The Class ChannelWriter. Writer task of a channel. Callers only put data
+ * into a bounded queue and return, the writer takes pending messages,
+ * coalesces small ones into a single socket write and reports completion
+ * through {@link WriteCallback}s. A stalled link therefore never blocks the
+ * caller, unless blocking backpressure is chosen and the queue is full.
+ * With streams enabled messages are cut into chunks and the
+ * {@link WriteScheduler} picks which stream the next chunk comes from.
+ * With flow control the writer sends only chunks covered by credit of the
+ * other device. Credit grants and heartbeats go out in control frames ahead
+ * of the next batch.
+ */
+class ChannelWriter implements Runnable {
+
+	/** The Constant TAG. */
+	private static final String TAG = ChannelWriter.class.getSimpleName();
+
+	/** The channel dropped when a write fails. */
+	private final Channel mChannel;
+
+	/** The out stream. */
+	private final OutputStream mmOutStream;
+
+	/** The remote device address. */
+	private final String mAddress;
+
+	/** The frame encoder, null when framing is disabled. */
+	private final FrameCodec mCodec;
+
+	/** The compressor, null when compression is disabled. */
+	private final FrameCompressor mCompressor;
+
+	/** The queue settings. */
+	private final WriteQueueConfig mConfig;
+
+	/** The credit state, null when flow control is disabled. */
+	private final FlowControl mFlow;
+
+	/** The heartbeat, null when disabled. */
+	private final Heartbeat mHeartbeat;
+
+	/** The body of control frames. */
+	private final byte[] mControlBody = new byte[Math.max(FlowControl.CREDIT_SIZE, Heartbeat.PING_SIZE)];
+
+	/** The buffer of control frames, null when neither flow control nor heartbeat is enabled. */
+	private final byte[] mControlFrame;
+
+	/** The pending writes. */
+	private final WriteScheduler mQueue;
+
+	/** The maximum chunk of message sent in one frame. */
+	private final int mChunkSize;
+
+	/** The recycled requests. */
+	private final BlockingQueue<WriteRequest> mFree;
+
+	/** The requests of chunks of current batch. */
+	private final WriteRequest[] mBatch;
+
+	/** The offsets of chunks of current batch. */
+	private final int[] mChunkOffset;
+
+	/** The lengths of chunks of current batch. */
+	private final int[] mChunkLength;
+
+	/** The flags of last chunks of their messages. */
+	private final boolean[] mChunkLast;
+
+	/** The number of chunks in current batch. */
+	private int mBatchCount;
+
+	/** The buffer batches are assembled in. */
+	private byte[] mBatchBuffer;
+
+	/** The closed flag. */
+	private volatile boolean mClosed;
+
+	/** The pooled thread running the writer, null when not running. */
+	private Thread mThread;
+
+	/** The metrics of the remote device. */
+	private final ConnectionMetrics mMetrics;
+
+	/** The recorder of trace events. */
+	private final FlightRecorder mRecorder;
+
+	/** The connection id of trace events. */
+	private final int mTraceId;
+
+	/**
+	 * Instantiates a new channel writer.
+	 *
+	 * @param channel the channel dropped when a write fails
+	 * @param out the out stream
+	 * @param codec the frame encoder owned by this writer, null for raw writes
+	 * @param config the queue settings
+	 * @param flow the credit state shared with the reader, null when flow control is disabled
+	 * @param heartbeat the heartbeat shared with the reader, null without frame header
+	 * @param metrics the metrics of the remote device
+	 * @param recorder the recorder of trace events
+	 */
+	ChannelWriter(Channel channel, OutputStream out, FrameCodec codec, WriteQueueConfig config, FlowControl flow,
+			Heartbeat heartbeat, ConnectionMetrics metrics, FlightRecorder recorder) {
+		mChannel = channel;
+		mmOutStream = out;
+		mAddress = channel.getAddress();
+		mCodec = codec;
+		mCompressor = codec != null && codec.getCompression() != null
+				? new FrameCompressor(codec.getCompression()) : null;
+		mConfig = config;
+		mMetrics = metrics;
+		mRecorder = recorder;
+		mTraceId = recorder.register(mAddress);
+		mFlow = flow;
+		mHeartbeat = heartbeat;
+		mControlFrame = flow != null || heartbeat != null ? new byte[codec.frameSize(mControlBody.length)] : null;
+		mQueue = new WriteScheduler(config.getCapacity(), flow);
+		mChunkSize = codec != null && codec.hasStreams()
+				? Math.max(1, Math.min(config.getChunkSize(), codec.getMaxFrameSize())) : Integer.MAX_VALUE;
+		mFree = new ArrayBlockingQueue<WriteRequest>(config.getCapacity() + 1);
+		mBatch = new WriteRequest[config.getCapacity() + 1];
+		mChunkOffset = new int[mBatch.length];
+		mChunkLength = new int[mBatch.length];
+		mChunkLast = new boolean[mBatch.length];
+		mBatchBuffer = new byte[config.getMaxBatchBytes()];
+	}
+
+	/**
+	 * Enqueue data to be written to the default stream.
+	 *
+	 * @param array the data array
+	 * @param offset the data offset
+	 * @param length the data length
+	 * @param owned the pooled buffer backing the data, released after the write, may be null
+	 * @param callback the completion callback, may be null
+	 * @return true, if the data were queued
+	 * @see #enqueue(int, StreamPriority, byte[], int, int, PooledBuffer, WriteCallback)
+	 */
+	boolean enqueue(byte[] array, int offset, int length, PooledBuffer owned, WriteCallback callback) {
+		return enqueue(0, StreamPriority.NORMAL, array, offset, length, owned, callback);
+	}
+
+	/**
+	 * Enqueue data to be written. The array must not be modified until the
+	 * write completes, unless it is backed by the owned pooled buffer.
+	 *
+	 * @param streamId the stream id, 0 unless streams are enabled
+	 * @param priority the priority class of the stream
+	 * @param array the data array
+	 * @param offset the data offset
+	 * @param length the data length
+	 * @param owned the pooled buffer backing the data, released after the write, may be null
+	 * @param callback the completion callback, may be null
+	 * @return true, if the data were queued
+	 */
+	boolean enqueue(int streamId, StreamPriority priority, byte[] array, int offset, int length,
+			PooledBuffer owned, WriteCallback callback) {
+		return enqueue(streamId, priority, array, offset, length, owned, callback, mConfig.getPolicy());
+	}
+
+	/**
+	 * Enqueue data to be written, handling a full queue by given policy in
+	 * place of the configured one.
+	 *
+	 * @param streamId the stream id, 0 unless streams are enabled
+	 * @param priority the priority class of the stream
+	 * @param array the data array
+	 * @param offset the data offset
+	 * @param length the data length
+	 * @param owned the pooled buffer backing the data, released after the write, may be null
+	 * @param callback the completion callback, may be null
+	 * @param policy the backpressure policy
+	 * @return true, if the data were queued
+	 */
+	boolean enqueue(int streamId, StreamPriority priority, byte[] array, int offset, int length,
+			PooledBuffer owned, WriteCallback callback, BackpressurePolicy policy) {
+		return enqueue(streamId, priority, array, offset, length, owned, callback, policy, false);
+	}
+
+	/**
+	 * Enqueue data to be written. A broadcast is a message sent to every hub
+	 * client under the slow client policy, {@link BackpressurePolicy#DROP_OLDEST}
+	 * drops only older broadcasts to make room for it, while other writes
+	 * drop the oldest queued write of any kind.
+	 *
+	 * @param streamId the stream id, 0 unless streams are enabled
+	 * @param priority the priority class of the stream
+	 * @param array the data array
+	 * @param offset the data offset
+	 * @param length the data length
+	 * @param owned the pooled buffer backing the data, released after the write, may be null
+	 * @param callback the completion callback, may be null
+	 * @param policy the backpressure policy, null for the configured one
+	 * @param broadcast true for a message sent to every hub client
+	 * @return true, if the data were queued
+	 */
+	boolean enqueue(int streamId, StreamPriority priority, byte[] array, int offset, int length,
+			PooledBuffer owned, WriteCallback callback, BackpressurePolicy policy, boolean broadcast) {
+		if(mClosed) {
+			reject(length, owned, callback, new IOException("Channel closed"));
+			return false;
+		}
+		if(mCodec != null && length > mCodec.getMaxFrameSize()) {
+			reject(length, owned, callback,
+					new FrameException("Message of " + length + " bytes exceeds frame limit"));
+			return false;
+		}
+		WriteRequest request = mFree.poll();
+		if(request == null) {
+			request = new WriteRequest();
+		}
+		request.set(array, offset, length, owned, callback);
+		request.setStream(streamId, priority);
+		request.mBroadcast = broadcast;
+
+		switch (policy != null ? policy : mConfig.getPolicy()) {
+		case BLOCK:
+			try {
+				mQueue.put(request);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				complete(request, new IOException("Write interrupted"));
+				return false;
+			}
+			break;
+		case DROP_OLDEST:
+			if(broadcast) {
+				WriteRequest dropped = mQueue.offerDroppingBroadcast(request);
+				if(dropped == request) {
+					complete(request, new IOException("Write queue full"));
+					return false;
+				}
+				if(dropped != null) {
+					complete(dropped, new IOException("Write dropped, queue full"));
+				}
+				break;
+			}
+			while(!mQueue.offer(request)) {
+				WriteRequest oldest = mQueue.pollOldest();
+				if(oldest != null) {
+					complete(oldest, new IOException("Write dropped, queue full"));
+				}
+			}
+			break;
+		case FAIL_FAST:
+			if(!mQueue.offer(request)) {
+				complete(request, new IOException("Write queue full"));
+				return false;
+			}
+			break;
+		}
+
+		mRecorder.record(mTraceId, FlightRecorder.EVENT_QUEUED, length);
+		if(mClosed) {
+			// Closed meanwhile, nobody would take the request.
+			failPending(new IOException("Channel closed"));
+		}
+		return true;
+	}
+
+	/**
+	 * Gets the number of queued writes.
+	 *
+	 * @return the queue depth
+	 */
+	int getQueueDepth() {
+		return mQueue.size();
+	}
+
+	/**
+	 * Handles the hello frame of the other device.
+	 *
+	 * @param body the body following the control type
+	 */
+	void onHello(ByteBuffer body) {
+		if(mCompressor != null) {
+			mCompressor.onHello(body);
+		}
+	}
+
+	/**
+	 * Wakes the writer to send chunks on received credit.
+	 */
+	void wakeup() {
+		mQueue.signal(false);
+	}
+
+	/**
+	 * Wakes the writer to send control frames, credit grants and heartbeats.
+	 */
+	void sendControl() {
+		mQueue.signal(true);
+	}
+
+	/**
+	 * Cancel. Stops the writer and fails pending writes.
+	 */
+	void cancel() {
+		mClosed = true;
+		synchronized (this) {
+			// Only interrupt while running, the thread belongs to the pool.
+			if(mThread != null) {
+				mThread.interrupt();
+			}
+		}
+		failPending(new IOException("Channel closed"));
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Thread#run()
+	 */
+	@Override
+	public void run() {
+		synchronized (this) {
+			mThread = Thread.currentThread();
+		}
+		IOException failure = new IOException("Channel closed");
+		boolean failed = false;
+		try {
+			if(mCodec != null) {
+				writeFormat();
+			}
+			if(mCompressor != null) {
+				writeHello();
+			}
+			writeControl(true);
+			long timeout = mFlow != null && mFlow.getConfig().getStallTimeoutMillis() != 0
+					? TimeUnit.MILLISECONDS.toNanos(mFlow.getConfig().getStallTimeoutMillis()) : -1;
+			while(!mClosed) {
+				WriteRequest first = mQueue.next(timeout);
+				if(first == null) {
+					// Woken to send control frames or waiting for credit.
+					writeControl(true);
+					if(mFlow != null && mFlow.isStalled() && mQueue.hasPending()) {
+						throw new IOException("No flow control credit for "
+								+ mFlow.getConfig().getStallTimeoutMillis() + "ms");
+					}
+					continue;
+				}
+				writeControl(false);
+				collectBatch(first);
+				writeBatch();
+			}
+		} catch (InterruptedException e) {
+			// Cancelled.
+		} catch (IOException e) {
+			Log.e(TAG, "Exception during write", e);
+			mRecorder.record(mTraceId, FlightRecorder.EVENT_WRITE_FAILED, mBatchCount);
+			failure = e;
+			failed = true;
+		} finally {
+			mClosed = true;
+			// Messages with chunks still to come are current in the queue.
+			for(int i = 0; i < mBatchCount; i++) {
+				if(mChunkLast[i]) {
+					complete(mBatch[i], failure);
+				}
+				mBatch[i] = null;
+			}
+			mBatchCount = 0;
+			WriteRequest current;
+			while((current = mQueue.pollCurrent()) != null) {
+				complete(current, failure);
+			}
+			failPending(failure);
+			if(mCompressor != null) {
+				mCompressor.end();
+			}
+			synchronized (this) {
+				mThread = null;
+				// Do not leak the cancel interrupt to the next pooled task.
+				Thread.interrupted();
+			}
+			if(failed) {
+				// The reader would keep a link up which cannot be written, e.g. stalled by flow control.
+				mChannel.drop("Write failed: " + failure.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Writes the format frame, the first frame of framing channel.
+	 *
+	 * @throws IOException Signals that the write failed.
+	 */
+	private void writeFormat() throws IOException {
+		byte[] frame = new byte[FrameCodec.FORMAT_SIZE];
+		mmOutStream.write(frame, 0, mCodec.writeFormat(frame));
+		mmOutStream.flush();
+	}
+
+	/**
+	 * Writes the hello frame, the first frame of compressing channel.
+	 *
+	 * @throws IOException Signals that the write failed.
+	 */
+	private void writeHello() throws IOException {
+		byte[] body = new byte[FrameCompressor.HELLO_SIZE];
+		int length = mCompressor.writeHello(body);
+		byte[] frame = new byte[mCodec.frameSize(length)];
+		int n = mCodec.encode(FrameCodec.FLAG_CONTROL, 0, body, 0, length, frame, 0);
+		mmOutStream.write(frame, 0, n);
+		mmOutStream.flush();
+	}
+
+	/**
+	 * Writes waiting control frames, credit grants and heartbeats.
+	 *
+	 * @param flush true to flush, false when a batch follows
+	 * @throws IOException Signals that the write failed.
+	 */
+	private void writeControl(boolean flush) throws IOException {
+		if(mControlFrame == null) {
+			return;
+		}
+		mQueue.clearWakeup();
+		boolean written = false;
+		if(mFlow != null) {
+			written |= writeControl(mFlow.writeCredit(mControlBody));
+		}
+		if(mHeartbeat != null) {
+			written |= writeControl(mHeartbeat.writePong(mControlBody));
+			written |= writeControl(mHeartbeat.writePing(mControlBody));
+		}
+		if(written && flush) {
+			mmOutStream.flush();
+		}
+	}
+
+	/**
+	 * Writes the control frame whose body is in the body buffer.
+	 *
+	 * @param length the body length, 0 when there is none
+	 * @return true, if written
+	 * @throws IOException Signals that the write failed.
+	 */
+	private boolean writeControl(int length) throws IOException {
+		if(length == 0) {
+			return false;
+		}
+		int n = mCodec.encode(FrameCodec.FLAG_CONTROL, 0, mControlBody, 0, length, mControlFrame, 0);
+		mmOutStream.write(mControlFrame, 0, n);
+		return true;
+	}
+
+	/**
+	 * Collects the batch starting with next chunk of given request. Further
+	 * chunks are added while the batch fits into the size limit, waiting
+	 * for them at most the configured delay. A chunk which does not fit
+	 * stays in the queue.
+	 *
+	 * @param first the first request
+	 * @throws InterruptedException Signals that the writer was cancelled.
+	 */
+	private void collectBatch(WriteRequest first) throws InterruptedException {
+		mBatchCount = 0;
+		int bytes = addChunk(first);
+		int maxBytes = mConfig.getMaxBatchBytes();
+		long delay = TimeUnit.MICROSECONDS.toNanos(mConfig.getMaxDelayMicros());
+		long deadline = System.nanoTime() + delay;
+
+		while(bytes < maxBytes && mBatchCount < mBatch.length) {
+			WriteRequest next = mQueue.next(0);
+			if(next == null) {
+				long remaining = deadline - System.nanoTime();
+				if(delay == 0 || remaining <= 0) {
+					break;
+				}
+				next = mQueue.next(remaining);
+				if(next == null) {
+					break;
+				}
+			}
+			int size = encodedSize(chunkLength(next));
+			if(bytes + size > maxBytes) {
+				break;
+			}
+			bytes += addChunk(next);
+		}
+	}
+
+	/**
+	 * Adds the next chunk of the request to the batch.
+	 *
+	 * @param request the request
+	 * @return the encoded size of the chunk
+	 */
+	private int addChunk(WriteRequest request) {
+		int length = chunkLength(request);
+		int i = mBatchCount++;
+		mBatch[i] = request;
+		mChunkOffset[i] = request.mOffset + request.mSent;
+		mChunkLength[i] = length;
+		if(mFlow != null) {
+			mFlow.consume(length, request.mSent == 0);
+		}
+		request.mSent += length;
+		mChunkLast[i] = request.mSent == request.mLength;
+		if(mChunkLast[i]) {
+			mQueue.done(request);
+		}
+		return encodedSize(length);
+	}
+
+	/**
+	 * Writes current batch with single socket write and completes requests
+	 * whose last chunk it contains.
+	 *
+	 * @throws IOException Signals that the write failed.
+	 */
+	private void writeBatch() throws IOException {
+		int written;
+		long start;
+		if(mBatchCount == 1 && mCodec == null) {
+			written = mChunkLength[0];
+			start = System.nanoTime();
+			mmOutStream.write(mBatch[0].mArray, mChunkOffset[0], written);
+		} else {
+			int size = 0;
+			for(int i = 0; i < mBatchCount; i++) {
+				size += encodedSize(mChunkLength[i]);
+			}
+			if(mBatchBuffer.length < size) {
+				mBatchBuffer = new byte[size];
+			}
+			int pos = 0;
+			for(int i = 0; i < mBatchCount; i++) {
+				WriteRequest request = mBatch[i];
+				int offset = mChunkOffset[i];
+				int length = mChunkLength[i];
+				if(mCodec == null) {
+					System.arraycopy(request.mArray, offset, mBatchBuffer, pos, length);
+					pos += length;
+					continue;
+				}
+				byte flags = mChunkLast[i] ? FrameCodec.FLAG_RAW : FrameCodec.FLAG_MORE;
+				int compressed = mCompressor != null ? mCompressor.compress(request.mArray, offset, length) : -1;
+				if(compressed >= 0) {
+					pos += mCodec.encode((byte) (flags | FrameCodec.FLAG_DEFLATE), request.mStreamId,
+							mCompressor.getOutput(), 0, compressed, mBatchBuffer, pos);
+				} else {
+					pos += mCodec.encode(flags, request.mStreamId, request.mArray, offset, length, mBatchBuffer, pos);
+				}
+			}
+			written = pos;
+			start = System.nanoTime();
+			mmOutStream.write(mBatchBuffer, 0, pos);
+		}
+		mmOutStream.flush();
+
+		int count = mBatchCount;
+		int messages = 0;
+		mBatchCount = 0;
+		for(int i = 0; i < count; i++) {
+			if(mChunkLast[i]) {
+				messages++;
+			}
+		}
+		mMetrics.onWritten(written, messages, System.nanoTime() - start);
+		mRecorder.record(mTraceId, FlightRecorder.EVENT_FLUSH, written);
+		for(int i = 0; i < count; i++) {
+			if(mChunkLast[i]) {
+				complete(mBatch[i], null);
+			}
+			mBatch[i] = null;
+		}
+	}
+
+	/**
+	 * Gets the length of the next chunk of the request.
+	 *
+	 * @param request the request
+	 * @return the chunk length
+	 */
+	private int chunkLength(WriteRequest request) {
+		return Math.min(mChunkSize, request.mLength - request.mSent);
+	}
+
+	/**
+	 * Gets the number of bytes the chunk occupies on the wire.
+	 *
+	 * @param length the chunk length
+	 * @return the encoded size
+	 */
+	private int encodedSize(int length) {
+		return mCodec != null ? mCodec.frameSize(length) : length;
+	}
+
+	/**
+	 * Fails all queued requests.
+	 *
+	 * @param error the error
+	 */
+	private void failPending(IOException error) {
+		WriteRequest request;
+		while((request = mQueue.pollOldest()) != null) {
+			complete(request, error);
+		}
+	}
+
+	/**
+	 * Completes the request, recycles it and notifies its callback.
+	 *
+	 * @param request the request
+	 * @param error the error, null on success
+	 */
+	private void complete(WriteRequest request, IOException error) {
+		WriteCallback callback = request.mCallback;
+		int length = request.mLength;
+		request.clear();
+		mFree.offer(request);
+		notifyCallback(callback, length, error);
+	}
+
+	/**
+	 * Rejects the write which has not been queued.
+	 *
+	 * @param length the data length
+	 * @param owned the pooled buffer backing the data or null
+	 * @param callback the callback or null
+	 * @param error the error
+	 */
+	private void reject(int length, PooledBuffer owned, WriteCallback callback, IOException error) {
+		Log.e(TAG, "Write rejected: " + error.getMessage());
+		if(owned != null) {
+			owned.release();
+		}
+		notifyCallback(callback, length, error);
+	}
+
+	/**
+	 * Notifies the callback.
+	 *
+	 * @param callback the callback or null
+	 * @param length the data length
+	 * @param error the error, null on success
+	 */
+	private void notifyCallback(WriteCallback callback, int length, IOException error) {
+		if(callback == null) {
+			return;
+		}
+		try {
+			callback.onWriteCompleted(mAddress, length, error);
+		} catch (RuntimeException e) {
+			Log.e(TAG, "Write callback failed", e);
+		}
+	}
+}
@@ -0,0 +1,146 @@
+package com.ees.bluetooth;
+
+import java.util.zip.Adler32;
+import java.util.zip.Deflater;
+
+/**
+ * The Class CompressionConfig. Settings of per frame compression. Messages
+ * smaller than the threshold are sent as they are, bigger ones are deflated
+ * and sent compressed only when they shrink below the ratio limit. After a
+ * message which did not shrink enough only every n-th message is tried
+ * until one shrinks again, so incompressible traffic costs little CPU.
+ *
+ * @see FrameCodec#FrameCodec(int, boolean, CompressionConfig)
+ */
+public class CompressionConfig {
+
+	/** The default size below which messages are not compressed. */
+	public static final int DEFAULT_MIN_SIZE = 128;
+
+	/** The default ratio of compressed to original size worth sending. */
+	public static final float DEFAULT_MAX_RATIO = 0.9f;
+
+	/** The default interval of messages tried while data do not shrink. */
+	public static final int DEFAULT_SAMPLE_INTERVAL = 16;
+
+	/** The deflate level. */
+	private final int mLevel;
+
+	/** The size below which messages are not compressed. */
+	private final int mMinSize;
+
+	/** The ratio of compressed to original size worth sending. */
+	private final float mMaxRatio;
+
+	/** The interval of messages tried while data do not shrink. */
+	private final int mSampleInterval;
+
+	/** The preset dictionary, null if none. */
+	private final byte[] mDictionary;
+
+	/** The Adler-32 of the dictionary, 0 if none. */
+	private final int mDictionaryId;
+
+	/**
+	 * Instantiates a new compression config with default settings and
+	 * without dictionary.
+	 */
+	public CompressionConfig() {
+		this(null);
+	}
+
+	/**
+	 * Instantiates a new compression config with default settings.
+	 *
+	 * @param dictionary the preset dictionary, typical content of messages
+	 *            with the most common strings at the end, may be null
+	 */
+	public CompressionConfig(byte[] dictionary) {
+		this(Deflater.DEFAULT_COMPRESSION, DEFAULT_MIN_SIZE, DEFAULT_MAX_RATIO, DEFAULT_SAMPLE_INTERVAL, dictionary);
+	}
+
+	/**
+	 * Instantiates a new compression config.
+	 *
+	 * @param level the deflate level, see {@link Deflater}
+	 * @param minSize the size below which messages are not compressed
+	 * @param maxRatio the ratio of compressed to original size worth sending
+	 * @param sampleInterval the interval of messages tried while data do not shrink
+	 * @param dictionary the preset dictionary, may be null
+	 */
+	public CompressionConfig(int level, int minSize, float maxRatio, int sampleInterval, byte[] dictionary) {
+		if((level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION) && level != Deflater.DEFAULT_COMPRESSION) {
+			throw new IllegalArgumentException("Invalid deflate level: " + level);
+		}
+		if(minSize < 0 || !(maxRatio > 0 && maxRatio <= 1) || sampleInterval <= 0) {
+			throw new IllegalArgumentException("Invalid compression settings");
+		}
+		mLevel = level;
+		mMinSize = minSize;
+		mMaxRatio = maxRatio;
+		mSampleInterval = sampleInterval;
+		if(dictionary != null && dictionary.length > 0) {
+			mDictionary = dictionary.clone();
+			Adler32 adler = new Adler32();
+			adler.update(mDictionary, 0, mDictionary.length);
+			mDictionaryId = (int) adler.getValue();
+		} else {
+			mDictionary = null;
+			mDictionaryId = 0;
+		}
+	}
+
+	/**
+	 * Gets the deflate level.
+	 *
+	 * @return the level
+	 */
+	public int getLevel() {
+		return mLevel;
+	}
+
+	/**
+	 * Gets the size below which messages are not compressed.
+	 *
+	 * @return the minimum size in bytes
+	 */
+	public int getMinSize() {
+		return mMinSize;
+	}
+
+	/**
+	 * Gets the ratio of compressed to original size worth sending.
+	 *
+	 * @return the maximum ratio
+	 */
+	public float getMaxRatio() {
+		return mMaxRatio;
+	}
+
+	/**
+	 * Gets the interval of messages tried while data do not shrink.
+	 *
+	 * @return the sample interval in messages
+	 */
+	public int getSampleInterval() {
+		return mSampleInterval;
+	}
+
+	/**
+	 * Gets the preset dictionary, shared by all channels and never modified.
+	 *
+	 * @return the dictionary or null
+	 */
+	byte[] getDictionary() {
+		return mDictionary;
+	}
+
+	/**
+	 * Gets the dictionary id, both devices compress only with equal ids.
+	 *
+	 * @return the Adler-32 of the dictionary, 0 if none
+	 */
+	public int getDictionaryId() {
+		return mDictionaryId;
+	}
+}
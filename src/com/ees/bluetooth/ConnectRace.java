@@ -0,0 +1,214 @@
+package com.ees.bluetooth;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import android.util.Log;
+
+/**
+ * The Class ConnectRace. Dials several equivalent devices concurrently and
+ * keeps the first link that comes up. Attempts start one stagger apart, or
+ * right away when the previous one fails; once a device connects the other
+ * attempts are closed and the winner is established as usual.
+ *
+ * The race never calls the manager while holding its own lock, the manager
+ * cancels races while holding its lock.
+ */
+class ConnectRace implements ResultFuture.Listener<String> {
+
+	/** The Constant TAG. */
+	private static final String TAG = ConnectRace.class.getSimpleName();
+
+	/** The manager. */
+	private final ConnectionManager mManager;
+
+	/** The candidate addresses in order of preference. */
+	private final List<String> mAddresses;
+
+	/** The delay between starts of attempts. */
+	private final long mStaggerMillis;
+
+	/** The result, completed with the address of the winner. */
+	private final ResultFuture<String> mResult = new ResultFuture<String>();
+
+	/** The started attempts. */
+	private final List<ChannelConnector> mConnectors = new ArrayList<ChannelConnector>();
+
+	/** The timers of staggered attempts. */
+	private final List<ScheduledFuture<?>> mTimers = new ArrayList<ScheduledFuture<?>>();
+
+	/** The number of started attempts. */
+	private int mStarted;
+
+	/** The number of failed attempts. */
+	private int mFailed;
+
+	/** The decided flag, set once a device connected, all failed or the race was cancelled. */
+	private boolean mDone;
+
+	/**
+	 * Instantiates a new connect race.
+	 *
+	 * @param manager the manager
+	 * @param addresses the candidate addresses
+	 * @param staggerMillis the delay between starts of attempts, 0 starts all at once
+	 */
+	ConnectRace(ConnectionManager manager, List<String> addresses, long staggerMillis) {
+		mManager = manager;
+		mAddresses = addresses;
+		mStaggerMillis = staggerMillis;
+	}
+
+	/**
+	 * Gets the result.
+	 *
+	 * @return the future of the winner address
+	 */
+	ResultFuture<String> getResult() {
+		return mResult;
+	}
+
+	/**
+	 * Starts the race.
+	 */
+	void start() {
+		mResult.addListener(this);
+		if(mStaggerMillis == 0) {
+			for(int i = 0; i < mAddresses.size(); i++) {
+				startNext();
+			}
+			return;
+		}
+		synchronized (this) {
+			for(int i = 1; i < mAddresses.size(); i++) {
+				mTimers.add(mManager.getScheduler().schedule(new Runnable() {
+					@Override
+					public void run() {
+						startNext();
+					}
+				}, i * mStaggerMillis, TimeUnit.MILLISECONDS));
+			}
+		}
+		startNext();
+	}
+
+	/**
+	 * Starts the next attempt, if any.
+	 */
+	private void startNext() {
+		ChannelConnector connector;
+		synchronized (this) {
+			if(mDone || mStarted == mAddresses.size()) {
+				return;
+			}
+			connector = new ChannelConnector(mAddresses.get(mStarted++), mManager, this);
+			mConnectors.add(connector);
+		}
+		Log.i(TAG, "Racing connect to " + connector.getAddress());
+		if(!mManager.execute(connector)) {
+			connector.cancel();
+			onFailed(connector);
+		}
+	}
+
+	/**
+	 * Called by the connector which connected. The first one wins, later
+	 * ones close their sockets.
+	 *
+	 * @param connector the connector
+	 * @param socket the connected socket
+	 */
+	void onConnected(ChannelConnector connector, TransportSocket socket) {
+		boolean won;
+		synchronized (this) {
+			won = !mDone;
+			mDone = true;
+		}
+		if(won && mResult.complete(connector.getAddress())) {
+			Log.i(TAG, "Race won by " + connector.getAddress());
+			closeOthers(connector);
+			mManager.raceWon(this, socket);
+			return;
+		}
+		try {
+			socket.close();
+		} catch (IOException e) {
+			Log.e(TAG, "close() of losing socket failed", e);
+		}
+	}
+
+	/**
+	 * Called by the connector which failed. Next attempt starts right away,
+	 * the race is lost when all attempts failed.
+	 *
+	 * @param connector the connector
+	 */
+	void onFailed(ChannelConnector connector) {
+		boolean lost;
+		synchronized (this) {
+			if(mDone) {
+				// Closed by the winner or by cancel.
+				return;
+			}
+			mFailed++;
+			lost = mFailed == mAddresses.size();
+			mDone = lost;
+		}
+		mManager.getConnectionMetrics(connector.getAddress()).onFailed();
+		if(!lost) {
+			startNext();
+			return;
+		}
+		Log.i(TAG, "Race lost, none of " + mAddresses.size() + " devices connected");
+		closeOthers(null);
+		mResult.fail(new IOException("None of " + mAddresses.size() + " devices connected"));
+		mManager.raceFailed(this);
+	}
+
+	/**
+	 * Cancels the race, pending attempts are closed.
+	 */
+	void cancel() {
+		synchronized (this) {
+			mDone = true;
+		}
+		closeOthers(null);
+		mResult.cancel(false);
+		mManager.raceFailed(this);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ees.bluetooth.ResultFuture.Listener#onComplete(com.ees.bluetooth.ResultFuture)
+	 */
+	@Override
+	public void onComplete(ResultFuture<String> future) {
+		if(future.isCancelled()) {
+			cancel();
+		}
+	}
+
+	/**
+	 * Stops the timers and closes all attempts except the winner.
+	 *
+	 * @param winner the winner or null
+	 */
+	private void closeOthers(ChannelConnector winner) {
+		List<ChannelConnector> connectors;
+		synchronized (this) {
+			for(ScheduledFuture<?> timer : mTimers) {
+				timer.cancel(false);
+			}
+			mTimers.clear();
+			connectors = new ArrayList<ChannelConnector>(mConnectors);
+			mConnectors.clear();
+		}
+		for(ChannelConnector connector : connectors) {
+			if(connector != winner) {
+				connector.cancel();
+			}
+		}
+	}
+}
@@ -1,50 +1,186 @@
 package com.ees.bluetooth;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothSocket;
 import android.util.Log;
 
 /**
- * The Class ConnectionManager.
+ * The Class ConnectionManager. Links are handed over between the listener,
+ * connectors and channels without a lock: each handover swaps the connector
+ * or channel of the device atomically and moves its state with
+ * compareAndSet from the observed one, so a stale attempt backs off and
+ * state listeners are never called with a lock held.
  */
 public class ConnectionManager {
 
 	/** The Constant TAG. */
 	private static final String TAG = ConnectionManager.class.getSimpleName();
 	
-	/** The Bluetooth adapter reference */
+	/** The Bluetooth adapter reference, null when not running over RFCOMM. */
 	private final BluetoothAdapter mAdapter;
 	
+	/** The transport providing links to remote devices. */
+	private final Transport mTransport;
+	
+	/** The state listeners, shared with the state machines of all devices. */
+	private final List<ConnectionStateListener> mStateListeners =
+			new CopyOnWriteArrayList<ConnectionStateListener>();
+	
 	/** The connection state. */
-	private AtomicInteger mState;
+	private final ConnectionStateMachine mState =
+			new ConnectionStateMachine(null, ConnectionStateMachine.MANAGER_TRANSITIONS, mStateListeners);
 
 	/** The connected device name. */
-	private String deviceName;
+	private volatile String deviceName;
+	
+	/** The channel Bluetooth listener, replaced under the manager lock. */
+	private volatile ChannelInviteListener chnlBTListener;
+	
+	/** The live connections keyed by remote device address. */
+	private final ConcurrentMap<String, PeerConnection> mConnections =
+			new ConcurrentHashMap<String, PeerConnection>();
+	
+	/** The connected peers, replaced on every change so writers iterate it without allocation. */
+	private volatile PeerConnection[] mLivePeers = new PeerConnection[0];
+	
+	/** The number of rebuilds of the connected peers, a rebuild raced by another one is repeated. */
+	private final AtomicInteger mLivePeersVersion = new AtomicInteger();
+	
+	/** The multi connection mode flag. */
+	private final boolean mMultiConnection;
+	
+	/** The pool of send buffers. */
+	private volatile BufferPool mBufferPool = BufferPool.getDefault();
+	
+	/** The receive listener. */
+	private volatile ReceiveListener mReceiveListener;
+	
+	/** The frame codec, null when framing is disabled. */
+	private volatile FrameCodec mFrameCodec;
+	
+	/** The message listener. */
+	private volatile MessageListener mMessageListener;
+	
+	/** The listener of messages of other than the default stream. */
+	private volatile StreamListener mStreamListener;
+	
+	/** The listeners owning single streams, indexed by stream id. */
+	private final AtomicReferenceArray<StreamListener> mStreamListeners =
+			new AtomicReferenceArray<StreamListener>(FrameCodec.MAX_STREAM_ID + 1);
+	
+	/** The priorities indexed by stream id, null for the default one. */
+	private final AtomicReferenceArray<StreamPriority> mStreamPriorities =
+			new AtomicReferenceArray<StreamPriority>(FrameCodec.MAX_STREAM_ID + 1);
+	
+	/** The write queue settings. */
+	private volatile WriteQueueConfig mWriteQueueConfig = new WriteQueueConfig();
+	
+	/** The flow control settings, null when disabled. */
+	private volatile FlowControlConfig mFlowControlConfig;
 	
-	/** The channel Bluetooth listener. */
-	private ChannelInviteListener chnlBTListener;
+	/** The heartbeat settings, null when disabled. */
+	private volatile HeartbeatConfig mHeartbeatConfig;
 	
-	/** The opened Bluetooth channel. */
-	private Channel chnlBT;
+	/** The hub settings, null when the listener takes only one device. */
+	private volatile HubConfig mHubConfig;
 	
-	/** The Bluetooth channel connector */
-	private ChannelConnector chnlBTConnect;
+	/** The receive buffer settings. */
+	private volatile ReceiveBufferConfig mReceiveBufferConfig = new ReceiveBufferConfig();
+	
+	/** The metrics of every device seen so far, keyed by remote device address. */
+	private final ConcurrentMap<String, ConnectionMetrics> mMetrics =
+			new ConcurrentHashMap<String, ConnectionMetrics>();
+	
+	/** The recorder of trace events of all channels. */
+	private final FlightRecorder mRecorder = new FlightRecorder();
+	
+	/** The scheduler running timers of the manager, created on first use. */
+	private ScheduledExecutorService mScheduler;
+	
+	/** The executor running listener, connectors, channels and writers, created on first use. */
+	private ThreadPoolExecutor mExecutor;
+	
+	/** The upper bound of executor threads. */
+	private int mMaxThreads = DEFAULT_MAX_THREADS;
+	
+	/** The default upper bound of executor threads, two are taken by every connected device. */
+	public static final int DEFAULT_MAX_THREADS = 32;
+	
+	/** The time idle executor threads are kept for reuse. */
+	private static final long THREAD_KEEP_ALIVE_SECONDS = 60;
+	
+	/** The periodic metrics report, null when no metrics listener is set. */
+	private ScheduledFuture<?> mMetricsReport;
+	
+	/** The reconnect settings, null disables redialing. */
+	private volatile ReconnectPolicy mReconnectPolicy = new ReconnectPolicy();
+	
+	/** The supervisor redialing lost devices. */
+	private final ReconnectSupervisor mReconnect = new ReconnectSupervisor(this);
+	
+	/** The running connect races. */
+	private final Set<ConnectRace> mRaces =
+			Collections.newSetFromMap(new ConcurrentHashMap<ConnectRace, Boolean>());
 
 	/** The Constant APP_UUID. */
 	private static final UUID APP_UUID =
 	        UUID.fromString("fa87c0d0-afac-11de-8a39-0800200c9a66");
 	
+	/** The Constant SERVICE_NAME. */
+	private static final String SERVICE_NAME = "BTAPPUnity3d";
+	
 	/**
-	 * Instantiates a new connection manager.
+	 * Instantiates a new connection manager in single connection mode.
 	 */
 	public ConnectionManager() {
-		mAdapter = BluetoothAdapter.getDefaultAdapter();
+		this(false);
+	}
+	
+	/**
+	 * Instantiates a new connection manager.
+	 * In multi connection mode connecting to a device does not drop connections
+	 * to other devices, every peer keeps its own channel and state.
+	 *
+	 * @param multiConnection true to enable multi connection mode
+	 */
+	public ConnectionManager(boolean multiConnection) {
+		this(new RfcommTransport(BluetoothAdapter.getDefaultAdapter()), multiConnection);
+	}
+	
+	/**
+	 * Instantiates a new connection manager running over given transport.
+	 *
+	 * @param transport the transport
+	 * @param multiConnection true to enable multi connection mode
+	 */
+	public ConnectionManager(Transport transport, boolean multiConnection) {
+		mTransport = transport;
+		mAdapter = transport instanceof RfcommTransport ? ((RfcommTransport) transport).getAdapter() : null;
+		mMultiConnection = multiConnection;
 		Log.i(TAG, "State: NONE");
-		mState = new AtomicInteger(ConnectionState.NONE);
 	}
 	
 	/**
@@ -52,169 +188,1593 @@ public class ConnectionManager {
 	 *
 	 * @return the state
 	 */
-	public int getState() {
+	public ConnectionState getState() {
 		return mState.get();
 	}
 	
-	public void setState(int state) {
-		mState.set(state);
+	/**
+	 * Adds the listener notified about transitions of the manager and of
+	 * every device.
+	 *
+	 * @param listener the listener
+	 */
+	public void addStateListener(ConnectionStateListener listener) {
+		mStateListeners.add(listener);
+	}
+	
+	/**
+	 * Removes the state listener.
+	 *
+	 * @param listener the listener
+	 */
+	public void removeStateListener(ConnectionStateListener listener) {
+		mStateListeners.remove(listener);
+	}
+	
+	/**
+	 * Gets the state of connection with given device.
+	 *
+	 * @param address the device address
+	 * @return the state, {@link ConnectionState#NONE} for unknown device
+	 */
+	public ConnectionState getState(String address) {
+		PeerConnection peer = mConnections.get(address);
+		if(peer == null) {
+			return ConnectionState.NONE;
+		}
+		return peer.getState();
+	}
+	
+	/**
+	 * Checks if is multi connection mode.
+	 *
+	 * @return true, if multi connection mode is enabled
+	 */
+	public boolean isMultiConnection() {
+		return mMultiConnection;
+	}
+	
+	/**
+	 * Gets the addresses of all connected devices.
+	 *
+	 * @return the connected addresses
+	 */
+	public Set<String> getConnectedAddresses() {
+		Set<String> result = new HashSet<String>();
+		for(PeerConnection peer : mConnections.values()) {
+			if(peer.getState() == ConnectionState.CONNECTED) {
+				result.add(peer.getAddress());
+			}
+		}
+		return result;
 	}
 	
 	/**
 	 * Gets the adapter.
 	 *
-	 * @return the adapter
+	 * @return the adapter, null when not running over RFCOMM
 	 */
 	public BluetoothAdapter getAdapter() {
 		return mAdapter;
 	}
 	
 	/**
-	 * Gets the uuid.
+	 * Gets the transport.
 	 *
-	 * @return the uuid
+	 * @return the transport
 	 */
-	public UUID getUUID() {
-		return APP_UUID;
+	public Transport getTransport() {
+		return mTransport;
 	}
 	
 	/**
-	 * Starts channel listener. In this case the app will waits until request from client become.
+	 * Gets the pool of buffers outgoing data are copied or encoded into.
+	 *
+	 * @return the buffer pool
 	 */
-	public synchronized void start() {
-		Log.i(TAG, "Starting BT channel listener.");
-		Log.i(TAG, "State: LISTENING");
-		mState.set(ConnectionState.LISTENING);
-		chnlBTListener = new ChannelInviteListener(this);
-		chnlBTListener.start();
-		Log.d(TAG, "Channel listener thread started.");
+	public BufferPool getBufferPool() {
+		return mBufferPool;
 	}
 	
 	/**
-	 * Establish connection. The method is called in case when application
-	 * received request from client or successfully connected to other device.
-	 * The method simply opens Bluetooth channel to operate, what means data
-	 * exchanging.
-	 * 
-	 * @param socket
-	 *            the socket
-	 * @param device
-	 *            the device
+	 * Sets the pool of buffers outgoing data are copied or encoded into.
+	 *
+	 * @param pool the new buffer pool
 	 */
-	public void establishConnection(BluetoothSocket socket, BluetoothDevice device) {
-		Log.d(TAG, "Establishing connection to " + device.getName());
-		deviceName = device.getName();
-		
-		/*
-		if(chnlBTConnect!=null) {
-			Log.i(TAG, "Stop running connection thread.");
-			chnlBTConnect.cancel();
-			chnlBTConnect=null;
-		}
-		
-		if(chnlBT!=null) {
-			Log.i(TAG, "Stop running BT channel thread.");
-			chnlBT.cancel();
-			chnlBT=null;
-		}
-		*/
-		
-		if(chnlBTListener != null) {
-			Log.i(TAG, "Stop running BT channel listener thread.");
-			chnlBTListener.cancel();
-			chnlBTListener = null;
-		}
-		
-		Log.i(TAG, "Create BT channel thread.");
-		chnlBT = new Channel(socket, this);
-		chnlBT.start();
-		Log.i(TAG, "Channel main thread started.");
-		
-		Log.i(TAG, "State: CONNECTED");
-		mState.set(ConnectionState.CONNECTED);		
+	public void setBufferPool(BufferPool pool) {
+		mBufferPool = pool;
 	}
 	
 	/**
-	 * Connect with given device.
+	 * Gets the receive listener.
 	 *
-	 * @param device the device
+	 * @return the receive listener
 	 */
-	public void connect(BluetoothDevice device) {
-		Log.v(TAG, "Connect to: " + device.getName());
-		if(getState() == ConnectionState.CONNECTING) {
-			if(chnlBTConnect!=null) {
-				Log.d(TAG, "Cancel connecting process.");
-				chnlBTConnect.cancel();
-				chnlBTConnect=null;
-			}
-		}
-		
-		if(chnlBT!=null) {
-			Log.d(TAG, "Cancel Bluetooth channel");
-			chnlBT.cancel();
-			chnlBT=null;
+	public ReceiveListener getReceiveListener() {
+		return mReceiveListener;
+	}
+	
+	/**
+	 * Sets the receive listener. Data read while no listener is set are dropped.
+	 *
+	 * @param listener the new receive listener
+	 */
+	public void setReceiveListener(ReceiveListener listener) {
+		mReceiveListener = listener;
+	}
+	
+	/**
+	 * Gets the frame codec.
+	 *
+	 * @return the frame codec, null when framing is disabled
+	 */
+	public FrameCodec getFrameCodec() {
+		return mFrameCodec;
+	}
+	
+	/**
+	 * Sets the frame codec. When set, channels opened afterwards send every
+	 * write as one length prefixed frame and deliver whole received messages
+	 * to the {@link MessageListener} instead of raw chunks to the
+	 * {@link ReceiveListener}. Both peers have to use the same settings.
+	 *
+	 * @param codec the frame codec, null disables framing
+	 */
+	public void setFrameCodec(FrameCodec codec) {
+		mFrameCodec = codec;
+	}
+	
+	/**
+	 * Gets the message listener.
+	 *
+	 * @return the message listener
+	 */
+	public MessageListener getMessageListener() {
+		return mMessageListener;
+	}
+	
+	/**
+	 * Sets the message listener receiving whole messages when framing is enabled.
+	 *
+	 * @param listener the new message listener
+	 */
+	public void setMessageListener(MessageListener listener) {
+		mMessageListener = listener;
+	}
+	
+	/**
+	 * Gets the stream listener.
+	 *
+	 * @return the stream listener
+	 */
+	public StreamListener getStreamListener() {
+		return mStreamListener;
+	}
+	
+	/**
+	 * Sets the listener receiving whole messages of other than the default
+	 * stream, messages of stream 0 go to the message listener.
+	 *
+	 * @param listener the new stream listener
+	 */
+	public void setStreamListener(StreamListener listener) {
+		mStreamListener = listener;
+	}
+	
+	/**
+	 * Gets the listener receiving messages of given stream.
+	 *
+	 * @param streamId the stream id
+	 * @return the listener of the stream, the stream listener if none is set
+	 */
+	public StreamListener getStreamListener(int streamId) {
+		StreamListener listener = mStreamListeners.get(checkStream(streamId));
+		return listener != null ? listener : mStreamListener;
+	}
+	
+	/**
+	 * Sets the listener receiving messages of given stream in place of the
+	 * stream listener, so that protocols like {@link FileTransfer} can own a
+	 * stream of their own.
+	 *
+	 * @param streamId the stream id, other than 0
+	 * @param listener the listener, null to return the stream to the stream listener
+	 */
+	public void setStreamListener(int streamId, StreamListener listener) {
+		if(checkStream(streamId) == 0) {
+			throw new IllegalArgumentException("Stream 0 is delivered to the message listener");
 		}
-		
-		Log.i(TAG, "Create connection to remote device.");
-		chnlBTConnect = new ChannelConnector(device, this);
-		chnlBTConnect.start();
-		Log.i(TAG, "State: CONNECTING");
-		mState.set(ConnectionState.CONNECTING);
+		mStreamListeners.set(streamId, listener);
 	}
 	
 	/**
-	 * Terminate all.
-	 * Method terminates all running threads.
+	 * Gets the priority class of the stream.
+	 *
+	 * @param streamId the stream id
+	 * @return the priority, {@link StreamPriority#NORMAL} unless set
 	 */
-	public void terminateAll() {
-		if(chnlBTListener != null) {
-			chnlBTListener.cancel();
-			chnlBTListener = null;
+	public StreamPriority getStreamPriority(int streamId) {
+		StreamPriority priority = mStreamPriorities.get(checkStream(streamId));
+		return priority != null ? priority : StreamPriority.NORMAL;
+	}
+	
+	/**
+	 * Sets the priority class of the stream, applied to messages written
+	 * afterwards. Stream 0 carries writes not naming a stream.
+	 *
+	 * @param streamId the stream id
+	 * @param priority the priority
+	 * @see FrameCodec#FrameCodec(int, boolean, CompressionConfig, boolean)
+	 */
+	public void setStreamPriority(int streamId, StreamPriority priority) {
+		mStreamPriorities.set(checkStream(streamId), priority);
+	}
+	
+	/**
+	 * Checks the stream id.
+	 *
+	 * @param streamId the stream id
+	 * @return the stream id
+	 * @throws IllegalArgumentException when out of range
+	 */
+	private static int checkStream(int streamId) {
+		if(streamId < 0 || streamId > FrameCodec.MAX_STREAM_ID) {
+			throw new IllegalArgumentException("Invalid stream id " + streamId);
 		}
-		
-		if(chnlBT != null) {
-			chnlBT.cancel();
-			chnlBT = null;
+		return streamId;
+	}
+	
+	/**
+	 * Gets the write queue settings.
+	 *
+	 * @return the write queue config
+	 */
+	public WriteQueueConfig getWriteQueueConfig() {
+		return mWriteQueueConfig;
+	}
+	
+	/**
+	 * Sets the write queue settings used by channels opened afterwards.
+	 *
+	 * @param config the new write queue config
+	 */
+	public void setWriteQueueConfig(WriteQueueConfig config) {
+		mWriteQueueConfig = config;
+	}
+	
+	/**
+	 * Gets the receive buffer settings.
+	 *
+	 * @return the receive buffer config
+	 */
+	public ReceiveBufferConfig getReceiveBufferConfig() {
+		return mReceiveBufferConfig;
+	}
+	
+	/**
+	 * Sets the bounds of adaptive read window used by channels opened afterwards.
+	 *
+	 * @param config the new receive buffer config
+	 */
+	public void setReceiveBufferConfig(ReceiveBufferConfig config) {
+		mReceiveBufferConfig = config;
+	}
+	
+	/**
+	 * Gets the flow control settings.
+	 *
+	 * @return the flow control config, null when disabled
+	 */
+	public FlowControlConfig getFlowControlConfig() {
+		return mFlowControlConfig;
+	}
+	
+	/**
+	 * Sets the flow control settings used by channels opened afterwards,
+	 * both devices have to enable flow control.
+	 *
+	 * @param config the new flow control config, null disables flow control
+	 */
+	public void setFlowControlConfig(FlowControlConfig config) {
+		mFlowControlConfig = config;
+	}
+	
+	/**
+	 * Gets the heartbeat settings.
+	 *
+	 * @return the heartbeat config, null when disabled
+	 */
+	public HeartbeatConfig getHeartbeatConfig() {
+		return mHeartbeatConfig;
+	}
+	
+	/**
+	 * Sets the heartbeat settings used by channels opened afterwards. The
+	 * other device answers pings without settings of its own. Channels silent
+	 * for longer than the detection time are dropped and handled like any
+	 * lost link.
+	 *
+	 * @param config the new heartbeat config, null disables heartbeats
+	 */
+	public void setHeartbeatConfig(HeartbeatConfig config) {
+		mHeartbeatConfig = config;
+	}
+	
+	/**
+	 * Gets the hub settings.
+	 *
+	 * @return the hub config, null when hub mode is disabled
+	 */
+	public HubConfig getHubConfig() {
+		return mHubConfig;
+	}
+	
+	/**
+	 * Sets the hub settings. In hub mode the listener keeps accepting
+	 * devices until the client limit is reached and resumes when a client
+	 * leaves, rather than stopping at the first connected device.
+	 *
+	 * @param config the new hub config, null disables hub mode
+	 * @throws IllegalArgumentException when multi connection mode is disabled
+	 */
+	public synchronized void setHubConfig(HubConfig config) {
+		if(config != null && !mMultiConnection) {
+			throw new IllegalArgumentException("Hub mode requires multi connection mode");
 		}
-		
-		if(chnlBTConnect != null) {
-			chnlBTConnect.cancel();
-			chnlBTConnect=null;
+		mHubConfig = config;
+		if(mState.get() == ConnectionState.CONNECTED) {
+			if(acceptsClients()) {
+				listen();
+			} else if(chnlBTListener != null) {
+				chnlBTListener.cancel();
+				chnlBTListener = null;
+			}
 		}
-		Log.i(TAG, "State: NONE");
-		mState.set(ConnectionState.NONE);
-		deviceName=null;
 	}
 	
 	/**
-	 * Gets the connected device name.
+	 * Gets the number of connected devices which were accepted by the listener.
 	 *
-	 * @return the conn dev name
+	 * @return the client count
 	 */
-	public String getConnDevName() {
-		if(deviceName == null || (mState.get() != ConnectionState.CONNECTED)) {
-			return "No connection";
+	public int getClientCount() {
+		int count = 0;
+		for(PeerConnection peer : mLivePeers) {
+			if(!peer.isOutbound()) {
+				count++;
+			}
 		}
-		return deviceName;
+		return count;
 	}
 	
 	/**
-	 * Write.
-	 * 
+	 * Gets the policy of messages sent to every connected device, so one
+	 * hub client which does not keep up never blocks the others.
 	 *
-	 * @param data the data
+	 * @return the slow client policy in hub mode, null for the configured one
 	 */
-	public void write(byte[] data) {
-		if(mState.get() != ConnectionState.CONNECTED) {
-			Log.i(TAG, "Try to send data, but device is not connected.");
-			return;
-		}
-		if(chnlBT!=null && chnlBT.isAlive()) {
-			Log.i(TAG, "Bluetooth channel is alive, send data to paired and connected device.");
-			chnlBT.write(data);
-		} else {
-			Log.e(TAG, "Could not send data, BT channel not established.");
+	BackpressurePolicy getFanOutPolicy() {
+		HubConfig config = mHubConfig;
+		return config != null ? config.getSlowClientPolicy() : null;
+	}
+	
+	/**
+	 * Checks if the listener is to take another device while connected.
+	 *
+	 * @return true, if in hub mode below the client limit
+	 */
+	private boolean acceptsClients() {
+		HubConfig config = mHubConfig;
+		return config != null && getClientCount() < config.getMaxClients();
+	}
+	
+	/**
+	 * Returns credit of messages received from the device with given
+	 * address, when flow control is set not to grant credit automatically.
+	 * Call it once the application processed the messages, the device
+	 * sends further messages only while it has credit.
+	 *
+	 * @param address the device address
+	 * @param messages the number of processed messages
+	 * @see FlowControlConfig#isAutoGrant()
+	 */
+	public void grantCredit(String address, int messages) {
+		PeerConnection peer = mConnections.get(address);
+		Channel channel = peer != null ? peer.getChannel() : null;
+		if(channel != null) {
+			channel.grantCredit(messages);
 		}
 	}
 	
+	/**
+	 * Gets the reconnect settings.
+	 *
+	 * @return the reconnect policy, null when redialing is disabled
+	 */
+	public ReconnectPolicy getReconnectPolicy() {
+		return mReconnectPolicy;
+	}
+	
+	/**
+	 * Sets the reconnect settings. When a channel dialed by this side is lost,
+	 * the device is redialed following the policy before the manager goes
+	 * back to listening. Devices which connected to this side are left to
+	 * redial on their own.
+	 *
+	 * @param policy the reconnect policy, null disables redialing
+	 */
+	public void setReconnectPolicy(ReconnectPolicy policy) {
+		mReconnectPolicy = policy;
+	}
+	
+	/**
+	 * Gets the metrics snapshots of every device seen so far.
+	 *
+	 * @return the snapshots
+	 */
+	public List<MetricsSnapshot> getMetrics() {
+		List<MetricsSnapshot> result = new ArrayList<MetricsSnapshot>(mMetrics.size());
+		for(ConnectionMetrics metrics : mMetrics.values()) {
+			result.add(snapshot(metrics));
+		}
+		return result;
+	}
+	
+	/**
+	 * Gets the metrics snapshot of the device with given address.
+	 *
+	 * @param address the device address
+	 * @return the snapshot, null for unknown device
+	 */
+	public MetricsSnapshot getMetrics(String address) {
+		ConnectionMetrics metrics = mMetrics.get(address);
+		return metrics != null ? snapshot(metrics) : null;
+	}
+	
+	/**
+	 * Gets the flight recorder tracing reads, writes and link events of
+	 * every channel, it can be dumped at any time.
+	 *
+	 * @return the recorder
+	 */
+	public FlightRecorder getFlightRecorder() {
+		return mRecorder;
+	}
+	
+	/**
+	 * Sets the metrics listener. The listener is called with snapshots of
+	 * every device at given period on the manager scheduler thread.
+	 *
+	 * @param listener the listener, null stops the reports
+	 * @param periodMillis the report period in milliseconds
+	 */
+	public synchronized void setMetricsListener(final MetricsListener listener, long periodMillis) {
+		if(mMetricsReport != null) {
+			mMetricsReport.cancel(false);
+			mMetricsReport = null;
+		}
+		if(listener == null) {
+			return;
+		}
+		if(periodMillis <= 0) {
+			throw new IllegalArgumentException("Invalid report period " + periodMillis);
+		}
+		mMetricsReport = getScheduler().scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					listener.onMetrics(getMetrics());
+				} catch (RuntimeException e) {
+					Log.e(TAG, "Metrics listener failed", e);
+				}
+			}
+		}, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Takes a snapshot of given metrics.
+	 *
+	 * @param metrics the metrics
+	 * @return the snapshot
+	 */
+	private MetricsSnapshot snapshot(ConnectionMetrics metrics) {
+		PeerConnection peer = mConnections.get(metrics.getAddress());
+		Channel channel = peer != null ? peer.getChannel() : null;
+		return new MetricsSnapshot(metrics, channel != null ? channel.getWriteQueueDepth() : 0);
+	}
+	
+	/**
+	 * Gets the live metrics of given device, creates them on first use.
+	 *
+	 * @param address the device address
+	 * @return the metrics
+	 */
+	ConnectionMetrics getConnectionMetrics(String address) {
+		ConnectionMetrics metrics = mMetrics.get(address);
+		if(metrics == null) {
+			metrics = new ConnectionMetrics(address);
+			ConnectionMetrics prev = mMetrics.putIfAbsent(address, metrics);
+			if(prev != null) {
+				metrics = prev;
+			}
+		}
+		return metrics;
+	}
+	
+	/**
+	 * Gets the scheduler shared by timers of the manager. It runs a single
+	 * daemon thread, so tasks have to be short and must not block.
+	 *
+	 * @return the scheduler
+	 */
+	synchronized ScheduledExecutorService getScheduler() {
+		if(mScheduler == null) {
+			mScheduler = Executors.newSingleThreadScheduledExecutor(
+					new NamedThreadFactory("ConnectionManager-scheduler"));
+		}
+		return mScheduler;
+	}
+	
+	/**
+	 * Gets the upper bound of executor threads.
+	 *
+	 * @return the maximum number of threads
+	 */
+	public synchronized int getMaxThreads() {
+		return mMaxThreads;
+	}
+	
+	/**
+	 * Sets the upper bound of executor threads. Every connected device takes
+	 * two threads, a pending dial and the listener one each. Work beyond the
+	 * bound is rejected: the dial fails or the channel is closed.
+	 *
+	 * @param maxThreads the maximum number of threads
+	 */
+	public synchronized void setMaxThreads(int maxThreads) {
+		if(maxThreads <= 0) {
+			throw new IllegalArgumentException("Invalid thread limit " + maxThreads);
+		}
+		mMaxThreads = maxThreads;
+		if(mExecutor != null) {
+			mExecutor.setMaximumPoolSize(maxThreads);
+		}
+	}
+	
+	/**
+	 * Runs the task on the manager executor. Idle threads are reused, so
+	 * cycling links does not start new threads; the executor keeps only as
+	 * many threads as there are running tasks plus recently idle ones.
+	 *
+	 * @param task the listener, connector, channel or writer
+	 * @return true, if the task has been started
+	 */
+	synchronized boolean execute(Runnable task) {
+		if(mExecutor == null) {
+			mExecutor = new ThreadPoolExecutor(0, mMaxThreads, THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+					new SynchronousQueue<Runnable>(), new NamedThreadFactory("ConnectionManager-io"));
+		}
+		try {
+			mExecutor.execute(task);
+			return true;
+		} catch (RejectedExecutionException e) {
+			Log.e(TAG, "No thread available for " + task.getClass().getSimpleName()
+					+ ", limit " + mMaxThreads + " reached");
+			return false;
+		}
+	}
+	
+	/**
+	 * Gets the service name registered by the listener.
+	 *
+	 * @return the service name
+	 */
+	public String getServiceName() {
+		return SERVICE_NAME;
+	}
+	
+	/**
+	 * Gets the uuid.
+	 *
+	 * @return the uuid
+	 */
+	public UUID getUUID() {
+		return APP_UUID;
+	}
+	
+	/**
+	 * Starts channel listener. In this case the app will waits until request from client become.
+	 */
+	public void start() {
+		Log.i(TAG, "State: LISTENING");
+		ConnectionState state = mState.get();
+		if(!mState.compareAndSet(state, ConnectionState.LISTENING)) {
+			// Changed meanwhile, e.g. connected or terminated.
+			return;
+		}
+		if(!listen()) {
+			mState.compareAndSet(ConnectionState.LISTENING, ConnectionState.NONE);
+		}
+	}
+	
+	/**
+	 * Restarts the listener once nothing is connected, unless the manager
+	 * has been terminated meanwhile.
+	 */
+	private void restart() {
+		ConnectionState state = mState.get();
+		if(state == ConnectionState.NONE || !mState.compareAndSet(state, ConnectionState.LISTENING)) {
+			return;
+		}
+		if(!listen()) {
+			mState.compareAndSet(ConnectionState.LISTENING, ConnectionState.NONE);
+		}
+	}
+	
+	/**
+	 * Starts the channel listener unless it is running, leaving the state
+	 * as is so clients join a hub which stays connected. Nothing is started
+	 * once terminated.
+	 *
+	 * @return true, if the listener is running
+	 */
+	private synchronized boolean listen() {
+		if(mState.get() == ConnectionState.NONE) {
+			return false;
+		}
+		if(chnlBTListener != null && chnlBTListener.isActive()) {
+			Log.d(TAG, "Channel listener already running.");
+			return true;
+		}
+		Log.i(TAG, "Starting BT channel listener.");
+		chnlBTListener = new ChannelInviteListener(this);
+		if(!execute(chnlBTListener)) {
+			chnlBTListener.cancel();
+			chnlBTListener = null;
+			return false;
+		}
+		Log.d(TAG, "Channel listener thread started.");
+		return true;
+	}
+	
+	/**
+	 * Establish connection. The method is called in case when application
+	 * received request from client or successfully connected to other device.
+	 * The method simply opens Bluetooth channel to operate, what means data
+	 * exchanging.
+	 * 
+	 * @param socket
+	 *            the connected socket
+	 */
+	public void establishConnection(TransportSocket socket) {
+		establishConnection(socket, false);
+	}
+	
+	/**
+	 * Accepted. Called by the listener with an incoming link, which is
+	 * dropped when the listener was cancelled meanwhile, e.g. by
+	 * termination followed by a new start, or when already connected
+	 * unless the hub takes another client.
+	 *
+	 * @param listener the listener
+	 * @param socket the accepted socket
+	 */
+	void accepted(ChannelInviteListener listener, TransportSocket socket) {
+		if(listener != chnlBTListener || !listener.isActive()) {
+			dropSocket(socket);
+			return;
+		}
+		if(mState.get() == ConnectionState.CONNECTED && !acceptsClients()) {
+			Log.e(TAG, "Already connected to as many devices as allowed, socket termination.");
+			dropSocket(socket);
+			return;
+		}
+		establishConnection(socket, false);
+	}
+	
+	/**
+	 * Connected. Called by the connector with the dialed link, which is
+	 * dropped when the attempt was superseded or cancelled meanwhile.
+	 *
+	 * @param connector the connector
+	 * @param socket the connected socket
+	 */
+	void connected(ChannelConnector connector, TransportSocket socket) {
+		PeerConnection peer = mConnections.get(connector.getAddress());
+		// Taking the connector over claims the link, a superseded attempt no longer finds it.
+		if(peer == null || !peer.compareAndSetConnector(connector, null)) {
+			dropSocket(socket);
+			return;
+		}
+		establishConnection(socket, false);
+	}
+	
+	/**
+	 * Closes the link which is not wanted.
+	 *
+	 * @param socket the socket
+	 */
+	private void dropSocket(TransportSocket socket) {
+		Log.d(TAG, "Drop stale link to " + socket.getRemoteAddress());
+		try {
+			socket.close();
+		} catch (IOException e) {
+			Log.e(TAG, "close() of socket failed", e);
+		}
+	}
+	
+	/**
+	 * Establish connection.
+	 *
+	 * @param socket the connected socket
+	 * @param outbound true, if the link was dialed by this side
+	 */
+	private void establishConnection(TransportSocket socket, boolean outbound) {
+		ConnectionState state;
+		do {
+			state = mState.get();
+			if(state == ConnectionState.NONE) {
+				// Terminated meanwhile.
+				Log.e(TAG, "Not initialized ConnectionManager, socket termination.");
+				dropSocket(socket);
+				return;
+			}
+		} while(!mState.compareAndSet(state, ConnectionState.CONNECTED));
+		Log.d(TAG, "Establishing connection to " + socket.getRemoteName());
+		deviceName = socket.getRemoteName();
+		
+		PeerConnection peer = getOrCreatePeer(socket.getRemoteAddress());
+		mReconnect.cancel(peer.getAddress());
+		peer.setDeviceName(socket.getRemoteName());
+		// A dial still running is superseded, its link is dropped when it connects.
+		peer.getAndSetConnector(null);
+		if(outbound) {
+			peer.setOutbound(true);
+		}
+		
+		Log.i(TAG, "Create BT channel thread.");
+		Channel channel = new Channel(socket, this);
+		Channel old = peer.getAndSetChannel(channel);
+		if(old != null) {
+			Log.i(TAG, "Stop previous BT channel thread of " + peer.getAddress());
+			old.cancel();
+		}
+		if(!execute(channel)) {
+			removePeer(peer);
+			if(!hasConnectedPeers()) {
+				restart();
+			}
+			return;
+		}
+		Log.i(TAG, "Channel main thread started.");
+		
+		// The channel is current until a newer link or a cancel takes it over.
+		do {
+			if(peer.getChannel() != channel) {
+				Log.d(TAG, "Link to " + peer.getAddress() + " superseded while establishing");
+				channel.cancel();
+				return;
+			}
+			state = peer.getState();
+		} while(!peer.compareAndSetState(state, ConnectionState.CONNECTED));
+		if(mState.get() == ConnectionState.NONE) {
+			// Terminated meanwhile, the peer may have been created after the others were removed.
+			removePeer(peer);
+			return;
+		}
+		Log.i(TAG, "State: CONNECTED");
+		peer.getMetrics().onEstablished();
+		mRecorder.record(mRecorder.register(peer.getAddress()), FlightRecorder.EVENT_CONNECTED, 0);
+		updateLivePeers();
+		
+		ChannelInviteListener listener = chnlBTListener;
+		if(listener != null && listener.isActive() && !acceptsClients()) {
+			Log.i(TAG, "Stop running BT channel listener thread.");
+			listener.cancel();
+		}
+	}
+	
+	/**
+	 * Connect with given device.
+	 *
+	 * @param device the device
+	 */
+	public void connect(BluetoothDevice device) {
+		Log.v(TAG, "Connect to: " + device.getName());
+		connect(device.getAddress(), device.getName());
+	}
+	
+	/**
+	 * Connect with device of given transport address.
+	 *
+	 * @param address the device address
+	 */
+	public void connect(String address) {
+		connect(address, address);
+	}
+	
+	/**
+	 * Connect with any of given devices.
+	 *
+	 * @param devices the equivalent devices in order of preference
+	 * @param staggerMillis the delay between starts of attempts
+	 * @return the future of the address of connected device
+	 * @see #connectAny(Collection, long)
+	 */
+	public ResultFuture<String> connectAnyDevice(Collection<BluetoothDevice> devices, long staggerMillis) {
+		List<String> addresses = new ArrayList<String>(devices.size());
+		for(BluetoothDevice device : devices) {
+			addresses.add(device.getAddress());
+		}
+		return connectAny(addresses, staggerMillis);
+	}
+	
+	/**
+	 * Connect with any of devices of given transport addresses. Devices are
+	 * dialed concurrently, each attempt starts one stagger after the previous
+	 * one or as soon as the previous one fails. The first device which
+	 * connects is established as with {@link #connect(String)}, the other
+	 * attempts are closed. When all attempts fail the listener is restarted.
+	 * Cancelling the future closes the pending attempts.
+	 *
+	 * @param addresses the equivalent devices in order of preference
+	 * @param staggerMillis the delay between starts of attempts, 0 dials all at once
+	 * @return the future of the address of connected device
+	 */
+	public ResultFuture<String> connectAny(Collection<String> addresses, long staggerMillis) {
+		if(addresses.isEmpty() || staggerMillis < 0) {
+			throw new IllegalArgumentException("No devices to connect or invalid stagger");
+		}
+		List<String> candidates = new ArrayList<String>(new LinkedHashSet<String>(addresses));
+		if(mMultiConnection) {
+			for(String address : candidates) {
+				mReconnect.cancel(address);
+			}
+		} else {
+			mReconnect.cancelAll();
+			cancelRaces();
+			for(PeerConnection peer : mConnections.values()) {
+				Log.d(TAG, "Cancel connection to " + peer.getAddress());
+				removePeer(peer);
+			}
+		}
+		if(!hasConnectedPeers()) {
+			Log.i(TAG, "State: CONNECTING");
+			ConnectionState state = mState.get();
+			mState.compareAndSet(state, ConnectionState.CONNECTING);
+		}
+		ConnectRace race = new ConnectRace(this, candidates, staggerMillis);
+		mRaces.add(race);
+		race.start();
+		return race.getResult();
+	}
+	
+	/**
+	 * Race won. Called by the race with the socket of the first connected device.
+	 *
+	 * @param race the race
+	 * @param socket the connected socket
+	 */
+	void raceWon(ConnectRace race, TransportSocket socket) {
+		if(!mRaces.remove(race)) {
+			// Terminated meanwhile.
+			dropSocket(socket);
+			return;
+		}
+		establishConnection(socket, true);
+	}
+	
+	/**
+	 * Race failed. Called by the race when all attempts failed or it was
+	 * cancelled, the listener is restarted when nothing is connected.
+	 *
+	 * @param race the race
+	 */
+	void raceFailed(ConnectRace race) {
+		if(!mRaces.remove(race)) {
+			return;
+		}
+		if(!hasConnectedPeers() && mRaces.isEmpty() && mConnections.isEmpty() && !mReconnect.isActive()) {
+			Log.i(TAG, "Restart connection manager");
+			restart();
+		}
+	}
+	
+	/**
+	 * Connect with device of given transport address. Pending redials are
+	 * dropped, of all devices in single connection mode.
+	 *
+	 * @param address the device address
+	 * @param name the device name
+	 */
+	private void connect(String address, String name) {
+		if(mMultiConnection) {
+			mReconnect.cancel(address);
+		} else {
+			mReconnect.cancelAll();
+			cancelRaces();
+		}
+		redial(address, name);
+	}
+	
+	/**
+	 * Cancels all running connect races.
+	 */
+	private void cancelRaces() {
+		for(ConnectRace race : mRaces) {
+			if(mRaces.remove(race)) {
+				race.cancel();
+			}
+		}
+	}
+	
+	/**
+	 * Dials the device of given transport address, called directly by the
+	 * reconnect supervisor.
+	 *
+	 * @param address the device address
+	 * @param name the device name
+	 */
+	void redial(String address, String name) {
+		if(!mMultiConnection) {
+			for(PeerConnection peer : mConnections.values()) {
+				if(!peer.getAddress().equals(address)) {
+					Log.d(TAG, "Cancel connection to " + peer.getAddress());
+					removePeer(peer);
+				}
+			}
+		}
+		
+		PeerConnection peer = mConnections.get(address);
+		if(peer != null) {
+			Log.d(TAG, "Cancel connecting process and channel of " + address);
+			peer.cancel();
+		}
+		peer = getOrCreatePeer(address);
+		peer.setDeviceName(name);
+		
+		Log.i(TAG, "Create connection to remote device.");
+		ChannelConnector connector = new ChannelConnector(address, this);
+		ChannelConnector old = peer.getAndSetConnector(connector);
+		if(old != null) {
+			// Superseded by this dial.
+			old.cancel();
+		}
+		peer.setOutbound(true);
+		ConnectionState state = peer.getState();
+		if(state == ConnectionState.CONNECTED || !peer.compareAndSetState(state, ConnectionState.CONNECTING)) {
+			// Connected meanwhile, e.g. by the device dialing this side.
+			if(peer.compareAndSetConnector(connector, null)) {
+				connector.cancel();
+			}
+			return;
+		}
+		Log.i(TAG, "State: CONNECTING");
+		if(!hasConnectedPeers()) {
+			state = mState.get();
+			mState.compareAndSet(state, ConnectionState.CONNECTING);
+		}
+		if(!execute(connector)) {
+			connector.cancel();
+			connectionFailed(connector, address);
+		}
+	}
+	
+	/**
+	 * Connection failed. Called by the connector when it was not able to
+	 * connect to the remote device. The peer is dropped from the connection
+	 * table. A redial is scheduled when the device is being reconnected,
+	 * otherwise the listener is restarted when nothing else is connected.
+	 *
+	 * @param connector the failed connector
+	 * @param address the device address
+	 */
+	void connectionFailed(ChannelConnector connector, String address) {
+		PeerConnection peer = mConnections.get(address);
+		if(peer == null || !peer.compareAndSetConnector(connector, null)) {
+			// Connection attempt has been superseded or cancelled.
+			return;
+		}
+		connector.cancel();
+		peer.getMetrics().onFailed();
+		removePeer(peer);
+		ReconnectPolicy policy = mReconnectPolicy;
+		if(policy != null && mReconnect.onFailed(address, policy)) {
+			return;
+		}
+		if(!hasConnectedPeers()) {
+			Log.i(TAG, "Restart connection manager");
+			restart();
+		}
+	}
+	
+	/**
+	 * Connection lost. Called by the channel when reading from the remote
+	 * device failed. The peer is dropped from the connection table. Devices
+	 * dialed by this side are redialed, otherwise the listener is restarted
+	 * when nothing else is connected.
+	 *
+	 * @param channel the broken channel
+	 * @param address the device address
+	 */
+	void connectionLost(Channel channel, String address) {
+		PeerConnection peer = mConnections.get(address);
+		if(peer == null || !peer.compareAndSetChannel(channel, null)) {
+			// Channel has been replaced or cancelled.
+			return;
+		}
+		channel.cancel();
+		peer.getMetrics().onLost();
+		removePeer(peer);
+		ReconnectPolicy policy = mReconnectPolicy;
+		if(peer.isOutbound() && policy != null && mReconnect.onLost(address, peer.getDeviceName(), policy)) {
+			if(!hasConnectedPeers()) {
+				mState.compareAndSet(ConnectionState.CONNECTED, ConnectionState.CONNECTING);
+			}
+			return;
+		}
+		if(!hasConnectedPeers()) {
+			Log.i(TAG, "Restart connection manager");
+			restart();
+		} else if(acceptsClients()) {
+			// A client left the hub, make room for another one.
+			listen();
+		}
+	}
+	
+	/**
+	 * Terminate all.
+	 * Method closes all links and shuts the executor down, it is created
+	 * again by the next start or connect.
+	 */
+	public void terminateAll() {
+		// Moving to NONE first makes links established and listeners started meanwhile drop themselves.
+		Log.i(TAG, "State: NONE");
+		ConnectionState state;
+		do {
+			state = mState.get();
+		} while(!mState.compareAndSet(state, ConnectionState.NONE));
+		mReconnect.cancelAll();
+		cancelRaces();
+		synchronized (this) {
+			if(chnlBTListener != null) {
+				chnlBTListener.cancel();
+				chnlBTListener = null;
+			}
+		}
+		
+		for(PeerConnection peer : mConnections.values()) {
+			removePeer(peer);
+		}
+		deviceName=null;
+		
+		synchronized (this) {
+			// Closed sockets end all tasks, idle threads exit right away.
+			if(mExecutor != null) {
+				mExecutor.shutdown();
+				mExecutor = null;
+			}
+			if(mScheduler != null && mMetricsReport == null) {
+				mScheduler.shutdown();
+				mScheduler = null;
+			}
+		}
+	}
+	
+	/**
+	 * Gets the connected device name.
+	 *
+	 * @return the conn dev name
+	 */
+	public String getConnDevName() {
+		if(deviceName == null || (mState.get() != ConnectionState.CONNECTED)) {
+			return "No connection";
+		}
+		return deviceName;
+	}
+	
+	/**
+	 * Write.
+	 * In multi connection mode the data are sent to every connected device.
+	 * Data are queued and written asynchronously, the array must not be
+	 * modified afterwards.
+	 *
+	 * @param data the data
+	 */
+	public void write(byte[] data) {
+		if(mState.get() != ConnectionState.CONNECTED) {
+			Log.i(TAG, "Try to send data, but device is not connected.");
+			return;
+		}
+		BackpressurePolicy policy = getFanOutPolicy();
+		StreamPriority priority = getStreamPriority(0);
+		for(PeerConnection peer : mLivePeers) {
+			Channel channel = peer.getChannel();
+			if(policy == null) {
+				writeToPeer(peer, 0, data, 0, data.length, null);
+			} else if(peer.getState() == ConnectionState.CONNECTED && channel != null && channel.isOpen()) {
+				channel.broadcast(0, priority, data, policy);
+			} else {
+				Log.e(TAG, "Could not send data, BT channel to " + peer.getAddress() + " not established.");
+			}
+		}
+	}
+	
+	/**
+	 * Send part of array to every connected device.
+	 * Data are copied into a pooled buffer, so the array can be reused
+	 * as soon as the call returns.
+	 *
+	 * @param data the data
+	 * @param offset the offset
+	 * @param length the length
+	 * @return true, if data has been queued for at least one device
+	 */
+	public boolean send(byte[] data, int offset, int length) {
+		PooledBuffer buffer = mBufferPool.acquire(length);
+		System.arraycopy(data, offset, buffer.array(), buffer.offset(), length);
+		buffer.setLength(length);
+		return sendToPeers(buffer, null);
+	}
+	
+	/**
+	 * Broadcast the data to every connected device, the hub clients in
+	 * particular. Data are copied once into a pooled buffer shared by all
+	 * channels, each channel writes them on its own thread. A device whose
+	 * write queue is full is handled by the slow client policy of the hub
+	 * config, or its default without hub mode, so the call never waits for
+	 * a device which does not keep up.
+	 *
+	 * @param data the data
+	 * @param offset the offset
+	 * @param length the length
+	 * @return the number of devices the data have been queued for
+	 * @see #setHubConfig(HubConfig)
+	 */
+	public int broadcast(byte[] data, int offset, int length) {
+		PooledBuffer buffer = mBufferPool.acquire(length);
+		System.arraycopy(data, offset, buffer.array(), buffer.offset(), length);
+		buffer.setLength(length);
+		BackpressurePolicy policy = getFanOutPolicy();
+		return sendToPeers(0, buffer, policy != null ? policy : HubConfig.DEFAULT_SLOW_CLIENT_POLICY, null);
+	}
+	
+	/**
+	 * Broadcast the data to every connected device.
+	 *
+	 * @param data the data
+	 * @return the number of devices the data have been queued for
+	 * @see #broadcast(byte[], int, int)
+	 */
+	public int broadcast(byte[] data) {
+		return broadcast(data, 0, data.length);
+	}
+	
+	/**
+	 * Send remaining bytes of the buffer to every connected device.
+	 * Heap and direct buffers are supported, the buffer position is advanced
+	 * over the sent bytes and the buffer can be reused when the call returns.
+	 *
+	 * @param data the data
+	 * @return true, if data has been queued for at least one device
+	 */
+	public boolean send(ByteBuffer data) {
+		return sendToPeers(gather(data), null);
+	}
+	
+	/**
+	 * Send remaining bytes of all buffers as one message to every connected device.
+	 *
+	 * @param data the data
+	 * @return true, if data has been queued for at least one device
+	 */
+	public boolean send(ByteBuffer[] data) {
+		return sendToPeers(gather(data), null);
+	}
+	
+	/**
+	 * Send text encoded as UTF-8 to every connected device. Text is encoded
+	 * straight into a pooled buffer by an encoder reused per thread.
+	 *
+	 * @param text the text
+	 * @return true, if data has been queued for at least one device
+	 */
+	public boolean send(CharSequence text) {
+		return sendToPeers(TextEncoder.encode(text, mBufferPool), null);
+	}
+	
+	/**
+	 * Send remaining bytes of the buffer to the device with given address.
+	 *
+	 * @param address the device address
+	 * @param data the data
+	 * @param callback the completion callback, may be null
+	 * @return true, if data has been queued for the device channel
+	 * @see #send(ByteBuffer)
+	 */
+	public boolean send(String address, ByteBuffer data, WriteCallback callback) {
+		return sendToPeer(address, 0, gather(data), callback);
+	}
+	
+	/**
+	 * Send text encoded as UTF-8 to the device with given address.
+	 *
+	 * @param address the device address
+	 * @param text the text
+	 * @param callback the completion callback, may be null
+	 * @return true, if data has been queued for the device channel
+	 * @see #send(CharSequence)
+	 */
+	public boolean send(String address, CharSequence text, WriteCallback callback) {
+		return sendToPeer(address, 0, TextEncoder.encode(text, mBufferPool), callback);
+	}
+	
+	/**
+	 * Send remaining bytes of the buffer to given stream of the device with
+	 * given address. Streams have to be enabled by the frame codec, the
+	 * message is sent in chunks interleaved with messages of other streams
+	 * according to their priority.
+	 *
+	 * @param address the device address
+	 * @param streamId the stream id
+	 * @param data the data
+	 * @param callback the completion callback, may be null
+	 * @return true, if data has been queued for the device channel
+	 * @see #setStreamPriority(int, StreamPriority)
+	 */
+	public boolean send(String address, int streamId, ByteBuffer data, WriteCallback callback) {
+		checkStreams(streamId);
+		return sendToPeer(address, streamId, gather(data), callback);
+	}
+	
+	/**
+	 * Send content of the pooled buffer to given stream of the device with
+	 * given address, used by protocols which encode their messages straight
+	 * into pooled buffers.
+	 *
+	 * @param address the device address
+	 * @param streamId the stream id
+	 * @param data the data, reference is taken over
+	 * @param callback the completion callback, may be null
+	 * @return true, if data has been queued for the device channel
+	 */
+	boolean send(String address, int streamId, PooledBuffer data, WriteCallback callback) {
+		return send(address, streamId, data, null, callback);
+	}
+	
+	/**
+	 * Send content of the pooled buffer to given stream of the device with
+	 * given address, handling a full write queue by given policy in place of
+	 * the configured one.
+	 *
+	 * @param address the device address
+	 * @param streamId the stream id
+	 * @param data the data, reference is taken over
+	 * @param policy the backpressure policy, null for the configured one
+	 * @param callback the completion callback, may be null
+	 * @return true, if data has been queued for the device channel
+	 */
+	boolean send(String address, int streamId, PooledBuffer data, BackpressurePolicy policy, WriteCallback callback) {
+		try {
+			checkStreams(streamId);
+		} catch (IllegalArgumentException e) {
+			data.release();
+			throw e;
+		}
+		return sendToPeer(address, streamId, data, policy, callback);
+	}
+	
+	/**
+	 * Send content of the pooled buffer to given stream of every connected
+	 * device, the buffer is shared by all channels.
+	 *
+	 * @param streamId the stream id
+	 * @param data the data, reference is taken over
+	 * @param callback the completion callback, may be null
+	 * @return true, if data has been queued for at least one device
+	 */
+	boolean send(int streamId, PooledBuffer data, WriteCallback callback) {
+		try {
+			checkStreams(streamId);
+		} catch (IllegalArgumentException e) {
+			data.release();
+			throw e;
+		}
+		return sendToPeers(streamId, data, getFanOutPolicy(), callback) > 0;
+	}
+	
+	/**
+	 * Copies remaining bytes of the buffer into pooled buffer.
+	 *
+	 * @param data the data
+	 * @return the pooled buffer
+	 */
+	private PooledBuffer gather(ByteBuffer data) {
+		int length = data.remaining();
+		PooledBuffer buffer = mBufferPool.acquire(length);
+		data.get(buffer.array(), buffer.offset(), length);
+		buffer.setLength(length);
+		return buffer;
+	}
+	
+	/**
+	 * Copies remaining bytes of buffers into one pooled buffer.
+	 *
+	 * @param data the data
+	 * @return the pooled buffer
+	 */
+	private PooledBuffer gather(ByteBuffer[] data) {
+		int length = 0;
+		for(ByteBuffer item : data) {
+			length += item.remaining();
+		}
+		PooledBuffer buffer = mBufferPool.acquire(length);
+		int pos = buffer.offset();
+		for(ByteBuffer item : data) {
+			int n = item.remaining();
+			item.get(buffer.array(), pos, n);
+			pos += n;
+		}
+		buffer.setLength(length);
+		return buffer;
+	}
+	
+	/**
+	 * Queues the pooled buffer for every connected device. Each channel
+	 * holds its own reference, the data are encoded only once.
+	 *
+	 * @param data the data, reference is taken over
+	 * @param callback the completion callback, may be null
+	 * @return true, if data has been queued for at least one device
+	 */
+	private boolean sendToPeers(PooledBuffer data, WriteCallback callback) {
+		return sendToPeers(0, data, getFanOutPolicy(), callback) > 0;
+	}
+	
+	/**
+	 * Queues the pooled buffer for given stream of every connected device.
+	 * Under a slow client policy the writes are broadcasts, which
+	 * {@link BackpressurePolicy#DROP_OLDEST} drops only for newer broadcasts.
+	 *
+	 * @param streamId the stream id
+	 * @param data the data, reference is taken over
+	 * @param policy the slow client policy, null for the configured one
+	 * @param callback the completion callback, may be null
+	 * @return the number of devices the data have been queued for
+	 */
+	private int sendToPeers(int streamId, PooledBuffer data, BackpressurePolicy policy, WriteCallback callback) {
+		int queued = 0;
+		StreamPriority priority = getStreamPriority(streamId);
+		for(PeerConnection peer : mLivePeers) {
+			Channel channel = peer.getChannel();
+			if(channel == null) {
+				continue;
+			}
+			if(policy != null ? channel.broadcast(streamId, priority, data.retain(), policy, callback)
+					: channel.write(streamId, priority, data.retain(), callback)) {
+				queued++;
+			}
+		}
+		if(queued == 0) {
+			Log.i(TAG, "Try to send data, but device is not connected.");
+		}
+		data.release();
+		return queued;
+	}
+	
+	/**
+	 * Queues the pooled buffer for the device with given address.
+	 *
+	 * @param address the device address
+	 * @param streamId the stream id
+	 * @param data the data, reference is taken over
+	 * @param callback the completion callback, may be null
+	 * @return true, if data has been queued for the device channel
+	 */
+	private boolean sendToPeer(String address, int streamId, PooledBuffer data, WriteCallback callback) {
+		return sendToPeer(address, streamId, data, null, callback);
+	}
+	
+	/**
+	 * Queues the pooled buffer for the device with given address.
+	 *
+	 * @param address the device address
+	 * @param streamId the stream id
+	 * @param data the data, reference is taken over
+	 * @param policy the backpressure policy, null for the configured one
+	 * @param callback the completion callback, may be null
+	 * @return true, if data has been queued for the device channel
+	 */
+	private boolean sendToPeer(String address, int streamId, PooledBuffer data, BackpressurePolicy policy,
+			WriteCallback callback) {
+		PeerConnection peer = mConnections.get(address);
+		Channel channel = peer != null ? peer.getChannel() : null;
+		if(channel == null || peer.getState() != ConnectionState.CONNECTED) {
+			Log.i(TAG, "Try to send data, but device " + address + " is not connected.");
+			int length = data.length();
+			data.release();
+			if(callback != null) {
+				callback.onWriteCompleted(address, length, new IOException("Device not connected"));
+			}
+			return false;
+		}
+		StreamPriority priority = getStreamPriority(streamId);
+		return policy != null ? channel.write(streamId, priority, data, policy, callback)
+				: channel.write(streamId, priority, data, callback);
+	}
+	
+	/**
+	 * Write to the device with given address.
+	 *
+	 * @param address the device address
+	 * @param data the data
+	 * @return true, if data has been queued for the device channel
+	 */
+	public boolean write(String address, byte[] data) {
+		return write(address, data, 0, data.length, null);
+	}
+	
+	/**
+	 * Write to the device with given address.
+	 * Callback is notified once the data are written to the socket or
+	 * the write fails, the range must not be modified until then.
+	 *
+	 * @param address the device address
+	 * @param data the data
+	 * @param offset the offset
+	 * @param length the length
+	 * @param callback the completion callback, may be null
+	 * @return true, if data has been queued for the device channel
+	 */
+	public boolean write(String address, byte[] data, int offset, int length, WriteCallback callback) {
+		PeerConnection peer = mConnections.get(address);
+		if(peer == null) {
+			Log.i(TAG, "Try to send data, but device " + address + " is not connected.");
+			if(callback != null) {
+				callback.onWriteCompleted(address, length, new IOException("Device not connected"));
+			}
+			return false;
+		}
+		return writeToPeer(peer, 0, data, offset, length, callback);
+	}
+	
+	/**
+	 * Write to given stream of the device with given address.
+	 * Callback is notified once the data are written to the socket or
+	 * the write fails, the range must not be modified until then.
+	 *
+	 * @param address the device address
+	 * @param streamId the stream id
+	 * @param data the data
+	 * @param offset the offset
+	 * @param length the length
+	 * @param callback the completion callback, may be null
+	 * @return true, if data has been queued for the device channel
+	 * @see #send(String, int, ByteBuffer, WriteCallback)
+	 */
+	public boolean write(String address, int streamId, byte[] data, int offset, int length, WriteCallback callback) {
+		checkStreams(streamId);
+		PeerConnection peer = mConnections.get(address);
+		if(peer == null) {
+			Log.i(TAG, "Try to send data, but device " + address + " is not connected.");
+			if(callback != null) {
+				callback.onWriteCompleted(address, length, new IOException("Device not connected"));
+			}
+			return false;
+		}
+		return writeToPeer(peer, streamId, data, offset, length, callback);
+	}
+	
+	/**
+	 * Checks that the stream can be written.
+	 *
+	 * @param streamId the stream id
+	 * @throws IllegalArgumentException when out of range or streams are disabled
+	 */
+	private void checkStreams(int streamId) {
+		checkStream(streamId);
+		FrameCodec codec = mFrameCodec;
+		if(streamId != 0 && (codec == null || !codec.hasStreams())) {
+			throw new IllegalArgumentException("Streams not enabled by the frame codec");
+		}
+	}
+	
+	/**
+	 * Checks that a protocol can take over the stream, called by protocols
+	 * owning a stream of their own before they claim it.
+	 *
+	 * @param streamId the stream id, other than 0
+	 * @throws IllegalArgumentException when out of range, 0 or streams are disabled
+	 * @see #setStreamListener(int, StreamListener)
+	 */
+	void checkOwnStream(int streamId) {
+		if(checkStream(streamId) == 0) {
+			throw new IllegalArgumentException("Stream 0 is delivered to the message listener");
+		}
+		checkStreams(streamId);
+	}
+	
+	/**
+	 * Write to the channel of given peer.
+	 *
+	 * @param peer the peer
+	 * @param streamId the stream id
+	 * @param data the data
+	 * @param offset the offset
+	 * @param length the length
+	 * @param callback the completion callback, may be null
+	 * @return true, if successful
+	 */
+	private boolean writeToPeer(PeerConnection peer, int streamId, byte[] data, int offset, int length,
+			WriteCallback callback) {
+		Channel channel = peer.getChannel();
+		if(peer.getState() == ConnectionState.CONNECTED && channel != null && channel.isOpen()) {
+			return channel.write(streamId, getStreamPriority(streamId), data, offset, length, callback);
+		}
+		Log.e(TAG, "Could not send data, BT channel to " + peer.getAddress() + " not established.");
+		if(callback != null) {
+			callback.onWriteCompleted(peer.getAddress(), length, new IOException("Channel not established"));
+		}
+		return false;
+	}
+	
+	/**
+	 * Gets the peer by address, creates new one if it does not exist yet.
+	 *
+	 * @param address the device address
+	 * @return the peer
+	 */
+	private PeerConnection getOrCreatePeer(String address) {
+		PeerConnection peer = mConnections.get(address);
+		if(peer == null) {
+			peer = new PeerConnection(address, getConnectionMetrics(address), mStateListeners);
+			PeerConnection prev = mConnections.putIfAbsent(address, peer);
+			if(prev != null) {
+				peer = prev;
+			}
+		}
+		return peer;
+	}
+	
+	/**
+	 * Removes the peer from connection table and closes it.
+	 *
+	 * @param peer the peer
+	 */
+	private void removePeer(PeerConnection peer) {
+		mConnections.remove(peer.getAddress(), peer);
+		peer.cancel();
+		updateLivePeers();
+	}
+	
+	/**
+	 * Rebuilds the array of connected peers.
+	 */
+	private void updateLivePeers() {
+		int version;
+		do {
+			version = mLivePeersVersion.incrementAndGet();
+			int count = 0;
+			PeerConnection[] peers = new PeerConnection[mConnections.size()];
+			for(PeerConnection peer : mConnections.values()) {
+				if(peer.getState() == ConnectionState.CONNECTED && count < peers.length) {
+					peers[count++] = peer;
+				}
+			}
+			PeerConnection[] live = new PeerConnection[count];
+			System.arraycopy(peers, 0, live, 0, count);
+			mLivePeers = live;
+			// A rebuild started meanwhile may have been overwritten by this older one.
+		} while(mLivePeersVersion.get() != version);
+	}
+	
+	/**
+	 * Checks for connected peers.
+	 *
+	 * @return true, if at least one device is connected
+	 */
+	private boolean hasConnectedPeers() {
+		return mLivePeers.length > 0;
+	}
+	
 }
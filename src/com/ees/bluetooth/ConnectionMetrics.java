@@ -0,0 +1,295 @@
+package com.ees.bluetooth;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The Class ConnectionMetrics. Live counters of one remote device, kept by
+ * {@link ConnectionManager} across reconnects. Every counter is updated
+ * lock free by the thread owning the event: the channel thread counts
+ * incoming data, the writer thread outgoing data, connector and listener
+ * the connection events.
+ */
+class ConnectionMetrics {
+
+	/** The remote device address. */
+	private final String mAddress;
+
+	/** The received bytes. */
+	private final AtomicLong mBytesIn = new AtomicLong();
+
+	/** The sent bytes, including framing. */
+	private final AtomicLong mBytesOut = new AtomicLong();
+
+	/** The received messages, reads when framing is disabled. */
+	private final AtomicLong mMessagesIn = new AtomicLong();
+
+	/** The sent messages. */
+	private final AtomicLong mMessagesOut = new AtomicLong();
+
+	/** The duration of socket write calls. */
+	private final LatencyHistogram mWriteLatency = new LatencyHistogram();
+
+	/** The round trip times measured by heartbeats. */
+	private final LatencyHistogram mRoundTrip = new LatencyHistogram();
+
+	/** The duration of last successful dial. */
+	private volatile long mConnectNanos;
+
+	/** The successful dials. */
+	private final AtomicLong mConnects = new AtomicLong();
+
+	/** The accepted incoming connections. */
+	private final AtomicLong mAccepts = new AtomicLong();
+
+	/** The established channels. */
+	private final AtomicLong mEstablished = new AtomicLong();
+
+	/** The channels established after a previous one. */
+	private final AtomicLong mReconnects = new AtomicLong();
+
+	/** The failed dials. */
+	private final AtomicLong mFailures = new AtomicLong();
+
+	/** The lost channels. */
+	private final AtomicLong mDisconnects = new AtomicLong();
+
+	/** The current connection state. */
+	private volatile ConnectionState mState = ConnectionState.NONE;
+
+	/** The time the current state was entered. */
+	private volatile long mStateSinceNanos = System.nanoTime();
+
+	/**
+	 * Instantiates new connection metrics.
+	 *
+	 * @param address the remote device address
+	 */
+	ConnectionMetrics(String address) {
+		mAddress = address;
+	}
+
+	/**
+	 * Counts bytes read from the socket.
+	 *
+	 * @param bytes the number of bytes
+	 */
+	void onRead(int bytes) {
+		mBytesIn.addAndGet(bytes);
+	}
+
+	/**
+	 * Counts one delivered message.
+	 */
+	void onMessageReceived() {
+		mMessagesIn.incrementAndGet();
+	}
+
+	/**
+	 * Counts one socket write.
+	 *
+	 * @param bytes the number of bytes written
+	 * @param messages the number of messages in the write
+	 * @param nanos the duration of the write call
+	 */
+	void onWritten(int bytes, int messages, long nanos) {
+		mBytesOut.addAndGet(bytes);
+		mMessagesOut.addAndGet(messages);
+		mWriteLatency.record(nanos);
+	}
+
+	/**
+	 * Records a round trip time sample.
+	 *
+	 * @param nanos the round trip time
+	 */
+	void onRoundTrip(long nanos) {
+		mRoundTrip.record(nanos);
+	}
+
+	/**
+	 * Counts one successful dial.
+	 *
+	 * @param nanos the time spent in connect
+	 */
+	void onConnected(long nanos) {
+		mConnectNanos = nanos;
+		mConnects.incrementAndGet();
+	}
+
+	/**
+	 * Counts one accepted connection.
+	 */
+	void onAccepted() {
+		mAccepts.incrementAndGet();
+	}
+
+	/**
+	 * Counts one established channel.
+	 */
+	void onEstablished() {
+		if(mEstablished.getAndIncrement() > 0) {
+			mReconnects.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Counts one failed dial.
+	 */
+	void onFailed() {
+		mFailures.incrementAndGet();
+	}
+
+	/**
+	 * Counts one lost channel.
+	 */
+	void onLost() {
+		mDisconnects.incrementAndGet();
+	}
+
+	/**
+	 * Sets the state, the state time is reset only when the state changes.
+	 *
+	 * @param state the new state
+	 */
+	void setState(ConnectionState state) {
+		if(mState != state) {
+			mStateSinceNanos = System.nanoTime();
+			mState = state;
+		}
+	}
+
+	/**
+	 * Gets the address.
+	 *
+	 * @return the remote device address
+	 */
+	String getAddress() {
+		return mAddress;
+	}
+
+	/**
+	 * Gets the received bytes.
+	 *
+	 * @return the byte count
+	 */
+	long getBytesIn() {
+		return mBytesIn.get();
+	}
+
+	/**
+	 * Gets the sent bytes.
+	 *
+	 * @return the byte count
+	 */
+	long getBytesOut() {
+		return mBytesOut.get();
+	}
+
+	/**
+	 * Gets the received messages.
+	 *
+	 * @return the message count
+	 */
+	long getMessagesIn() {
+		return mMessagesIn.get();
+	}
+
+	/**
+	 * Gets the sent messages.
+	 *
+	 * @return the message count
+	 */
+	long getMessagesOut() {
+		return mMessagesOut.get();
+	}
+
+	/**
+	 * Gets the write latency.
+	 *
+	 * @return the live histogram
+	 */
+	LatencyHistogram getWriteLatency() {
+		return mWriteLatency;
+	}
+
+	/**
+	 * Gets the round trip times.
+	 *
+	 * @return the live histogram
+	 */
+	LatencyHistogram getRoundTrip() {
+		return mRoundTrip;
+	}
+
+	/**
+	 * Gets the duration of last dial.
+	 *
+	 * @return the duration in nanoseconds
+	 */
+	long getConnectNanos() {
+		return mConnectNanos;
+	}
+
+	/**
+	 * Gets the successful dials.
+	 *
+	 * @return the count
+	 */
+	long getConnects() {
+		return mConnects.get();
+	}
+
+	/**
+	 * Gets the accepted connections.
+	 *
+	 * @return the count
+	 */
+	long getAccepts() {
+		return mAccepts.get();
+	}
+
+	/**
+	 * Gets the reconnects.
+	 *
+	 * @return the count
+	 */
+	long getReconnects() {
+		return mReconnects.get();
+	}
+
+	/**
+	 * Gets the failed dials.
+	 *
+	 * @return the count
+	 */
+	long getFailures() {
+		return mFailures.get();
+	}
+
+	/**
+	 * Gets the lost channels.
+	 *
+	 * @return the count
+	 */
+	long getDisconnects() {
+		return mDisconnects.get();
+	}
+
+	/**
+	 * Gets the state.
+	 *
+	 * @return the state
+	 */
+	ConnectionState getState() {
+		return mState;
+	}
+
+	/**
+	 * Gets the time the state was entered.
+	 *
+	 * @return the System.nanoTime() value
+	 */
+	long getStateSinceNanos() {
+		return mStateSinceNanos;
+	}
+}
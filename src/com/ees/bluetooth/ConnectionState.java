@@ -1,8 +1,42 @@
 package com.ees.bluetooth;
 
-public class ConnectionState {
-	public static final int NONE = -1;
-	public static final int LISTENING = 0;
-	public static final int CONNECTING = 1;
-	public static final int CONNECTED = 2;
+/**
+ * The Enum ConnectionState. States of the connection manager and of the
+ * connection with each device. Values keep the integer codes of former
+ * constants for callers exchanging states as numbers.
+ */
+public enum ConnectionState {
+
+	/** Nothing running. */
+	NONE(-1),
+
+	/** Waiting for incoming connections. */
+	LISTENING(0),
+
+	/** Dialing a device. */
+	CONNECTING(1),
+
+	/** Channel established. */
+	CONNECTED(2);
+
+	/** The integer code. */
+	private final int mValue;
+
+	/**
+	 * Instantiates a new connection state.
+	 *
+	 * @param value the integer code
+	 */
+	private ConnectionState(int value) {
+		mValue = value;
+	}
+
+	/**
+	 * Gets the integer code.
+	 *
+	 * @return the code
+	 */
+	public int getValue() {
+		return mValue;
+	}
 }
@@ -0,0 +1,20 @@
+package com.ees.bluetooth;
+
+/**
+ * The listener interface notified about state transitions.
+ *
+ * @see ConnectionManager#addStateListener(ConnectionStateListener)
+ */
+public interface ConnectionStateListener {
+
+	/**
+	 * Called on the thread which made the transition, right after it.
+	 * Transitions of different devices may be reported concurrently, so
+	 * implementations have to be thread safe and must not block.
+	 *
+	 * @param address the device address, null for the state of the manager
+	 * @param previous the previous state
+	 * @param state the new state
+	 */
+	void onStateChanged(String address, ConnectionState previous, ConnectionState state);
+}
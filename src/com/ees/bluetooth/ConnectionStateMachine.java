@@ -0,0 +1,134 @@
+package com.ees.bluetooth;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import android.util.Log;
+
+/**
+ * The Class ConnectionStateMachine. Holds a {@link ConnectionState} and
+ * moves it only along legal transitions, each one applied with
+ * compareAndSet from the state the caller observed, so threads changing
+ * state never lock and an illegal or stale transition is rejected instead
+ * of overwriting a newer state. Moving to the current state is a no-op
+ * which succeeds. Listeners are notified on the thread which made the
+ * transition, callers hold no lock while doing so.
+ */
+class ConnectionStateMachine {
+
+	/** The Constant TAG. */
+	private static final String TAG = ConnectionStateMachine.class.getSimpleName();
+
+	/**
+	 * The legal transitions of the manager. A link is established only while
+	 * listening or dialing, never out of NONE, e.g. by a socket accepted
+	 * after termination.
+	 */
+	static final boolean[][] MANAGER_TRANSITIONS = transitions(new ConnectionState[][] {
+			{ ConnectionState.NONE, ConnectionState.LISTENING },
+			{ ConnectionState.NONE, ConnectionState.CONNECTING },
+			{ ConnectionState.LISTENING, ConnectionState.CONNECTING },
+			{ ConnectionState.LISTENING, ConnectionState.CONNECTED },
+			{ ConnectionState.LISTENING, ConnectionState.NONE },
+			{ ConnectionState.CONNECTING, ConnectionState.CONNECTED },
+			{ ConnectionState.CONNECTING, ConnectionState.LISTENING },
+			{ ConnectionState.CONNECTING, ConnectionState.NONE },
+			{ ConnectionState.CONNECTED, ConnectionState.CONNECTING },
+			{ ConnectionState.CONNECTED, ConnectionState.LISTENING },
+			{ ConnectionState.CONNECTED, ConnectionState.NONE } });
+
+	/** The legal transitions of a device, devices never listen. */
+	static final boolean[][] PEER_TRANSITIONS = transitions(new ConnectionState[][] {
+			{ ConnectionState.NONE, ConnectionState.CONNECTING },
+			{ ConnectionState.NONE, ConnectionState.CONNECTED },
+			{ ConnectionState.CONNECTING, ConnectionState.CONNECTED },
+			{ ConnectionState.CONNECTING, ConnectionState.NONE },
+			{ ConnectionState.CONNECTED, ConnectionState.NONE } });
+
+	/** The device address, null for the manager. */
+	private final String mAddress;
+
+	/** The legal transitions indexed by ordinals. */
+	private final boolean[][] mTransitions;
+
+	/** The listeners, a copy on write list shared with the manager. */
+	private final List<ConnectionStateListener> mListeners;
+
+	/** The current state. */
+	private final AtomicReference<ConnectionState> mState =
+			new AtomicReference<ConnectionState>(ConnectionState.NONE);
+
+	/**
+	 * Instantiates a new state machine in state NONE.
+	 *
+	 * @param address the device address, null for the manager
+	 * @param transitions the legal transitions
+	 * @param listeners the listeners
+	 */
+	ConnectionStateMachine(String address, boolean[][] transitions, List<ConnectionStateListener> listeners) {
+		mAddress = address;
+		mTransitions = transitions;
+		mListeners = listeners;
+	}
+
+	/**
+	 * Gets the current state.
+	 *
+	 * @return the state
+	 */
+	ConnectionState get() {
+		return mState.get();
+	}
+
+	/**
+	 * Moves to given state only from the expected one.
+	 *
+	 * @param expected the state observed by the caller
+	 * @param next the new state
+	 * @return true, if the transition has been made
+	 */
+	boolean compareAndSet(ConnectionState expected, ConnectionState next) {
+		if(expected != next && !mTransitions[expected.ordinal()][next.ordinal()]) {
+			Log.w(TAG, "Illegal transition " + expected + " -> " + next + (mAddress != null ? " of " + mAddress : ""));
+			return false;
+		}
+		if(!mState.compareAndSet(expected, next)) {
+			return false;
+		}
+		if(expected != next) {
+			notifyListeners(expected, next);
+		}
+		return true;
+	}
+
+	/**
+	 * Notifies the listeners.
+	 *
+	 * @param previous the previous state
+	 * @param state the new state
+	 */
+	private void notifyListeners(ConnectionState previous, ConnectionState state) {
+		for(ConnectionStateListener listener : mListeners) {
+			try {
+				listener.onStateChanged(mAddress, previous, state);
+			} catch (RuntimeException e) {
+				Log.e(TAG, "State listener failed", e);
+			}
+		}
+	}
+
+	/**
+	 * Builds the table of legal transitions.
+	 *
+	 * @param pairs the legal pairs of from and to states
+	 * @return the table indexed by ordinals
+	 */
+	private static boolean[][] transitions(ConnectionState[][] pairs) {
+		int count = ConnectionState.values().length;
+		boolean[][] table = new boolean[count][count];
+		for(ConnectionState[] pair : pairs) {
+			table[pair[0].ordinal()][pair[1].ordinal()] = true;
+		}
+		return table;
+	}
+}
@@ -0,0 +1,65 @@
+package com.ees.bluetooth;
+
+import java.util.zip.Checksum;
+
+/**
+ * The Class Crc32c. Table driven CRC-32C (Castagnoli) checksum, the variant
+ * used by iSCSI and SCTP. The platform provides only the plain CRC-32.
+ */
+public class Crc32c implements Checksum {
+
+	/** The reflected Castagnoli polynomial. */
+	private static final int POLY = 0x82F63B78;
+
+	/** The lookup table. */
+	private static final int[] TABLE = new int[256];
+
+	static {
+		for(int i = 0; i < 256; i++) {
+			int crc = i;
+			for(int j = 0; j < 8; j++) {
+				crc = (crc & 1) != 0 ? (crc >>> 1) ^ POLY : crc >>> 1;
+			}
+			TABLE[i] = crc;
+		}
+	}
+
+	/** The current register value. */
+	private int mCrc = 0xFFFFFFFF;
+
+	/* (non-Javadoc)
+	 * @see java.util.zip.Checksum#update(int)
+	 */
+	@Override
+	public void update(int b) {
+		mCrc = (mCrc >>> 8) ^ TABLE[(mCrc ^ b) & 0xff];
+	}
+
+	/* (non-Javadoc)
+	 * @see java.util.zip.Checksum#update(byte[], int, int)
+	 */
+	@Override
+	public void update(byte[] b, int off, int len) {
+		int crc = mCrc;
+		for(int end = off + len; off < end; off++) {
+			crc = (crc >>> 8) ^ TABLE[(crc ^ b[off]) & 0xff];
+		}
+		mCrc = crc;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.util.zip.Checksum#getValue()
+	 */
+	@Override
+	public long getValue() {
+		return ~mCrc & 0xFFFFFFFFL;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.util.zip.Checksum#reset()
+	 */
+	@Override
+	public void reset() {
+		mCrc = 0xFFFFFFFF;
+	}
+}
@@ -0,0 +1,132 @@
+package com.ees.bluetooth;
+
+import java.util.UUID;
+import java.util.regex.Pattern;
+
+/**
+ * The Class DeviceFilter. Selects devices found by discovery. Every set
+ * criterion has to match, unset ones match any device.
+ *
+ * @see BTFacade#discoverAndConnect(DeviceFilter)
+ */
+public class DeviceFilter {
+
+	/** The value of device class criterion matching any device. */
+	public static final int ANY_CLASS = DeviceInfo.CLASS_UNKNOWN;
+
+	/** The mask of major device class bits. */
+	private static final int MAJOR_MASK = 0x1F00;
+
+	/** The device address or null. */
+	private final String mAddress;
+
+	/** The device name pattern or null. */
+	private final Pattern mNamePattern;
+
+	/** The device class or major device class, {@link #ANY_CLASS} for any. */
+	private final int mDeviceClass;
+
+	/** The service UUID or null. */
+	private final UUID mServiceUuid;
+
+	/**
+	 * Instantiates a new device filter.
+	 *
+	 * @param address the device address, null for any
+	 * @param namePattern the pattern the whole device name has to match, null for any
+	 * @param deviceClass the device class, see BluetoothClass.Device, or the
+	 *            major device class, see BluetoothClass.Device.Major,
+	 *            {@link #ANY_CLASS} for any
+	 * @param serviceUuid the service UUID the device has to offer, null for any.
+	 *            Services are known for bonded devices on API 15 and later.
+	 *            Other devices match only once the application fetched their
+	 *            services with BluetoothDevice.fetchUuidsWithSdp() while the
+	 *            receiver is registered, discovery does not do that.
+	 */
+	public DeviceFilter(String address, Pattern namePattern, int deviceClass, UUID serviceUuid) {
+		mAddress = address;
+		mNamePattern = namePattern;
+		mDeviceClass = deviceClass;
+		mServiceUuid = serviceUuid;
+	}
+
+	/**
+	 * Creates a filter of given address.
+	 *
+	 * @param address the device address
+	 * @return the filter
+	 */
+	public static DeviceFilter forAddress(String address) {
+		return new DeviceFilter(address, null, ANY_CLASS, null);
+	}
+
+	/**
+	 * Creates a filter of given name pattern.
+	 *
+	 * @param regex the regular expression the whole name has to match
+	 * @return the filter
+	 */
+	public static DeviceFilter forName(String regex) {
+		return new DeviceFilter(null, Pattern.compile(regex), ANY_CLASS, null);
+	}
+
+	/**
+	 * Checks if the device matches.
+	 *
+	 * @param device the device
+	 * @return true, if all set criteria match
+	 */
+	public boolean matches(DeviceInfo device) {
+		if(mAddress != null && !mAddress.equalsIgnoreCase(device.getAddress())) {
+			return false;
+		}
+		if(mNamePattern != null && (device.getName() == null || !mNamePattern.matcher(device.getName()).matches())) {
+			return false;
+		}
+		if(mDeviceClass != ANY_CLASS && device.getDeviceClass() != mDeviceClass
+				&& (device.getDeviceClass() == DeviceInfo.CLASS_UNKNOWN
+						|| (device.getDeviceClass() & MAJOR_MASK) != mDeviceClass)) {
+			return false;
+		}
+		if(mServiceUuid != null && !device.hasService(mServiceUuid)) {
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Gets the device address.
+	 *
+	 * @return the address or null
+	 */
+	public String getAddress() {
+		return mAddress;
+	}
+
+	/**
+	 * Gets the device name pattern.
+	 *
+	 * @return the pattern or null
+	 */
+	public Pattern getNamePattern() {
+		return mNamePattern;
+	}
+
+	/**
+	 * Gets the device class.
+	 *
+	 * @return the device class or {@link #ANY_CLASS}
+	 */
+	public int getDeviceClass() {
+		return mDeviceClass;
+	}
+
+	/**
+	 * Gets the service UUID.
+	 *
+	 * @return the service UUID or null
+	 */
+	public UUID getServiceUuid() {
+		return mServiceUuid;
+	}
+}
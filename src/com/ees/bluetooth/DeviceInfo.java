@@ -0,0 +1,182 @@
+package com.ees.bluetooth;
+
+import java.util.UUID;
+
+/**
+ * The Class DeviceInfo. Immutable record of a remote device kept by the
+ * {@link DeviceRegistry}. Values are cached from discovery broadcasts, so
+ * reading them never calls into the Bluetooth service.
+ */
+public class DeviceInfo {
+
+	/** The RSSI value of devices not heard by discovery. */
+	public static final int RSSI_UNKNOWN = Short.MIN_VALUE;
+
+	/** The device class value of devices which did not report it. */
+	public static final int CLASS_UNKNOWN = -1;
+
+	/** The empty list of service UUIDs. */
+	private static final UUID[] NO_UUIDS = new UUID[0];
+
+	/** The device address. */
+	private final String mAddress;
+
+	/** The device name, may be null. */
+	private final String mName;
+
+	/** The bond state. */
+	private final int mBondState;
+
+	/** The signal strength of last discovery in dBm. */
+	private final int mRssi;
+
+	/** The device class, see BluetoothClass.getDeviceClass(). */
+	private final int mDeviceClass;
+
+	/** The service UUIDs, empty when not known. */
+	private final UUID[] mUuids;
+
+	/** The time the device was last seen, see System.currentTimeMillis(). */
+	private final long mLastSeen;
+
+	/**
+	 * Instantiates a new device info of unknown class and services.
+	 *
+	 * @param address the device address
+	 * @param name the device name, may be null
+	 * @param bondState the bond state
+	 * @param rssi the signal strength or {@link #RSSI_UNKNOWN}
+	 * @param lastSeen the time the device was last seen
+	 */
+	public DeviceInfo(String address, String name, int bondState, int rssi, long lastSeen) {
+		this(address, name, bondState, rssi, CLASS_UNKNOWN, null, lastSeen);
+	}
+
+	/**
+	 * Instantiates a new device info.
+	 *
+	 * @param address the device address
+	 * @param name the device name, may be null
+	 * @param bondState the bond state
+	 * @param rssi the signal strength or {@link #RSSI_UNKNOWN}
+	 * @param deviceClass the device class or {@link #CLASS_UNKNOWN}
+	 * @param uuids the service UUIDs, null when not known
+	 * @param lastSeen the time the device was last seen
+	 */
+	public DeviceInfo(String address, String name, int bondState, int rssi, int deviceClass, UUID[] uuids,
+			long lastSeen) {
+		mAddress = address;
+		mName = name;
+		mBondState = bondState;
+		mRssi = rssi;
+		mDeviceClass = deviceClass;
+		mUuids = uuids != null ? uuids.clone() : NO_UUIDS;
+		mLastSeen = lastSeen;
+	}
+
+	/**
+	 * Merges an update into a new record. Unknown values of the update keep
+	 * the cached ones.
+	 *
+	 * @param name the device name or null
+	 * @param bondState the bond state
+	 * @param rssi the signal strength or {@link #RSSI_UNKNOWN}
+	 * @param deviceClass the device class or {@link #CLASS_UNKNOWN}
+	 * @param uuids the service UUIDs or null
+	 * @param now the current time
+	 * @return the updated record
+	 */
+	DeviceInfo merge(String name, int bondState, int rssi, int deviceClass, UUID[] uuids, long now) {
+		return new DeviceInfo(mAddress, name != null ? name : mName, bondState,
+				rssi != RSSI_UNKNOWN ? rssi : mRssi, deviceClass != CLASS_UNKNOWN ? deviceClass : mDeviceClass,
+				uuids != null ? uuids : mUuids, now);
+	}
+
+	/**
+	 * Gets the device address.
+	 *
+	 * @return the address
+	 */
+	public String getAddress() {
+		return mAddress;
+	}
+
+	/**
+	 * Gets the device name.
+	 *
+	 * @return the name, null when not known
+	 */
+	public String getName() {
+		return mName;
+	}
+
+	/**
+	 * Gets the bond state.
+	 *
+	 * @return the bond state, see BluetoothDevice.BOND_* constants
+	 */
+	public int getBondState() {
+		return mBondState;
+	}
+
+	/**
+	 * Gets the signal strength measured by last discovery.
+	 *
+	 * @return the RSSI in dBm or {@link #RSSI_UNKNOWN}
+	 */
+	public int getRssi() {
+		return mRssi;
+	}
+
+	/**
+	 * Gets the device class.
+	 *
+	 * @return the device class, see BluetoothClass.Device, or {@link #CLASS_UNKNOWN}
+	 */
+	public int getDeviceClass() {
+		return mDeviceClass;
+	}
+
+	/**
+	 * Gets the service UUIDs. New devices report them only after a service
+	 * discovery, bonded devices have them cached.
+	 *
+	 * @return the copy of service UUIDs, empty when not known
+	 */
+	public UUID[] getUuids() {
+		return mUuids.clone();
+	}
+
+	/**
+	 * Checks if the device offers given service.
+	 *
+	 * @param uuid the service UUID
+	 * @return true, if the service is among known service UUIDs
+	 */
+	public boolean hasService(UUID uuid) {
+		for(UUID item : mUuids) {
+			if(item.equals(uuid)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Gets the time the device was last seen.
+	 *
+	 * @return the wall clock time in milliseconds
+	 */
+	public long getLastSeen() {
+		return mLastSeen;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "DeviceInfo [address=" + mAddress + ", name=" + mName + ", bondState=" + mBondState
+				+ ", rssi=" + mRssi + ", class=" + mDeviceClass + ", lastSeen=" + mLastSeen + "]";
+	}
+}
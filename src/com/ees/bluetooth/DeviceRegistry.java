@@ -0,0 +1,248 @@
+package com.ees.bluetooth;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.UUID;
+
+import android.bluetooth.BluetoothDevice;
+
+/**
+ * The Class DeviceRegistry. Thread safe registry of remote devices keyed by
+ * address. Updates copy the table and publish it as a new immutable
+ * snapshot, so readers get a consistent view at any time without locking.
+ * Devices which are not bonded and have not been seen within the time to
+ * live are evicted.
+ */
+public class DeviceRegistry {
+
+	/** The default time to live of devices not bonded, 5 minutes. */
+	public static final long DEFAULT_TTL_MILLIS = 5 * 60 * 1000;
+
+	/** The time to live of devices not bonded. */
+	private final long mTtlMillis;
+
+	/** The current snapshot, replaced on every change. */
+	private volatile Map<String, DeviceInfo> mDevices = Collections.emptyMap();
+
+	/** The oldest last seen time of evictable devices, Long.MAX_VALUE when there are none. */
+	private volatile long mOldestSeen = Long.MAX_VALUE;
+
+	/**
+	 * Instantiates a new device registry with default time to live.
+	 */
+	public DeviceRegistry() {
+		this(DEFAULT_TTL_MILLIS);
+	}
+
+	/**
+	 * Instantiates a new device registry.
+	 *
+	 * @param ttlMillis the time to live of devices not bonded
+	 */
+	public DeviceRegistry(long ttlMillis) {
+		if(ttlMillis <= 0) {
+			throw new IllegalArgumentException("Invalid time to live " + ttlMillis);
+		}
+		mTtlMillis = ttlMillis;
+	}
+
+	/**
+	 * Gets the snapshot of all devices. The map is immutable and does not
+	 * change when the registry is updated.
+	 *
+	 * @return the devices keyed by address
+	 */
+	public Map<String, DeviceInfo> getDevices() {
+		long now = System.currentTimeMillis();
+		if(now - mOldestSeen > mTtlMillis) {
+			evictStale(now);
+		}
+		return mDevices;
+	}
+
+	/**
+	 * Gets the device with given address.
+	 *
+	 * @param address the device address
+	 * @return the device or null
+	 */
+	public DeviceInfo get(String address) {
+		return getDevices().get(address);
+	}
+
+	/**
+	 * Finds the device by name. Names are not unique, the most recently seen
+	 * device of given name wins.
+	 *
+	 * @param name the device name
+	 * @return the device or null
+	 */
+	public DeviceInfo findByName(String name) {
+		DeviceInfo result = null;
+		for(DeviceInfo device : getDevices().values()) {
+			if(name.equals(device.getName()) && (result == null || device.getLastSeen() > result.getLastSeen())) {
+				result = device;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Updates the device, adds it when not known yet.
+	 *
+	 * @param address the device address
+	 * @param name the device name, null keeps the cached one
+	 * @param bondState the bond state
+	 * @param rssi the signal strength, {@link DeviceInfo#RSSI_UNKNOWN} keeps the cached one
+	 * @return the updated device
+	 */
+	public DeviceInfo update(String address, String name, int bondState, int rssi) {
+		return update(address, name, bondState, rssi, DeviceInfo.CLASS_UNKNOWN, null, System.currentTimeMillis());
+	}
+
+	/**
+	 * Updates the device, adds it when not known yet.
+	 *
+	 * @param address the device address
+	 * @param name the device name, null keeps the cached one
+	 * @param bondState the bond state
+	 * @param rssi the signal strength, {@link DeviceInfo#RSSI_UNKNOWN} keeps the cached one
+	 * @param deviceClass the device class, {@link DeviceInfo#CLASS_UNKNOWN} keeps the cached one
+	 * @param uuids the service UUIDs, null keeps the cached ones
+	 * @return the updated device
+	 */
+	public DeviceInfo update(String address, String name, int bondState, int rssi, int deviceClass, UUID[] uuids) {
+		return update(address, name, bondState, rssi, deviceClass, uuids, System.currentTimeMillis());
+	}
+
+	/**
+	 * Updates the device at given time.
+	 *
+	 * @param address the device address
+	 * @param name the device name or null
+	 * @param bondState the bond state
+	 * @param rssi the signal strength or {@link DeviceInfo#RSSI_UNKNOWN}
+	 * @param deviceClass the device class or {@link DeviceInfo#CLASS_UNKNOWN}
+	 * @param uuids the service UUIDs or null
+	 * @param now the current time
+	 * @return the updated device
+	 */
+	synchronized DeviceInfo update(String address, String name, int bondState, int rssi, int deviceClass,
+			UUID[] uuids, long now) {
+		DeviceInfo prev = mDevices.get(address);
+		DeviceInfo device = prev != null ? prev.merge(name, bondState, rssi, deviceClass, uuids, now)
+				: new DeviceInfo(address, name, bondState, rssi, deviceClass, uuids, now);
+		Map<String, DeviceInfo> devices = new HashMap<String, DeviceInfo>(mDevices);
+		devices.put(address, device);
+		publish(devices, now);
+		return device;
+	}
+
+	/**
+	 * Updates the bond state of known device, the last seen time is kept.
+	 *
+	 * @param address the device address
+	 * @param bondState the bond state
+	 */
+	public synchronized void setBondState(String address, int bondState) {
+		DeviceInfo prev = mDevices.get(address);
+		if(prev == null || prev.getBondState() == bondState) {
+			return;
+		}
+		Map<String, DeviceInfo> devices = new HashMap<String, DeviceInfo>(mDevices);
+		devices.put(address, prev.merge(null, bondState, DeviceInfo.RSSI_UNKNOWN, DeviceInfo.CLASS_UNKNOWN, null,
+				prev.getLastSeen()));
+		publish(devices, System.currentTimeMillis());
+	}
+
+	/**
+	 * Updates the service UUIDs of known device, reported after a service
+	 * discovery. The last seen time is kept.
+	 *
+	 * @param address the device address
+	 * @param uuids the service UUIDs
+	 * @return the updated device or null when not known
+	 */
+	public synchronized DeviceInfo setUuids(String address, UUID[] uuids) {
+		DeviceInfo prev = mDevices.get(address);
+		if(prev == null) {
+			return null;
+		}
+		DeviceInfo device = prev.merge(null, prev.getBondState(), DeviceInfo.RSSI_UNKNOWN,
+				DeviceInfo.CLASS_UNKNOWN, uuids, prev.getLastSeen());
+		Map<String, DeviceInfo> devices = new HashMap<String, DeviceInfo>(mDevices);
+		devices.put(address, device);
+		publish(devices, System.currentTimeMillis());
+		return device;
+	}
+
+	/**
+	 * Removes the device.
+	 *
+	 * @param address the device address
+	 * @return true, if the device was known
+	 */
+	public synchronized boolean remove(String address) {
+		if(!mDevices.containsKey(address)) {
+			return false;
+		}
+		Map<String, DeviceInfo> devices = new HashMap<String, DeviceInfo>(mDevices);
+		devices.remove(address);
+		publish(devices, System.currentTimeMillis());
+		return true;
+	}
+
+	/**
+	 * Removes all devices.
+	 */
+	public synchronized void clear() {
+		mDevices = Collections.emptyMap();
+		mOldestSeen = Long.MAX_VALUE;
+	}
+
+	/**
+	 * Evicts devices not bonded and not seen within the time to live.
+	 *
+	 * @return the number of evicted devices
+	 */
+	public int evictStale() {
+		return evictStale(System.currentTimeMillis());
+	}
+
+	/**
+	 * Evicts stale devices at given time.
+	 *
+	 * @param now the current time
+	 * @return the number of evicted devices
+	 */
+	synchronized int evictStale(long now) {
+		int size = mDevices.size();
+		publish(new HashMap<String, DeviceInfo>(mDevices), now);
+		return size - mDevices.size();
+	}
+
+	/**
+	 * Drops stale devices from the table and publishes it as new snapshot.
+	 *
+	 * @param devices the new table, owned by the registry afterwards
+	 * @param now the current time
+	 */
+	private void publish(Map<String, DeviceInfo> devices, long now) {
+		long oldest = Long.MAX_VALUE;
+		for(Iterator<DeviceInfo> it = devices.values().iterator(); it.hasNext();) {
+			DeviceInfo device = it.next();
+			if(device.getBondState() == BluetoothDevice.BOND_BONDED) {
+				continue;
+			}
+			if(now - device.getLastSeen() > mTtlMillis) {
+				it.remove();
+			} else if(device.getLastSeen() < oldest) {
+				oldest = device.getLastSeen();
+			}
+		}
+		mDevices = Collections.unmodifiableMap(devices);
+		mOldestSeen = oldest;
+	}
+}
@@ -0,0 +1,22 @@
+package com.ees.bluetooth;
+
+/**
+ * The listener interface receiving devices as discovery finds them.
+ *
+ * @see BTFacade#startDiscovery(DeviceFilter, DiscoveryListener)
+ */
+public interface DiscoveryListener {
+
+	/**
+	 * Called on the main thread for every found device matching the filter.
+	 * A device may be reported again when its services become known.
+	 *
+	 * @param device the device
+	 */
+	void onDeviceFound(DeviceInfo device);
+
+	/**
+	 * Called on the main thread when discovery ends or is cancelled.
+	 */
+	void onDiscoveryFinished();
+}
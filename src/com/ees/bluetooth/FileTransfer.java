@@ -0,0 +1,1015 @@
+package com.ees.bluetooth;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import android.util.Log;
+
+/**
+ * The Class FileTransfer. Sends and receives files over one stream of the
+ * connection manager. The sender reads the file through read only memory
+ * mappings and sends it in chunks carrying their offset and CRC-32C, at
+ * most {@link #WINDOW_SIZE} bytes ahead of the last acknowledgement. The
+ * receiver writes verified chunks at their position into a part file in
+ * the inbox, acknowledges progress and renames the part file once complete.
+ * When the link drops, the sender offers the file again after the device
+ * reconnects and the receiver resumes from the length of its part file, so
+ * only unacknowledged data are sent again.
+ * <p>
+ * Chunks lost on a live link, for instance dropped from a full write queue,
+ * are sent again too. The receiver asks for data from its end when a chunk
+ * does not follow it, the sender goes back to the last acknowledgement when
+ * a queued chunk was dropped or could not be written and when nothing was
+ * acknowledged for {@link #RETRANSMIT_MILLIS}. No message waits for room
+ * in the write queue, a full queue pauses sending until a queued chunk is
+ * written or the retransmission runs.
+ * <p>
+ * The stream of transfers runs with {@link StreamPriority#BULK} priority
+ * so it does not delay other messages.
+ */
+public class FileTransfer implements StreamListener, ConnectionStateListener {
+
+	/** The Constant TAG. */
+	private static final String TAG = FileTransfer.class.getSimpleName();
+
+	/** The default stream of file transfers. */
+	public static final int DEFAULT_STREAM_ID = 1;
+
+	/** The largest chunk message, header included, so it fills a buffer of the default pool. */
+	public static final int MAX_CHUNK_SIZE = 16 * 1024;
+
+	/** The number of bytes sent ahead of the last acknowledgement. */
+	public static final int WINDOW_SIZE = 256 * 1024;
+
+	/** The number of received bytes per acknowledgement. */
+	public static final int ACK_INTERVAL = 64 * 1024;
+
+	/** The time without acknowledgement after which the sender goes back to the last one. */
+	public static final long RETRANSMIT_MILLIS = 2000;
+
+	/** The size of mapped file region, chunks are cut at its end. */
+	private static final int MAP_SIZE = 8 * 1024 * 1024;
+
+	/** The message offering a file: id, size and name. */
+	private static final byte MSG_OFFER = 1;
+
+	/** The message asking for data from given offset: id and offset. */
+	private static final byte MSG_RESUME = 2;
+
+	/** The message carrying file data: id, offset, CRC-32C and the data. */
+	private static final byte MSG_CHUNK = 3;
+
+	/** The message acknowledging received data: id and offset. */
+	private static final byte MSG_ACK = 4;
+
+	/** The message giving up the transfer: id. */
+	private static final byte MSG_CANCEL = 5;
+
+	/** The size of message header: type and id. */
+	private static final int HEADER_SIZE = 9;
+
+	/** The size of chunk header: header, offset and CRC-32C. */
+	private static final int CHUNK_HEADER_SIZE = HEADER_SIZE + 12;
+
+	/** The largest encoded file name. */
+	private static final int MAX_NAME_SIZE = 1024;
+
+	/** The Constant UTF8. */
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/** The connection manager. */
+	private final ConnectionManager mManager;
+
+	/** The stream id. */
+	private final int mStreamId;
+
+	/** The directory of received files. */
+	private final File mInbox;
+
+	/** The progress listener, may be null. */
+	private final FileTransferListener mListener;
+
+	/** The files being sent, keyed by address and transfer id. */
+	private final Map<String, Outgoing> mOutgoing = new HashMap<String, Outgoing>();
+
+	/** The files being received, keyed by address and transfer id. */
+	private final Map<String, Incoming> mIncoming = new HashMap<String, Incoming>();
+
+	/** The sizes of received files by key, so repeated offers and chunks are acknowledged at once. */
+	private final Map<String, Long> mCompleted = new HashMap<String, Long>();
+
+	/** The retransmission timer, running while files are being sent. */
+	private ScheduledFuture<?> mTimer;
+
+	/** The checksum, used under the lock. */
+	private final Crc32c mCrc = new Crc32c();
+
+	/** The copy of received chunk, the data are verified before written. */
+	private byte[] mScratch = new byte[0];
+
+	/**
+	 * The Class Outgoing. State of a file being sent.
+	 */
+	private static final class Outgoing {
+
+		/** The device address. */
+		final String mAddress;
+
+		/** The file. */
+		final File mFile;
+
+		/** The transfer id. */
+		final long mId;
+
+		/** The file size. */
+		final long mSize;
+
+		/** The file channel. */
+		final FileChannel mChannel;
+
+		/** The completion future. */
+		final ResultFuture<File> mFuture = new ResultFuture<File>();
+
+		/** The mapped region, null until the first chunk. */
+		MappedByteBuffer mMap;
+
+		/** The file offset of mapped region. */
+		long mMapStart;
+
+		/** The offset of the next chunk. */
+		long mNext;
+
+		/** The offset acknowledged by the receiver. */
+		long mAcked;
+
+		/** The flag of answered offer, nothing is sent before. */
+		boolean mResumed;
+
+		/** The acknowledged offset seen by the last timer run. */
+		long mChecked = -1;
+
+		/** The flag of running pump, which handles failure of the chunk it sends. */
+		boolean mPumping;
+
+		/** The flag of pumping stopped by full write queue, the next written chunk resumes it. */
+		volatile boolean mWaiting;
+
+		/** The callback of chunk writes. */
+		WriteCallback mCallback;
+
+		/**
+		 * Instantiates a new outgoing transfer.
+		 *
+		 * @param address the device address
+		 * @param file the file
+		 * @param id the transfer id
+		 * @param channel the file channel
+		 * @param size the file size
+		 */
+		Outgoing(String address, File file, long id, FileChannel channel, long size) {
+			mAddress = address;
+			mFile = file;
+			mId = id;
+			mChannel = channel;
+			mSize = size;
+		}
+	}
+
+	/**
+	 * The Class Incoming. State of a file being received.
+	 */
+	private static final class Incoming {
+
+		/** The device address. */
+		final String mAddress;
+
+		/** The file name. */
+		final String mName;
+
+		/** The file size. */
+		final long mSize;
+
+		/** The part file. */
+		final File mPart;
+
+		/** The file channel of part file. */
+		final FileChannel mChannel;
+
+		/** The number of bytes written. */
+		long mOffset;
+
+		/** The offset acknowledged last. */
+		long mAcked;
+
+		/** The offset asked for last after a missing chunk, -1 if none. */
+		long mRequested = -1;
+
+		/**
+		 * Instantiates a new incoming transfer.
+		 *
+		 * @param address the device address
+		 * @param name the file name
+		 * @param size the file size
+		 * @param part the part file
+		 * @param channel the file channel of part file
+		 */
+		Incoming(String address, String name, long size, File part, FileChannel channel) {
+			mAddress = address;
+			mName = name;
+			mSize = size;
+			mPart = part;
+			mChannel = channel;
+		}
+	}
+
+	/**
+	 * The Class ChunkCallback. Resumes pumping once a chunk made room in the
+	 * write queue, sends the window again when a queued chunk was dropped
+	 * or could not be written.
+	 */
+	private final class ChunkCallback implements WriteCallback {
+
+		/** The outgoing transfer. */
+		private final Outgoing mOut;
+
+		/**
+		 * Instantiates a new chunk callback.
+		 *
+		 * @param out the outgoing transfer
+		 */
+		ChunkCallback(Outgoing out) {
+			mOut = out;
+		}
+
+		/* (non-Javadoc)
+		 * @see com.ees.bluetooth.WriteCallback#onWriteCompleted(java.lang.String, int, java.io.IOException)
+		 */
+		@Override
+		public void onWriteCompleted(String address, int length, IOException error) {
+			if(error != null) {
+				onChunkFailed(mOut);
+			} else if(mOut.mWaiting) {
+				// Checked before locking, most written chunks need no pumping.
+				onChunkWritten(mOut);
+			}
+		}
+	}
+
+	/**
+	 * Instantiates a new file transfer on the default stream.
+	 *
+	 * @param manager the connection manager
+	 * @param inbox the directory of received files
+	 * @param listener the progress listener, may be null
+	 */
+	public FileTransfer(ConnectionManager manager, File inbox, FileTransferListener listener) {
+		this(manager, DEFAULT_STREAM_ID, inbox, listener);
+	}
+
+	/**
+	 * Instantiates a new file transfer, it takes over the stream until
+	 * {@link #close()}.
+	 *
+	 * @param manager the connection manager
+	 * @param streamId the stream id, other than 0
+	 * @param inbox the directory of received files
+	 * @param listener the progress listener, may be null
+	 * @throws IllegalArgumentException when streams are not enabled by the frame codec
+	 */
+	public FileTransfer(ConnectionManager manager, int streamId, File inbox, FileTransferListener listener) {
+		manager.checkOwnStream(streamId);
+		mManager = manager;
+		mStreamId = streamId;
+		mInbox = inbox;
+		mListener = listener;
+		manager.setStreamListener(streamId, this);
+		manager.setStreamPriority(streamId, StreamPriority.BULK);
+		manager.addStateListener(this);
+	}
+
+	/**
+	 * Send the file to the device with given address. A device which is
+	 * not connected gets the file once it connects, cancel the future to
+	 * give up. Sending the same file again while it is being sent returns
+	 * the pending future.
+	 *
+	 * @param address the device address
+	 * @param file the file
+	 * @return the future completed once the device acknowledged the whole file
+	 */
+	public ResultFuture<File> sendFile(String address, File file) {
+		ResultFuture<File> future = startFile(address, file);
+		startTimer();
+		return future;
+	}
+
+	/**
+	 * Starts sending the file unless it is being sent.
+	 *
+	 * @param address the device address
+	 * @param file the file
+	 * @return the future completed once the device acknowledged the whole file
+	 */
+	private synchronized ResultFuture<File> startFile(String address, File file) {
+		long size;
+		FileChannel channel;
+		try {
+			channel = new RandomAccessFile(file, "r").getChannel();
+			size = channel.size();
+		} catch (IOException e) {
+			Log.e(TAG, "Could not open " + file, e);
+			ResultFuture<File> future = new ResultFuture<File>();
+			future.fail(e);
+			return future;
+		}
+		long id = transferId(file.getName(), size, file.lastModified());
+		String key = key(address, id);
+		Outgoing pending = mOutgoing.get(key);
+		if(pending != null) {
+			close(channel);
+			return pending.mFuture;
+		}
+		final Outgoing out = new Outgoing(address, file, id, channel, size);
+		out.mCallback = new ChunkCallback(out);
+		mOutgoing.put(key, out);
+		out.mFuture.addListener(new ResultFuture.Listener<File>() {
+			@Override
+			public void onComplete(ResultFuture<File> future) {
+				if(future.isCancelled()) {
+					cancel(out);
+				}
+			}
+		});
+		offer(out);
+		return out.mFuture;
+	}
+
+	/**
+	 * Close. Releases the stream and gives up all transfers, part files are
+	 * kept so transfers resume when offered again.
+	 */
+	public synchronized void close() {
+		mManager.removeStateListener(this);
+		mManager.setStreamListener(mStreamId, null);
+		for(Outgoing out : mOutgoing.values()) {
+			close(out.mChannel);
+			out.mFuture.fail(new IOException("File transfer closed"));
+		}
+		mOutgoing.clear();
+		stopTimer();
+		for(Incoming in : mIncoming.values()) {
+			close(in.mChannel);
+		}
+		mIncoming.clear();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ees.bluetooth.ConnectionStateListener#onStateChanged(java.lang.String, com.ees.bluetooth.ConnectionState, com.ees.bluetooth.ConnectionState)
+	 */
+	@Override
+	public void onStateChanged(String address, ConnectionState previous, ConnectionState state) {
+		if(address == null) {
+			return;
+		}
+		synchronized (this) {
+			if(state == ConnectionState.CONNECTED) {
+				for(Outgoing out : new ArrayList<Outgoing>(mOutgoing.values())) {
+					if(out.mAddress.equals(address)) {
+						offer(out);
+					}
+				}
+			} else if(previous == ConnectionState.CONNECTED) {
+				// Part files stay, the sender offers the file again after reconnect.
+				Iterator<Incoming> it = mIncoming.values().iterator();
+				while(it.hasNext()) {
+					Incoming in = it.next();
+					if(in.mAddress.equals(address)) {
+						close(in.mChannel);
+						it.remove();
+					}
+				}
+			}
+		}
+		if(state == ConnectionState.CONNECTED) {
+			// The timer dies with the scheduler when the manager terminates.
+			startTimer();
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ees.bluetooth.StreamListener#onMessageReceived(java.lang.String, int, java.nio.ByteBuffer)
+	 */
+	@Override
+	public synchronized void onMessageReceived(String address, int streamId, ByteBuffer message) {
+		try {
+			byte type = message.get();
+			long id = message.getLong();
+			String key = key(address, id);
+			switch(type) {
+			case MSG_OFFER:
+				onOffer(address, key, id, message);
+				break;
+			case MSG_RESUME:
+				onResume(mOutgoing.get(key), message.getLong());
+				break;
+			case MSG_CHUNK:
+				onChunk(address, key, mIncoming.get(key), id, message);
+				break;
+			case MSG_ACK:
+				onAck(mOutgoing.get(key), message.getLong());
+				break;
+			case MSG_CANCEL:
+				onCancel(key);
+				break;
+			default:
+				Log.w(TAG, "Unknown file transfer message " + type + " from " + address);
+			}
+		} catch (BufferUnderflowException e) {
+			Log.w(TAG, "Malformed file transfer message from " + address);
+		}
+	}
+
+	/**
+	 * Handles the offer of a file, opens the part file and asks for data
+	 * following its content.
+	 *
+	 * @param address the device address
+	 * @param key the transfer key
+	 * @param id the transfer id
+	 * @param message the message following the header
+	 */
+	private void onOffer(String address, String key, long id, ByteBuffer message) {
+		long size = message.getLong();
+		byte[] encoded = new byte[message.remaining()];
+		message.get(encoded);
+		// Never leave the inbox whatever the other device sends.
+		String name = new File(new String(encoded, UTF8)).getName();
+		if(mCompleted.containsKey(key)) {
+			sendControl(address, MSG_ACK, id, size);
+			return;
+		}
+		Incoming in = mIncoming.remove(key);
+		if(in != null) {
+			close(in.mChannel);
+		}
+		if(size < 0 || name.length() == 0 || name.equals(".") || name.equals("..")) {
+			Log.w(TAG, "Rejected file offer from " + address);
+			sendControl(address, MSG_CANCEL, id, 0);
+			return;
+		}
+		File part = new File(mInbox, name + "." + Long.toHexString(id) + ".part");
+		try {
+			FileChannel channel = new RandomAccessFile(part, "rw").getChannel();
+			in = new Incoming(address, name, size, part, channel);
+			in.mOffset = channel.size();
+			if(in.mOffset > size) {
+				channel.truncate(0);
+				in.mOffset = 0;
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "Could not open " + part, e);
+			sendControl(address, MSG_CANCEL, id, 0);
+			notifyFailed(address, name, true, e);
+			return;
+		}
+		in.mAcked = in.mOffset;
+		mIncoming.put(key, in);
+		Log.d(TAG, "Receiving " + name + " from " + address + " at " + in.mOffset + " of " + size);
+		if(in.mOffset == size) {
+			complete(key, in, id);
+		} else {
+			sendControl(address, MSG_RESUME, id, in.mOffset);
+		}
+	}
+
+	/**
+	 * Handles a chunk, verifies it and writes the new part of it at its
+	 * position. A chunk beyond the written data means chunks between were
+	 * lost, the receiver asks for data from its end once. A chunk already
+	 * written means the sender went back, the receiver acknowledges its end
+	 * so only missing data are sent again.
+	 *
+	 * @param address the device address
+	 * @param key the transfer key
+	 * @param in the incoming transfer, null if unknown
+	 * @param id the transfer id
+	 * @param message the message following the header
+	 */
+	private void onChunk(String address, String key, Incoming in, long id, ByteBuffer message) {
+		if(in == null) {
+			// The acknowledgement of the whole file was lost.
+			Long size = mCompleted.get(key);
+			if(size != null) {
+				sendControl(address, MSG_ACK, id, size);
+			}
+			return;
+		}
+		long offset = message.getLong();
+		int crc = message.getInt();
+		int len = message.remaining();
+		if(offset > in.mOffset) {
+			if(in.mRequested != in.mOffset) {
+				in.mRequested = in.mOffset;
+				sendControl(in.mAddress, MSG_RESUME, id, in.mOffset);
+			}
+			return;
+		}
+		if(offset + len <= in.mOffset) {
+			if(in.mAcked < in.mOffset) {
+				acknowledge(in, id);
+			}
+			return;
+		}
+		if(offset + len > in.mSize) {
+			fail(key(in.mAddress, id), in, id, new IOException("Chunk beyond end of file"));
+			return;
+		}
+		if(mScratch.length < len) {
+			mScratch = new byte[len];
+		}
+		message.get(mScratch, 0, len);
+		mCrc.reset();
+		mCrc.update(mScratch, 0, len);
+		if((int) mCrc.getValue() != crc) {
+			Log.w(TAG, "Corrupted chunk of " + in.mName + " at " + offset + ", resending");
+			in.mRequested = in.mOffset;
+			sendControl(in.mAddress, MSG_RESUME, id, in.mOffset);
+			return;
+		}
+		int skip = (int) (in.mOffset - offset);
+		ByteBuffer data = ByteBuffer.wrap(mScratch, skip, len - skip);
+		try {
+			while(data.hasRemaining()) {
+				in.mOffset += in.mChannel.write(data, in.mOffset);
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "Could not write " + in.mPart, e);
+			fail(key(in.mAddress, id), in, id, e);
+			return;
+		}
+		if(in.mOffset == in.mSize) {
+			complete(key(in.mAddress, id), in, id);
+		} else if(in.mOffset - in.mAcked >= ACK_INTERVAL) {
+			acknowledge(in, id);
+		}
+	}
+
+	/**
+	 * Acknowledges the data written so far.
+	 *
+	 * @param in the incoming transfer
+	 * @param id the transfer id
+	 */
+	private void acknowledge(Incoming in, long id) {
+		in.mAcked = in.mOffset;
+		sendControl(in.mAddress, MSG_ACK, id, in.mOffset);
+		notifyProgress(in.mAddress, in.mName, true, in.mOffset, in.mSize);
+	}
+
+	/**
+	 * Completes the received file, renames the part file and acknowledges
+	 * the whole file.
+	 *
+	 * @param key the transfer key
+	 * @param in the incoming transfer
+	 * @param id the transfer id
+	 */
+	private void complete(String key, Incoming in, long id) {
+		mIncoming.remove(key);
+		close(in.mChannel);
+		File file = new File(mInbox, in.mName);
+		if(file.exists() && !file.delete() || !in.mPart.renameTo(file)) {
+			IOException e = new IOException("Could not rename " + in.mPart);
+			Log.e(TAG, e.getMessage());
+			sendControl(in.mAddress, MSG_CANCEL, id, 0);
+			notifyFailed(in.mAddress, in.mName, true, e);
+			return;
+		}
+		mCompleted.put(key, in.mSize);
+		sendControl(in.mAddress, MSG_ACK, id, in.mSize);
+		Log.d(TAG, "Received " + file + " from " + in.mAddress);
+		if(mListener != null) {
+			try {
+				mListener.onCompleted(in.mAddress, file, true);
+			} catch (RuntimeException e) {
+				Log.e(TAG, "File transfer listener failed", e);
+			}
+		}
+	}
+
+	/**
+	 * Gives up the received file, the part file is deleted.
+	 *
+	 * @param key the transfer key
+	 * @param in the incoming transfer
+	 * @param id the transfer id
+	 * @param error the failure
+	 */
+	private void fail(String key, Incoming in, long id, IOException error) {
+		mIncoming.remove(key);
+		close(in.mChannel);
+		if(!in.mPart.delete()) {
+			Log.w(TAG, "Could not delete " + in.mPart);
+		}
+		sendControl(in.mAddress, MSG_CANCEL, id, 0);
+		notifyFailed(in.mAddress, in.mName, true, error);
+	}
+
+	/**
+	 * Handles the request of data from given offset, after an offer, a
+	 * corrupted or a missing chunk.
+	 *
+	 * @param out the outgoing transfer, null if unknown
+	 * @param offset the offset
+	 */
+	private void onResume(Outgoing out, long offset) {
+		if(out == null || offset < 0 || offset > out.mSize) {
+			return;
+		}
+		out.mResumed = true;
+		out.mAcked = offset;
+		out.mNext = offset;
+		pump(out);
+	}
+
+	/**
+	 * Handles the acknowledgement, moves the window on.
+	 *
+	 * @param out the outgoing transfer, null if unknown
+	 * @param offset the acknowledged offset
+	 */
+	private void onAck(Outgoing out, long offset) {
+		if(out == null || offset <= out.mAcked || offset > out.mSize) {
+			return;
+		}
+		out.mAcked = offset;
+		if(out.mNext < offset) {
+			out.mNext = offset;
+		}
+		notifyProgress(out.mAddress, out.mFile.getName(), false, offset, out.mSize);
+		if(offset < out.mSize) {
+			pump(out);
+			return;
+		}
+		mOutgoing.remove(key(out.mAddress, out.mId));
+		close(out.mChannel);
+		Log.d(TAG, "Sent " + out.mFile + " to " + out.mAddress);
+		out.mFuture.complete(out.mFile);
+		if(mListener != null) {
+			try {
+				mListener.onCompleted(out.mAddress, out.mFile, false);
+			} catch (RuntimeException e) {
+				Log.e(TAG, "File transfer listener failed", e);
+			}
+		}
+	}
+
+	/**
+	 * Handles the other device giving up the transfer.
+	 *
+	 * @param key the transfer key
+	 */
+	private void onCancel(String key) {
+		IOException error = new IOException("Transfer cancelled by peer");
+		Outgoing out = mOutgoing.remove(key);
+		if(out != null) {
+			close(out.mChannel);
+			out.mFuture.fail(error);
+			notifyFailed(out.mAddress, out.mFile.getName(), false, error);
+		}
+		Incoming in = mIncoming.remove(key);
+		if(in != null) {
+			close(in.mChannel);
+			if(!in.mPart.delete()) {
+				Log.w(TAG, "Could not delete " + in.mPart);
+			}
+			notifyFailed(in.mAddress, in.mName, true, error);
+		}
+	}
+
+	/**
+	 * Gives up the file whose future was cancelled.
+	 *
+	 * @param out the outgoing transfer
+	 */
+	private synchronized void cancel(Outgoing out) {
+		if(mOutgoing.remove(key(out.mAddress, out.mId)) == out) {
+			close(out.mChannel);
+			sendControl(out.mAddress, MSG_CANCEL, out.mId, 0);
+		}
+	}
+
+	/**
+	 * Offers the file, the receiver answers with the offset to send from.
+	 *
+	 * @param out the outgoing transfer
+	 */
+	private void offer(Outgoing out) {
+		// Nothing is sent until the receiver tells where to start.
+		out.mResumed = false;
+		out.mNext = out.mSize;
+		byte[] name = out.mFile.getName().getBytes(UTF8);
+		int len = HEADER_SIZE + 8 + Math.min(name.length, MAX_NAME_SIZE);
+		PooledBuffer buffer = mManager.getBufferPool().acquire(len);
+		byte[] dst = buffer.array();
+		int off = buffer.offset();
+		dst[off] = MSG_OFFER;
+		writeLong(out.mId, dst, off + 1);
+		writeLong(out.mSize, dst, off + HEADER_SIZE);
+		System.arraycopy(name, 0, dst, off + HEADER_SIZE + 8, len - HEADER_SIZE - 8);
+		buffer.setLength(len);
+		if(!mManager.send(out.mAddress, mStreamId, buffer, BackpressurePolicy.FAIL_FAST, null)) {
+			Log.i(TAG, "Offer of " + out.mFile + " waits for " + out.mAddress + " to connect or for room");
+		}
+	}
+
+	/**
+	 * Sends chunks until the window is full or the whole file is sent. Each
+	 * chunk is copied from the mapping straight into a pooled buffer.
+	 *
+	 * @param out the outgoing transfer
+	 */
+	private void pump(Outgoing out) {
+		out.mWaiting = false;
+		out.mPumping = true;
+		try {
+			fill(out);
+		} finally {
+			out.mPumping = false;
+		}
+	}
+
+	/**
+	 * Fills the window. Dropping the oldest queued chunk would only make the
+	 * receiver discard the chunks following it, so a full write queue stops
+	 * filling at the chunk which did not fit instead.
+	 *
+	 * @param out the outgoing transfer
+	 */
+	private void fill(Outgoing out) {
+		// Chunks bigger than the pool buffers would be allocated each time.
+		int chunkSize = Math.min(Math.min(MAX_CHUNK_SIZE, mManager.getBufferPool().getMaxBufferSize()),
+				mManager.getFrameCodec().getMaxFrameSize()) - CHUNK_HEADER_SIZE;
+		while(out.mNext < out.mSize && out.mNext - out.mAcked < WINDOW_SIZE) {
+			try {
+				map(out);
+			} catch (IOException e) {
+				Log.e(TAG, "Could not map " + out.mFile, e);
+				mOutgoing.remove(key(out.mAddress, out.mId));
+				close(out.mChannel);
+				sendControl(out.mAddress, MSG_CANCEL, out.mId, 0);
+				out.mFuture.fail(e);
+				notifyFailed(out.mAddress, out.mFile.getName(), false, e);
+				return;
+			}
+			int pos = (int) (out.mNext - out.mMapStart);
+			int len = Math.min(chunkSize, out.mMap.capacity() - pos);
+			PooledBuffer buffer = mManager.getBufferPool().acquire(CHUNK_HEADER_SIZE + len);
+			byte[] dst = buffer.array();
+			int off = buffer.offset();
+			ByteBuffer src = out.mMap.duplicate();
+			src.position(pos);
+			src.get(dst, off + CHUNK_HEADER_SIZE, len);
+			mCrc.reset();
+			mCrc.update(dst, off + CHUNK_HEADER_SIZE, len);
+			dst[off] = MSG_CHUNK;
+			writeLong(out.mId, dst, off + 1);
+			writeLong(out.mNext, dst, off + HEADER_SIZE);
+			FrameCodec.writeInt((int) mCrc.getValue(), dst, off + HEADER_SIZE + 8);
+			buffer.setLength(CHUNK_HEADER_SIZE + len);
+			if(!mManager.send(out.mAddress, mStreamId, buffer, BackpressurePolicy.FAIL_FAST, out.mCallback)) {
+				// Queue full, or link lost and the file is offered again after reconnect.
+				out.mWaiting = true;
+				return;
+			}
+			out.mNext += len;
+		}
+	}
+
+	/**
+	 * Handles the written chunk of the file whose pumping stopped on full
+	 * write queue. It runs on the writer thread, which must not block on
+	 * its own queue.
+	 *
+	 * @param out the outgoing transfer
+	 */
+	private synchronized void onChunkWritten(Outgoing out) {
+		if(out.mWaiting && mOutgoing.get(key(out.mAddress, out.mId)) == out) {
+			pump(out);
+		}
+	}
+
+	/**
+	 * Handles the queued chunk dropped or not written, goes back to the
+	 * last acknowledgement. The chunk rejected while the pump sends it is
+	 * left to the pump.
+	 *
+	 * @param out the outgoing transfer
+	 */
+	private synchronized void onChunkFailed(Outgoing out) {
+		if(out.mPumping || !out.mResumed || mOutgoing.get(key(out.mAddress, out.mId)) != out) {
+			return;
+		}
+		out.mNext = out.mAcked;
+		pump(out);
+	}
+
+	/**
+	 * Starts the retransmission timer unless it runs. The scheduler is taken
+	 * before the lock, the manager notifies state listeners holding its own.
+	 */
+	private void startTimer() {
+		ScheduledExecutorService scheduler = mManager.getScheduler();
+		synchronized (this) {
+			if(mOutgoing.isEmpty() || mTimer != null && !mTimer.isDone()) {
+				return;
+			}
+			mTimer = scheduler.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					retransmit();
+				}
+			}, RETRANSMIT_MILLIS, RETRANSMIT_MILLIS, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Stops the retransmission timer.
+	 */
+	private void stopTimer() {
+		if(mTimer != null) {
+			mTimer.cancel(false);
+			mTimer = null;
+		}
+	}
+
+	/**
+	 * Sends again the files without acknowledgement since the last run, the
+	 * offer when it was not answered, otherwise the window from the last
+	 * acknowledgement. The scheduler thread must not block, so what does not
+	 * fit into the write queue waits for the next run.
+	 */
+	private synchronized void retransmit() {
+		if(mOutgoing.isEmpty()) {
+			stopTimer();
+			return;
+		}
+		// Pumping may give up a file.
+		for(Outgoing out : new ArrayList<Outgoing>(mOutgoing.values())) {
+			if(out.mChecked != out.mAcked) {
+				out.mChecked = out.mAcked;
+			} else if(mManager.getState(out.mAddress) != ConnectionState.CONNECTED) {
+				continue;
+			} else if(!out.mResumed) {
+				offer(out);
+			} else if(out.mNext > out.mAcked || out.mWaiting) {
+				// Pumping may also wait for a queue full of other messages, no chunk write resumes it.
+				Log.d(TAG, "No acknowledgement of " + out.mFile + " from " + out.mAddress + ", resending");
+				out.mNext = out.mAcked;
+				pump(out);
+			}
+		}
+	}
+
+	/**
+	 * Maps the file region holding the next chunk. Regions are aligned to
+	 * their size, a chunk is cut short at the region end.
+	 *
+	 * @param out the outgoing transfer
+	 * @throws IOException Signals that the file could not be mapped.
+	 */
+	private static void map(Outgoing out) throws IOException {
+		if(out.mMap != null && out.mNext >= out.mMapStart && out.mNext < out.mMapStart + out.mMap.capacity()) {
+			return;
+		}
+		long start = out.mNext - out.mNext % MAP_SIZE;
+		out.mMap = out.mChannel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(MAP_SIZE, out.mSize - start));
+		out.mMapStart = start;
+	}
+
+	/**
+	 * Sends a control message. It is mostly sent by the reader thread, which
+	 * must not wait for the write queue, the flow control credit it handles
+	 * may be the only way to make room. A control message which does not fit
+	 * is repaired by the retransmission of the sender.
+	 *
+	 * @param address the device address
+	 * @param type the message type
+	 * @param id the transfer id
+	 * @param offset the offset, ignored by cancel
+	 */
+	private void sendControl(String address, byte type, long id, long offset) {
+		PooledBuffer buffer = mManager.getBufferPool().acquire(HEADER_SIZE + 8);
+		byte[] dst = buffer.array();
+		int off = buffer.offset();
+		dst[off] = type;
+		writeLong(id, dst, off + 1);
+		writeLong(offset, dst, off + HEADER_SIZE);
+		buffer.setLength(type == MSG_CANCEL ? HEADER_SIZE : HEADER_SIZE + 8);
+		mManager.send(address, mStreamId, buffer, BackpressurePolicy.FAIL_FAST, null);
+	}
+
+	/**
+	 * Notify the listener about progress.
+	 *
+	 * @param address the device address
+	 * @param name the file name
+	 * @param incoming true for a received file
+	 * @param transferred the number of acknowledged bytes
+	 * @param size the file size
+	 */
+	private void notifyProgress(String address, String name, boolean incoming, long transferred, long size) {
+		if(mListener != null) {
+			try {
+				mListener.onProgress(address, name, incoming, transferred, size);
+			} catch (RuntimeException e) {
+				Log.e(TAG, "File transfer listener failed", e);
+			}
+		}
+	}
+
+	/**
+	 * Notify the listener about failure.
+	 *
+	 * @param address the device address
+	 * @param name the file name
+	 * @param incoming true for a received file
+	 * @param error the failure
+	 */
+	private void notifyFailed(String address, String name, boolean incoming, IOException error) {
+		if(mListener != null) {
+			try {
+				mListener.onFailed(address, name, incoming, error);
+			} catch (RuntimeException e) {
+				Log.e(TAG, "File transfer listener failed", e);
+			}
+		}
+	}
+
+	/**
+	 * Gets the transfer id, stable for the same file version so transfers
+	 * resume even after the sender restarted.
+	 *
+	 * @param name the file name
+	 * @param size the file size
+	 * @param lastModified the modification time
+	 * @return the id
+	 */
+	private static long transferId(String name, long size, long lastModified) {
+		long h = 1125899906842597L;
+		for(int i = 0; i < name.length(); i++) {
+			h = 31 * h + name.charAt(i);
+		}
+		h = 31 * h + size;
+		return 31 * h + lastModified;
+	}
+
+	/**
+	 * Gets the key of a transfer.
+	 *
+	 * @param address the device address
+	 * @param id the transfer id
+	 * @return the key
+	 */
+	private static String key(String address, long id) {
+		return address + '/' + Long.toHexString(id);
+	}
+
+	/**
+	 * Writes big endian long.
+	 *
+	 * @param value the value
+	 * @param dst the destination
+	 * @param off the offset
+	 */
+	private static void writeLong(long value, byte[] dst, int off) {
+		FrameCodec.writeInt((int) (value >>> 32), dst, off);
+		FrameCodec.writeInt((int) value, dst, off + 4);
+	}
+
+	/**
+	 * Closes the file channel.
+	 *
+	 * @param channel the channel
+	 */
+	private static void close(FileChannel channel) {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			Log.e(TAG, "Could not close file", e);
+		}
+	}
+}
@@ -0,0 +1,46 @@
+package com.ees.bluetooth;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * The listener interface for receiving progress of file transfers, both
+ * files sent to and files received from other devices.
+ *
+ * @see FileTransfer
+ */
+public interface FileTransferListener {
+
+	/**
+	 * Called when the other device acknowledged another part of the file,
+	 * on the channel thread.
+	 *
+	 * @param address the device address
+	 * @param name the file name
+	 * @param incoming true for a file received from the device
+	 * @param transferred the number of acknowledged bytes
+	 * @param size the file size
+	 */
+	void onProgress(String address, String name, boolean incoming, long transferred, long size);
+
+	/**
+	 * Called once the whole file has been received and verified, or
+	 * acknowledged by the other device.
+	 *
+	 * @param address the device address
+	 * @param file the received or sent file
+	 * @param incoming true for a file received from the device
+	 */
+	void onCompleted(String address, File file, boolean incoming);
+
+	/**
+	 * Called when the transfer is given up, dropped links are not failures,
+	 * transfers resume once the device reconnects.
+	 *
+	 * @param address the device address
+	 * @param name the file name
+	 * @param incoming true for a file received from the device
+	 * @param error the failure
+	 */
+	void onFailed(String address, String name, boolean incoming, IOException error);
+}
@@ -0,0 +1,255 @@
+package com.ees.bluetooth;
+
+import java.io.PrintWriter;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import android.util.Log;
+
+/**
+ * The Class FlightRecorder. Fixed size ring of binary trace events taking the
+ * place of logging on the data path. An event is a timestamp, a connection
+ * id, an event type and a length, recorded lock free by any thread without
+ * allocation or string formatting, so reads and writes can be traced at
+ * full rate. Newer events overwrite the oldest ones.
+ * <p>
+ * The ring is formatted only when dumped, on demand or by the manager when
+ * a link is lost unexpectedly, which yields the last moments of the link
+ * at no cost while it works.
+ *
+ * @see ConnectionManager#getFlightRecorder()
+ */
+public class FlightRecorder {
+
+	/** The Constant TAG. */
+	private static final String TAG = FlightRecorder.class.getSimpleName();
+
+	/** The default number of events kept. */
+	public static final int DEFAULT_CAPACITY = 1024;
+
+	/** The event of the channel established. */
+	public static final int EVENT_CONNECTED = 1;
+
+	/** The event of bytes read from the socket. */
+	public static final int EVENT_READ = 2;
+
+	/** The event of a message handed over to the listener. */
+	public static final int EVENT_MESSAGE = 3;
+
+	/** The event of a message queued for writing. */
+	public static final int EVENT_QUEUED = 4;
+
+	/** The event of a batch written to the socket. */
+	public static final int EVENT_FLUSH = 5;
+
+	/** The event of a failed write. */
+	public static final int EVENT_WRITE_FAILED = 6;
+
+	/** The event of the channel lost. */
+	public static final int EVENT_LOST = 7;
+
+	/** The names of event types, indexed by type. */
+	private static final String[] EVENT_NAMES = {
+		"?", "CONNECTED", "READ", "MESSAGE", "QUEUED", "FLUSH", "WRITE_FAILED", "LOST"
+	};
+
+	/** The number of slot words, sequence stamp, time and packed data. */
+	private static final int SLOT_WORDS = 3;
+
+	/** The slots, a stamp of zero marks a slot being written. */
+	private final AtomicLongArray mSlots;
+
+	/** The mask of slot index. */
+	private final int mMask;
+
+	/** The sequence of the next event. */
+	private final AtomicLong mNext = new AtomicLong();
+
+	/** The connection ids keyed by remote device address. */
+	private final ConcurrentMap<String, Integer> mIds = new ConcurrentHashMap<String, Integer>();
+
+	/** The remote device addresses keyed by connection id. */
+	private final ConcurrentMap<Integer, String> mAddresses = new ConcurrentHashMap<Integer, String>();
+
+	/** The last connection id. */
+	private final AtomicInteger mLastId = new AtomicInteger();
+
+	/** The flag of dumping to the log when a link is lost. */
+	private volatile boolean mDumpOnError = true;
+
+	/**
+	 * Instantiates a new flight recorder with default capacity.
+	 */
+	public FlightRecorder() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Instantiates a new flight recorder.
+	 *
+	 * @param capacity the number of events kept, rounded up to a power of two
+	 */
+	public FlightRecorder(int capacity) {
+		if(capacity <= 0 || capacity > (1 << 24)) {
+			throw new IllegalArgumentException("Invalid capacity " + capacity);
+		}
+		int size = Integer.highestOneBit(capacity);
+		if(size < capacity) {
+			size <<= 1;
+		}
+		mSlots = new AtomicLongArray(size * SLOT_WORDS);
+		mMask = size - 1;
+	}
+
+	/**
+	 * Gets the number of events kept.
+	 *
+	 * @return the capacity
+	 */
+	public int getCapacity() {
+		return mMask + 1;
+	}
+
+	/**
+	 * Checks if the ring is dumped to the log when a link is lost.
+	 *
+	 * @return true, if enabled
+	 */
+	public boolean isDumpOnError() {
+		return mDumpOnError;
+	}
+
+	/**
+	 * Sets if the ring is dumped to the log when a link is lost, events of
+	 * the lost device are logged as warnings. Enabled by default.
+	 *
+	 * @param dumpOnError true to enable
+	 */
+	public void setDumpOnError(boolean dumpOnError) {
+		mDumpOnError = dumpOnError;
+	}
+
+	/**
+	 * Gets the connection id of given device, assigns a new one on first
+	 * use. Ids are kept across reconnects.
+	 *
+	 * @param address the device address
+	 * @return the connection id
+	 */
+	public int register(String address) {
+		Integer id = mIds.get(address);
+		if(id == null) {
+			synchronized(mIds) {
+				id = mIds.get(address);
+				if(id == null) {
+					id = Integer.valueOf(mLastId.incrementAndGet() & 0xffffff);
+					mAddresses.put(id, address);
+					mIds.put(address, id);
+				}
+			}
+		}
+		return id.intValue();
+	}
+
+	/**
+	 * Records an event. The slot is claimed by a counter and written with
+	 * ordered stores, stamped last, so a dump skips slots written meanwhile.
+	 *
+	 * @param connection the connection id
+	 * @param type the event type
+	 * @param length the length
+	 */
+	public void record(int connection, int type, int length) {
+		long seq = mNext.getAndIncrement();
+		int slot = (int) (seq & mMask) * SLOT_WORDS;
+		mSlots.lazySet(slot, 0);
+		mSlots.lazySet(slot + 1, System.nanoTime());
+		mSlots.lazySet(slot + 2, ((long) connection << 40) | ((long) (type & 0xff) << 32) | (length & 0xffffffffL));
+		mSlots.lazySet(slot, seq + 1);
+	}
+
+	/**
+	 * Dumps all events, oldest first.
+	 *
+	 * @param writer the writer
+	 */
+	public void dump(PrintWriter writer) {
+		dump(null, writer);
+	}
+
+	/**
+	 * Dumps events of given device, oldest first. Recording goes on
+	 * meanwhile, events overwritten during the dump are skipped.
+	 *
+	 * @param address the device address, null for all devices
+	 * @param writer the writer
+	 */
+	public void dump(String address, PrintWriter writer) {
+		dump(address, writer, null);
+	}
+
+	/**
+	 * Dumps events of given device to the log as warnings.
+	 *
+	 * @param address the device address
+	 * @param reason the reason logged ahead of events
+	 */
+	void dumpToLog(String address, String reason) {
+		Log.w(TAG, reason + ", last events of " + address + ":");
+		dump(address, null, TAG);
+	}
+
+	/**
+	 * Dumps events to the writer or the log.
+	 *
+	 * @param address the device address, null for all devices
+	 * @param writer the writer, null to log
+	 * @param tag the log tag
+	 */
+	private void dump(String address, PrintWriter writer, String tag) {
+		int connection = -1;
+		if(address != null) {
+			Integer id = mIds.get(address);
+			if(id == null) {
+				return;
+			}
+			connection = id.intValue();
+		}
+		long now = System.nanoTime();
+		long end = mNext.get();
+		long begin = Math.max(0, end - getCapacity());
+		StringBuilder line = new StringBuilder(64);
+		for(long seq = begin; seq < end; seq++) {
+			int slot = (int) (seq & mMask) * SLOT_WORDS;
+			long stamp = mSlots.get(slot);
+			long time = mSlots.get(slot + 1);
+			long data = mSlots.get(slot + 2);
+			if(stamp != seq + 1 || mSlots.get(slot) != stamp) {
+				// Not written yet or overwritten meanwhile.
+				continue;
+			}
+			int id = (int) (data >>> 40);
+			if(connection >= 0 && id != connection) {
+				continue;
+			}
+			int type = (int) (data >>> 32) & 0xff;
+			line.setLength(0);
+			line.append('-').append((now - time) / 1000L).append("us ");
+			String name = mAddresses.get(Integer.valueOf(id));
+			line.append(name != null ? name : "#" + id).append(' ');
+			line.append(type < EVENT_NAMES.length ? EVENT_NAMES[type] : EVENT_NAMES[0]).append(' ');
+			line.append((int) data);
+			if(writer != null) {
+				writer.println(line);
+			} else {
+				Log.w(tag, line.toString());
+			}
+		}
+		if(writer != null) {
+			writer.flush();
+		}
+	}
+}
@@ -0,0 +1,255 @@
+package com.ees.bluetooth;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The Class FlowControl. Credit state of one channel. As a sender the
+ * writer spends credit granted by the other device, a chunk goes out while
+ * any byte credit is left, so the window is exceeded by one chunk at most.
+ * As a receiver the channel grants back bytes drained by the consumer once
+ * half of the window is drained. Chunks of unfinished messages are granted
+ * as soon as they are reassembled, so messages bigger than the window get
+ * through, and paid back from the grant of the whole message when it is
+ * complete. Data waiting for the consumer thus never exceed the window by
+ * more than one message.
+ */
+class FlowControl {
+
+	/** The type of control frame granting credit. */
+	static final byte CONTROL_CREDIT = 2;
+
+	/** The size of credit frame body. */
+	static final int CREDIT_SIZE = 9;
+
+	/** The settings. */
+	private final FlowControlConfig mConfig;
+
+	/** The number of bytes the sender may exceed the window by. */
+	private final int mSlack;
+
+	/** The byte credit of the sender, negative after the last chunk overdrew it. */
+	private final AtomicLong mCredit = new AtomicLong();
+
+	/** The message credit of the sender. */
+	private final AtomicInteger mMessageCredit = new AtomicInteger();
+
+	/** The time the sender ran out of credit, 0 while it has credit. */
+	private volatile long mExhaustedNanos;
+
+	/** The flag of credit waiting to be granted. */
+	private volatile boolean mGrantPending;
+
+	/** The bytes received so far. */
+	private long mReceived;
+
+	/** The messages received so far. */
+	private int mMessagesReceived;
+
+	/** The bytes granted so far, including the initial window. */
+	private long mGranted;
+
+	/** The messages granted so far, including the initial window. */
+	private int mMessagesGranted;
+
+	/** The drained bytes not granted yet, negative while chunks granted early are paid back. */
+	private long mGrant;
+
+	/** The drained messages not granted yet. */
+	private int mGrantMessages;
+
+	/** The sizes of messages held by the application. */
+	private int[] mHeld = new int[16];
+
+	/** The index of the oldest held message. */
+	private int mHeldHead;
+
+	/** The number of held messages. */
+	private int mHeldCount;
+
+	/**
+	 * Instantiates a new flow control, the whole window is granted with
+	 * the first frame.
+	 *
+	 * @param config the settings
+	 * @param slack the largest chunk, by which the sender may exceed the window
+	 */
+	FlowControl(FlowControlConfig config, int slack) {
+		mConfig = config;
+		mSlack = slack;
+		mGrant = config.getWindowBytes();
+		mGrantMessages = config.getWindowMessages();
+		mGrantPending = true;
+		mExhaustedNanos = System.nanoTime();
+	}
+
+	/**
+	 * Gets the settings.
+	 *
+	 * @return the config
+	 */
+	FlowControlConfig getConfig() {
+		return mConfig;
+	}
+
+	/**
+	 * Checks if the sender may send a chunk.
+	 *
+	 * @param newMessage true for the first chunk of a message
+	 * @return true, if there is credit
+	 */
+	boolean canSend(boolean newMessage) {
+		return mCredit.get() > 0 && (!newMessage || mConfig.getWindowMessages() == 0 || mMessageCredit.get() > 0);
+	}
+
+	/**
+	 * Spends credit on a chunk, called by the writer.
+	 *
+	 * @param bytes the chunk length
+	 * @param newMessage true for the first chunk of a message
+	 */
+	void consume(int bytes, boolean newMessage) {
+		boolean exhausted = mCredit.addAndGet(-bytes) <= 0;
+		if(newMessage && mConfig.getWindowMessages() != 0) {
+			exhausted |= mMessageCredit.decrementAndGet() <= 0;
+		}
+		if(exhausted && mExhaustedNanos == 0) {
+			mExhaustedNanos = System.nanoTime();
+		}
+	}
+
+	/**
+	 * Handles the credit frame of the other device, called by the reader.
+	 *
+	 * @param body the body following the control type
+	 * @throws FrameException Signals malformed frame.
+	 */
+	void onCredit(ByteBuffer body) throws FrameException {
+		if(body.remaining() < CREDIT_SIZE - 1) {
+			throw new FrameException("Malformed credit frame");
+		}
+		mCredit.addAndGet(body.getInt() & 0xffffffffL);
+		mMessageCredit.addAndGet(body.getInt());
+		// A grant paying back chunks granted early may leave the sender without credit.
+		if(canSend(true)) {
+			mExhaustedNanos = 0;
+		}
+	}
+
+	/**
+	 * Checks if the sender waits for credit longer than the stall timeout.
+	 *
+	 * @return true, if stalled
+	 */
+	boolean isStalled() {
+		long since = mExhaustedNanos;
+		long timeout = mConfig.getStallTimeoutMillis();
+		return timeout != 0 && since != 0 && System.nanoTime() - since > timeout * 1000000L;
+	}
+
+	/**
+	 * Accounts a received chunk, called by the reader.
+	 *
+	 * @param bytes the chunk length
+	 * @param last true for the last chunk of a message
+	 * @throws FrameException Signals that the other device exceeded the window.
+	 */
+	synchronized void onReceived(int bytes, boolean last) throws FrameException {
+		mReceived += bytes;
+		if(last) {
+			mMessagesReceived++;
+		}
+		if(mReceived > mGranted + mSlack
+				|| (mConfig.getWindowMessages() != 0 && mMessagesReceived > mMessagesGranted)) {
+			throw new FrameException("Peer exceeded flow control window");
+		}
+	}
+
+	/**
+	 * Takes back credit of chunks granted before their message was complete,
+	 * it is granted again with the whole message.
+	 *
+	 * @param bytes the length of chunks preceding the last one
+	 */
+	synchronized void borrow(long bytes) {
+		mGrant -= bytes;
+	}
+
+	/**
+	 * Returns drained bytes and messages to the sender.
+	 *
+	 * @param bytes the drained bytes
+	 * @param messages the drained messages
+	 * @return true, if enough credit is waiting to be granted
+	 */
+	synchronized boolean release(long bytes, int messages) {
+		mGrant += bytes;
+		int windowMessages = mConfig.getWindowMessages();
+		if(windowMessages != 0) {
+			mGrantMessages += messages;
+		}
+		if(mGrant >= mConfig.getWindowBytes() / 2
+				|| (windowMessages != 0 && mGrantMessages >= Math.max(1, windowMessages / 2))) {
+			mGrantPending = true;
+		}
+		return mGrantPending;
+	}
+
+	/**
+	 * Holds the credit of a message handed over to the application until
+	 * it grants it.
+	 *
+	 * @param bytes the message length
+	 */
+	synchronized void hold(int bytes) {
+		if(mHeldCount == mHeld.length) {
+			int[] held = new int[mHeld.length * 2];
+			for(int i = 0; i < mHeldCount; i++) {
+				held[i] = mHeld[(mHeldHead + i) % mHeld.length];
+			}
+			mHeld = held;
+			mHeldHead = 0;
+		}
+		mHeld[(mHeldHead + mHeldCount++) % mHeld.length] = bytes;
+	}
+
+	/**
+	 * Returns credit of the oldest messages held by the application.
+	 *
+	 * @param messages the number of drained messages
+	 * @return true, if enough credit is waiting to be granted
+	 */
+	synchronized boolean grant(int messages) {
+		int n = Math.min(messages, mHeldCount);
+		long bytes = 0;
+		for(int i = 0; i < n; i++) {
+			bytes += mHeld[mHeldHead];
+			mHeldHead = (mHeldHead + 1) % mHeld.length;
+		}
+		mHeldCount -= n;
+		return release(bytes, n);
+	}
+
+	/**
+	 * Writes the credit frame body granting credit drained so far.
+	 *
+	 * @param dst the destination, at least {@link #CREDIT_SIZE} bytes
+	 * @return the body length, 0 when nothing is to be granted
+	 */
+	synchronized int writeCredit(byte[] dst) {
+		if(!mGrantPending) {
+			return 0;
+		}
+		int bytes = (int) Math.max(0, mGrant);
+		dst[0] = CONTROL_CREDIT;
+		FrameCodec.writeInt(bytes, dst, 1);
+		FrameCodec.writeInt(mGrantMessages, dst, 5);
+		mGrant -= bytes;
+		mGranted += bytes;
+		mMessagesGranted += mGrantMessages;
+		mGrantMessages = 0;
+		mGrantPending = false;
+		return CREDIT_SIZE;
+	}
+}
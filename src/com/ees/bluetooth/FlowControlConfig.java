@@ -0,0 +1,104 @@
+package com.ees.bluetooth;
+
+/**
+ * The Class FlowControlConfig. Settings of credit based flow control. The
+ * receiver grants the sender a window of bytes and optionally of messages,
+ * and returns credit as its consumers drain received messages. A sender out
+ * of credit parks its writer, so messages wait in the bounded write queue
+ * and the {@link BackpressurePolicy} applies to further writes, instead of
+ * piling up in socket and controller buffers.
+ * <p>
+ * Credits travel in control frames, so the frame codec has to carry frame
+ * headers, that is compression or streams have to be enabled. Both devices
+ * have to enable flow control.
+ *
+ * @see ConnectionManager#setFlowControlConfig(FlowControlConfig)
+ */
+public class FlowControlConfig {
+
+	/** The default window in bytes. */
+	public static final int DEFAULT_WINDOW_BYTES = 64 * 1024;
+
+	/** The default window in messages, not limited. */
+	public static final int DEFAULT_WINDOW_MESSAGES = 0;
+
+	/** The default stall timeout, waiting for credit without limit. */
+	public static final long DEFAULT_STALL_TIMEOUT_MILLIS = 0;
+
+	/** The window in bytes. */
+	private final int mWindowBytes;
+
+	/** The window in messages, 0 for no limit. */
+	private final int mWindowMessages;
+
+	/** The flag of returning credit once the message listener returns. */
+	private final boolean mAutoGrant;
+
+	/** The time the writer waits for credit before the link is dropped, 0 for no limit. */
+	private final long mStallTimeoutMillis;
+
+	/**
+	 * Instantiates a new flow control config with default settings, credit
+	 * is returned once the message listener returns.
+	 */
+	public FlowControlConfig() {
+		this(DEFAULT_WINDOW_BYTES, DEFAULT_WINDOW_MESSAGES, true, DEFAULT_STALL_TIMEOUT_MILLIS);
+	}
+
+	/**
+	 * Instantiates a new flow control config.
+	 *
+	 * @param windowBytes the number of message bytes the sender may send ahead of the consumer
+	 * @param windowMessages the number of messages the sender may send ahead of the consumer, 0 for no limit
+	 * @param autoGrant true to return credit once the message listener returns, false when the
+	 *            application hands messages over to other threads and returns credit through
+	 *            {@link ConnectionManager#grantCredit(String, int)}
+	 * @param stallTimeoutMillis the time the writer waits for credit while messages are pending
+	 *            before the link is dropped, 0 for no limit
+	 */
+	public FlowControlConfig(int windowBytes, int windowMessages, boolean autoGrant, long stallTimeoutMillis) {
+		if(windowBytes <= 0 || windowMessages < 0 || stallTimeoutMillis < 0) {
+			throw new IllegalArgumentException("Invalid flow control settings");
+		}
+		mWindowBytes = windowBytes;
+		mWindowMessages = windowMessages;
+		mAutoGrant = autoGrant;
+		mStallTimeoutMillis = stallTimeoutMillis;
+	}
+
+	/**
+	 * Gets the window in bytes.
+	 *
+	 * @return the window bytes
+	 */
+	public int getWindowBytes() {
+		return mWindowBytes;
+	}
+
+	/**
+	 * Gets the window in messages.
+	 *
+	 * @return the window messages, 0 for no limit
+	 */
+	public int getWindowMessages() {
+		return mWindowMessages;
+	}
+
+	/**
+	 * Checks if credit is returned once the message listener returns.
+	 *
+	 * @return true, if automatic
+	 */
+	public boolean isAutoGrant() {
+		return mAutoGrant;
+	}
+
+	/**
+	 * Gets the stall timeout.
+	 *
+	 * @return the stall timeout in milliseconds, 0 for no limit
+	 */
+	public long getStallTimeoutMillis() {
+		return mStallTimeoutMillis;
+	}
+}
@@ -0,0 +1,341 @@
+package com.ees.bluetooth;
+
+/**
+ * The Class FrameCodec. Settings and encoder of length prefixed frames.
+ * Frame consists of the payload length as unsigned varint, the payload and,
+ * when enabled, CRC-32C of the payload in big endian order.
+ * With compression or streams enabled the payload starts with a flags byte
+ * telling whether the message is deflated, continues in the next frame of
+ * its stream or is a control frame of the channel. With streams enabled the
+ * flags are followed by the stream id byte.
+ * Every channel starts with a format frame, a plain frame without header
+ * and checksum naming the features of the sender, so devices of different
+ * settings drop the link instead of misreading each other's frames.
+ * Decoding is done by {@link FrameDecoder}, one per channel.
+ */
+public class FrameCodec {
+
+	/** The default maximum payload size. */
+	public static final int DEFAULT_MAX_FRAME_SIZE = 64 * 1024;
+
+	/** The maximum length of varint encoded int. */
+	static final int MAX_VARINT_SIZE = 5;
+
+	/** The checksum size. */
+	static final int CHECKSUM_SIZE = 4;
+
+	/** The flags of message sent as it is. */
+	static final byte FLAG_RAW = 0;
+
+	/** The flags of deflated message. */
+	static final byte FLAG_DEFLATE = 1;
+
+	/** The flags of chunk followed by further chunks of the message. */
+	static final byte FLAG_MORE = 2;
+
+	/** The highest stream id. */
+	public static final int MAX_STREAM_ID = 127;
+
+	/** The flags of control frame, consumed by the channel. */
+	static final byte FLAG_CONTROL = (byte) 0x80;
+
+	/** The size of format frame, the length prefix included. */
+	static final int FORMAT_SIZE = 4;
+
+	/** The first payload byte of format frame. */
+	private static final byte FORMAT_MAGIC = (byte) 0xEE;
+
+	/** The version of format frame. */
+	private static final byte FORMAT_VERSION = 1;
+
+	/** The format feature of checksum. */
+	private static final int FEATURE_CHECKSUM = 1;
+
+	/** The format feature of compression. */
+	private static final int FEATURE_COMPRESSION = 2;
+
+	/** The format feature of streams. */
+	private static final int FEATURE_STREAMS = 4;
+
+	/** The maximum payload size. */
+	private final int mMaxFrameSize;
+
+	/** The checksum flag. */
+	private final boolean mChecksum;
+
+	/** The compression settings, null when disabled. */
+	private final CompressionConfig mCompression;
+
+	/** The streams flag. */
+	private final boolean mStreams;
+
+	/** The checksum used by encoder. */
+	private final Crc32c mCrc = new Crc32c();
+
+	/**
+	 * Instantiates a new frame codec with default limit and without checksum.
+	 */
+	public FrameCodec() {
+		this(DEFAULT_MAX_FRAME_SIZE, false);
+	}
+
+	/**
+	 * Instantiates a new frame codec.
+	 *
+	 * @param maxFrameSize the maximum payload size, bigger frames are rejected
+	 * @param checksum true to append CRC-32C to every frame
+	 */
+	public FrameCodec(int maxFrameSize, boolean checksum) {
+		this(maxFrameSize, checksum, null);
+	}
+
+	/**
+	 * Instantiates a new frame codec with optional compression. Compression
+	 * changes the frame format, so both devices have to enable it, the link
+	 * is dropped when only one does. Messages are compressed only on
+	 * connections where the other device announced the same dictionary.
+	 *
+	 * @param maxFrameSize the maximum payload size, bigger frames are rejected
+	 * @param checksum true to append CRC-32C to every frame
+	 * @param compression the compression settings, null disables compression
+	 */
+	public FrameCodec(int maxFrameSize, boolean checksum, CompressionConfig compression) {
+		this(maxFrameSize, checksum, compression, false);
+	}
+
+	/**
+	 * Instantiates a new frame codec with optional compression and streams.
+	 * With streams enabled messages are sent in chunks over logical streams
+	 * and reassembled by the receiver, the size limit applies to whole
+	 * messages. Both devices have to enable the same features, the link is
+	 * dropped when they differ.
+	 *
+	 * @param maxFrameSize the maximum message size, bigger messages are rejected
+	 * @param checksum true to append CRC-32C to every frame
+	 * @param compression the compression settings, null disables compression
+	 * @param streams true to enable streams
+	 * @see ConnectionManager#setStreamPriority(int, StreamPriority)
+	 */
+	public FrameCodec(int maxFrameSize, boolean checksum, CompressionConfig compression, boolean streams) {
+		if(maxFrameSize < 0) {
+			throw new IllegalArgumentException("Negative frame size limit: " + maxFrameSize);
+		}
+		mMaxFrameSize = maxFrameSize;
+		mChecksum = checksum;
+		mCompression = compression;
+		mStreams = streams;
+	}
+
+	/**
+	 * Gets the maximum payload size.
+	 *
+	 * @return the maximum frame size
+	 */
+	public int getMaxFrameSize() {
+		return mMaxFrameSize;
+	}
+
+	/**
+	 * Checks if checksum is enabled.
+	 *
+	 * @return true, if frames carry CRC-32C
+	 */
+	public boolean hasChecksum() {
+		return mChecksum;
+	}
+
+	/**
+	 * Gets the compression settings.
+	 *
+	 * @return the compression config or null
+	 */
+	public CompressionConfig getCompression() {
+		return mCompression;
+	}
+
+	/**
+	 * Checks if streams are enabled.
+	 *
+	 * @return true, if frames carry stream ids
+	 */
+	public boolean hasStreams() {
+		return mStreams;
+	}
+
+	/**
+	 * Gets the size of flags and stream id preceding the message in the payload.
+	 *
+	 * @return the header size
+	 */
+	int headerSize() {
+		if(mStreams) {
+			return 2;
+		}
+		return mCompression != null ? 1 : 0;
+	}
+
+	/**
+	 * Gets the size of encoded frame.
+	 *
+	 * @param payloadLength the payload length
+	 * @return the frame size
+	 */
+	public int frameSize(int payloadLength) {
+		int size = payloadLength + headerSize();
+		return varintSize(size) + size + (mChecksum ? CHECKSUM_SIZE : 0);
+	}
+
+	/**
+	 * Encodes frame into given array. The codec is not thread safe when
+	 * checksum is enabled, every channel encodes with its own instance.
+	 *
+	 * @param payload the payload
+	 * @param off the payload offset
+	 * @param len the payload length
+	 * @param dst the destination, at least {@link #frameSize(int)} bytes from dstOff
+	 * @param dstOff the destination offset
+	 * @return the number of bytes written
+	 * @throws IllegalArgumentException when the payload exceeds the limit
+	 */
+	public int encode(byte[] payload, int off, int len, byte[] dst, int dstOff) {
+		return encode(FLAG_RAW, 0, payload, off, len, dst, dstOff);
+	}
+
+	/**
+	 * Encodes frame with given header, which is written only with
+	 * compression or streams enabled.
+	 *
+	 * @param flags the flags
+	 * @param streamId the stream id, written only with streams enabled
+	 * @param payload the message
+	 * @param off the message offset
+	 * @param len the message length
+	 * @param dst the destination, at least {@link #frameSize(int)} bytes from dstOff
+	 * @param dstOff the destination offset
+	 * @return the number of bytes written
+	 * @throws IllegalArgumentException when the message exceeds the limit
+	 */
+	int encode(byte flags, int streamId, byte[] payload, int off, int len, byte[] dst, int dstOff) {
+		if(len > mMaxFrameSize) {
+			throw new IllegalArgumentException("Frame of " + len + " bytes exceeds limit " + mMaxFrameSize);
+		}
+		int header = headerSize();
+		int pos = writeVarint(len + header, dst, dstOff);
+		int start = pos;
+		if(header != 0) {
+			dst[pos++] = flags;
+		}
+		if(mStreams) {
+			dst[pos++] = (byte) streamId;
+		}
+		System.arraycopy(payload, off, dst, pos, len);
+		pos += len;
+		if(mChecksum) {
+			mCrc.reset();
+			mCrc.update(dst, start, pos - start);
+			pos = writeInt((int) mCrc.getValue(), dst, pos);
+		}
+		return pos - dstOff;
+	}
+
+	/**
+	 * Writes the format frame, the first frame of every channel.
+	 *
+	 * @param dst the destination, at least {@link #FORMAT_SIZE} bytes
+	 * @return the number of bytes written
+	 */
+	int writeFormat(byte[] dst) {
+		dst[0] = FORMAT_SIZE - 1;
+		dst[1] = FORMAT_MAGIC;
+		dst[2] = FORMAT_VERSION;
+		dst[3] = (byte) features();
+		return FORMAT_SIZE;
+	}
+
+	/**
+	 * Checks the format frame of the other device.
+	 *
+	 * @param src the format frame, {@link #FORMAT_SIZE} bytes
+	 * @throws FrameException Signals that the other device frames differently.
+	 */
+	void checkFormat(byte[] src) throws FrameException {
+		if(src[0] != FORMAT_SIZE - 1 || src[1] != FORMAT_MAGIC || src[2] != FORMAT_VERSION) {
+			throw new FrameException("No format frame, the other device sends raw data or another version");
+		}
+		int features = src[3] & 0xff;
+		if(features != features()) {
+			throw new FrameException("Frame format mismatch, other device has checksum "
+					+ ((features & FEATURE_CHECKSUM) != 0) + ", compression "
+					+ ((features & FEATURE_COMPRESSION) != 0) + ", streams "
+					+ ((features & FEATURE_STREAMS) != 0));
+		}
+	}
+
+	/**
+	 * Gets the features announced by the format frame.
+	 *
+	 * @return the feature bits
+	 */
+	private int features() {
+		return (mChecksum ? FEATURE_CHECKSUM : 0) | (mCompression != null ? FEATURE_COMPRESSION : 0)
+				| (mStreams ? FEATURE_STREAMS : 0);
+	}
+
+	/**
+	 * Creates copy of the codec with the same settings, used to give every
+	 * channel its own encoder state.
+	 *
+	 * @return the frame codec
+	 */
+	public FrameCodec copy() {
+		return new FrameCodec(mMaxFrameSize, mChecksum, mCompression, mStreams);
+	}
+
+	/**
+	 * Gets the size of varint encoded value.
+	 *
+	 * @param value the value
+	 * @return the size in bytes
+	 */
+	static int varintSize(int value) {
+		int size = 1;
+		while((value & ~0x7F) != 0) {
+			value >>>= 7;
+			size++;
+		}
+		return size;
+	}
+
+	/**
+	 * Writes unsigned varint.
+	 *
+	 * @param value the value
+	 * @param dst the destination
+	 * @param off the offset
+	 * @return the offset after written bytes
+	 */
+	static int writeVarint(int value, byte[] dst, int off) {
+		while((value & ~0x7F) != 0) {
+			dst[off++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		dst[off++] = (byte) value;
+		return off;
+	}
+
+	/**
+	 * Writes big endian int.
+	 *
+	 * @param value the value
+	 * @param dst the destination
+	 * @param off the offset
+	 * @return the offset after written bytes
+	 */
+	static int writeInt(int value, byte[] dst, int off) {
+		dst[off] = (byte) (value >>> 24);
+		dst[off + 1] = (byte) (value >>> 16);
+		dst[off + 2] = (byte) (value >>> 8);
+		dst[off + 3] = (byte) value;
+		return off + 4;
+	}
+}
@@ -0,0 +1,146 @@
+package com.ees.bluetooth;
+
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+
+import android.util.Log;
+
+/**
+ * The Class FrameCompressor. Deflates messages of one channel writer with a
+ * single reused {@link Deflater}, every message is compressed on its own
+ * with the preset dictionary, so the other device inflates it without any
+ * history. Messages are compressed only after the other device announced
+ * in its hello frame that it inflates with the same dictionary.
+ */
+class FrameCompressor {
+
+	/** The Constant TAG. */
+	private static final String TAG = FrameCompressor.class.getSimpleName();
+
+	/** The type of control frame announcing compression support. */
+	static final byte CONTROL_HELLO = 1;
+
+	/** The version of hello frame. */
+	static final byte HELLO_VERSION = 1;
+
+	/** The capability of inflating messages. */
+	static final byte CAPABILITY_DEFLATE = 1;
+
+	/** The size of hello frame body. */
+	static final int HELLO_SIZE = 7;
+
+	/** The settings. */
+	private final CompressionConfig mConfig;
+
+	/** The deflater, reset for every message. */
+	private final Deflater mDeflater;
+
+	/** The output buffer, grown on demand. */
+	private byte[] mOutput = new byte[0];
+
+	/** The flag of the other device accepting compressed messages. */
+	private volatile boolean mPeerAccepts;
+
+	/** The number of messages to send uncompressed before the next try. */
+	private int mSkip;
+
+	/**
+	 * Instantiates a new frame compressor.
+	 *
+	 * @param config the settings
+	 */
+	FrameCompressor(CompressionConfig config) {
+		mConfig = config;
+		mDeflater = new Deflater(config.getLevel());
+	}
+
+	/**
+	 * Writes the hello frame body announcing the dictionary of this device.
+	 *
+	 * @param dst the destination, at least {@link #HELLO_SIZE} bytes
+	 * @return the body length
+	 */
+	int writeHello(byte[] dst) {
+		dst[0] = CONTROL_HELLO;
+		dst[1] = HELLO_VERSION;
+		dst[2] = CAPABILITY_DEFLATE;
+		FrameCodec.writeInt(mConfig.getDictionaryId(), dst, 3);
+		return HELLO_SIZE;
+	}
+
+	/**
+	 * Handles the hello frame of the other device, called by the reader.
+	 *
+	 * @param body the body following the control type
+	 */
+	void onHello(ByteBuffer body) {
+		if(body.remaining() < HELLO_SIZE - 1) {
+			Log.w(TAG, "Malformed hello frame, compression disabled");
+			return;
+		}
+		body.get(); // Version, newer ones only append fields.
+		boolean deflate = (body.get() & CAPABILITY_DEFLATE) != 0;
+		int dictionaryId = body.getInt();
+		mPeerAccepts = deflate && dictionaryId == mConfig.getDictionaryId();
+		if(!mPeerAccepts) {
+			Log.w(TAG, "Peer does not inflate with the same dictionary, compression disabled");
+		}
+	}
+
+	/**
+	 * Compresses the message, unless it is too small, the other device does
+	 * not accept compression or recent messages did not shrink.
+	 *
+	 * @param src the message
+	 * @param off the offset
+	 * @param len the length
+	 * @return the length of compressed message in {@link #getOutput()}, -1 when sent as it is
+	 */
+	int compress(byte[] src, int off, int len) {
+		if(!mPeerAccepts || len < mConfig.getMinSize()) {
+			return -1;
+		}
+		if(mSkip > 0) {
+			mSkip--;
+			return -1;
+		}
+		int limit = (int) (len * mConfig.getMaxRatio());
+		if(mOutput.length < limit) {
+			mOutput = new byte[Math.max(limit, mOutput.length * 2)];
+		}
+		mDeflater.reset();
+		byte[] dictionary = mConfig.getDictionary();
+		if(dictionary != null) {
+			mDeflater.setDictionary(dictionary);
+		}
+		mDeflater.setInput(src, off, len);
+		mDeflater.finish();
+		int n = 0;
+		while(!mDeflater.finished() && n < limit) {
+			n += mDeflater.deflate(mOutput, n, limit - n);
+		}
+		if(!mDeflater.finished()) {
+			// Does not shrink enough, sample again later.
+			mSkip = mConfig.getSampleInterval() - 1;
+			return -1;
+		}
+		return n;
+	}
+
+	/**
+	 * Gets the output buffer holding the last compressed message.
+	 *
+	 * @return the output
+	 */
+	byte[] getOutput() {
+		return mOutput;
+	}
+
+	/**
+	 * End. Releases native memory of the deflater, called by the writer
+	 * when it stops.
+	 */
+	void end() {
+		mDeflater.end();
+	}
+}
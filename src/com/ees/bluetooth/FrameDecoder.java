@@ -0,0 +1,224 @@
+package com.ees.bluetooth;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The Class FrameDecoder. Incremental decoder of frames produced by
+ * {@link FrameCodec}. Data can be fed in chunks of any size, frames split
+ * across chunks are reassembled in a reusable buffer. Frames lying entirely
+ * inside one {@link PooledBuffer} are delivered in place without copying,
+ * so the steady state path does not allocate.
+ */
+public class FrameDecoder {
+
+	/**
+	 * The handler interface receiving decoded frames.
+	 */
+	public interface FrameHandler {
+
+		/**
+		 * Called for every complete frame. The buffer is read only and valid
+		 * only during the call, its remaining bytes are the frame payload.
+		 *
+		 * @param frame the frame payload
+		 * @throws IOException Signals that the frame could not be processed.
+		 */
+		void onFrame(ByteBuffer frame) throws IOException;
+	}
+
+	/** Reading the length prefix. */
+	private static final int STATE_HEADER = 0;
+
+	/** Reading the payload and checksum. */
+	private static final int STATE_BODY = 1;
+
+	/** The initial size of reassembly buffer. */
+	private static final int INITIAL_ASSEMBLY_SIZE = 256;
+
+	/** The maximum payload size. */
+	private final int mMaxFrameSize;
+
+	/** The checksum size, zero when disabled. */
+	private final int mChecksumSize;
+
+	/** The handler. */
+	private final FrameHandler mHandler;
+
+	/** The checksum. */
+	private final Crc32c mCrc = new Crc32c();
+
+	/** The decoder state. */
+	private int mState = STATE_HEADER;
+
+	/** The payload length of current frame. */
+	private int mLength;
+
+	/** The varint shift of length prefix. */
+	private int mShift;
+
+	/** The reassembly buffer. */
+	private byte[] mAssembly = new byte[0];
+
+	/** The read only view of reassembly buffer. */
+	private ByteBuffer mAssemblyView = ByteBuffer.wrap(mAssembly).asReadOnlyBuffer();
+
+	/** The number of bytes in reassembly buffer. */
+	private int mFilled;
+
+	/**
+	 * Instantiates a new frame decoder.
+	 *
+	 * @param codec the codec with frame settings
+	 * @param handler the frame handler
+	 */
+	public FrameDecoder(FrameCodec codec, FrameHandler handler) {
+		mMaxFrameSize = codec.getMaxFrameSize() + codec.headerSize();
+		mChecksumSize = codec.hasChecksum() ? FrameCodec.CHECKSUM_SIZE : 0;
+		mHandler = handler;
+	}
+
+	/**
+	 * Decodes the content of pooled buffer. Frames fully contained in the
+	 * buffer are delivered as views of the buffer itself.
+	 *
+	 * @param buffer the buffer, still owned by the caller
+	 * @throws IOException Signals malformed frame or handler failure.
+	 */
+	public void decode(PooledBuffer buffer) throws IOException {
+		decode(buffer.array(), buffer.offset(), buffer.length(), buffer);
+	}
+
+	/**
+	 * Decodes the chunk of data. Frames are always delivered from the
+	 * reassembly buffer.
+	 *
+	 * @param src the source
+	 * @param off the offset
+	 * @param len the length
+	 * @throws IOException Signals malformed frame or handler failure.
+	 */
+	public void decode(byte[] src, int off, int len) throws IOException {
+		decode(src, off, len, null);
+	}
+
+	/**
+	 * Reset. Drops partially received frame.
+	 */
+	public void reset() {
+		mState = STATE_HEADER;
+		mLength = 0;
+		mShift = 0;
+		mFilled = 0;
+	}
+
+	/**
+	 * Decodes the chunk of data.
+	 *
+	 * @param src the source
+	 * @param off the offset
+	 * @param len the length
+	 * @param owner the pooled buffer backing src, null if none
+	 * @throws IOException Signals malformed frame or handler failure.
+	 */
+	private void decode(byte[] src, int off, int len, PooledBuffer owner) throws IOException {
+		int end = off + len;
+		while(off < end) {
+			if(mState == STATE_HEADER) {
+				int b = src[off++] & 0xff;
+				if(mShift == 28 && (b & 0xF8) != 0) {
+					throw new FrameException("Malformed frame length prefix");
+				}
+				mLength |= (b & 0x7F) << mShift;
+				if((b & 0x80) != 0) {
+					mShift += 7;
+					continue;
+				}
+				mShift = 0;
+				if(mLength > mMaxFrameSize) {
+					throw new FrameException("Frame of " + mLength + " bytes exceeds limit " + mMaxFrameSize);
+				}
+				int need = mLength + mChecksumSize;
+				if(owner != null && end - off >= need) {
+					// Whole frame is in the buffer, deliver it in place.
+					verify(src, off, mLength);
+					int length = mLength;
+					mLength = 0;
+					mHandler.onFrame(owner.slice(off, length));
+					off += need;
+				} else {
+					ensureAssembly(need);
+					mFilled = 0;
+					mState = STATE_BODY;
+					if(need == 0) {
+						completeAssembled();
+					}
+				}
+			} else {
+				int need = mLength + mChecksumSize;
+				int n = Math.min(need - mFilled, end - off);
+				System.arraycopy(src, off, mAssembly, mFilled, n);
+				mFilled += n;
+				off += n;
+				if(mFilled == need) {
+					completeAssembled();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Delivers frame from reassembly buffer.
+	 *
+	 * @throws IOException Signals corrupted frame or handler failure.
+	 */
+	private void completeAssembled() throws IOException {
+		int length = mLength;
+		verify(mAssembly, 0, length);
+		reset();
+		mAssemblyView.clear();
+		mAssemblyView.limit(length);
+		mHandler.onFrame(mAssemblyView);
+	}
+
+	/**
+	 * Verifies the checksum following the payload.
+	 *
+	 * @param src the source
+	 * @param off the payload offset
+	 * @param len the payload length
+	 * @throws FrameException Signals checksum mismatch.
+	 */
+	private void verify(byte[] src, int off, int len) throws FrameException {
+		if(mChecksumSize == 0) {
+			return;
+		}
+		mCrc.reset();
+		mCrc.update(src, off, len);
+		int p = off + len;
+		int expected = ((src[p] & 0xff) << 24) | ((src[p + 1] & 0xff) << 16)
+				| ((src[p + 2] & 0xff) << 8) | (src[p + 3] & 0xff);
+		if(expected != (int) mCrc.getValue()) {
+			throw new FrameException("Frame checksum mismatch");
+		}
+	}
+
+	/**
+	 * Grows reassembly buffer to hold at least given number of bytes.
+	 * The buffer only grows, so it is allocated a few times per channel.
+	 *
+	 * @param size the required size
+	 */
+	private void ensureAssembly(int size) {
+		if(mAssembly.length >= size) {
+			return;
+		}
+		int capacity = Math.max(INITIAL_ASSEMBLY_SIZE, mAssembly.length);
+		while(capacity < size) {
+			capacity <<= 1;
+		}
+		capacity = Math.min(capacity, mMaxFrameSize + mChecksumSize);
+		mAssembly = new byte[Math.max(capacity, size)];
+		mAssemblyView = ByteBuffer.wrap(mAssembly).asReadOnlyBuffer();
+	}
+}
@@ -0,0 +1,120 @@
+package com.ees.bluetooth;
+
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * The Class FrameDecompressor. Inflates messages received by one channel
+ * with a single reused {@link Inflater}. Messages are inflated into a buffer
+ * which only grows, up to the frame size limit, so the steady state path
+ * does not allocate.
+ */
+class FrameDecompressor {
+
+	/** The initial size of output buffer. */
+	private static final int INITIAL_OUTPUT_SIZE = 1024;
+
+	/** The maximum message size. */
+	private final int mMaxFrameSize;
+
+	/** The preset dictionary, null if none. */
+	private final byte[] mDictionary;
+
+	/** The inflater, reset for every message. */
+	private final Inflater mInflater = new Inflater();
+
+	/** The copy of compressed message, frames are read only views. */
+	private byte[] mInput = new byte[0];
+
+	/** The output buffer. */
+	private byte[] mOutput = new byte[0];
+
+	/** The read only view of output buffer. */
+	private ByteBuffer mOutputView = ByteBuffer.wrap(mOutput).asReadOnlyBuffer();
+
+	/**
+	 * Instantiates a new frame decompressor.
+	 *
+	 * @param config the compression settings
+	 * @param maxFrameSize the maximum message size
+	 */
+	FrameDecompressor(CompressionConfig config, int maxFrameSize) {
+		mDictionary = config.getDictionary();
+		mMaxFrameSize = maxFrameSize;
+	}
+
+	/**
+	 * Inflates the message.
+	 *
+	 * @param frame the compressed message
+	 * @return the read only message, valid until the next call
+	 * @throws FrameException Signals corrupted or oversized message.
+	 */
+	ByteBuffer decompress(ByteBuffer frame) throws FrameException {
+		int len = frame.remaining();
+		if(mInput.length < len) {
+			mInput = new byte[Math.max(len, mInput.length * 2)];
+		}
+		frame.get(mInput, 0, len);
+		if(mOutput.length == 0) {
+			grow(Math.min(INITIAL_OUTPUT_SIZE, mMaxFrameSize + 1));
+		}
+		mInflater.reset();
+		mInflater.setInput(mInput, 0, len);
+		int n = 0;
+		try {
+			while(!mInflater.finished()) {
+				if(n == mOutput.length) {
+					// One spare byte tells a full sized message from an oversized one.
+					if(n > mMaxFrameSize) {
+						throw new FrameException("Inflated message exceeds limit " + mMaxFrameSize);
+					}
+					grow(Math.min(mOutput.length * 2, mMaxFrameSize + 1));
+				}
+				int k = mInflater.inflate(mOutput, n, mOutput.length - n);
+				if(k == 0) {
+					if(mInflater.needsDictionary()) {
+						if(mDictionary == null) {
+							throw new FrameException("Compressed message needs unknown dictionary");
+						}
+						mInflater.setDictionary(mDictionary);
+					} else if(mInflater.needsInput()) {
+						throw new FrameException("Truncated compressed message");
+					}
+				}
+				n += k;
+			}
+		} catch (DataFormatException e) {
+			throw new FrameException("Corrupted compressed message: " + e.getMessage());
+		} catch (IllegalArgumentException e) {
+			throw new FrameException("Compressed message with wrong dictionary");
+		}
+		if(n > mMaxFrameSize) {
+			throw new FrameException("Inflated message exceeds limit " + mMaxFrameSize);
+		}
+		mOutputView.clear();
+		mOutputView.limit(n);
+		return mOutputView;
+	}
+
+	/**
+	 * Grows the output buffer keeping its content.
+	 *
+	 * @param size the new size
+	 */
+	private void grow(int size) {
+		byte[] output = new byte[size];
+		System.arraycopy(mOutput, 0, output, 0, mOutput.length);
+		mOutput = output;
+		mOutputView = ByteBuffer.wrap(mOutput).asReadOnlyBuffer();
+	}
+
+	/**
+	 * End. Releases native memory of the inflater, called by the reader
+	 * when it stops.
+	 */
+	void end() {
+		mInflater.end();
+	}
+}
@@ -0,0 +1,22 @@
+package com.ees.bluetooth;
+
+import java.io.IOException;
+
+/**
+ * The Class FrameException. Signals malformed, oversized or corrupted frame.
+ * Stream synchronization is lost afterwards, so the channel is dropped.
+ */
+public class FrameException extends IOException {
+
+	/** The Constant serialVersionUID. */
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Instantiates a new frame exception.
+	 *
+	 * @param message the message
+	 */
+	public FrameException(String message) {
+		super(message);
+	}
+}
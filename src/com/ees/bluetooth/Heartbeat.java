@@ -0,0 +1,189 @@
+package com.ees.bluetooth;
+
+import java.nio.ByteBuffer;
+
+import android.util.Log;
+
+/**
+ * The Class Heartbeat. Dead peer detection of one channel, run periodically
+ * on the manager scheduler. The reader stamps every read, so pings go out
+ * only when nothing has been received for an interval. The ping carries the
+ * sender clock which the pong echoes, the difference is the round trip time.
+ * Without settings the heartbeat only answers pings, so a device which
+ * enabled heartbeats keeps its link to one which did not.
+ */
+class Heartbeat implements Runnable {
+
+	/** The Constant TAG. */
+	private static final String TAG = Heartbeat.class.getSimpleName();
+
+	/** The type of control frame asking for a pong. */
+	static final byte CONTROL_PING = 3;
+
+	/** The type of control frame answering a ping. */
+	static final byte CONTROL_PONG = 4;
+
+	/** The size of ping and pong frame body. */
+	static final int PING_SIZE = 9;
+
+	/** The settings, null when only answering pings. */
+	private final HeartbeatConfig mConfig;
+
+	/** The channel. */
+	private final Channel mChannel;
+
+	/** The metrics of the remote device. */
+	private final ConnectionMetrics mMetrics;
+
+	/** The time of the last read. */
+	private volatile long mLastReadNanos = System.nanoTime();
+
+	/** The flag of ping waiting for the writer. */
+	private volatile boolean mPingPending;
+
+	/** The clock sent by the pending ping. */
+	private volatile long mPingStamp;
+
+	/** The flag of pong waiting for the writer. */
+	private volatile boolean mPongPending;
+
+	/** The clock echoed by the pending pong. */
+	private volatile long mPongStamp;
+
+	/**
+	 * Instantiates a new heartbeat.
+	 *
+	 * @param config the settings, null to only answer pings
+	 * @param channel the channel
+	 * @param metrics the metrics of the remote device
+	 */
+	Heartbeat(HeartbeatConfig config, Channel channel, ConnectionMetrics metrics) {
+		mConfig = config;
+		mChannel = channel;
+		mMetrics = metrics;
+	}
+
+	/**
+	 * Gets the settings.
+	 *
+	 * @return the config, null when only answering pings
+	 */
+	HeartbeatConfig getConfig() {
+		return mConfig;
+	}
+
+	/**
+	 * Stamps a read, called by the reader.
+	 */
+	void onRead() {
+		mLastReadNanos = System.nanoTime();
+	}
+
+	/**
+	 * Checks the link, pings an idle one and drops a silent one.
+	 *
+	 * @return true, if the writer has a ping to send
+	 */
+	boolean check() {
+		long idle = System.nanoTime() - mLastReadNanos;
+		long interval = mConfig.getIntervalMillis() * 1000000L;
+		if(idle > interval * mConfig.getMissedIntervals()) {
+			Log.w(TAG, "No data from " + mChannel.getAddress() + " for " + idle / 1000000L + "ms, dropping link");
+			mChannel.drop("No data for " + idle / 1000000L + "ms");
+			return false;
+		}
+		if(idle >= interval && !mPingPending) {
+			mPingStamp = System.nanoTime();
+			mPingPending = true;
+			return true;
+		}
+		return false;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Runnable#run()
+	 */
+	@Override
+	public void run() {
+		try {
+			if(check()) {
+				mChannel.wakeWriter();
+			}
+		} catch (RuntimeException e) {
+			// Keep the periodic task alive.
+			Log.e(TAG, "Heartbeat check failed", e);
+		}
+	}
+
+	/**
+	 * Handles the ping of the other device, called by the reader.
+	 *
+	 * @param body the body following the control type
+	 * @return true, if the writer has a pong to send
+	 * @throws FrameException Signals malformed frame.
+	 */
+	boolean onPing(ByteBuffer body) throws FrameException {
+		if(body.remaining() < PING_SIZE - 1) {
+			throw new FrameException("Malformed ping frame");
+		}
+		mPongStamp = body.getLong();
+		mPongPending = true;
+		return true;
+	}
+
+	/**
+	 * Handles the pong of the other device, called by the reader.
+	 *
+	 * @param body the body following the control type
+	 * @throws FrameException Signals malformed frame.
+	 */
+	void onPong(ByteBuffer body) throws FrameException {
+		if(body.remaining() < PING_SIZE - 1) {
+			throw new FrameException("Malformed pong frame");
+		}
+		mMetrics.onRoundTrip(System.nanoTime() - body.getLong());
+	}
+
+	/**
+	 * Writes the ping frame body if a ping is pending, called by the writer.
+	 *
+	 * @param dst the destination, at least {@link #PING_SIZE} bytes
+	 * @return the body length, 0 when nothing is pending
+	 */
+	int writePing(byte[] dst) {
+		if(!mPingPending) {
+			return 0;
+		}
+		mPingPending = false;
+		return write(CONTROL_PING, mPingStamp, dst);
+	}
+
+	/**
+	 * Writes the pong frame body if a pong is pending, called by the writer.
+	 *
+	 * @param dst the destination, at least {@link #PING_SIZE} bytes
+	 * @return the body length, 0 when nothing is pending
+	 */
+	int writePong(byte[] dst) {
+		if(!mPongPending) {
+			return 0;
+		}
+		mPongPending = false;
+		return write(CONTROL_PONG, mPongStamp, dst);
+	}
+
+	/**
+	 * Writes the frame body.
+	 *
+	 * @param type the control type
+	 * @param stamp the clock
+	 * @param dst the destination
+	 * @return the body length
+	 */
+	private static int write(byte type, long stamp, byte[] dst) {
+		dst[0] = type;
+		FrameCodec.writeInt((int) (stamp >>> 32), dst, 1);
+		FrameCodec.writeInt((int) stamp, dst, 5);
+		return PING_SIZE;
+	}
+}
@@ -0,0 +1,83 @@
+package com.ees.bluetooth;
+
+/**
+ * The Class HeartbeatConfig. Settings of dead peer detection. Any received
+ * frame proves the other device alive, so busy links carry no extra
+ * traffic. A link idle for one interval is probed with a tiny ping frame,
+ * whose answer also yields a round trip time sample, and a link which
+ * stays silent for the given number of intervals is dropped. The lost
+ * device is thus detected within {@link #getDetectionTimeMillis()} and
+ * failover or redialing starts right away.
+ * <p>
+ * Pings travel in control frames, so the frame codec has to carry frame
+ * headers, that is compression or streams have to be enabled. The other
+ * device answers pings whenever its frames carry headers, it need not
+ * enable heartbeats itself.
+ *
+ * @see ConnectionManager#setHeartbeatConfig(HeartbeatConfig)
+ */
+public class HeartbeatConfig {
+
+	/** The default idle time before a ping. */
+	public static final long DEFAULT_INTERVAL_MILLIS = 1000;
+
+	/** The default number of silent intervals before the link is dropped. */
+	public static final int DEFAULT_MISSED_INTERVALS = 3;
+
+	/** The idle time before a ping. */
+	private final long mIntervalMillis;
+
+	/** The number of silent intervals before the link is dropped. */
+	private final int mMissedIntervals;
+
+	/**
+	 * Instantiates a new heartbeat config with default settings, a lost
+	 * device is detected within four seconds.
+	 */
+	public HeartbeatConfig() {
+		this(DEFAULT_INTERVAL_MILLIS, DEFAULT_MISSED_INTERVALS);
+	}
+
+	/**
+	 * Instantiates a new heartbeat config.
+	 *
+	 * @param intervalMillis the idle time before a ping, also the check period
+	 * @param missedIntervals the number of silent intervals before the link is
+	 *            dropped, at least 2 so a ping can be answered
+	 */
+	public HeartbeatConfig(long intervalMillis, int missedIntervals) {
+		if(intervalMillis <= 0 || missedIntervals < 2) {
+			throw new IllegalArgumentException("Invalid heartbeat settings");
+		}
+		mIntervalMillis = intervalMillis;
+		mMissedIntervals = missedIntervals;
+	}
+
+	/**
+	 * Gets the idle time before a ping.
+	 *
+	 * @return the interval in milliseconds
+	 */
+	public long getIntervalMillis() {
+		return mIntervalMillis;
+	}
+
+	/**
+	 * Gets the number of silent intervals before the link is dropped.
+	 *
+	 * @return the missed intervals
+	 */
+	public int getMissedIntervals() {
+		return mMissedIntervals;
+	}
+
+	/**
+	 * Gets the longest time a lost device goes unnoticed, the silent
+	 * intervals plus one check period.
+	 *
+	 * @return the detection time in milliseconds
+	 */
+	public long getDetectionTimeMillis() {
+		return mIntervalMillis * (mMissedIntervals + 1);
+	}
+}
@@ -0,0 +1,76 @@
+package com.ees.bluetooth;
+
+/**
+ * The Class HubConfig. Settings of hub mode, in which the listener keeps
+ * accepting links after the first device connected, up to the client
+ * limit, and every client gets a channel of its own. Messages sent by
+ * {@link ConnectionManager#broadcast(byte[], int, int)} are copied once and
+ * queued for every client, each channel writes them on its own thread.
+ * <p>
+ * A client which does not keep up fills only its own write queue. Messages
+ * sent to every device, by broadcast, the send methods without address and
+ * the state sync, follow the slow client policy rather than the policy of
+ * the write queue config, so the sender is never blocked by one client:
+ * {@link BackpressurePolicy#DROP_OLDEST} lets the client skip to recent
+ * broadcasts, {@link BackpressurePolicy#FAIL_FAST} drops the new message for
+ * the client. Messages sent to one client, like replies and file chunks,
+ * are never dropped for broadcasts, they follow the write queue config.
+ * Every client takes two threads of the manager executor.
+ *
+ * @see ConnectionManager#setHubConfig(HubConfig)
+ * @see ConnectionManager#setMaxThreads(int)
+ */
+public class HubConfig {
+
+	/** The default client limit, the active devices of a piconet besides the master. */
+	public static final int DEFAULT_MAX_CLIENTS = 7;
+
+	/** The default policy of broadcasts to clients with full write queue. */
+	public static final BackpressurePolicy DEFAULT_SLOW_CLIENT_POLICY = BackpressurePolicy.DROP_OLDEST;
+
+	/** The client limit. */
+	private final int mMaxClients;
+
+	/** The policy of broadcasts to clients with full write queue. */
+	private final BackpressurePolicy mSlowClientPolicy;
+
+	/**
+	 * Instantiates a new hub config with default settings.
+	 */
+	public HubConfig() {
+		this(DEFAULT_MAX_CLIENTS, DEFAULT_SLOW_CLIENT_POLICY);
+	}
+
+	/**
+	 * Instantiates a new hub config.
+	 *
+	 * @param maxClients the number of accepted devices connected at once
+	 * @param slowClientPolicy the policy of broadcasts to clients with full
+	 *            write queue, other than {@link BackpressurePolicy#BLOCK}
+	 */
+	public HubConfig(int maxClients, BackpressurePolicy slowClientPolicy) {
+		if(maxClients <= 0 || slowClientPolicy == null || slowClientPolicy == BackpressurePolicy.BLOCK) {
+			throw new IllegalArgumentException("Invalid hub settings");
+		}
+		mMaxClients = maxClients;
+		mSlowClientPolicy = slowClientPolicy;
+	}
+
+	/**
+	 * Gets the client limit.
+	 *
+	 * @return the number of accepted devices connected at once
+	 */
+	public int getMaxClients() {
+		return mMaxClients;
+	}
+
+	/**
+	 * Gets the policy of broadcasts to clients with full write queue.
+	 *
+	 * @return the slow client policy
+	 */
+	public BackpressurePolicy getSlowClientPolicy() {
+		return mSlowClientPolicy;
+	}
+}
@@ -0,0 +1,103 @@
+package com.ees.bluetooth;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The Class LatencyHistogram. Latency distribution with power of two buckets
+ * in microseconds. Bucket 0 counts values below 1us, bucket i counts values
+ * from 2^(i-1) up to 2^i microseconds, the last bucket is open ended.
+ * Recording is lock free and does not allocate, snapshots are plain copies.
+ */
+public class LatencyHistogram {
+
+	/** The number of buckets, the last one holds everything above 2^30us. */
+	public static final int BUCKETS = 32;
+
+	/** The bucket counters. */
+	private final AtomicLongArray mCounts = new AtomicLongArray(BUCKETS);
+
+	/**
+	 * Instantiates a new empty latency histogram.
+	 */
+	LatencyHistogram() {
+	}
+
+	/**
+	 * Records one value.
+	 *
+	 * @param nanos the latency in nanoseconds
+	 */
+	void record(long nanos) {
+		long micros = nanos / 1000;
+		int bucket = micros <= 0 ? 0 : 64 - Long.numberOfLeadingZeros(micros);
+		mCounts.incrementAndGet(bucket < BUCKETS ? bucket : BUCKETS - 1);
+	}
+
+	/**
+	 * Copies current counts into a new histogram.
+	 *
+	 * @return the copy
+	 */
+	LatencyHistogram copy() {
+		LatencyHistogram copy = new LatencyHistogram();
+		for(int i = 0; i < BUCKETS; i++) {
+			copy.mCounts.set(i, mCounts.get(i));
+		}
+		return copy;
+	}
+
+	/**
+	 * Gets the number of values in given bucket.
+	 *
+	 * @param bucket the bucket index
+	 * @return the count
+	 */
+	public long getCount(int bucket) {
+		return mCounts.get(bucket);
+	}
+
+	/**
+	 * Gets the exclusive upper bound of given bucket.
+	 *
+	 * @param bucket the bucket index
+	 * @return the upper bound in microseconds, Long.MAX_VALUE for the last bucket
+	 */
+	public static long getUpperBoundMicros(int bucket) {
+		return bucket < BUCKETS - 1 ? 1L << bucket : Long.MAX_VALUE;
+	}
+
+	/**
+	 * Gets the number of recorded values.
+	 *
+	 * @return the total count
+	 */
+	public long getTotalCount() {
+		long total = 0;
+		for(int i = 0; i < BUCKETS; i++) {
+			total += mCounts.get(i);
+		}
+		return total;
+	}
+
+	/**
+	 * Gets the upper bound of the bucket holding given percentile.
+	 *
+	 * @param percentile the percentile from 0 to 100
+	 * @return the latency bound in microseconds, 0 when nothing was recorded
+	 */
+	public long getPercentileMicros(double percentile) {
+		long total = getTotalCount();
+		if(total == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(total * percentile / 100.0);
+		long seen = 0;
+		for(int i = 0; i < BUCKETS; i++) {
+			seen += mCounts.get(i);
+			if(seen >= rank && seen > 0) {
+				return getUpperBoundMicros(i);
+			}
+		}
+		return getUpperBoundMicros(BUCKETS - 1);
+	}
+}
@@ -0,0 +1,20 @@
+package com.ees.bluetooth;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The listener interface for receiving whole messages when framing is enabled.
+ *
+ * @see ConnectionManager#setFrameCodec(FrameCodec)
+ */
+public interface MessageListener {
+
+	/**
+	 * Called on the channel thread for every received message. The buffer
+	 * is read only and valid only during the call, copy what has to be kept.
+	 *
+	 * @param address the device address
+	 * @param message the message payload
+	 */
+	void onMessageReceived(String address, ByteBuffer message);
+}
@@ -0,0 +1,328 @@
+package com.ees.bluetooth;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * The Class MessageReader. Decodes fields of a {@link TypedMessage} straight
+ * from the received message, in the order {@link MessageWriter} wrote them.
+ * Strings may be appended to a reused builder and arrays decoded into
+ * reused arrays of the same length, so a message instance kept by the
+ * application is filled without allocation. Reading past the end of the
+ * message throws {@link BufferUnderflowException}, the message is then
+ * dropped as malformed.
+ */
+public final class MessageReader {
+
+	/** The message being read. */
+	private ByteBuffer mIn;
+
+	/** The decoded characters of strings. */
+	private char[] mChars = new char[64];
+
+	/**
+	 * Instantiates a new message reader.
+	 */
+	MessageReader() {
+	}
+
+	/**
+	 * Starts reading a message.
+	 *
+	 * @param message the message, positioned at the first field, null to forget it
+	 */
+	void wrap(ByteBuffer message) {
+		mIn = message;
+	}
+
+	/**
+	 * Gets the number of bytes not read yet.
+	 *
+	 * @return the remaining bytes
+	 */
+	public int remaining() {
+		return mIn.remaining();
+	}
+
+	/**
+	 * Read boolean.
+	 *
+	 * @return the value
+	 */
+	public boolean readBoolean() {
+		return mIn.get() != 0;
+	}
+
+	/**
+	 * Read byte.
+	 *
+	 * @return the value
+	 */
+	public byte readByte() {
+		return mIn.get();
+	}
+
+	/**
+	 * Read short.
+	 *
+	 * @return the value
+	 */
+	public short readShort() {
+		return mIn.getShort();
+	}
+
+	/**
+	 * Read int.
+	 *
+	 * @return the value
+	 */
+	public int readInt() {
+		return mIn.getInt();
+	}
+
+	/**
+	 * Read long.
+	 *
+	 * @return the value
+	 */
+	public long readLong() {
+		return mIn.getLong();
+	}
+
+	/**
+	 * Read float.
+	 *
+	 * @return the value
+	 */
+	public float readFloat() {
+		return mIn.getFloat();
+	}
+
+	/**
+	 * Read double.
+	 *
+	 * @return the value
+	 */
+	public double readDouble() {
+		return mIn.getDouble();
+	}
+
+	/**
+	 * Read variable length int written by {@link MessageWriter#writeVarInt(int)}.
+	 *
+	 * @return the value
+	 */
+	public int readVarInt() {
+		int value = readUnsigned();
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	/**
+	 * Read string.
+	 *
+	 * @return the value, may be null
+	 */
+	public String readString() {
+		int length = readUnsigned() - 1;
+		if(length < 0) {
+			return null;
+		}
+		int count = decode(length);
+		return new String(mChars, 0, count);
+	}
+
+	/**
+	 * Read string into given builder, which is cleared first.
+	 *
+	 * @param dst the destination
+	 * @return false, if null was written
+	 */
+	public boolean readString(StringBuilder dst) {
+		dst.setLength(0);
+		int length = readUnsigned() - 1;
+		if(length < 0) {
+			return false;
+		}
+		int count = decode(length);
+		dst.append(mChars, 0, count);
+		return true;
+	}
+
+	/**
+	 * Read byte array.
+	 *
+	 * @param reuse the array returned when its length matches, may be null
+	 * @return the values, may be null
+	 */
+	public byte[] readByteArray(byte[] reuse) {
+		int count = readCount(1);
+		if(count < 0) {
+			return null;
+		}
+		byte[] values = reuse != null && reuse.length == count ? reuse : new byte[count];
+		mIn.get(values);
+		return values;
+	}
+
+	/**
+	 * Read int array.
+	 *
+	 * @param reuse the array returned when its length matches, may be null
+	 * @return the values, may be null
+	 */
+	public int[] readIntArray(int[] reuse) {
+		int count = readCount(4);
+		if(count < 0) {
+			return null;
+		}
+		int[] values = reuse != null && reuse.length == count ? reuse : new int[count];
+		for(int i = 0; i < count; i++) {
+			values[i] = mIn.getInt();
+		}
+		return values;
+	}
+
+	/**
+	 * Read long array.
+	 *
+	 * @param reuse the array returned when its length matches, may be null
+	 * @return the values, may be null
+	 */
+	public long[] readLongArray(long[] reuse) {
+		int count = readCount(8);
+		if(count < 0) {
+			return null;
+		}
+		long[] values = reuse != null && reuse.length == count ? reuse : new long[count];
+		for(int i = 0; i < count; i++) {
+			values[i] = mIn.getLong();
+		}
+		return values;
+	}
+
+	/**
+	 * Read float array.
+	 *
+	 * @param reuse the array returned when its length matches, may be null
+	 * @return the values, may be null
+	 */
+	public float[] readFloatArray(float[] reuse) {
+		int count = readCount(4);
+		if(count < 0) {
+			return null;
+		}
+		float[] values = reuse != null && reuse.length == count ? reuse : new float[count];
+		for(int i = 0; i < count; i++) {
+			values[i] = mIn.getFloat();
+		}
+		return values;
+	}
+
+	/**
+	 * Read double array.
+	 *
+	 * @param reuse the array returned when its length matches, may be null
+	 * @return the values, may be null
+	 */
+	public double[] readDoubleArray(double[] reuse) {
+		int count = readCount(8);
+		if(count < 0) {
+			return null;
+		}
+		double[] values = reuse != null && reuse.length == count ? reuse : new double[count];
+		for(int i = 0; i < count; i++) {
+			values[i] = mIn.getDouble();
+		}
+		return values;
+	}
+
+	/**
+	 * Reads the length of an array, checked against the remaining bytes
+	 * so a corrupt length cannot allocate a huge array.
+	 *
+	 * @param size the element size
+	 * @return the number of elements, -1 for null array
+	 */
+	private int readCount(int size) {
+		int count = readUnsigned() - 1;
+		if(count > mIn.remaining() / size) {
+			throw new BufferUnderflowException();
+		}
+		return count;
+	}
+
+	/**
+	 * Read unsigned variable length int.
+	 *
+	 * @return the value
+	 */
+	private int readUnsigned() {
+		int value = 0;
+		for(int shift = 0; shift < 35; shift += 7) {
+			byte b = mIn.get();
+			value |= (b & 0x7f) << shift;
+			if(b >= 0) {
+				return value;
+			}
+		}
+		throw new BufferUnderflowException();
+	}
+
+	/**
+	 * Decodes UTF-8 bytes into the characters, malformed sequences are
+	 * replaced by U+FFFD.
+	 *
+	 * @param length the byte length
+	 * @return the number of characters
+	 */
+	private int decode(int length) {
+		if(length > mIn.remaining()) {
+			throw new BufferUnderflowException();
+		}
+		if(mChars.length < length) {
+			mChars = new char[Math.max(length, mChars.length * 2)];
+		}
+		char[] chars = mChars;
+		int end = mIn.position() + length;
+		int count = 0;
+		while(mIn.position() < end) {
+			int b = mIn.get();
+			if(b >= 0) {
+				chars[count++] = (char) b;
+				continue;
+			}
+			int extra;
+			int cp;
+			if((b & 0xe0) == 0xc0) {
+				extra = 1;
+				cp = b & 0x1f;
+			} else if((b & 0xf0) == 0xe0) {
+				extra = 2;
+				cp = b & 0x0f;
+			} else if((b & 0xf8) == 0xf0) {
+				extra = 3;
+				cp = b & 0x07;
+			} else {
+				chars[count++] = '\ufffd';
+				continue;
+			}
+			if(mIn.position() + extra > end) {
+				mIn.position(end);
+				chars[count++] = '\ufffd';
+				break;
+			}
+			boolean valid = true;
+			for(int i = 0; i < extra; i++) {
+				int next = mIn.get();
+				valid &= (next & 0xc0) == 0x80;
+				cp = (cp << 6) | (next & 0x3f);
+			}
+			if(!valid || cp > Character.MAX_CODE_POINT) {
+				chars[count++] = '\ufffd';
+			} else {
+				count += Character.toChars(cp, chars, count);
+			}
+		}
+		return count;
+	}
+}
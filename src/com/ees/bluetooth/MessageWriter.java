@@ -0,0 +1,346 @@
+package com.ees.bluetooth;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The Class MessageWriter. Encodes fields of a {@link TypedMessage} straight
+ * into a pooled buffer. Numbers are written big endian in fixed width, or
+ * as variable length integers taking one byte for small values. Strings are
+ * written as UTF-8 and arrays as their elements, both preceded by a length
+ * which also tells null apart. A buffer too small is replaced by a bigger
+ * one, writers are reused per thread so encoding does not allocate.
+ */
+public final class MessageWriter {
+
+	/** The pool of buffers. */
+	private BufferPool mPool;
+
+	/** The buffer being filled. */
+	private PooledBuffer mBuffer;
+
+	/** The writable view of the buffer. */
+	private ByteBuffer mOut;
+
+	/**
+	 * Instantiates a new message writer.
+	 */
+	MessageWriter() {
+	}
+
+	/**
+	 * Starts a message in a buffer acquired from given pool.
+	 *
+	 * @param pool the pool
+	 */
+	void begin(BufferPool pool) {
+		mPool = pool;
+		mBuffer = pool.acquire();
+		mOut = mBuffer.writeView();
+	}
+
+	/**
+	 * Finishes the message.
+	 *
+	 * @return the buffer holding the message, owned by the caller
+	 */
+	PooledBuffer finish() {
+		PooledBuffer buffer = mBuffer;
+		buffer.setLength(mOut.position() - buffer.offset());
+		clear();
+		return buffer;
+	}
+
+	/**
+	 * Drops the message being written.
+	 */
+	void abort() {
+		if(mBuffer != null) {
+			mBuffer.release();
+		}
+		clear();
+	}
+
+	/**
+	 * Forgets the buffer.
+	 */
+	private void clear() {
+		mPool = null;
+		mBuffer = null;
+		mOut = null;
+	}
+
+	/**
+	 * Write boolean.
+	 *
+	 * @param value the value
+	 */
+	public void writeBoolean(boolean value) {
+		ensure(1);
+		mOut.put(value ? (byte) 1 : (byte) 0);
+	}
+
+	/**
+	 * Write byte.
+	 *
+	 * @param value the value
+	 */
+	public void writeByte(int value) {
+		ensure(1);
+		mOut.put((byte) value);
+	}
+
+	/**
+	 * Write short.
+	 *
+	 * @param value the value
+	 */
+	public void writeShort(int value) {
+		ensure(2);
+		mOut.putShort((short) value);
+	}
+
+	/**
+	 * Write int.
+	 *
+	 * @param value the value
+	 */
+	public void writeInt(int value) {
+		ensure(4);
+		mOut.putInt(value);
+	}
+
+	/**
+	 * Write long.
+	 *
+	 * @param value the value
+	 */
+	public void writeLong(long value) {
+		ensure(8);
+		mOut.putLong(value);
+	}
+
+	/**
+	 * Write float.
+	 *
+	 * @param value the value
+	 */
+	public void writeFloat(float value) {
+		ensure(4);
+		mOut.putFloat(value);
+	}
+
+	/**
+	 * Write double.
+	 *
+	 * @param value the value
+	 */
+	public void writeDouble(double value) {
+		ensure(8);
+		mOut.putDouble(value);
+	}
+
+	/**
+	 * Write variable length int, zig-zag encoded so values from -64 to 63
+	 * take one byte and small negative values stay short too.
+	 *
+	 * @param value the value
+	 */
+	public void writeVarInt(int value) {
+		writeUnsigned((value << 1) ^ (value >> 31));
+	}
+
+	/**
+	 * Write string as UTF-8 preceded by its byte length. Unpaired
+	 * surrogates are replaced by '?' like {@link String#getBytes(String)} does.
+	 *
+	 * @param value the value, may be null
+	 */
+	public void writeString(CharSequence value) {
+		if(value == null) {
+			writeUnsigned(0);
+			return;
+		}
+		int length = value.length();
+		int bytes = 0;
+		for(int i = 0; i < length; i++) {
+			char c = value.charAt(i);
+			if(c < 0x80) {
+				bytes++;
+			} else if(c < 0x800) {
+				bytes += 2;
+			} else if(isSurrogatePair(value, i)) {
+				bytes += 4;
+				i++;
+			} else if(c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+				bytes++;
+			} else {
+				bytes += 3;
+			}
+		}
+		writeUnsigned(bytes + 1);
+		ensure(bytes);
+		byte[] dst = mBuffer.array();
+		int pos = mOut.position();
+		for(int i = 0; i < length; i++) {
+			char c = value.charAt(i);
+			if(c < 0x80) {
+				dst[pos++] = (byte) c;
+			} else if(c < 0x800) {
+				dst[pos++] = (byte) (0xc0 | (c >> 6));
+				dst[pos++] = (byte) (0x80 | (c & 0x3f));
+			} else if(isSurrogatePair(value, i)) {
+				int cp = Character.toCodePoint(c, value.charAt(++i));
+				dst[pos++] = (byte) (0xf0 | (cp >> 18));
+				dst[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+				dst[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+				dst[pos++] = (byte) (0x80 | (cp & 0x3f));
+			} else if(c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+				dst[pos++] = (byte) '?';
+			} else {
+				dst[pos++] = (byte) (0xe0 | (c >> 12));
+				dst[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+				dst[pos++] = (byte) (0x80 | (c & 0x3f));
+			}
+		}
+		mOut.position(pos);
+	}
+
+	/**
+	 * Write byte array preceded by its length.
+	 *
+	 * @param values the values, may be null
+	 * @param offset the offset of the first value
+	 * @param count the number of values
+	 */
+	public void writeByteArray(byte[] values, int offset, int count) {
+		if(writeCount(values == null, count, 1)) {
+			mOut.put(values, offset, count);
+		}
+	}
+
+	/**
+	 * Write int array preceded by its length.
+	 *
+	 * @param values the values, may be null
+	 * @param offset the offset of the first value
+	 * @param count the number of values
+	 */
+	public void writeIntArray(int[] values, int offset, int count) {
+		if(writeCount(values == null, count, 4)) {
+			for(int i = offset; i < offset + count; i++) {
+				mOut.putInt(values[i]);
+			}
+		}
+	}
+
+	/**
+	 * Write long array preceded by its length.
+	 *
+	 * @param values the values, may be null
+	 * @param offset the offset of the first value
+	 * @param count the number of values
+	 */
+	public void writeLongArray(long[] values, int offset, int count) {
+		if(writeCount(values == null, count, 8)) {
+			for(int i = offset; i < offset + count; i++) {
+				mOut.putLong(values[i]);
+			}
+		}
+	}
+
+	/**
+	 * Write float array preceded by its length.
+	 *
+	 * @param values the values, may be null
+	 * @param offset the offset of the first value
+	 * @param count the number of values
+	 */
+	public void writeFloatArray(float[] values, int offset, int count) {
+		if(writeCount(values == null, count, 4)) {
+			for(int i = offset; i < offset + count; i++) {
+				mOut.putFloat(values[i]);
+			}
+		}
+	}
+
+	/**
+	 * Write double array preceded by its length.
+	 *
+	 * @param values the values, may be null
+	 * @param offset the offset of the first value
+	 * @param count the number of values
+	 */
+	public void writeDoubleArray(double[] values, int offset, int count) {
+		if(writeCount(values == null, count, 8)) {
+			for(int i = offset; i < offset + count; i++) {
+				mOut.putDouble(values[i]);
+			}
+		}
+	}
+
+	/**
+	 * Writes the length of an array and makes room for its elements.
+	 *
+	 * @param isNull true for null array
+	 * @param count the number of elements
+	 * @param size the element size
+	 * @return true, if elements are to be written
+	 */
+	private boolean writeCount(boolean isNull, int count, int size) {
+		if(isNull) {
+			writeUnsigned(0);
+			return false;
+		}
+		if(count < 0) {
+			throw new IllegalArgumentException("Negative count " + count);
+		}
+		writeUnsigned(count + 1);
+		ensure(count * size);
+		return true;
+	}
+
+	/**
+	 * Write unsigned variable length int, seven bits per byte.
+	 *
+	 * @param value the value
+	 */
+	private void writeUnsigned(int value) {
+		ensure(5);
+		while((value & ~0x7f) != 0) {
+			mOut.put((byte) ((value & 0x7f) | 0x80));
+			value >>>= 7;
+		}
+		mOut.put((byte) value);
+	}
+
+	/**
+	 * Checks if a surrogate pair starts at given index.
+	 *
+	 * @param value the text
+	 * @param i the index
+	 * @return true, if a high surrogate followed by a low one
+	 */
+	private static boolean isSurrogatePair(CharSequence value, int i) {
+		return Character.isHighSurrogate(value.charAt(i)) && i + 1 < value.length()
+				&& Character.isLowSurrogate(value.charAt(i + 1));
+	}
+
+	/**
+	 * Makes room for given number of bytes, the message is moved to a
+	 * bigger buffer when the current one is full.
+	 *
+	 * @param bytes the number of bytes
+	 */
+	private void ensure(int bytes) {
+		if(mOut.remaining() >= bytes) {
+			return;
+		}
+		int length = mOut.position() - mBuffer.offset();
+		PooledBuffer bigger = mPool.acquire(Math.max(mBuffer.capacity() * 2, length + bytes));
+		ByteBuffer out = bigger.writeView();
+		out.put(mBuffer.array(), mBuffer.offset(), length);
+		mBuffer.release();
+		mBuffer = bigger;
+		mOut = out;
+	}
+}
@@ -0,0 +1,19 @@
+package com.ees.bluetooth;
+
+import java.util.List;
+
+/**
+ * The listener interface receiving periodic metrics reports.
+ *
+ * @see ConnectionManager#setMetricsListener(MetricsListener, long)
+ */
+public interface MetricsListener {
+
+	/**
+	 * Called on the manager scheduler thread with snapshots of every device
+	 * seen so far. Keep the call short, it delays other timers.
+	 *
+	 * @param snapshots the snapshots
+	 */
+	void onMetrics(List<MetricsSnapshot> snapshots);
+}
@@ -0,0 +1,262 @@
+package com.ees.bluetooth;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The Class MetricsSnapshot. Immutable copy of the counters of one remote
+ * device taken at a point in time. Counters are cumulative since the device
+ * was first seen, so rates are obtained by diffing two snapshots.
+ *
+ * @see ConnectionManager#getMetrics()
+ */
+public class MetricsSnapshot {
+
+	/** The remote device address. */
+	private final String mAddress;
+
+	/** The time the snapshot was taken, see System.currentTimeMillis(). */
+	private final long mTimestamp;
+
+	/** The connection state. */
+	private final ConnectionState mState;
+
+	/** The time spent in current state. */
+	private final long mTimeInStateMillis;
+
+	/** The received bytes. */
+	private final long mBytesIn;
+
+	/** The sent bytes. */
+	private final long mBytesOut;
+
+	/** The received messages. */
+	private final long mMessagesIn;
+
+	/** The sent messages. */
+	private final long mMessagesOut;
+
+	/** The number of writes waiting in the queue. */
+	private final int mWriteQueueDepth;
+
+	/** The duration of socket write calls. */
+	private final LatencyHistogram mWriteLatency;
+
+	/** The round trip times measured by heartbeats. */
+	private final LatencyHistogram mRoundTrip;
+
+	/** The duration of last successful dial. */
+	private final long mConnectTimeMicros;
+
+	/** The successful dials. */
+	private final long mConnectCount;
+
+	/** The accepted incoming connections. */
+	private final long mAcceptCount;
+
+	/** The channels established after a previous one. */
+	private final long mReconnectCount;
+
+	/** The failed dials. */
+	private final long mFailureCount;
+
+	/** The lost channels. */
+	private final long mDisconnectCount;
+
+	/**
+	 * Instantiates a new metrics snapshot.
+	 *
+	 * @param metrics the live metrics
+	 * @param writeQueueDepth the current write queue depth
+	 */
+	MetricsSnapshot(ConnectionMetrics metrics, int writeQueueDepth) {
+		mAddress = metrics.getAddress();
+		mTimestamp = System.currentTimeMillis();
+		mState = metrics.getState();
+		mTimeInStateMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - metrics.getStateSinceNanos());
+		mBytesIn = metrics.getBytesIn();
+		mBytesOut = metrics.getBytesOut();
+		mMessagesIn = metrics.getMessagesIn();
+		mMessagesOut = metrics.getMessagesOut();
+		mWriteQueueDepth = writeQueueDepth;
+		mWriteLatency = metrics.getWriteLatency().copy();
+		mRoundTrip = metrics.getRoundTrip().copy();
+		mConnectTimeMicros = TimeUnit.NANOSECONDS.toMicros(metrics.getConnectNanos());
+		mConnectCount = metrics.getConnects();
+		mAcceptCount = metrics.getAccepts();
+		mReconnectCount = metrics.getReconnects();
+		mFailureCount = metrics.getFailures();
+		mDisconnectCount = metrics.getDisconnects();
+	}
+
+	/**
+	 * Gets the remote device address.
+	 *
+	 * @return the address
+	 */
+	public String getAddress() {
+		return mAddress;
+	}
+
+	/**
+	 * Gets the time the snapshot was taken.
+	 *
+	 * @return the wall clock time in milliseconds
+	 */
+	public long getTimestamp() {
+		return mTimestamp;
+	}
+
+	/**
+	 * Gets the connection state.
+	 *
+	 * @return the state
+	 */
+	public ConnectionState getState() {
+		return mState;
+	}
+
+	/**
+	 * Gets the time spent in current state.
+	 *
+	 * @return the time in milliseconds
+	 */
+	public long getTimeInStateMillis() {
+		return mTimeInStateMillis;
+	}
+
+	/**
+	 * Gets the received bytes.
+	 *
+	 * @return the byte count
+	 */
+	public long getBytesIn() {
+		return mBytesIn;
+	}
+
+	/**
+	 * Gets the sent bytes, including frame headers.
+	 *
+	 * @return the byte count
+	 */
+	public long getBytesOut() {
+		return mBytesOut;
+	}
+
+	/**
+	 * Gets the received messages. Without framing every read counts as one.
+	 *
+	 * @return the message count
+	 */
+	public long getMessagesIn() {
+		return mMessagesIn;
+	}
+
+	/**
+	 * Gets the sent messages.
+	 *
+	 * @return the message count
+	 */
+	public long getMessagesOut() {
+		return mMessagesOut;
+	}
+
+	/**
+	 * Gets the number of writes waiting in the queue.
+	 *
+	 * @return the queue depth, 0 when not connected
+	 */
+	public int getWriteQueueDepth() {
+		return mWriteQueueDepth;
+	}
+
+	/**
+	 * Gets the distribution of socket write call durations. One call may
+	 * carry several coalesced messages.
+	 *
+	 * @return the histogram
+	 */
+	public LatencyHistogram getWriteLatency() {
+		return mWriteLatency;
+	}
+
+	/**
+	 * Gets the distribution of round trip times measured by heartbeats,
+	 * empty unless heartbeats are enabled and the link was idle.
+	 *
+	 * @return the histogram
+	 * @see HeartbeatConfig
+	 */
+	public LatencyHistogram getRoundTrip() {
+		return mRoundTrip;
+	}
+
+	/**
+	 * Gets the time the last successful dial spent in connect.
+	 *
+	 * @return the duration in microseconds, 0 when never dialed
+	 */
+	public long getConnectTimeMicros() {
+		return mConnectTimeMicros;
+	}
+
+	/**
+	 * Gets the number of successful dials.
+	 *
+	 * @return the count
+	 */
+	public long getConnectCount() {
+		return mConnectCount;
+	}
+
+	/**
+	 * Gets the number of accepted incoming connections.
+	 *
+	 * @return the count
+	 */
+	public long getAcceptCount() {
+		return mAcceptCount;
+	}
+
+	/**
+	 * Gets the number of channels established after a previous one.
+	 *
+	 * @return the count
+	 */
+	public long getReconnectCount() {
+		return mReconnectCount;
+	}
+
+	/**
+	 * Gets the number of failed dials.
+	 *
+	 * @return the count
+	 */
+	public long getFailureCount() {
+		return mFailureCount;
+	}
+
+	/**
+	 * Gets the number of lost channels.
+	 *
+	 * @return the count
+	 */
+	public long getDisconnectCount() {
+		return mDisconnectCount;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "MetricsSnapshot [address=" + mAddress + ", state=" + mState
+				+ ", timeInState=" + mTimeInStateMillis + "ms, bytesIn=" + mBytesIn
+				+ ", bytesOut=" + mBytesOut + ", messagesIn=" + mMessagesIn
+				+ ", messagesOut=" + mMessagesOut + ", queueDepth=" + mWriteQueueDepth
+				+ ", writeP99=" + mWriteLatency.getPercentileMicros(99) + "us, rttP50="
+				+ mRoundTrip.getPercentileMicros(50) + "us, connectTime="
+				+ mConnectTimeMicros + "us, connects=" + mConnectCount + ", accepts="
+				+ mAcceptCount + ", reconnects=" + mReconnectCount + ", failures="
+				+ mFailureCount + ", disconnects=" + mDisconnectCount + "]";
+	}
+}
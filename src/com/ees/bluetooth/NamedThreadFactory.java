@@ -0,0 +1,37 @@
+package com.ees.bluetooth;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The Class NamedThreadFactory. Creates daemon threads named with a common
+ * prefix and a sequence number, so pooled library threads are easy to tell
+ * apart in traces and never keep the process alive.
+ */
+class NamedThreadFactory implements ThreadFactory {
+
+	/** The thread name prefix. */
+	private final String mPrefix;
+
+	/** The sequence of created threads. */
+	private final AtomicInteger mCount = new AtomicInteger();
+
+	/**
+	 * Instantiates a new named thread factory.
+	 *
+	 * @param prefix the thread name prefix
+	 */
+	NamedThreadFactory(String prefix) {
+		mPrefix = prefix;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.util.concurrent.ThreadFactory#newThread(java.lang.Runnable)
+	 */
+	@Override
+	public Thread newThread(Runnable r) {
+		Thread thread = new Thread(r, mPrefix + "-" + mCount.incrementAndGet());
+		thread.setDaemon(true);
+		return thread;
+	}
+}
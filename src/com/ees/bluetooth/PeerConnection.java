@@ -0,0 +1,206 @@
+package com.ees.bluetooth;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The Class PeerConnection. Single entry of the connection table kept by
+ * {@link ConnectionManager}. It groups everything related to one remote
+ * device: its address, its own connection state, the connector used while
+ * dialing and the channel used once connected. The connector and the
+ * channel are swapped atomically, so the thread which takes one over owns
+ * the handover and threads finishing a superseded attempt back off
+ * without locking.
+ */
+class PeerConnection {
+
+	/** The remote device address. */
+	private final String mAddress;
+
+	/** The connection state of this peer. */
+	private final ConnectionStateMachine mState;
+
+	/** The remote device name. */
+	private volatile String mDeviceName;
+
+	/** The opened channel, null until connected. */
+	private final AtomicReference<Channel> mChannel = new AtomicReference<Channel>();
+
+	/** The connector, not null only while dialing. */
+	private final AtomicReference<ChannelConnector> mConnector = new AtomicReference<ChannelConnector>();
+
+	/** The flag of connections dialed by this side. */
+	private volatile boolean mOutbound;
+
+	/** The metrics of the device, shared by successive connections. */
+	private final ConnectionMetrics mMetrics;
+
+	/**
+	 * Instantiates a new peer connection.
+	 *
+	 * @param address the remote device address
+	 * @param metrics the metrics of the device
+	 * @param listeners the state listeners of the manager
+	 */
+	PeerConnection(String address, ConnectionMetrics metrics, List<ConnectionStateListener> listeners) {
+		mAddress = address;
+		mMetrics = metrics;
+		mState = new ConnectionStateMachine(address, ConnectionStateMachine.PEER_TRANSITIONS, listeners);
+	}
+
+	/**
+	 * Gets the address.
+	 *
+	 * @return the remote device address
+	 */
+	String getAddress() {
+		return mAddress;
+	}
+
+	/**
+	 * Gets the state.
+	 *
+	 * @return the state
+	 */
+	ConnectionState getState() {
+		return mState.get();
+	}
+
+	/**
+	 * Moves to given state only from the observed one.
+	 *
+	 * @param expected the state observed by the caller
+	 * @param state the new state
+	 * @return true, if the transition has been made
+	 */
+	boolean compareAndSetState(ConnectionState expected, ConnectionState state) {
+		if(!mState.compareAndSet(expected, state)) {
+			return false;
+		}
+		mMetrics.setState(state);
+		return true;
+	}
+
+	/**
+	 * Gets the metrics.
+	 *
+	 * @return the metrics of the device
+	 */
+	ConnectionMetrics getMetrics() {
+		return mMetrics;
+	}
+
+	/**
+	 * Gets the device name.
+	 *
+	 * @return the device name
+	 */
+	String getDeviceName() {
+		return mDeviceName;
+	}
+
+	/**
+	 * Sets the device name.
+	 *
+	 * @param name the new device name
+	 */
+	void setDeviceName(String name) {
+		mDeviceName = name;
+	}
+
+	/**
+	 * Gets the channel.
+	 *
+	 * @return the channel or null
+	 */
+	Channel getChannel() {
+		return mChannel.get();
+	}
+
+	/**
+	 * Replaces the channel.
+	 *
+	 * @param channel the new channel
+	 * @return the previous channel or null
+	 */
+	Channel getAndSetChannel(Channel channel) {
+		return mChannel.getAndSet(channel);
+	}
+
+	/**
+	 * Replaces the channel only if it is the expected one.
+	 *
+	 * @param expected the expected channel
+	 * @param channel the new channel
+	 * @return true, if replaced
+	 */
+	boolean compareAndSetChannel(Channel expected, Channel channel) {
+		return mChannel.compareAndSet(expected, channel);
+	}
+
+	/**
+	 * Checks if the connection was dialed by this side.
+	 *
+	 * @return true, if outbound
+	 */
+	boolean isOutbound() {
+		return mOutbound;
+	}
+
+	/**
+	 * Sets the outbound flag.
+	 *
+	 * @param outbound true, if the connection is dialed by this side
+	 */
+	void setOutbound(boolean outbound) {
+		mOutbound = outbound;
+	}
+
+	/**
+	 * Gets the connector.
+	 *
+	 * @return the connector or null
+	 */
+	ChannelConnector getConnector() {
+		return mConnector.get();
+	}
+
+	/**
+	 * Replaces the connector.
+	 *
+	 * @param connector the new connector
+	 * @return the previous connector or null
+	 */
+	ChannelConnector getAndSetConnector(ChannelConnector connector) {
+		return mConnector.getAndSet(connector);
+	}
+
+	/**
+	 * Replaces the connector only if it is the expected one.
+	 *
+	 * @param expected the expected connector
+	 * @param connector the new connector
+	 * @return true, if replaced
+	 */
+	boolean compareAndSetConnector(ChannelConnector expected, ChannelConnector connector) {
+		return mConnector.compareAndSet(expected, connector);
+	}
+
+	/**
+	 * Cancel. Method closes the connector and the channel of this peer.
+	 */
+	void cancel() {
+		ChannelConnector connector = mConnector.getAndSet(null);
+		if(connector != null) {
+			connector.cancel();
+		}
+		Channel channel = mChannel.getAndSet(null);
+		if(channel != null) {
+			channel.cancel();
+		}
+		ConnectionState state;
+		do {
+			state = mState.get();
+		} while(!compareAndSetState(state, ConnectionState.NONE));
+	}
+}
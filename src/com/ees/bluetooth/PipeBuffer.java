@@ -0,0 +1,195 @@
+package com.ees.bluetooth;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * The Class PipeBuffer. Bounded byte ring connecting one writer with one reader
+ * inside the process. Unlike {@link java.io.PipedInputStream} it does not track
+ * writer threads and does not poll, the reader is woken up as soon as data arrive.
+ */
+class PipeBuffer {
+
+	/** The ring storage. */
+	private final byte[] mBuffer;
+
+	/** The read position. */
+	private int mHead;
+
+	/** The number of buffered bytes. */
+	private int mCount;
+
+	/** Set when writing side has been closed. */
+	private boolean mWriterClosed;
+
+	/** Set when reading side has been closed. */
+	private boolean mReaderClosed;
+
+	/** The input stream view. */
+	private final InputStream mInput = new InputStream() {
+		@Override
+		public int read() throws IOException {
+			byte[] one = new byte[1];
+			int n = read(one, 0, 1);
+			return n < 0 ? -1 : one[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			return PipeBuffer.this.read(b, off, len);
+		}
+
+		@Override
+		public int available() {
+			synchronized (PipeBuffer.this) {
+				return mCount;
+			}
+		}
+
+		@Override
+		public void close() {
+			closeReader();
+		}
+	};
+
+	/** The output stream view. */
+	private final OutputStream mOutput = new OutputStream() {
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			PipeBuffer.this.write(b, off, len);
+		}
+
+		@Override
+		public void close() {
+			closeWriter();
+		}
+	};
+
+	/**
+	 * Instantiates a new pipe buffer.
+	 *
+	 * @param capacity the capacity in bytes
+	 */
+	PipeBuffer(int capacity) {
+		mBuffer = new byte[capacity];
+	}
+
+	/**
+	 * Gets the input stream.
+	 *
+	 * @return the input stream
+	 */
+	InputStream getInputStream() {
+		return mInput;
+	}
+
+	/**
+	 * Gets the output stream.
+	 *
+	 * @return the output stream
+	 */
+	OutputStream getOutputStream() {
+		return mOutput;
+	}
+
+	/**
+	 * Read. Blocks until at least one byte is available.
+	 *
+	 * @param b the destination
+	 * @param off the offset
+	 * @param len the length
+	 * @return the number of bytes read, -1 when writer has been closed
+	 * @throws IOException Signals that the reading side has been closed.
+	 */
+	synchronized int read(byte[] b, int off, int len) throws IOException {
+		if(len == 0) {
+			return 0;
+		}
+		while(mCount == 0) {
+			if(mReaderClosed) {
+				throw new IOException("Pipe closed");
+			}
+			if(mWriterClosed) {
+				return -1;
+			}
+			await();
+		}
+		if(mReaderClosed) {
+			throw new IOException("Pipe closed");
+		}
+		int n = Math.min(len, mCount);
+		int first = Math.min(n, mBuffer.length - mHead);
+		System.arraycopy(mBuffer, mHead, b, off, first);
+		System.arraycopy(mBuffer, 0, b, off + first, n - first);
+		mHead = (mHead + n) % mBuffer.length;
+		mCount -= n;
+		notifyAll();
+		return n;
+	}
+
+	/**
+	 * Write. Blocks while the ring is full.
+	 *
+	 * @param b the source
+	 * @param off the offset
+	 * @param len the length
+	 * @throws IOException Signals that either side has been closed.
+	 */
+	synchronized void write(byte[] b, int off, int len) throws IOException {
+		while(len > 0) {
+			while(mCount == mBuffer.length && !mReaderClosed && !mWriterClosed) {
+				await();
+			}
+			if(mReaderClosed || mWriterClosed) {
+				throw new IOException("Pipe closed");
+			}
+			int tail = (mHead + mCount) % mBuffer.length;
+			int n = Math.min(len, mBuffer.length - mCount);
+			int first = Math.min(n, mBuffer.length - tail);
+			System.arraycopy(b, off, mBuffer, tail, first);
+			System.arraycopy(b, off + first, mBuffer, 0, n - first);
+			mCount += n;
+			off += n;
+			len -= n;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Close writer. Reader gets end of stream once buffered data are consumed.
+	 */
+	synchronized void closeWriter() {
+		mWriterClosed = true;
+		notifyAll();
+	}
+
+	/**
+	 * Close reader. Pending and further operations fail.
+	 */
+	synchronized void closeReader() {
+		mReaderClosed = true;
+		notifyAll();
+	}
+
+	/**
+	 * Waits for notification. Like a socket stream an interrupted operation
+	 * fails, waiting on with the flag kept would spin holding the lock.
+	 *
+	 * @throws InterruptedIOException Signals that the caller was interrupted.
+	 */
+	private void await() throws InterruptedIOException {
+		try {
+			wait();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Pipe operation interrupted");
+		}
+	}
+}
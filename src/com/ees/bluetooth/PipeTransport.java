@@ -0,0 +1,249 @@
+package com.ees.bluetooth;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * The Class PipeTransport. In-process transport, every instance represents one
+ * local device with its own address. Links between instances are pairs of
+ * {@link PipeBuffer}s, so the whole connection engine can run inside single JVM.
+ */
+public class PipeTransport implements Transport {
+
+	/** The default pipe capacity. */
+	public static final int DEFAULT_CAPACITY = 64 * 1024;
+
+	/** The listening transports keyed by local address. */
+	private static final ConcurrentMap<String, PipeServerSocket> sListeners =
+			new ConcurrentHashMap<String, PipeServerSocket>();
+
+	/** The local address. */
+	private final String mAddress;
+
+	/** The capacity of each pipe direction. */
+	private final int mCapacity;
+
+	/**
+	 * Instantiates a new pipe transport.
+	 *
+	 * @param address the local address
+	 */
+	public PipeTransport(String address) {
+		this(address, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Instantiates a new pipe transport.
+	 *
+	 * @param address the local address
+	 * @param capacity the capacity of each pipe direction in bytes
+	 */
+	public PipeTransport(String address, int capacity) {
+		mAddress = address;
+		mCapacity = capacity;
+	}
+
+	/**
+	 * Gets the local address.
+	 *
+	 * @return the address
+	 */
+	public String getAddress() {
+		return mAddress;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ees.bluetooth.Transport#createSocket(java.lang.String, java.util.UUID)
+	 */
+	@Override
+	public TransportSocket createSocket(String address, UUID uuid) {
+		return new PipeSocket(this, address);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ees.bluetooth.Transport#listen(java.lang.String, java.util.UUID)
+	 */
+	@Override
+	public TransportServerSocket listen(String serviceName, UUID uuid) throws IOException {
+		PipeServerSocket server = new PipeServerSocket(mAddress);
+		if(sListeners.putIfAbsent(mAddress, server) != null) {
+			throw new IOException("Address already in use: " + mAddress);
+		}
+		return server;
+	}
+
+	/**
+	 * The Class PipeSocket. One end of the in-process link.
+	 */
+	static class PipeSocket implements TransportSocket {
+
+		/** The transport which created the socket. */
+		private final PipeTransport mTransport;
+
+		/** The remote address. */
+		private final String mRemoteAddress;
+
+		/** The incoming pipe. */
+		private PipeBuffer mIn;
+
+		/** The outgoing pipe. */
+		private PipeBuffer mOut;
+
+		/** The closed flag. */
+		private boolean mClosed;
+
+		/**
+		 * Instantiates a new not connected pipe socket.
+		 *
+		 * @param transport the transport
+		 * @param remoteAddress the remote address
+		 */
+		PipeSocket(PipeTransport transport, String remoteAddress) {
+			mTransport = transport;
+			mRemoteAddress = remoteAddress;
+		}
+
+		/**
+		 * Instantiates a new connected pipe socket.
+		 *
+		 * @param remoteAddress the remote address
+		 * @param in the incoming pipe
+		 * @param out the outgoing pipe
+		 */
+		PipeSocket(String remoteAddress, PipeBuffer in, PipeBuffer out) {
+			mTransport = null;
+			mRemoteAddress = remoteAddress;
+			mIn = in;
+			mOut = out;
+		}
+
+		@Override
+		public void connect() throws IOException {
+			PipeServerSocket server = sListeners.get(mRemoteAddress);
+			if(server == null) {
+				throw new IOException("Connection refused: " + mRemoteAddress);
+			}
+			PipeBuffer in = new PipeBuffer(mTransport.mCapacity);
+			PipeBuffer out = new PipeBuffer(mTransport.mCapacity);
+			synchronized (this) {
+				if(mClosed) {
+					throw new IOException("Socket closed");
+				}
+				mIn = in;
+				mOut = out;
+			}
+			server.offer(new PipeSocket(mTransport.getAddress(), out, in));
+		}
+
+		@Override
+		public synchronized InputStream getInputStream() throws IOException {
+			if(mIn == null) {
+				throw new IOException("Socket not connected");
+			}
+			return mIn.getInputStream();
+		}
+
+		@Override
+		public synchronized OutputStream getOutputStream() throws IOException {
+			if(mOut == null) {
+				throw new IOException("Socket not connected");
+			}
+			return mOut.getOutputStream();
+		}
+
+		@Override
+		public String getRemoteAddress() {
+			return mRemoteAddress;
+		}
+
+		@Override
+		public String getRemoteName() {
+			return mRemoteAddress;
+		}
+
+		@Override
+		public synchronized void close() {
+			mClosed = true;
+			if(mIn != null) {
+				mIn.closeReader();
+			}
+			if(mOut != null) {
+				mOut.closeWriter();
+			}
+		}
+	}
+
+	/**
+	 * The Class PipeServerSocket. Queue of connected sockets waiting for accept.
+	 */
+	static class PipeServerSocket implements TransportServerSocket {
+
+		/** Marker which wakes up pending accept on close. */
+		private static final PipeSocket CLOSED = new PipeSocket(null, null, null);
+
+		/** The local address. */
+		private final String mAddress;
+
+		/** The pending connections. */
+		private final BlockingQueue<PipeSocket> mPending = new LinkedBlockingQueue<PipeSocket>();
+
+		/** The closed flag. */
+		private volatile boolean mClosed;
+
+		/**
+		 * Instantiates a new pipe server socket.
+		 *
+		 * @param address the local address
+		 */
+		PipeServerSocket(String address) {
+			mAddress = address;
+		}
+
+		/**
+		 * Offer connected socket to the accept queue.
+		 *
+		 * @param socket the socket
+		 * @throws IOException Signals that the server has been closed.
+		 */
+		void offer(PipeSocket socket) throws IOException {
+			if(mClosed) {
+				socket.close();
+				throw new IOException("Connection refused: " + mAddress);
+			}
+			mPending.add(socket);
+		}
+
+		@Override
+		public TransportSocket accept() throws IOException {
+			while(!mClosed) {
+				try {
+					PipeSocket socket = mPending.take();
+					if(socket != CLOSED) {
+						return socket;
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Accept interrupted");
+				}
+			}
+			throw new IOException("Socket closed");
+		}
+
+		@Override
+		public void close() {
+			mClosed = true;
+			sListeners.remove(mAddress, this);
+			PipeSocket socket;
+			while((socket = mPending.poll()) != null) {
+				socket.close();
+			}
+			mPending.add(CLOSED);
+		}
+	}
+}
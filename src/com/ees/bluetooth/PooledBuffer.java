@@ -0,0 +1,197 @@
+package com.ees.bluetooth;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The Class PooledBuffer. Reference counted byte buffer borrowed from a
+ * {@link BufferPool} or from the receive ring of a channel. Received data are
+ * handed to listeners in these buffers without copying. Every holder of a
+ * reference has to call {@link #release()} once it does not need the data any
+ * more, the buffer then goes back to its owner.
+ */
+public class PooledBuffer {
+
+	/** The owner the buffer returns to. */
+	private final BufferRecycler mOwner;
+
+	/** The backing array. */
+	private byte[] mArray;
+
+	/** The offset of the buffer in backing array. */
+	private int mOffset;
+
+	/** The capacity. */
+	private int mCapacity;
+
+	/** The read only view of the backing array. */
+	private ByteBuffer mView;
+
+	/** The writable view of the backing array, created on first use. */
+	private ByteBuffer mWriteView;
+
+	/** The number of valid bytes. */
+	private int mLength;
+
+	/** The reference count. */
+	private final AtomicInteger mRefCount = new AtomicInteger();
+
+	/**
+	 * Instantiates a new pooled buffer with its own array.
+	 *
+	 * @param owner the owner
+	 * @param capacity the capacity
+	 */
+	PooledBuffer(BufferRecycler owner, int capacity) {
+		mOwner = owner;
+		wrap(new byte[capacity], 0, capacity);
+	}
+
+	/**
+	 * Instantiates a new pooled buffer which is given part of an array later.
+	 *
+	 * @param owner the owner
+	 */
+	PooledBuffer(BufferRecycler owner) {
+		mOwner = owner;
+	}
+
+	/**
+	 * Gets the data. Returned view is read only and it is shared, each call
+	 * resets its position and limit to the valid bytes, the position is not
+	 * necessarily zero. Use {@link ByteBuffer#duplicate()} to keep
+	 * independent positions.
+	 *
+	 * @return the read only data view
+	 */
+	public ByteBuffer data() {
+		return slice(mOffset, mLength);
+	}
+
+	/**
+	 * Gets the number of valid bytes.
+	 *
+	 * @return the length
+	 */
+	public int length() {
+		return mLength;
+	}
+
+	/**
+	 * Gets the capacity.
+	 *
+	 * @return the capacity
+	 */
+	public int capacity() {
+		return mCapacity;
+	}
+
+	/**
+	 * Retain. Adds one reference, which has to be released separately.
+	 *
+	 * @return this buffer
+	 */
+	public PooledBuffer retain() {
+		if(mRefCount.getAndIncrement() <= 0) {
+			mRefCount.getAndDecrement();
+			throw new IllegalStateException("Buffer already released");
+		}
+		return this;
+	}
+
+	/**
+	 * Release. Drops one reference, the last one returns the buffer to its owner.
+	 */
+	public void release() {
+		int refs = mRefCount.decrementAndGet();
+		if(refs == 0) {
+			mOwner.recycle(this);
+		} else if(refs < 0) {
+			mRefCount.incrementAndGet();
+			throw new IllegalStateException("Buffer already released");
+		}
+	}
+
+	/**
+	 * Gets the backing array for the owner filling the buffer.
+	 *
+	 * @return the array
+	 */
+	byte[] array() {
+		return mArray;
+	}
+
+	/**
+	 * Gets the offset of the buffer in backing array.
+	 *
+	 * @return the offset
+	 */
+	int offset() {
+		return mOffset;
+	}
+
+	/**
+	 * Points the buffer to given part of an array. Views are recreated only
+	 * when the array changes.
+	 *
+	 * @param array the array
+	 * @param offset the offset
+	 * @param capacity the capacity
+	 */
+	void wrap(byte[] array, int offset, int capacity) {
+		if(array != mArray) {
+			mArray = array;
+			mView = ByteBuffer.wrap(array).asReadOnlyBuffer();
+			mWriteView = null;
+		}
+		mOffset = offset;
+		mCapacity = capacity;
+	}
+
+	/**
+	 * Gets the read only view limited to given range of the backing array.
+	 *
+	 * @param off the offset in backing array
+	 * @param len the length
+	 * @return the shared view
+	 */
+	ByteBuffer slice(int off, int len) {
+		mView.clear();
+		mView.limit(off + len);
+		mView.position(off);
+		return mView;
+	}
+
+	/**
+	 * Gets the writable view of the buffer for the owner filling it.
+	 * The view is created once per backing array.
+	 *
+	 * @return the writable view positioned at the buffer start
+	 */
+	ByteBuffer writeView() {
+		if(mWriteView == null) {
+			mWriteView = ByteBuffer.wrap(mArray);
+		}
+		mWriteView.clear();
+		mWriteView.limit(mOffset + mCapacity);
+		mWriteView.position(mOffset);
+		return mWriteView;
+	}
+
+	/**
+	 * Sets the number of valid bytes.
+	 *
+	 * @param length the new length
+	 */
+	void setLength(int length) {
+		mLength = length;
+	}
+
+	/**
+	 * Resets reference count when the buffer is handed out by its owner.
+	 */
+	void acquired() {
+		mRefCount.set(1);
+		mLength = 0;
+	}
+}
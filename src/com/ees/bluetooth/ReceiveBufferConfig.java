@@ -0,0 +1,78 @@
+package com.ees.bluetooth;
+
+/**
+ * The Class ReceiveBufferConfig. Bounds of the adaptive read window of the
+ * per channel receive ring.
+ *
+ * @see ConnectionManager#setReceiveBufferConfig(ReceiveBufferConfig)
+ */
+public class ReceiveBufferConfig {
+
+	/** The default minimal read window. */
+	public static final int DEFAULT_MIN_WINDOW = 256;
+
+	/** The default initial read window. */
+	public static final int DEFAULT_INITIAL_WINDOW = 1024;
+
+	/** The default maximal read window. */
+	public static final int DEFAULT_MAX_WINDOW = 32 * 1024;
+
+	/** The minimal read window. */
+	private final int mMinWindow;
+
+	/** The initial read window. */
+	private final int mInitialWindow;
+
+	/** The maximal read window. */
+	private final int mMaxWindow;
+
+	/**
+	 * Instantiates a new receive buffer config with default bounds.
+	 */
+	public ReceiveBufferConfig() {
+		this(DEFAULT_MIN_WINDOW, DEFAULT_INITIAL_WINDOW, DEFAULT_MAX_WINDOW);
+	}
+
+	/**
+	 * Instantiates a new receive buffer config.
+	 *
+	 * @param minWindow the minimal read window in bytes
+	 * @param initialWindow the initial read window in bytes
+	 * @param maxWindow the maximal read window in bytes
+	 */
+	public ReceiveBufferConfig(int minWindow, int initialWindow, int maxWindow) {
+		if(minWindow <= 0 || initialWindow < minWindow || maxWindow < initialWindow) {
+			throw new IllegalArgumentException("Invalid receive window bounds");
+		}
+		mMinWindow = minWindow;
+		mInitialWindow = initialWindow;
+		mMaxWindow = maxWindow;
+	}
+
+	/**
+	 * Gets the minimal read window.
+	 *
+	 * @return the minimal window
+	 */
+	public int getMinWindow() {
+		return mMinWindow;
+	}
+
+	/**
+	 * Gets the initial read window.
+	 *
+	 * @return the initial window
+	 */
+	public int getInitialWindow() {
+		return mInitialWindow;
+	}
+
+	/**
+	 * Gets the maximal read window.
+	 *
+	 * @return the maximal window
+	 */
+	public int getMaxWindow() {
+		return mMaxWindow;
+	}
+}
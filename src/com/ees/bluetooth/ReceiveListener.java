@@ -0,0 +1,21 @@
+package com.ees.bluetooth;
+
+/**
+ * The listener interface for receiving data from connected devices.
+ *
+ * @see ConnectionManager#setReceiveListener(ReceiveListener)
+ */
+public interface ReceiveListener {
+
+	/**
+	 * Called on the channel thread for every chunk read from the device.
+	 * The listener owns one reference to the buffer and has to call
+	 * {@link PooledBuffer#release()} when done, it may keep the buffer
+	 * and release it later from any thread. The buffer is part of the
+	 * channel receive ring, holding many buffers stalls further reads.
+	 *
+	 * @param address the device address
+	 * @param data the received data
+	 */
+	void onDataReceived(String address, PooledBuffer data);
+}
@@ -0,0 +1,297 @@
+package com.ees.bluetooth;
+
+import java.io.IOException;
+
+/**
+ * The Class ReceiveRing. Per channel receive buffer. Every read goes into the
+ * next free contiguous region of one ring array and the region is handed out
+ * as {@link PooledBuffer} segment; releasing segments frees the ring from its
+ * oldest end. The read window adapts to the traffic: reads which keep filling
+ * the window double it, reads which stay small or follow an idle pause shrink
+ * it. The ring array follows the window whenever no segment is held, so bulk
+ * transfers get fewer larger reads while idle links keep a small footprint.
+ * The reader of an idle link waits without a segment, so {@link #trim()}
+ * called periodically shrinks the ring without waiting for the next read.
+ */
+class ReceiveRing implements BufferRecycler {
+
+	/** The ring size relative to the read window. */
+	private static final int RING_FACTOR = 4;
+
+	/** The maximum number of segments held at once. */
+	private static final int MAX_SEGMENTS = 32;
+
+	/** The number of consecutive full reads growing the window. */
+	private static final int GROW_AFTER = 2;
+
+	/** The number of consecutive small reads shrinking the window. */
+	private static final int SHRINK_AFTER = 8;
+
+	/** The pause after which the link is considered idle. */
+	static final long IDLE_NANOS = 1000L * 1000L * 1000L;
+
+	/** The minimal read window. */
+	private final int mMinWindow;
+
+	/** The maximal read window. */
+	private final int mMaxWindow;
+
+	/** The current read window. */
+	private int mWindow;
+
+	/** The ring array. */
+	private byte[] mArray;
+
+	/** The segment objects, used in FIFO order. */
+	private final PooledBuffer[] mSegments = new PooledBuffer[MAX_SEGMENTS];
+
+	/** The released flags of held segments. */
+	private final boolean[] mReleased = new boolean[MAX_SEGMENTS];
+
+	/** The index of the oldest held segment. */
+	private int mFirst;
+
+	/** The number of held segments. */
+	private int mCount;
+
+	/** The write position in the ring. */
+	private int mHead;
+
+	/** The moving average of read sizes. */
+	private int mAverage;
+
+	/** The number of consecutive reads which filled the window. */
+	private int mFullReads;
+
+	/** The number of consecutive small reads. */
+	private int mSmallReads;
+
+	/** The time of last read. */
+	private long mLastReadNanos;
+
+	/** The closed flag. */
+	private boolean mClosed;
+
+	/**
+	 * Instantiates a new receive ring.
+	 *
+	 * @param config the window bounds
+	 */
+	ReceiveRing(ReceiveBufferConfig config) {
+		mMinWindow = config.getMinWindow();
+		mMaxWindow = config.getMaxWindow();
+		mWindow = config.getInitialWindow();
+		mAverage = mWindow;
+		mArray = new byte[mWindow * RING_FACTOR];
+		for(int i = 0; i < MAX_SEGMENTS; i++) {
+			mSegments[i] = new PooledBuffer(this);
+		}
+		mLastReadNanos = System.nanoTime();
+	}
+
+	/**
+	 * Acquire segment to read into. Waits while segments handed to
+	 * listeners occupy the ring.
+	 *
+	 * @return the segment, its capacity is the size of the next read
+	 * @throws IOException Signals that the ring has been closed.
+	 */
+	synchronized PooledBuffer acquire() throws IOException {
+		while(true) {
+			if(mClosed) {
+				throw new IOException("Channel closed");
+			}
+			if(mCount == 0) {
+				mHead = 0;
+				resizeArray();
+			}
+			if(mCount < MAX_SEGMENTS) {
+				int start = mHead;
+				int end;
+				if(mCount == 0) {
+					end = mArray.length;
+				} else {
+					int tail = mSegments[mFirst].offset();
+					if(mHead > tail) {
+						end = mArray.length;
+						if(end - start < Math.min(mWindow, mMinWindow)) {
+							// Not enough room at the end, continue from the start.
+							start = 0;
+							end = tail;
+						}
+					} else {
+						end = tail;
+					}
+				}
+				int size = Math.min(mWindow, end - start);
+				if(size > 0 && size >= Math.min(mWindow, mMinWindow)) {
+					int index = (mFirst + mCount) % MAX_SEGMENTS;
+					PooledBuffer segment = mSegments[index];
+					segment.wrap(mArray, start, size);
+					segment.acquired();
+					mReleased[index] = false;
+					mCount++;
+					return segment;
+				}
+			}
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Read interrupted");
+			}
+		}
+	}
+
+	/**
+	 * Commits the read into the segment and adapts the read window.
+	 *
+	 * @param segment the segment returned by last acquire
+	 * @param bytes the number of bytes read
+	 */
+	synchronized void commit(PooledBuffer segment, int bytes) {
+		segment.setLength(bytes);
+		mHead = segment.offset() + bytes;
+
+		long now = System.nanoTime();
+		boolean idle = now - mLastReadNanos > IDLE_NANOS;
+		mLastReadNanos = now;
+		mAverage += (bytes - mAverage) / 8;
+
+		if(idle) {
+			// Burst after a pause, start again from a window fitting this read.
+			mFullReads = 0;
+			mSmallReads = 0;
+			mAverage = bytes;
+			mWindow = clamp(roundUpToPowerOfTwo(bytes));
+		} else if(bytes >= segment.capacity()) {
+			mSmallReads = 0;
+			if(++mFullReads >= GROW_AFTER) {
+				mFullReads = 0;
+				mWindow = clamp(mWindow * 2);
+			}
+		} else if(mAverage < mWindow / 4) {
+			mFullReads = 0;
+			if(++mSmallReads >= SHRINK_AFTER) {
+				mSmallReads = 0;
+				mWindow = clamp(mWindow / 2);
+			}
+		} else {
+			mFullReads = 0;
+			mSmallReads = 0;
+		}
+	}
+
+	/**
+	 * Shrinks the window and the ring array to the minimum when the link has
+	 * been idle and no segment is held.
+	 *
+	 * @return true, if the ring has been shrunk
+	 */
+	synchronized boolean trim() {
+		if(mClosed || mCount != 0 || System.nanoTime() - mLastReadNanos <= IDLE_NANOS) {
+			return false;
+		}
+		mFullReads = 0;
+		mSmallReads = 0;
+		mWindow = mMinWindow;
+		mHead = 0;
+		int length = mArray.length;
+		resizeArray();
+		return mArray.length != length;
+	}
+
+	/**
+	 * Checks if no segment is held.
+	 *
+	 * @return true, if the ring is empty
+	 */
+	synchronized boolean isEmpty() {
+		return mCount == 0;
+	}
+
+	/**
+	 * Gets the current read window.
+	 *
+	 * @return the window
+	 */
+	synchronized int getWindow() {
+		return mWindow;
+	}
+
+	/**
+	 * Gets the size of the ring array.
+	 *
+	 * @return the capacity
+	 */
+	synchronized int getCapacity() {
+		return mArray.length;
+	}
+
+	/**
+	 * Close. Wakes up the reader waiting for free room.
+	 */
+	synchronized void close() {
+		mClosed = true;
+		notifyAll();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ees.bluetooth.BufferRecycler#recycle(com.ees.bluetooth.PooledBuffer)
+	 */
+	@Override
+	public synchronized void recycle(PooledBuffer buffer) {
+		for(int i = 0; i < mCount; i++) {
+			int index = (mFirst + i) % MAX_SEGMENTS;
+			if(mSegments[index] == buffer) {
+				mReleased[index] = true;
+				break;
+			}
+		}
+		boolean freed = false;
+		while(mCount > 0 && mReleased[mFirst]) {
+			mReleased[mFirst] = false;
+			mFirst = (mFirst + 1) % MAX_SEGMENTS;
+			mCount--;
+			freed = true;
+		}
+		if(freed) {
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Reallocates empty ring when its size is far from the size the
+	 * current window needs.
+	 */
+	private void resizeArray() {
+		int target = mWindow * RING_FACTOR;
+		if(mArray.length < target || mArray.length > target * 2) {
+			mArray = new byte[target];
+		}
+	}
+
+	/**
+	 * Clamps the window into configured bounds.
+	 *
+	 * @param window the window
+	 * @return the clamped window
+	 */
+	private int clamp(int window) {
+		return Math.max(mMinWindow, Math.min(mMaxWindow, window));
+	}
+
+	/**
+	 * Rounds up to the power of two.
+	 *
+	 * @param value the value
+	 * @return the power of two not smaller than value
+	 */
+	private static int roundUpToPowerOfTwo(int value) {
+		int result = 1;
+		while(result < value && result > 0) {
+			result <<= 1;
+		}
+		return result > 0 ? result : value;
+	}
+}
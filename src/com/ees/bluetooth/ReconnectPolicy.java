@@ -0,0 +1,136 @@
+package com.ees.bluetooth;
+
+import java.util.Random;
+
+/**
+ * The Class ReconnectPolicy. Settings of redialing a device after its
+ * channel was lost. Delays grow exponentially from the initial delay up to
+ * the maximum, each one is shortened by a random part so that devices
+ * dropped by the same RF event do not redial in lockstep.
+ *
+ * @see ConnectionManager#setReconnectPolicy(ReconnectPolicy)
+ */
+public class ReconnectPolicy {
+
+	/** The default delay of first redial. */
+	public static final long DEFAULT_INITIAL_DELAY_MILLIS = 50;
+
+	/** The default upper bound of the delay. */
+	public static final long DEFAULT_MAX_DELAY_MILLIS = 5000;
+
+	/** The default delay growth factor. */
+	public static final double DEFAULT_MULTIPLIER = 2.0;
+
+	/** The default random part of the delay. */
+	public static final double DEFAULT_JITTER = 0.5;
+
+	/** The default number of redials before giving up. */
+	public static final int DEFAULT_MAX_ATTEMPTS = 8;
+
+	/** The delay of first redial. */
+	private final long mInitialDelayMillis;
+
+	/** The upper bound of the delay. */
+	private final long mMaxDelayMillis;
+
+	/** The delay growth factor. */
+	private final double mMultiplier;
+
+	/** The random part of the delay. */
+	private final double mJitter;
+
+	/** The number of redials before giving up. */
+	private final int mMaxAttempts;
+
+	/**
+	 * Instantiates a new reconnect policy with default settings, the first
+	 * redial follows within 50ms and the last one about 20s after the loss.
+	 */
+	public ReconnectPolicy() {
+		this(DEFAULT_INITIAL_DELAY_MILLIS, DEFAULT_MAX_DELAY_MILLIS, DEFAULT_MULTIPLIER, DEFAULT_JITTER,
+				DEFAULT_MAX_ATTEMPTS);
+	}
+
+	/**
+	 * Instantiates a new reconnect policy.
+	 *
+	 * @param initialDelayMillis the delay of first redial
+	 * @param maxDelayMillis the upper bound of the delay
+	 * @param multiplier the delay growth factor, at least 1
+	 * @param jitter the random part of the delay from 0 to 1, 0.5 picks
+	 *            each delay between half and full of the computed value
+	 * @param maxAttempts the number of redials before giving up
+	 */
+	public ReconnectPolicy(long initialDelayMillis, long maxDelayMillis, double multiplier, double jitter,
+			int maxAttempts) {
+		if(initialDelayMillis < 0 || maxDelayMillis < initialDelayMillis || multiplier < 1
+				|| jitter < 0 || jitter > 1 || maxAttempts <= 0) {
+			throw new IllegalArgumentException("Invalid reconnect settings");
+		}
+		mInitialDelayMillis = initialDelayMillis;
+		mMaxDelayMillis = maxDelayMillis;
+		mMultiplier = multiplier;
+		mJitter = jitter;
+		mMaxAttempts = maxAttempts;
+	}
+
+	/**
+	 * Gets the delay of first redial.
+	 *
+	 * @return the delay in milliseconds
+	 */
+	public long getInitialDelayMillis() {
+		return mInitialDelayMillis;
+	}
+
+	/**
+	 * Gets the upper bound of the delay.
+	 *
+	 * @return the delay in milliseconds
+	 */
+	public long getMaxDelayMillis() {
+		return mMaxDelayMillis;
+	}
+
+	/**
+	 * Gets the delay growth factor.
+	 *
+	 * @return the multiplier
+	 */
+	public double getMultiplier() {
+		return mMultiplier;
+	}
+
+	/**
+	 * Gets the random part of the delay.
+	 *
+	 * @return the jitter
+	 */
+	public double getJitter() {
+		return mJitter;
+	}
+
+	/**
+	 * Gets the number of redials before giving up.
+	 *
+	 * @return the maximum attempts
+	 */
+	public int getMaxAttempts() {
+		return mMaxAttempts;
+	}
+
+	/**
+	 * Computes the delay of given redial.
+	 *
+	 * @param attempt the attempt number, starting at 1
+	 * @param random the source of jitter
+	 * @return the delay in milliseconds
+	 */
+	long getDelayMillis(int attempt, Random random) {
+		double delay = mInitialDelayMillis * Math.pow(mMultiplier, attempt - 1);
+		if(delay > mMaxDelayMillis) {
+			delay = mMaxDelayMillis;
+		}
+		return (long) (delay * (1 - mJitter * random.nextDouble()));
+	}
+}
@@ -0,0 +1,181 @@
+package com.ees.bluetooth;
+
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import android.util.Log;
+
+/**
+ * The Class ReconnectSupervisor. Redials devices whose channel was lost,
+ * following the {@link ReconnectPolicy}. Timers run on the manager
+ * scheduler, no thread is started per attempt. Methods are called without
+ * the manager lock, each attempt guards its own counter and timer. A timer
+ * checks it is still current before it dials, a dial racing it is sorted
+ * out by the connector handover of the manager.
+ */
+class ReconnectSupervisor {
+
+	/** The Constant TAG. */
+	private static final String TAG = ReconnectSupervisor.class.getSimpleName();
+
+	/** The manager. */
+	private final ConnectionManager mManager;
+
+	/** The source of jitter. */
+	private final Random mRandom = new Random();
+
+	/** The supervised devices keyed by address. */
+	private final ConcurrentMap<String, Attempt> mAttempts = new ConcurrentHashMap<String, Attempt>();
+
+	/**
+	 * Instantiates a new reconnect supervisor.
+	 *
+	 * @param manager the manager
+	 */
+	ReconnectSupervisor(ConnectionManager manager) {
+		mManager = manager;
+	}
+
+	/**
+	 * Starts redialing the device which channel has been lost.
+	 *
+	 * @param address the device address
+	 * @param name the device name
+	 * @param policy the reconnect policy
+	 * @return true, if a redial has been scheduled
+	 */
+	boolean onLost(String address, String name, ReconnectPolicy policy) {
+		Attempt attempt = new Attempt(address, name);
+		Attempt prev = mAttempts.put(address, attempt);
+		if(prev != null) {
+			prev.cancel();
+		}
+		return schedule(attempt, policy);
+	}
+
+	/**
+	 * Schedules next redial of the device after failed one.
+	 *
+	 * @param address the device address
+	 * @param policy the reconnect policy
+	 * @return true, if a redial has been scheduled, false when the device is
+	 *         not supervised or the attempts are exhausted
+	 */
+	boolean onFailed(String address, ReconnectPolicy policy) {
+		Attempt attempt = mAttempts.get(address);
+		if(attempt == null) {
+			return false;
+		}
+		return schedule(attempt, policy);
+	}
+
+	/**
+	 * Stops supervising the device, it is connected again or dialed by user.
+	 *
+	 * @param address the device address
+	 */
+	void cancel(String address) {
+		Attempt attempt = mAttempts.remove(address);
+		if(attempt != null) {
+			attempt.cancel();
+		}
+	}
+
+	/**
+	 * Stops supervising all devices.
+	 */
+	void cancelAll() {
+		for(Attempt attempt : mAttempts.values()) {
+			mAttempts.remove(attempt.mAddress, attempt);
+			attempt.cancel();
+		}
+	}
+
+	/**
+	 * Checks for supervised devices.
+	 *
+	 * @return true, if a redial is pending or running
+	 */
+	boolean isActive() {
+		return !mAttempts.isEmpty();
+	}
+
+	/**
+	 * Schedules next redial or gives up.
+	 *
+	 * @param attempt the attempt
+	 * @param policy the reconnect policy
+	 * @return true, if a redial has been scheduled
+	 */
+	private boolean schedule(Attempt attempt, ReconnectPolicy policy) {
+		synchronized (attempt) {
+			if(attempt.mCount >= policy.getMaxAttempts()) {
+				Log.w(TAG, "Giving up redialing " + attempt.mAddress + " after " + attempt.mCount + " attempts");
+				mAttempts.remove(attempt.mAddress, attempt);
+				return false;
+			}
+			attempt.mCount++;
+			long delay;
+			synchronized (mRandom) {
+				delay = policy.getDelayMillis(attempt.mCount, mRandom);
+			}
+			Log.i(TAG, "Redial " + attempt.mAddress + " #" + attempt.mCount + " in " + delay + "ms");
+			attempt.mTimer = mManager.getScheduler().schedule(attempt, delay, TimeUnit.MILLISECONDS);
+			return true;
+		}
+	}
+
+	/**
+	 * The Class Attempt. Redial state of one device, run as its timer task.
+	 */
+	private class Attempt implements Runnable {
+
+		/** The device address. */
+		private final String mAddress;
+
+		/** The device name. */
+		private final String mName;
+
+		/** The number of scheduled redials, guarded by the attempt. */
+		private int mCount;
+
+		/** The pending timer, guarded by the attempt. */
+		private ScheduledFuture<?> mTimer;
+
+		/**
+		 * Instantiates a new attempt.
+		 *
+		 * @param address the device address
+		 * @param name the device name
+		 */
+		Attempt(String address, String name) {
+			mAddress = address;
+			mName = name;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.lang.Runnable#run()
+		 */
+		@Override
+		public void run() {
+			if(mAttempts.get(mAddress) != this) {
+				// Cancelled meanwhile.
+				return;
+			}
+			mManager.redial(mAddress, mName);
+		}
+
+		/**
+		 * Cancels the pending timer.
+		 */
+		synchronized void cancel() {
+			if(mTimer != null) {
+				mTimer.cancel(false);
+				mTimer = null;
+			}
+		}
+	}
+}
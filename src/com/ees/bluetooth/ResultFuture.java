@@ -0,0 +1,230 @@
+package com.ees.bluetooth;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import android.util.Log;
+
+/**
+ * The Class ResultFuture. Future completed by the library threads. Besides
+ * blocking {@link #get()} it notifies registered listeners, so UI code can
+ * react to completion without parking a thread.
+ *
+ * @param <V> the result type
+ */
+public class ResultFuture<V> implements Future<V> {
+
+	/**
+	 * The listener interface notified when the future completes.
+	 *
+	 * @param <V> the result type
+	 */
+	public interface Listener<V> {
+
+		/**
+		 * Called once the future is done, on the completing thread or on the
+		 * registering thread when the future was already done.
+		 *
+		 * @param future the completed future
+		 */
+		void onComplete(ResultFuture<V> future);
+	}
+
+	/** The Constant TAG. */
+	private static final String TAG = ResultFuture.class.getSimpleName();
+
+	/** The done flag. */
+	private boolean mDone;
+
+	/** The cancelled flag. */
+	private boolean mCancelled;
+
+	/** The result. */
+	private V mValue;
+
+	/** The failure. */
+	private Throwable mError;
+
+	/** The listeners, null once notified. */
+	private List<Listener<V>> mListeners = new ArrayList<Listener<V>>(1);
+
+	/**
+	 * Completes the future with given value.
+	 *
+	 * @param value the value
+	 * @return true, if this call completed the future
+	 */
+	public boolean complete(V value) {
+		synchronized (this) {
+			if(mDone) {
+				return false;
+			}
+			mValue = value;
+			mDone = true;
+			notifyAll();
+		}
+		fireComplete();
+		return true;
+	}
+
+	/**
+	 * Completes the future with given failure.
+	 *
+	 * @param error the error
+	 * @return true, if this call completed the future
+	 */
+	public boolean fail(Throwable error) {
+		synchronized (this) {
+			if(mDone) {
+				return false;
+			}
+			mError = error;
+			mDone = true;
+			notifyAll();
+		}
+		fireComplete();
+		return true;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.util.concurrent.Future#cancel(boolean)
+	 */
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		synchronized (this) {
+			if(mDone) {
+				return false;
+			}
+			mCancelled = true;
+			mDone = true;
+			notifyAll();
+		}
+		fireComplete();
+		return true;
+	}
+
+	/**
+	 * Adds the listener.
+	 *
+	 * @param listener the listener
+	 */
+	public void addListener(Listener<V> listener) {
+		synchronized (this) {
+			if(!mDone) {
+				mListeners.add(listener);
+				return;
+			}
+		}
+		notifyListener(listener);
+	}
+
+	/* (non-Javadoc)
+	 * @see java.util.concurrent.Future#isCancelled()
+	 */
+	@Override
+	public synchronized boolean isCancelled() {
+		return mCancelled;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.util.concurrent.Future#isDone()
+	 */
+	@Override
+	public synchronized boolean isDone() {
+		return mDone;
+	}
+
+	/**
+	 * Checks if the future completed with value.
+	 *
+	 * @return true, if completed successfully
+	 */
+	public synchronized boolean isSuccess() {
+		return mDone && !mCancelled && mError == null;
+	}
+
+	/**
+	 * Gets the failure.
+	 *
+	 * @return the failure, null when not failed
+	 */
+	public synchronized Throwable getError() {
+		return mError;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.util.concurrent.Future#get()
+	 */
+	@Override
+	public synchronized V get() throws InterruptedException, ExecutionException {
+		while(!mDone) {
+			wait();
+		}
+		return result();
+	}
+
+	/* (non-Javadoc)
+	 * @see java.util.concurrent.Future#get(long, java.util.concurrent.TimeUnit)
+	 */
+	@Override
+	public synchronized V get(long timeout, TimeUnit unit)
+			throws InterruptedException, ExecutionException, TimeoutException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		while(!mDone) {
+			long remaining = deadline - System.nanoTime();
+			if(remaining <= 0) {
+				throw new TimeoutException();
+			}
+			TimeUnit.NANOSECONDS.timedWait(this, remaining);
+		}
+		return result();
+	}
+
+	/**
+	 * Gets the result of done future.
+	 *
+	 * @return the value
+	 * @throws ExecutionException Signals that the future failed.
+	 */
+	private V result() throws ExecutionException {
+		if(mCancelled) {
+			throw new CancellationException();
+		}
+		if(mError != null) {
+			throw new ExecutionException(mError);
+		}
+		return mValue;
+	}
+
+	/**
+	 * Notifies and drops all listeners.
+	 */
+	private void fireComplete() {
+		List<Listener<V>> listeners;
+		synchronized (this) {
+			listeners = mListeners;
+			mListeners = null;
+		}
+		for(Listener<V> listener : listeners) {
+			notifyListener(listener);
+		}
+	}
+
+	/**
+	 * Notifies single listener.
+	 *
+	 * @param listener the listener
+	 */
+	private void notifyListener(Listener<V> listener) {
+		try {
+			listener.onComplete(this);
+		} catch (RuntimeException e) {
+			Log.e(TAG, "Future listener failed", e);
+		}
+	}
+}
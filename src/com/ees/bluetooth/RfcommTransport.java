@@ -0,0 +1,132 @@
+package com.ees.bluetooth;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothServerSocket;
+import android.bluetooth.BluetoothSocket;
+
+/**
+ * The Class RfcommTransport. Bluetooth RFCOMM implementation of the transport,
+ * it uses insecure sockets so devices do not have to be paired.
+ */
+public class RfcommTransport implements Transport {
+
+	/** The Bluetooth adapter reference. */
+	private final BluetoothAdapter mAdapter;
+
+	/**
+	 * Instantiates a new RFCOMM transport.
+	 *
+	 * @param adapter the adapter
+	 */
+	public RfcommTransport(BluetoothAdapter adapter) {
+		mAdapter = adapter;
+	}
+
+	/**
+	 * Gets the adapter.
+	 *
+	 * @return the adapter
+	 */
+	public BluetoothAdapter getAdapter() {
+		return mAdapter;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ees.bluetooth.Transport#createSocket(java.lang.String, java.util.UUID)
+	 */
+	@Override
+	public TransportSocket createSocket(String address, UUID uuid) throws IOException {
+		return createSocket(mAdapter.getRemoteDevice(address), uuid);
+	}
+
+	/**
+	 * Creates not yet connected socket to given device.
+	 *
+	 * @param device the device
+	 * @param uuid the service uuid
+	 * @return the transport socket
+	 * @throws IOException Signals that the socket could not be created.
+	 */
+	public TransportSocket createSocket(BluetoothDevice device, UUID uuid) throws IOException {
+		return new RfcommSocket(device.createInsecureRfcommSocketToServiceRecord(uuid));
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ees.bluetooth.Transport#listen(java.lang.String, java.util.UUID)
+	 */
+	@Override
+	public TransportServerSocket listen(String serviceName, UUID uuid) throws IOException {
+		final BluetoothServerSocket serverSocket =
+				mAdapter.listenUsingInsecureRfcommWithServiceRecord(serviceName, uuid);
+		return new TransportServerSocket() {
+			@Override
+			public TransportSocket accept() throws IOException {
+				return new RfcommSocket(serverSocket.accept());
+			}
+
+			@Override
+			public void close() throws IOException {
+				serverSocket.close();
+			}
+
+			@Override
+			public String toString() {
+				return serverSocket.toString();
+			}
+		};
+	}
+
+	/**
+	 * The Class RfcommSocket. Adapts {@link BluetoothSocket} to the transport.
+	 */
+	public static class RfcommSocket implements TransportSocket {
+
+		/** The socket. */
+		private final BluetoothSocket mmSocket;
+
+		/**
+		 * Instantiates a new RFCOMM socket.
+		 *
+		 * @param socket the socket
+		 */
+		public RfcommSocket(BluetoothSocket socket) {
+			mmSocket = socket;
+		}
+
+		@Override
+		public void connect() throws IOException {
+			mmSocket.connect();
+		}
+
+		@Override
+		public InputStream getInputStream() throws IOException {
+			return mmSocket.getInputStream();
+		}
+
+		@Override
+		public OutputStream getOutputStream() throws IOException {
+			return mmSocket.getOutputStream();
+		}
+
+		@Override
+		public String getRemoteAddress() {
+			return mmSocket.getRemoteDevice().getAddress();
+		}
+
+		@Override
+		public String getRemoteName() {
+			return mmSocket.getRemoteDevice().getName();
+		}
+
+		@Override
+		public void close() throws IOException {
+			mmSocket.close();
+		}
+	}
+}
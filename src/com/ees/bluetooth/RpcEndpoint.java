@@ -0,0 +1,436 @@
+package com.ees.bluetooth;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.util.Log;
+
+/**
+ * The Class RpcEndpoint. Request and response calls over one stream of the
+ * connection manager, in both directions. Every request carries a
+ * correlation id which its response echoes, so any number of calls may be
+ * in flight on one connection and responses may come in any order. Calls
+ * are therefore pipelined instead of waiting a round trip each.
+ * <p>
+ * Requests are served by handlers registered per method id, on handler
+ * threads so the channel reader keeps reading while they run.
+ */
+public class RpcEndpoint implements StreamListener, ConnectionStateListener {
+
+	/** The Constant TAG. */
+	private static final String TAG = RpcEndpoint.class.getSimpleName();
+
+	/** The default stream of calls. */
+	public static final int DEFAULT_STREAM_ID = 2;
+
+	/** The default call timeout. */
+	public static final long DEFAULT_TIMEOUT_MILLIS = 5000;
+
+	/** The default number of handler threads. */
+	public static final int DEFAULT_HANDLER_THREADS = 2;
+
+	/** The largest method id. */
+	public static final int MAX_METHOD = 0xffff;
+
+	/** The message carrying a request: id, method and payload. */
+	private static final byte MSG_REQUEST = 1;
+
+	/** The message carrying a response: id and payload. */
+	private static final byte MSG_RESPONSE = 2;
+
+	/** The message carrying a failure: id and UTF-8 message. */
+	private static final byte MSG_ERROR = 3;
+
+	/** The size of request header. */
+	private static final int REQUEST_HEADER_SIZE = 7;
+
+	/** The size of response header. */
+	private static final int RESPONSE_HEADER_SIZE = 5;
+
+	/** The Constant UTF8. */
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/** The connection manager. */
+	private final ConnectionManager mManager;
+
+	/** The stream id. */
+	private final int mStreamId;
+
+	/** The executor running handlers. */
+	private final Executor mExecutor;
+
+	/** The executor created by this endpoint, null when given by the caller. */
+	private final ExecutorService mOwnExecutor;
+
+	/** The handlers keyed by method id. */
+	private final ConcurrentMap<Integer, RpcHandler> mHandlers = new ConcurrentHashMap<Integer, RpcHandler>();
+
+	/** The calls waiting for response keyed by correlation id. */
+	private final ConcurrentMap<Integer, Call> mCalls = new ConcurrentHashMap<Integer, Call>();
+
+	/** The sequence of correlation ids. */
+	private final AtomicInteger mNextId = new AtomicInteger();
+
+	/**
+	 * The Class Call. Call waiting for its response, removed from the
+	 * pending calls whichever way its future completes.
+	 */
+	private final class Call implements WriteCallback, Runnable, ResultFuture.Listener<byte[]> {
+
+		/** The correlation id. */
+		final int mId;
+
+		/** The device address. */
+		final String mAddress;
+
+		/** The result. */
+		final ResultFuture<byte[]> mFuture = new ResultFuture<byte[]>();
+
+		/** The timeout timer. */
+		volatile ScheduledFuture<?> mTimer;
+
+		/**
+		 * Instantiates a new call.
+		 *
+		 * @param id the correlation id
+		 * @param address the device address
+		 */
+		Call(int id, String address) {
+			mId = id;
+			mAddress = address;
+		}
+
+		/* (non-Javadoc)
+		 * @see com.ees.bluetooth.WriteCallback#onWriteCompleted(java.lang.String, int, java.io.IOException)
+		 */
+		@Override
+		public void onWriteCompleted(String address, int length, IOException error) {
+			if(error != null) {
+				mFuture.fail(error);
+			}
+		}
+
+		/* (non-Javadoc)
+		 * @see java.lang.Runnable#run()
+		 */
+		@Override
+		public void run() {
+			mFuture.fail(new TimeoutException("No response from " + mAddress));
+		}
+
+		/* (non-Javadoc)
+		 * @see com.ees.bluetooth.ResultFuture.Listener#onComplete(com.ees.bluetooth.ResultFuture)
+		 */
+		@Override
+		public void onComplete(ResultFuture<byte[]> future) {
+			mCalls.remove(mId, this);
+			ScheduledFuture<?> timer = mTimer;
+			if(timer != null) {
+				timer.cancel(false);
+			}
+		}
+	}
+
+	/**
+	 * Instantiates a new RPC endpoint on the default stream with its own
+	 * handler threads.
+	 *
+	 * @param manager the connection manager
+	 */
+	public RpcEndpoint(ConnectionManager manager) {
+		this(manager, DEFAULT_STREAM_ID, null);
+	}
+
+	/**
+	 * Instantiates a new RPC endpoint, it takes over the stream until
+	 * {@link #close()}.
+	 *
+	 * @param manager the connection manager
+	 * @param streamId the stream id, other than 0
+	 * @param executor the executor running handlers, null to create {@link #DEFAULT_HANDLER_THREADS} threads
+	 * @throws IllegalArgumentException when streams are not enabled by the frame codec
+	 */
+	public RpcEndpoint(ConnectionManager manager, int streamId, Executor executor) {
+		manager.checkOwnStream(streamId);
+		mManager = manager;
+		mStreamId = streamId;
+		if(executor == null) {
+			mOwnExecutor = Executors.newFixedThreadPool(DEFAULT_HANDLER_THREADS,
+					new NamedThreadFactory("RpcEndpoint-handler"));
+			executor = mOwnExecutor;
+		} else {
+			mOwnExecutor = null;
+		}
+		mExecutor = executor;
+		manager.setStreamListener(streamId, this);
+		manager.addStateListener(this);
+	}
+
+	/**
+	 * Registers the handler of the method, replacing the previous one.
+	 *
+	 * @param method the method id, 0 to {@link #MAX_METHOD}
+	 * @param handler the handler
+	 */
+	public void registerHandler(int method, RpcHandler handler) {
+		mHandlers.put(checkMethod(method), handler);
+	}
+
+	/**
+	 * Unregisters the handler of the method, its requests fail afterwards.
+	 *
+	 * @param method the method id
+	 */
+	public void unregisterHandler(int method) {
+		mHandlers.remove(method);
+	}
+
+	/**
+	 * Calls the method of the device with default timeout.
+	 *
+	 * @param address the device address
+	 * @param method the method id
+	 * @param request the request payload, remaining bytes are sent
+	 * @return the future of the response payload
+	 * @see #call(String, int, ByteBuffer, long)
+	 */
+	public ResultFuture<byte[]> call(String address, int method, ByteBuffer request) {
+		return call(address, method, request, DEFAULT_TIMEOUT_MILLIS);
+	}
+
+	/**
+	 * Calls the method of the device. The call returns once the request is
+	 * queued, the future is completed on the channel thread by the response,
+	 * or fails when the remote handler failed, the link was lost or no
+	 * response came in time.
+	 *
+	 * @param address the device address
+	 * @param method the method id
+	 * @param request the request payload, remaining bytes are sent
+	 * @param timeoutMillis the time to wait for response, 0 for no limit
+	 * @return the future of the response payload
+	 */
+	public ResultFuture<byte[]> call(String address, int method, ByteBuffer request, long timeoutMillis) {
+		checkMethod(method);
+		int length = request.remaining();
+		Call call = new Call(mNextId.incrementAndGet(), address);
+		mCalls.put(call.mId, call);
+		call.mFuture.addListener(call);
+		if(timeoutMillis > 0) {
+			call.mTimer = mManager.getScheduler().schedule(call, timeoutMillis, TimeUnit.MILLISECONDS);
+		}
+		PooledBuffer buffer = mManager.getBufferPool().acquire(REQUEST_HEADER_SIZE + length);
+		byte[] dst = buffer.array();
+		int off = buffer.offset();
+		dst[off] = MSG_REQUEST;
+		FrameCodec.writeInt(call.mId, dst, off + 1);
+		dst[off + 5] = (byte) (method >>> 8);
+		dst[off + 6] = (byte) method;
+		request.get(dst, off + REQUEST_HEADER_SIZE, length);
+		buffer.setLength(REQUEST_HEADER_SIZE + length);
+		mManager.send(address, mStreamId, buffer, call);
+		return call.mFuture;
+	}
+
+	/**
+	 * Calls the method of the device.
+	 *
+	 * @param address the device address
+	 * @param method the method id
+	 * @param request the request payload
+	 * @param timeoutMillis the time to wait for response, 0 for no limit
+	 * @return the future of the response payload
+	 * @see #call(String, int, ByteBuffer, long)
+	 */
+	public ResultFuture<byte[]> call(String address, int method, byte[] request, long timeoutMillis) {
+		return call(address, method, ByteBuffer.wrap(request), timeoutMillis);
+	}
+
+	/**
+	 * Gets the number of calls waiting for response.
+	 *
+	 * @return the pending calls
+	 */
+	public int getPendingCalls() {
+		return mCalls.size();
+	}
+
+	/**
+	 * Close. Releases the stream, fails pending calls and stops own handler
+	 * threads.
+	 */
+	public void close() {
+		mManager.removeStateListener(this);
+		mManager.setStreamListener(mStreamId, null);
+		for(Call call : mCalls.values()) {
+			call.mFuture.fail(new IOException("RPC endpoint closed"));
+		}
+		if(mOwnExecutor != null) {
+			mOwnExecutor.shutdown();
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ees.bluetooth.ConnectionStateListener#onStateChanged(java.lang.String, com.ees.bluetooth.ConnectionState, com.ees.bluetooth.ConnectionState)
+	 */
+	@Override
+	public void onStateChanged(String address, ConnectionState previous, ConnectionState state) {
+		if(address == null || previous != ConnectionState.CONNECTED || state == ConnectionState.CONNECTED) {
+			return;
+		}
+		// Responses of the lost link never come.
+		for(Call call : mCalls.values()) {
+			if(call.mAddress.equals(address)) {
+				call.mFuture.fail(new IOException("Connection to " + address + " lost"));
+			}
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ees.bluetooth.StreamListener#onMessageReceived(java.lang.String, int, java.nio.ByteBuffer)
+	 */
+	@Override
+	public void onMessageReceived(String address, int streamId, ByteBuffer message) {
+		try {
+			byte type = message.get();
+			int id = message.getInt();
+			switch(type) {
+			case MSG_REQUEST:
+				onRequest(address, id, message.getShort() & 0xffff, message);
+				break;
+			case MSG_RESPONSE:
+			case MSG_ERROR:
+				onResponse(address, id, type, message);
+				break;
+			default:
+				Log.w(TAG, "Unknown RPC message " + type + " from " + address);
+			}
+		} catch (BufferUnderflowException e) {
+			Log.w(TAG, "Malformed RPC message from " + address);
+		}
+	}
+
+	/**
+	 * Handles the response, completes the call with given id.
+	 *
+	 * @param address the device address
+	 * @param id the correlation id
+	 * @param type the message type
+	 * @param message the message following the header
+	 */
+	private void onResponse(String address, int id, byte type, ByteBuffer message) {
+		Call call = mCalls.get(id);
+		if(call == null || !call.mAddress.equals(address)) {
+			// Timed out or cancelled meanwhile.
+			return;
+		}
+		byte[] payload = new byte[message.remaining()];
+		message.get(payload);
+		if(type == MSG_RESPONSE) {
+			call.mFuture.complete(payload);
+		} else {
+			call.mFuture.fail(new IOException("Remote call failed: " + new String(payload, UTF8)));
+		}
+	}
+
+	/**
+	 * Handles the request, the payload is copied and the handler runs on
+	 * a handler thread.
+	 *
+	 * @param address the device address
+	 * @param id the correlation id
+	 * @param method the method id
+	 * @param message the message following the header
+	 */
+	private void onRequest(final String address, final int id, final int method, ByteBuffer message) {
+		final RpcHandler handler = mHandlers.get(method);
+		if(handler == null) {
+			reply(address, id, MSG_ERROR, ("No handler of method " + method).getBytes(UTF8),
+					BackpressurePolicy.FAIL_FAST);
+			return;
+		}
+		final byte[] request = new byte[message.remaining()];
+		message.get(request);
+		try {
+			mExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					byte[] response;
+					try {
+						response = handler.onRequest(address, method, ByteBuffer.wrap(request));
+					} catch (IOException e) {
+						reply(address, id, MSG_ERROR, String.valueOf(e.getMessage()).getBytes(UTF8));
+						return;
+					} catch (RuntimeException e) {
+						Log.e(TAG, "RPC handler of method " + method + " failed", e);
+						reply(address, id, MSG_ERROR, String.valueOf(e).getBytes(UTF8));
+						return;
+					}
+					reply(address, id, MSG_RESPONSE, response != null ? response : new byte[0]);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			reply(address, id, MSG_ERROR, "Server busy".getBytes(UTF8), BackpressurePolicy.FAIL_FAST);
+		}
+	}
+
+	/**
+	 * Sends the response or failure of a request from a handler thread.
+	 *
+	 * @param address the device address
+	 * @param id the correlation id
+	 * @param type the message type
+	 * @param payload the payload
+	 */
+	private void reply(String address, int id, byte type, byte[] payload) {
+		reply(address, id, type, payload, null);
+	}
+
+	/**
+	 * Sends the response or failure of a request. The reader thread replies
+	 * with {@link BackpressurePolicy#FAIL_FAST}, it must not wait for its
+	 * write queue, and a reply which does not fit times the call out.
+	 *
+	 * @param address the device address
+	 * @param id the correlation id
+	 * @param type the message type
+	 * @param payload the payload
+	 * @param policy the backpressure policy, null for the configured one
+	 */
+	private void reply(String address, int id, byte type, byte[] payload, BackpressurePolicy policy) {
+		PooledBuffer buffer = mManager.getBufferPool().acquire(RESPONSE_HEADER_SIZE + payload.length);
+		byte[] dst = buffer.array();
+		int off = buffer.offset();
+		dst[off] = type;
+		FrameCodec.writeInt(id, dst, off + 1);
+		System.arraycopy(payload, 0, dst, off + RESPONSE_HEADER_SIZE, payload.length);
+		buffer.setLength(RESPONSE_HEADER_SIZE + payload.length);
+		mManager.send(address, mStreamId, buffer, policy, null);
+	}
+
+	/**
+	 * Checks the method id.
+	 *
+	 * @param method the method id
+	 * @return the method id
+	 * @throws IllegalArgumentException when out of range
+	 */
+	private static int checkMethod(int method) {
+		if(method < 0 || method > MAX_METHOD) {
+			throw new IllegalArgumentException("Invalid method id " + method);
+		}
+		return method;
+	}
+}
@@ -0,0 +1,24 @@
+package com.ees.bluetooth;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The handler interface serving one method of {@link RpcEndpoint}.
+ *
+ * @see RpcEndpoint#registerHandler(int, RpcHandler)
+ */
+public interface RpcHandler {
+
+	/**
+	 * Called on a handler thread for every request of the method, requests
+	 * of one device may be served concurrently.
+	 *
+	 * @param address the device address
+	 * @param method the method id
+	 * @param request the request payload, owned by the handler
+	 * @return the response payload, null for an empty response
+	 * @throws IOException Signals that the request failed, the message is sent back to the caller.
+	 */
+	byte[] onRequest(String address, int method, ByteBuffer request) throws IOException;
+}
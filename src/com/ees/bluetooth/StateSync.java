@@ -0,0 +1,503 @@
+package com.ees.bluetooth;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import android.util.Log;
+
+/**
+ * The Class StateSync. Synchronizes a state of typed fields to every
+ * connected device over one stream of the connection manager, sending
+ * only fields which changed. Each publish stamps the changed fields with
+ * its sequence number. A device is sent the fields stamped after its
+ * baseline, the last publish it acknowledged or the last keyframe sent to
+ * it, whichever is newer. Streams keep order, so the device has applied
+ * the baseline or any later publish before the delta, and patching the
+ * delta in place yields the published state either way. Bandwidth thus
+ * follows the changes, not the state size.
+ * <p>
+ * A device gets the whole state in a keyframe when it connects, every
+ * keyframe interval for recovery, and whenever most fields changed since
+ * its baseline. A keyframe dropped from a full write queue or not written
+ * is no baseline, the next publish sends another one. Both devices have to
+ * use the same field layout. Each side may publish its own state and
+ * receives the states of the others.
+ */
+public class StateSync implements StreamListener, ConnectionStateListener {
+
+	/** The Constant TAG. */
+	private static final String TAG = StateSync.class.getSimpleName();
+
+	/** The default stream of state updates. */
+	public static final int DEFAULT_STREAM_ID = 3;
+
+	/** The default number of publishes between keyframes. */
+	public static final int DEFAULT_KEYFRAME_INTERVAL = 60;
+
+	/** The message carrying the whole state: sequence, layout hash and values. */
+	private static final byte MSG_KEYFRAME = 1;
+
+	/** The message carrying changed fields: sequence, count and index gap and value of each field. */
+	private static final byte MSG_DELTA = 2;
+
+	/** The message acknowledging an applied update: sequence. */
+	private static final byte MSG_ACK = 3;
+
+	/** The size of acknowledgement. */
+	private static final int ACK_SIZE = 5;
+
+	/** The reader of current thread. */
+	private static final ThreadLocal<MessageReader> sReaders = new ThreadLocal<MessageReader>() {
+		@Override
+		protected MessageReader initialValue() {
+			return new MessageReader();
+		}
+	};
+
+	/** The connection manager. */
+	private final ConnectionManager mManager;
+
+	/** The stream id. */
+	private final int mStreamId;
+
+	/** The state published by this device. */
+	private final SyncState mLocal;
+
+	/** The number of publishes between keyframes. */
+	private final int mKeyframeInterval;
+
+	/** The sequence of the last publish stamping each field. */
+	private final int[] mChangedSeq;
+
+	/** The sequence of the last publish. */
+	private int mSeq;
+
+	/** The writer of updates. */
+	private final MessageWriter mWriter = new MessageWriter();
+
+	/** The devices updates are sent to, keyed by address. */
+	private final ConcurrentMap<String, Peer> mPeers = new ConcurrentHashMap<String, Peer>();
+
+	/** The states of other devices, keyed by address. */
+	private final ConcurrentMap<String, SyncState> mRemote = new ConcurrentHashMap<String, SyncState>();
+
+	/** The listener. */
+	private volatile StateSyncListener mListener;
+
+	/**
+	 * The Class Peer. Update state of one connected device, also the
+	 * callback of keyframes sent to it.
+	 */
+	private static final class Peer implements WriteCallback {
+
+		/** The device address. */
+		final String mAddress;
+
+		/** The flag of keyframe sent, until then the device has no state. */
+		boolean mHasKeyframe;
+
+		/** The sequence of the last keyframe sent. */
+		int mKeyframeSeq;
+
+		/** The sequence of the last update acknowledged. */
+		volatile int mAcked;
+
+		/** The flag of keyframe not delivered, set by the writer without lock. */
+		volatile boolean mKeyframeLost;
+
+		/**
+		 * Instantiates a new peer.
+		 *
+		 * @param address the device address
+		 */
+		Peer(String address) {
+			mAddress = address;
+		}
+
+		/* (non-Javadoc)
+		 * @see com.ees.bluetooth.WriteCallback#onWriteCompleted(java.lang.String, int, java.io.IOException)
+		 */
+		@Override
+		public void onWriteCompleted(String address, int length, IOException error) {
+			if(error != null) {
+				mKeyframeLost = true;
+			}
+		}
+	}
+
+	/**
+	 * Instantiates a new state sync on the default stream.
+	 *
+	 * @param manager the connection manager
+	 * @param local the state of this device, also the layout of states received
+	 */
+	public StateSync(ConnectionManager manager, SyncState local) {
+		this(manager, DEFAULT_STREAM_ID, local, DEFAULT_KEYFRAME_INTERVAL);
+	}
+
+	/**
+	 * Instantiates a new state sync, it takes over the stream until
+	 * {@link #close()}.
+	 *
+	 * @param manager the connection manager
+	 * @param streamId the stream id, other than 0
+	 * @param local the state of this device, also the layout of states received
+	 * @param keyframeInterval the number of publishes between keyframes
+	 * @throws IllegalArgumentException when streams are not enabled by the frame codec
+	 */
+	public StateSync(ConnectionManager manager, int streamId, SyncState local, int keyframeInterval) {
+		manager.checkOwnStream(streamId);
+		if(keyframeInterval <= 0) {
+			throw new IllegalArgumentException("Invalid keyframe interval " + keyframeInterval);
+		}
+		mManager = manager;
+		mStreamId = streamId;
+		mLocal = local;
+		mKeyframeInterval = keyframeInterval;
+		mChangedSeq = new int[local.getFieldCount()];
+		manager.setStreamListener(streamId, this);
+		manager.addStateListener(this);
+		for(String address : manager.getConnectedAddresses()) {
+			mPeers.putIfAbsent(address, new Peer(address));
+		}
+	}
+
+	/**
+	 * Sets the listener of remote state updates.
+	 *
+	 * @param listener the listener, may be null
+	 */
+	public void setListener(StateSyncListener listener) {
+		mListener = listener;
+	}
+
+	/**
+	 * Gets the state published by this device.
+	 *
+	 * @return the local state
+	 */
+	public SyncState getLocalState() {
+		return mLocal;
+	}
+
+	/**
+	 * Gets the state received from given device.
+	 *
+	 * @param address the device address
+	 * @return the state, null until the first keyframe arrived
+	 */
+	public SyncState getRemoteState(String address) {
+		return mRemote.get(address);
+	}
+
+	/**
+	 * Publishes changes of the local state made since the last publish to
+	 * every connected device, called once per tick by the thread changing
+	 * the state. Devices with the same baseline share one encoded update.
+	 *
+	 * @return the number of devices an update was queued for
+	 */
+	public synchronized int publish() {
+		int seq = ++mSeq;
+		for(int i = 0; i < mChangedSeq.length; i++) {
+			if(mLocal.isChanged(i)) {
+				mChangedSeq[i] = seq;
+			}
+		}
+		mLocal.clearChanged();
+
+		PooledBuffer keyframe = null;
+		PooledBuffer delta = null;
+		int deltaBase = 0;
+		int sent = 0;
+		// Like any message sent to every device, a hub client which does not keep up blocks nobody.
+		// An update which does not fit is repaired by the next publish, it drops no other message.
+		BackpressurePolicy policy = mManager.getFanOutPolicy();
+		if(policy == BackpressurePolicy.DROP_OLDEST) {
+			policy = BackpressurePolicy.FAIL_FAST;
+		}
+		for(Peer peer : mPeers.values()) {
+			if(peer.mKeyframeLost) {
+				// Deltas on top of the lost keyframe missed fields, only a keyframe repairs them.
+				peer.mKeyframeLost = false;
+				peer.mHasKeyframe = false;
+			}
+			int base = baseline(peer);
+			int count = peer.mHasKeyframe ? countChanged(base) : 0;
+			PooledBuffer update;
+			WriteCallback callback = null;
+			if(!peer.mHasKeyframe || seq - peer.mKeyframeSeq >= mKeyframeInterval
+					|| count * 2 > mChangedSeq.length) {
+				if(keyframe == null) {
+					keyframe = encodeKeyframe(seq);
+				}
+				update = keyframe.retain();
+				callback = peer;
+				peer.mHasKeyframe = true;
+				peer.mKeyframeSeq = seq;
+			} else if(count == 0) {
+				continue;
+			} else {
+				if(delta == null || deltaBase != base) {
+					if(delta != null) {
+						delta.release();
+					}
+					delta = encodeDelta(seq, base, count);
+					deltaBase = base;
+				}
+				update = delta.retain();
+			}
+			if(mManager.send(peer.mAddress, mStreamId, update, policy, callback)) {
+				sent++;
+			}
+		}
+		if(keyframe != null) {
+			keyframe.release();
+		}
+		if(delta != null) {
+			delta.release();
+		}
+		return sent;
+	}
+
+	/**
+	 * Close. Releases the stream.
+	 */
+	public void close() {
+		mManager.removeStateListener(this);
+		mManager.setStreamListener(mStreamId, null);
+		mPeers.clear();
+		mRemote.clear();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ees.bluetooth.ConnectionStateListener#onStateChanged(java.lang.String, com.ees.bluetooth.ConnectionState, com.ees.bluetooth.ConnectionState)
+	 */
+	@Override
+	public void onStateChanged(String address, ConnectionState previous, ConnectionState state) {
+		if(address == null) {
+			return;
+		}
+		if(state == ConnectionState.CONNECTED) {
+			// A new link starts with a keyframe.
+			mPeers.put(address, new Peer(address));
+		} else if(previous == ConnectionState.CONNECTED) {
+			mPeers.remove(address);
+			mRemote.remove(address);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ees.bluetooth.StreamListener#onMessageReceived(java.lang.String, int, java.nio.ByteBuffer)
+	 */
+	@Override
+	public void onMessageReceived(String address, int streamId, ByteBuffer message) {
+		MessageReader in = sReaders.get();
+		try {
+			byte type = message.get();
+			int seq = message.getInt();
+			switch(type) {
+			case MSG_KEYFRAME:
+			case MSG_DELTA:
+				in.wrap(message);
+				apply(address, seq, type == MSG_KEYFRAME, in);
+				break;
+			case MSG_ACK:
+				Peer peer = mPeers.get(address);
+				if(peer != null && seq - peer.mAcked > 0) {
+					peer.mAcked = seq;
+				}
+				break;
+			default:
+				Log.w(TAG, "Unknown state message " + type + " from " + address);
+			}
+		} catch (BufferUnderflowException e) {
+			Log.w(TAG, "Malformed state message from " + address);
+		} finally {
+			in.wrap(null);
+		}
+	}
+
+	/**
+	 * Applies the update to the state of the device in place and
+	 * acknowledges it.
+	 *
+	 * @param address the device address
+	 * @param seq the sequence of the update
+	 * @param keyframe true for keyframe
+	 * @param in the reader positioned after the sequence
+	 */
+	private void apply(String address, int seq, boolean keyframe, MessageReader in) {
+		SyncState state = mRemote.get(address);
+		if(keyframe) {
+			if(in.readInt() != mLocal.layoutHash()) {
+				Log.w(TAG, "State layout of " + address + " differs, keyframe dropped");
+				return;
+			}
+			if(state == null) {
+				state = mLocal.newState();
+				mRemote.put(address, state);
+			}
+			state.clearChanged();
+			for(int i = 0; i < state.getFieldCount(); i++) {
+				state.setBits(i, read(in, state.getType(i)));
+			}
+		} else {
+			if(state == null) {
+				// Baseline missing, wait for the next keyframe.
+				return;
+			}
+			state.clearChanged();
+			int count = in.readVarInt();
+			int index = -1;
+			for(int i = 0; i < count; i++) {
+				index += in.readVarInt() + 1;
+				if(index < 0 || index >= state.getFieldCount()) {
+					throw new BufferUnderflowException();
+				}
+				state.setBits(index, read(in, state.getType(index)));
+			}
+		}
+		acknowledge(address, seq);
+		StateSyncListener listener = mListener;
+		if(listener != null) {
+			listener.onStateUpdated(address, state, keyframe);
+		}
+	}
+
+	/**
+	 * Sends the acknowledgement of an applied update. The reader thread must
+	 * not wait for its write queue, so an acknowledgement which does not fit
+	 * is dropped, it only keeps the sender on an older baseline until the
+	 * next one.
+	 *
+	 * @param address the device address
+	 * @param seq the sequence of the update
+	 */
+	private void acknowledge(String address, int seq) {
+		PooledBuffer buffer = mManager.getBufferPool().acquire(ACK_SIZE);
+		byte[] dst = buffer.array();
+		int off = buffer.offset();
+		dst[off] = MSG_ACK;
+		FrameCodec.writeInt(seq, dst, off + 1);
+		buffer.setLength(ACK_SIZE);
+		mManager.send(address, mStreamId, buffer, BackpressurePolicy.FAIL_FAST, null);
+	}
+
+	/**
+	 * Gets the publish the device is known to have, or to have applied by
+	 * the time the next update arrives.
+	 *
+	 * @param peer the peer
+	 * @return the sequence of the baseline
+	 */
+	private static int baseline(Peer peer) {
+		int acked = peer.mAcked;
+		return acked - peer.mKeyframeSeq > 0 ? acked : peer.mKeyframeSeq;
+	}
+
+	/**
+	 * Counts the fields changed after the baseline.
+	 *
+	 * @param base the sequence of the baseline
+	 * @return the number of fields
+	 */
+	private int countChanged(int base) {
+		int count = 0;
+		for(int i = 0; i < mChangedSeq.length; i++) {
+			if(mChangedSeq[i] - base > 0) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Encodes the whole local state.
+	 *
+	 * @param seq the sequence of the publish
+	 * @return the buffer, owned by the caller
+	 */
+	private PooledBuffer encodeKeyframe(int seq) {
+		MessageWriter out = mWriter;
+		out.begin(mManager.getBufferPool());
+		out.writeByte(MSG_KEYFRAME);
+		out.writeInt(seq);
+		out.writeInt(mLocal.layoutHash());
+		for(int i = 0; i < mChangedSeq.length; i++) {
+			write(out, mLocal.getType(i), mLocal.getBits(i));
+		}
+		return out.finish();
+	}
+
+	/**
+	 * Encodes fields of the local state changed after the baseline.
+	 *
+	 * @param seq the sequence of the publish
+	 * @param base the sequence of the baseline
+	 * @param count the number of changed fields
+	 * @return the buffer, owned by the caller
+	 */
+	private PooledBuffer encodeDelta(int seq, int base, int count) {
+		MessageWriter out = mWriter;
+		out.begin(mManager.getBufferPool());
+		out.writeByte(MSG_DELTA);
+		out.writeInt(seq);
+		out.writeVarInt(count);
+		int last = -1;
+		for(int i = 0; i < mChangedSeq.length; i++) {
+			if(mChangedSeq[i] - base > 0) {
+				out.writeVarInt(i - last - 1);
+				write(out, mLocal.getType(i), mLocal.getBits(i));
+				last = i;
+			}
+		}
+		return out.finish();
+	}
+
+	/**
+	 * Writes the value in the form of its type.
+	 *
+	 * @param out the writer
+	 * @param type the type
+	 * @param bits the value bits
+	 */
+	private static void write(MessageWriter out, SyncFieldType type, long bits) {
+		switch(type) {
+		case BOOLEAN:
+			out.writeBoolean(bits != 0);
+			break;
+		case INT:
+			out.writeVarInt((int) bits);
+			break;
+		case FLOAT:
+			out.writeInt((int) bits);
+			break;
+		default:
+			out.writeLong(bits);
+		}
+	}
+
+	/**
+	 * Reads the value in the form of its type.
+	 *
+	 * @param in the reader
+	 * @param type the type
+	 * @return the value bits
+	 */
+	private static long read(MessageReader in, SyncFieldType type) {
+		switch(type) {
+		case BOOLEAN:
+			return in.readBoolean() ? 1 : 0;
+		case INT:
+			return in.readVarInt();
+		case FLOAT:
+			return in.readInt();
+		default:
+			return in.readLong();
+		}
+	}
+}
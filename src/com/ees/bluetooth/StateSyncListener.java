@@ -0,0 +1,21 @@
+package com.ees.bluetooth;
+
+/**
+ * The listener interface for receiving state updates of remote devices.
+ *
+ * @see StateSync#setListener(StateSyncListener)
+ */
+public interface StateSyncListener {
+
+	/**
+	 * Called on the channel thread once a keyframe or delta has been
+	 * applied. The state is patched in place by the next update, read it
+	 * during the call or copy what has to be kept.
+	 *
+	 * @param address the device address
+	 * @param state the state of the device, {@link SyncState#isChanged(int)}
+	 *            tells the fields updated by this update
+	 * @param keyframe true, if the whole state has been replaced
+	 */
+	void onStateUpdated(String address, SyncState state, boolean keyframe);
+}
@@ -0,0 +1,97 @@
+package com.ees.bluetooth;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The Class StreamAssembler. Joins chunks of messages received over logical
+ * streams, one partial message per stream. Messages sent in a single chunk
+ * are passed through without copying, buffers of chunked messages only grow,
+ * up to the message size limit.
+ */
+class StreamAssembler {
+
+	/** The initial size of stream buffer. */
+	private static final int INITIAL_SIZE = 1024;
+
+	/** The maximum message size. */
+	private final int mMaxSize;
+
+	/** The buffers indexed by stream id, created on first chunked message. */
+	private final byte[][] mBuffers = new byte[FrameCodec.MAX_STREAM_ID + 1][];
+
+	/** The read only views of buffers. */
+	private final ByteBuffer[] mViews = new ByteBuffer[FrameCodec.MAX_STREAM_ID + 1];
+
+	/** The number of bytes of partial messages. */
+	private final int[] mLengths = new int[FrameCodec.MAX_STREAM_ID + 1];
+
+	/**
+	 * Instantiates a new stream assembler.
+	 *
+	 * @param maxSize the maximum message size
+	 */
+	StreamAssembler(int maxSize) {
+		mMaxSize = maxSize;
+	}
+
+	/**
+	 * Adds the chunk of the stream.
+	 *
+	 * @param streamId the stream id
+	 * @param chunk the chunk
+	 * @param more true, if further chunks of the message follow
+	 * @return the whole message valid until the next call, null while incomplete
+	 * @throws FrameException Signals invalid stream or oversized message.
+	 */
+	ByteBuffer add(int streamId, ByteBuffer chunk, boolean more) throws FrameException {
+		if(streamId > FrameCodec.MAX_STREAM_ID) {
+			throw new FrameException("Invalid stream id " + streamId);
+		}
+		int length = mLengths[streamId];
+		if(!more && length == 0) {
+			return chunk;
+		}
+		int n = chunk.remaining();
+		if(length + n > mMaxSize) {
+			throw new FrameException("Message of stream " + streamId + " exceeds limit " + mMaxSize);
+		}
+		byte[] buffer = ensure(streamId, length + n);
+		chunk.get(buffer, length, n);
+		length += n;
+		if(more) {
+			mLengths[streamId] = length;
+			return null;
+		}
+		mLengths[streamId] = 0;
+		ByteBuffer view = mViews[streamId];
+		view.clear();
+		view.limit(length);
+		return view;
+	}
+
+	/**
+	 * Grows the buffer of the stream to hold at least given number of bytes.
+	 *
+	 * @param streamId the stream id
+	 * @param size the required size
+	 * @return the buffer
+	 */
+	private byte[] ensure(int streamId, int size) {
+		byte[] buffer = mBuffers[streamId];
+		if(buffer != null && buffer.length >= size) {
+			return buffer;
+		}
+		int capacity = buffer != null ? buffer.length : INITIAL_SIZE;
+		while(capacity < size) {
+			capacity <<= 1;
+		}
+		capacity = Math.max(Math.min(capacity, mMaxSize), size);
+		byte[] grown = new byte[capacity];
+		if(buffer != null) {
+			System.arraycopy(buffer, 0, grown, 0, mLengths[streamId]);
+		}
+		mBuffers[streamId] = grown;
+		mViews[streamId] = ByteBuffer.wrap(grown).asReadOnlyBuffer();
+		return grown;
+	}
+}
@@ -0,0 +1,22 @@
+package com.ees.bluetooth;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The listener interface for receiving messages of streams other than the
+ * default one, which are delivered to {@link MessageListener}.
+ *
+ * @see ConnectionManager#setStreamListener(StreamListener)
+ */
+public interface StreamListener {
+
+	/**
+	 * Called on the channel thread for every received message. The buffer
+	 * is read only and valid only during the call, copy what has to be kept.
+	 *
+	 * @param address the device address
+	 * @param streamId the stream id
+	 * @param message the message payload
+	 */
+	void onMessageReceived(String address, int streamId, ByteBuffer message);
+}
@@ -0,0 +1,42 @@
+package com.ees.bluetooth;
+
+/**
+ * The Enum StreamPriority. Priority classes of logical streams. Messages of
+ * one stream are sent in order, chunks of messages of different classes are
+ * interleaved, so a small urgent message waits at most for one chunk of a
+ * bulk transfer.
+ *
+ * @see ConnectionManager#setStreamPriority(int, StreamPriority)
+ */
+public enum StreamPriority {
+
+	/** Sent before any other class, for input and control messages. */
+	URGENT(0),
+
+	/** Shares the link with bulk streams, four chunks for each bulk chunk. */
+	NORMAL(4),
+
+	/** Gets what the other classes leave. */
+	BULK(1);
+
+	/** The number of consecutive chunks of weighted class, 0 for strict priority. */
+	private final int mWeight;
+
+	/**
+	 * Instantiates a new stream priority.
+	 *
+	 * @param weight the weight, 0 for strict priority
+	 */
+	private StreamPriority(int weight) {
+		mWeight = weight;
+	}
+
+	/**
+	 * Gets the weight.
+	 *
+	 * @return the number of consecutive chunks, 0 for strict priority
+	 */
+	int getWeight() {
+		return mWeight;
+	}
+}
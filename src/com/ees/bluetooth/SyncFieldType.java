@@ -0,0 +1,23 @@
+package com.ees.bluetooth;
+
+/**
+ * The Enum SyncFieldType. Types of fields of a {@link SyncState}, each sent
+ * in its most compact form.
+ */
+public enum SyncFieldType {
+
+	/** Sent as one byte. */
+	BOOLEAN,
+
+	/** Sent as zig-zag varint, small values take one byte. */
+	INT,
+
+	/** Sent as eight bytes. */
+	LONG,
+
+	/** Sent as four bytes. */
+	FLOAT,
+
+	/** Sent as eight bytes. */
+	DOUBLE
+}
@@ -0,0 +1,247 @@
+package com.ees.bluetooth;
+
+import java.util.Arrays;
+
+/**
+ * The Class SyncState. Fixed set of typed fields synchronized by
+ * {@link StateSync}, addressed by index. Every field is kept as raw bits,
+ * setting a different value marks the field changed, so the sender knows
+ * which fields to put into the next delta. The state is not thread safe,
+ * it is changed and published by one thread.
+ */
+public class SyncState {
+
+	/** The field types. */
+	private final SyncFieldType[] mTypes;
+
+	/** The values as raw bits. */
+	private final long[] mValues;
+
+	/** The bit set of changed fields. */
+	private final long[] mChanged;
+
+	/**
+	 * Instantiates a new state with fields of given types, all set to zero.
+	 *
+	 * @param types the field types
+	 */
+	public SyncState(SyncFieldType... types) {
+		if(types.length == 0) {
+			throw new IllegalArgumentException("No fields");
+		}
+		mTypes = types.clone();
+		for(SyncFieldType type : mTypes) {
+			if(type == null) {
+				throw new IllegalArgumentException("Missing field type");
+			}
+		}
+		mValues = new long[types.length];
+		mChanged = new long[(types.length + 63) >>> 6];
+	}
+
+	/**
+	 * Gets the number of fields.
+	 *
+	 * @return the field count
+	 */
+	public int getFieldCount() {
+		return mTypes.length;
+	}
+
+	/**
+	 * Gets the type of the field.
+	 *
+	 * @param index the field index
+	 * @return the type
+	 */
+	public SyncFieldType getType(int index) {
+		return mTypes[index];
+	}
+
+	/**
+	 * Checks if the field changed, since the last publish of a local state
+	 * or by the last update of a remote one.
+	 *
+	 * @param index the field index
+	 * @return true, if changed
+	 */
+	public boolean isChanged(int index) {
+		return (mChanged[index >>> 6] & (1L << index)) != 0;
+	}
+
+	/**
+	 * Gets the boolean value.
+	 *
+	 * @param index the field index
+	 * @return the value
+	 */
+	public boolean getBoolean(int index) {
+		check(index, SyncFieldType.BOOLEAN);
+		return mValues[index] != 0;
+	}
+
+	/**
+	 * Sets the boolean value.
+	 *
+	 * @param index the field index
+	 * @param value the value
+	 */
+	public void setBoolean(int index, boolean value) {
+		check(index, SyncFieldType.BOOLEAN);
+		setBits(index, value ? 1 : 0);
+	}
+
+	/**
+	 * Gets the int value.
+	 *
+	 * @param index the field index
+	 * @return the value
+	 */
+	public int getInt(int index) {
+		check(index, SyncFieldType.INT);
+		return (int) mValues[index];
+	}
+
+	/**
+	 * Sets the int value.
+	 *
+	 * @param index the field index
+	 * @param value the value
+	 */
+	public void setInt(int index, int value) {
+		check(index, SyncFieldType.INT);
+		setBits(index, value);
+	}
+
+	/**
+	 * Gets the long value.
+	 *
+	 * @param index the field index
+	 * @return the value
+	 */
+	public long getLong(int index) {
+		check(index, SyncFieldType.LONG);
+		return mValues[index];
+	}
+
+	/**
+	 * Sets the long value.
+	 *
+	 * @param index the field index
+	 * @param value the value
+	 */
+	public void setLong(int index, long value) {
+		check(index, SyncFieldType.LONG);
+		setBits(index, value);
+	}
+
+	/**
+	 * Gets the float value.
+	 *
+	 * @param index the field index
+	 * @return the value
+	 */
+	public float getFloat(int index) {
+		check(index, SyncFieldType.FLOAT);
+		return Float.intBitsToFloat((int) mValues[index]);
+	}
+
+	/**
+	 * Sets the float value.
+	 *
+	 * @param index the field index
+	 * @param value the value
+	 */
+	public void setFloat(int index, float value) {
+		check(index, SyncFieldType.FLOAT);
+		setBits(index, Float.floatToRawIntBits(value));
+	}
+
+	/**
+	 * Gets the double value.
+	 *
+	 * @param index the field index
+	 * @return the value
+	 */
+	public double getDouble(int index) {
+		check(index, SyncFieldType.DOUBLE);
+		return Double.longBitsToDouble(mValues[index]);
+	}
+
+	/**
+	 * Sets the double value.
+	 *
+	 * @param index the field index
+	 * @param value the value
+	 */
+	public void setDouble(int index, double value) {
+		check(index, SyncFieldType.DOUBLE);
+		setBits(index, Double.doubleToRawLongBits(value));
+	}
+
+	/**
+	 * Gets the raw bits of the field.
+	 *
+	 * @param index the field index
+	 * @return the bits
+	 */
+	long getBits(int index) {
+		return mValues[index];
+	}
+
+	/**
+	 * Sets the raw bits of the field, marks it changed when they differ.
+	 *
+	 * @param index the field index
+	 * @param bits the bits
+	 */
+	void setBits(int index, long bits) {
+		if(mValues[index] != bits) {
+			mValues[index] = bits;
+			mChanged[index >>> 6] |= 1L << index;
+		}
+	}
+
+	/**
+	 * Clears the changed marks.
+	 */
+	void clearChanged() {
+		Arrays.fill(mChanged, 0);
+	}
+
+	/**
+	 * Gets the hash of the layout, sent with keyframes so states of
+	 * different layout are not mixed up.
+	 *
+	 * @return the layout hash
+	 */
+	int layoutHash() {
+		int hash = mTypes.length;
+		for(SyncFieldType type : mTypes) {
+			hash = hash * 31 + type.ordinal();
+		}
+		return hash;
+	}
+
+	/**
+	 * Creates an empty state of the same layout.
+	 *
+	 * @return the state
+	 */
+	SyncState newState() {
+		return new SyncState(mTypes);
+	}
+
+	/**
+	 * Checks the field type.
+	 *
+	 * @param index the field index
+	 * @param type the expected type
+	 * @throws IllegalArgumentException when the field is of other type
+	 */
+	private void check(int index, SyncFieldType type) {
+		if(mTypes[index] != type) {
+			throw new IllegalArgumentException("Field " + index + " is " + mTypes[index] + ", not " + type);
+		}
+	}
+}
@@ -0,0 +1,177 @@
+package com.ees.bluetooth;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.UUID;
+
+/**
+ * The Class TcpTransport. TCP implementation of the transport, by default bound
+ * to the loopback interface. Addresses are given as "host:port".
+ */
+public class TcpTransport implements Transport {
+
+	/** The bind address used by listen. */
+	private final InetAddress mBindAddress;
+
+	/** The port used by listen, 0 picks ephemeral port. */
+	private final int mPort;
+
+	/** The port of the last opened server socket. */
+	private volatile int mLocalPort;
+
+	/**
+	 * Instantiates a new TCP transport listening on loopback interface.
+	 *
+	 * @param port the listen port, 0 picks ephemeral port
+	 */
+	public TcpTransport(int port) {
+		this(null, port);
+	}
+
+	/**
+	 * Instantiates a new TCP transport.
+	 *
+	 * @param bindAddress the bind address, null for loopback
+	 * @param port the listen port, 0 picks ephemeral port
+	 */
+	public TcpTransport(InetAddress bindAddress, int port) {
+		mBindAddress = bindAddress;
+		mPort = port;
+	}
+
+	/**
+	 * Gets the local port of the last opened server socket.
+	 *
+	 * @return the local port, 0 when not listening yet
+	 */
+	public int getLocalPort() {
+		return mLocalPort;
+	}
+
+	/**
+	 * Gets the address of the last opened server socket in "host:port" form.
+	 *
+	 * @return the local address
+	 * @throws IOException Signals that the host could not be resolved.
+	 */
+	public String getLocalAddress() throws IOException {
+		InetAddress host = mBindAddress != null ? mBindAddress : InetAddress.getByName(null);
+		return host.getHostAddress() + ":" + mLocalPort;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ees.bluetooth.Transport#createSocket(java.lang.String, java.util.UUID)
+	 */
+	@Override
+	public TransportSocket createSocket(String address, UUID uuid) throws IOException {
+		int sep = address.lastIndexOf(':');
+		if(sep < 0) {
+			throw new IOException("Address without port: " + address);
+		}
+		int port;
+		try {
+			port = Integer.parseInt(address.substring(sep + 1));
+		} catch (NumberFormatException e) {
+			throw new IOException("Invalid port in address: " + address);
+		}
+		return new TcpSocket(new Socket(), address, address.substring(0, sep), port);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ees.bluetooth.Transport#listen(java.lang.String, java.util.UUID)
+	 */
+	@Override
+	public TransportServerSocket listen(String serviceName, UUID uuid) throws IOException {
+		InetAddress host = mBindAddress != null ? mBindAddress : InetAddress.getByName(null);
+		final ServerSocket serverSocket = new ServerSocket(mPort, 50, host);
+		mLocalPort = serverSocket.getLocalPort();
+		return new TransportServerSocket() {
+			@Override
+			public TransportSocket accept() throws IOException {
+				Socket socket = serverSocket.accept();
+				socket.setTcpNoDelay(true);
+				String address = socket.getInetAddress().getHostAddress() + ":" + socket.getPort();
+				return new TcpSocket(socket, address, null, 0);
+			}
+
+			@Override
+			public void close() throws IOException {
+				serverSocket.close();
+			}
+
+			@Override
+			public String toString() {
+				return serverSocket.toString();
+			}
+		};
+	}
+
+	/**
+	 * The Class TcpSocket. Adapts {@link Socket} to the transport.
+	 */
+	static class TcpSocket implements TransportSocket {
+
+		/** The socket. */
+		private final Socket mmSocket;
+
+		/** The remote address. */
+		private final String mRemoteAddress;
+
+		/** The host to connect, null for accepted sockets. */
+		private final String mHost;
+
+		/** The port to connect. */
+		private final int mPort;
+
+		/**
+		 * Instantiates a new TCP socket.
+		 *
+		 * @param socket the socket
+		 * @param remoteAddress the remote address
+		 * @param host the host to connect
+		 * @param port the port to connect
+		 */
+		TcpSocket(Socket socket, String remoteAddress, String host, int port) {
+			mmSocket = socket;
+			mRemoteAddress = remoteAddress;
+			mHost = host;
+			mPort = port;
+		}
+
+		@Override
+		public void connect() throws IOException {
+			mmSocket.setTcpNoDelay(true);
+			mmSocket.connect(new InetSocketAddress(mHost, mPort));
+		}
+
+		@Override
+		public InputStream getInputStream() throws IOException {
+			return mmSocket.getInputStream();
+		}
+
+		@Override
+		public OutputStream getOutputStream() throws IOException {
+			return mmSocket.getOutputStream();
+		}
+
+		@Override
+		public String getRemoteAddress() {
+			return mRemoteAddress;
+		}
+
+		@Override
+		public String getRemoteName() {
+			return mRemoteAddress;
+		}
+
+		@Override
+		public void close() throws IOException {
+			mmSocket.close();
+		}
+	}
+}
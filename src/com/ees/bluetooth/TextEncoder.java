@@ -0,0 +1,100 @@
+package com.ees.bluetooth;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * The Class TextEncoder. Per thread UTF-8 encoder writing text straight into
+ * pooled buffers. Encoder and character buffer are reused, so sending text
+ * does not allocate once the thread has warmed up.
+ */
+final class TextEncoder {
+
+	/** The charset of text messages. */
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/** The encoder of current thread. */
+	private static final ThreadLocal<TextEncoder> sEncoders = new ThreadLocal<TextEncoder>() {
+		@Override
+		protected TextEncoder initialValue() {
+			return new TextEncoder();
+		}
+	};
+
+	/** The encoder, malformed input is replaced like String.getBytes does. */
+	private final CharsetEncoder mEncoder = UTF8.newEncoder()
+			.onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+	/** The characters of encoded text. */
+	private char[] mChars = new char[256];
+
+	/** The view of the characters. */
+	private CharBuffer mCharView = CharBuffer.wrap(mChars);
+
+	/**
+	 * Instantiates a new text encoder.
+	 */
+	private TextEncoder() {
+	}
+
+	/**
+	 * Encodes text into buffer acquired from given pool.
+	 *
+	 * @param text the text
+	 * @param pool the pool
+	 * @return the buffer holding encoded text, owned by the caller
+	 */
+	static PooledBuffer encode(CharSequence text, BufferPool pool) {
+		return sEncoders.get().doEncode(text, pool);
+	}
+
+	/**
+	 * Encodes text into buffer acquired from given pool.
+	 *
+	 * @param text the text
+	 * @param pool the pool
+	 * @return the buffer holding encoded text
+	 */
+	private PooledBuffer doEncode(CharSequence text, BufferPool pool) {
+		int length = text.length();
+		if(mChars.length < length) {
+			mChars = new char[Math.max(length, mChars.length * 2)];
+			mCharView = CharBuffer.wrap(mChars);
+		}
+		if(text instanceof String) {
+			((String) text).getChars(0, length, mChars, 0);
+		} else {
+			for(int i = 0; i < length; i++) {
+				mChars[i] = text.charAt(i);
+			}
+		}
+		mCharView.clear();
+		mCharView.limit(length);
+
+		PooledBuffer buffer = pool.acquire((int) Math.ceil(length * (double) mEncoder.maxBytesPerChar()));
+		ByteBuffer out = buffer.writeView();
+		mEncoder.reset();
+		try {
+			CoderResult result = mEncoder.encode(mCharView, out, true);
+			if(!result.isUnderflow()) {
+				result.throwException();
+			}
+			result = mEncoder.flush(out);
+			if(!result.isUnderflow()) {
+				result.throwException();
+			}
+		} catch (CharacterCodingException e) {
+			buffer.release();
+			// Output is sized for the worst case and bad input is replaced.
+			throw new IllegalStateException("Text encoding failed", e);
+		}
+		buffer.setLength(out.position() - buffer.offset());
+		return buffer;
+	}
+}
@@ -0,0 +1,32 @@
+package com.ees.bluetooth;
+
+import java.io.IOException;
+import java.util.UUID;
+
+/**
+ * The Interface Transport. Transport provides the links the connection engine
+ * runs on. {@link RfcommTransport} is used on devices, {@link PipeTransport}
+ * and {@link TcpTransport} allow to run the same engine on a plain JVM.
+ */
+public interface Transport {
+
+	/**
+	 * Creates not yet connected socket to the remote device.
+	 *
+	 * @param address the remote device address
+	 * @param uuid the service uuid
+	 * @return the transport socket
+	 * @throws IOException Signals that the socket could not be created.
+	 */
+	TransportSocket createSocket(String address, UUID uuid) throws IOException;
+
+	/**
+	 * Opens server socket which accepts incoming connections.
+	 *
+	 * @param serviceName the service name
+	 * @param uuid the service uuid
+	 * @return the transport server socket
+	 * @throws IOException Signals that the server socket could not be opened.
+	 */
+	TransportServerSocket listen(String serviceName, UUID uuid) throws IOException;
+}
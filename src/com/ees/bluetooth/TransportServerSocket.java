@@ -0,0 +1,25 @@
+package com.ees.bluetooth;
+
+import java.io.IOException;
+
+/**
+ * The Interface TransportServerSocket. Listening side of the transport.
+ */
+public interface TransportServerSocket {
+
+	/**
+	 * Accept. This is a blocking call and will only return on a
+	 * successful connection or an exception.
+	 *
+	 * @return the connected transport socket
+	 * @throws IOException Signals that accept failed or the socket has been closed.
+	 */
+	TransportSocket accept() throws IOException;
+
+	/**
+	 * Close. Aborts pending accept call.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	void close() throws IOException;
+}
@@ -0,0 +1,57 @@
+package com.ees.bluetooth;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * The Interface TransportSocket. Single bidirectional link to the remote device.
+ */
+public interface TransportSocket {
+
+	/**
+	 * Connect. This is a blocking call and will only return on a
+	 * successful connection or an exception. Closing the socket from
+	 * other thread aborts the call.
+	 *
+	 * @throws IOException Signals that the connection failed.
+	 */
+	void connect() throws IOException;
+
+	/**
+	 * Gets the input stream.
+	 *
+	 * @return the input stream
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	InputStream getInputStream() throws IOException;
+
+	/**
+	 * Gets the output stream.
+	 *
+	 * @return the output stream
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	OutputStream getOutputStream() throws IOException;
+
+	/**
+	 * Gets the remote device address.
+	 *
+	 * @return the remote address
+	 */
+	String getRemoteAddress();
+
+	/**
+	 * Gets the remote device name.
+	 *
+	 * @return the remote name
+	 */
+	String getRemoteName();
+
+	/**
+	 * Close.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	void close() throws IOException;
+}
@@ -0,0 +1,25 @@
+package com.ees.bluetooth;
+
+/**
+ * The interface of messages sent by {@link TypedMessageEndpoint}. A message
+ * writes its fields itself and reads them back in the same order, instances
+ * are reused for every received message of their type.
+ *
+ * @see TypedMessageEndpoint#register(int, Class, TypedMessageListener)
+ */
+public interface TypedMessage {
+
+	/**
+	 * Writes the fields.
+	 *
+	 * @param out the writer
+	 */
+	void write(MessageWriter out);
+
+	/**
+	 * Reads the fields, replacing all values of the previous message.
+	 *
+	 * @param in the reader
+	 */
+	void read(MessageReader in);
+}
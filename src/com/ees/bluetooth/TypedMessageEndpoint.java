@@ -0,0 +1,310 @@
+package com.ees.bluetooth;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import android.util.Log;
+
+/**
+ * The Class TypedMessageEndpoint. Binary messages of registered types over
+ * one stream of the connection manager, in place of text built and parsed
+ * by the application. Every message starts with the schema id of its type
+ * followed by fields in binary form, see {@link MessageWriter}.
+ * <p>
+ * Messages are encoded straight into pooled buffers by writers reused per
+ * thread and decoded straight from the received frame into an instance of
+ * the type kept per channel thread, so neither side allocates per message
+ * once warmed up. Frames are required, on the default stream the endpoint
+ * takes the place of the message listener.
+ */
+public class TypedMessageEndpoint implements MessageListener, StreamListener {
+
+	/** The Constant TAG. */
+	private static final String TAG = TypedMessageEndpoint.class.getSimpleName();
+
+	/** The default stream of messages, the one of {@link MessageListener}. */
+	public static final int DEFAULT_STREAM_ID = 0;
+
+	/** The largest schema id. */
+	public static final int MAX_SCHEMA_ID = 4095;
+
+	/** The writer of current thread. */
+	private static final ThreadLocal<MessageWriter> sWriters = new ThreadLocal<MessageWriter>() {
+		@Override
+		protected MessageWriter initialValue() {
+			return new MessageWriter();
+		}
+	};
+
+	/** The reader of current thread. */
+	private static final ThreadLocal<MessageReader> sReaders = new ThreadLocal<MessageReader>() {
+		@Override
+		protected MessageReader initialValue() {
+			return new MessageReader();
+		}
+	};
+
+	/** The connection manager. */
+	private final ConnectionManager mManager;
+
+	/** The stream id. */
+	private final int mStreamId;
+
+	/** The registered types indexed by schema id. */
+	private final AtomicReferenceArray<Schema<?>> mSchemas = new AtomicReferenceArray<Schema<?>>(MAX_SCHEMA_ID + 1);
+
+	/** The registered types keyed by message class. */
+	private final ConcurrentMap<Class<?>, Schema<?>> mSchemasByType = new ConcurrentHashMap<Class<?>, Schema<?>>();
+
+	/**
+	 * The Class Schema. Registered message type with the instance received
+	 * messages are decoded into, one per channel thread.
+	 *
+	 * @param <T> the message type
+	 */
+	private static final class Schema<T extends TypedMessage> {
+
+		/** The schema id. */
+		final int mId;
+
+		/** The message class. */
+		final Class<T> mType;
+
+		/** The listener, null when the type is only sent. */
+		final TypedMessageListener<? super T> mListener;
+
+		/** The reused instances. */
+		final ThreadLocal<T> mInstances = new ThreadLocal<T>() {
+			@Override
+			protected T initialValue() {
+				return newInstance(mType);
+			}
+		};
+
+		/**
+		 * Instantiates a new schema.
+		 *
+		 * @param id the schema id
+		 * @param type the message class
+		 * @param listener the listener, may be null
+		 */
+		Schema(int id, Class<T> type, TypedMessageListener<? super T> listener) {
+			mId = id;
+			mType = type;
+			mListener = listener;
+		}
+
+		/**
+		 * Decodes the message into the instance of current thread and
+		 * hands it over to the listener.
+		 *
+		 * @param address the device address
+		 * @param in the reader positioned after the schema id
+		 */
+		void dispatch(String address, MessageReader in) {
+			T message = mInstances.get();
+			message.read(in);
+			if(mListener != null) {
+				mListener.onMessageReceived(address, message);
+			}
+		}
+	}
+
+	/**
+	 * Instantiates a new typed message endpoint on the default stream.
+	 *
+	 * @param manager the connection manager
+	 */
+	public TypedMessageEndpoint(ConnectionManager manager) {
+		this(manager, DEFAULT_STREAM_ID);
+	}
+
+	/**
+	 * Instantiates a new typed message endpoint, it takes over the stream
+	 * until {@link #close()}.
+	 *
+	 * @param manager the connection manager
+	 * @param streamId the stream id, 0 for the default stream
+	 * @throws IllegalArgumentException when the frame codec is missing or
+	 *             does not enable streams for other than the default stream
+	 */
+	public TypedMessageEndpoint(ConnectionManager manager, int streamId) {
+		FrameCodec codec = manager.getFrameCodec();
+		if(codec == null) {
+			throw new IllegalArgumentException("Framing not enabled");
+		}
+		if(streamId != 0) {
+			manager.checkOwnStream(streamId);
+		}
+		mManager = manager;
+		mStreamId = streamId;
+		if(streamId == 0) {
+			manager.setMessageListener(this);
+		} else {
+			manager.setStreamListener(streamId, this);
+		}
+	}
+
+	/**
+	 * Registers the message type, replacing the previous type of the schema
+	 * id. Both devices have to register the type under the same id.
+	 *
+	 * @param <T> the message type
+	 * @param schemaId the schema id, 0 to {@link #MAX_SCHEMA_ID}
+	 * @param type the message class, with public constructor without arguments
+	 * @param listener the listener of received messages, null when only sent
+	 * @throws IllegalArgumentException when the id is out of range or the
+	 *             class cannot be instantiated
+	 */
+	public <T extends TypedMessage> void register(int schemaId, Class<T> type, TypedMessageListener<? super T> listener) {
+		if(schemaId < 0 || schemaId > MAX_SCHEMA_ID) {
+			throw new IllegalArgumentException("Invalid schema id " + schemaId);
+		}
+		Schema<T> schema = new Schema<T>(schemaId, type, listener);
+		// Fails now rather than on the first received message.
+		schema.mInstances.set(newInstance(type));
+		Schema<?> prev = mSchemas.getAndSet(schemaId, schema);
+		if(prev != null) {
+			mSchemasByType.remove(prev.mType, prev);
+		}
+		mSchemasByType.put(type, schema);
+	}
+
+	/**
+	 * Unregisters the message type of the schema id, its messages are
+	 * dropped afterwards.
+	 *
+	 * @param schemaId the schema id
+	 */
+	public void unregister(int schemaId) {
+		if(schemaId < 0 || schemaId > MAX_SCHEMA_ID) {
+			return;
+		}
+		Schema<?> prev = mSchemas.getAndSet(schemaId, null);
+		if(prev != null) {
+			mSchemasByType.remove(prev.mType, prev);
+		}
+	}
+
+	/**
+	 * Sends the message to the device with given address. The message is
+	 * encoded before the call returns, so the instance may be reused.
+	 *
+	 * @param address the device address
+	 * @param message the message of a registered type
+	 * @param callback the completion callback, may be null
+	 * @return true, if the message has been queued for the device channel
+	 * @throws IllegalArgumentException when the type is not registered
+	 */
+	public boolean send(String address, TypedMessage message, WriteCallback callback) {
+		return mManager.send(address, mStreamId, encode(message), callback);
+	}
+
+	/**
+	 * Sends the message to every connected device, it is encoded once.
+	 *
+	 * @param message the message of a registered type
+	 * @return true, if the message has been queued for at least one device
+	 * @throws IllegalArgumentException when the type is not registered
+	 */
+	public boolean send(TypedMessage message) {
+		return mManager.send(mStreamId, encode(message), null);
+	}
+
+	/**
+	 * Close. Releases the stream.
+	 */
+	public void close() {
+		if(mStreamId == 0) {
+			if(mManager.getMessageListener() == this) {
+				mManager.setMessageListener(null);
+			}
+		} else {
+			mManager.setStreamListener(mStreamId, null);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ees.bluetooth.MessageListener#onMessageReceived(java.lang.String, java.nio.ByteBuffer)
+	 */
+	@Override
+	public void onMessageReceived(String address, ByteBuffer message) {
+		dispatch(address, message);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ees.bluetooth.StreamListener#onMessageReceived(java.lang.String, int, java.nio.ByteBuffer)
+	 */
+	@Override
+	public void onMessageReceived(String address, int streamId, ByteBuffer message) {
+		dispatch(address, message);
+	}
+
+	/**
+	 * Encodes the message into a pooled buffer.
+	 *
+	 * @param message the message
+	 * @return the buffer, owned by the caller
+	 */
+	private PooledBuffer encode(TypedMessage message) {
+		Schema<?> schema = mSchemasByType.get(message.getClass());
+		if(schema == null) {
+			throw new IllegalArgumentException("Message type " + message.getClass().getName() + " not registered");
+		}
+		MessageWriter out = sWriters.get();
+		out.begin(mManager.getBufferPool());
+		try {
+			out.writeShort(schema.mId);
+			message.write(out);
+		} catch (RuntimeException e) {
+			out.abort();
+			throw e;
+		}
+		return out.finish();
+	}
+
+	/**
+	 * Decodes the message and hands it over to the listener of its type.
+	 *
+	 * @param address the device address
+	 * @param message the message
+	 */
+	private void dispatch(String address, ByteBuffer message) {
+		MessageReader in = sReaders.get();
+		try {
+			int id = message.getShort() & 0xffff;
+			Schema<?> schema = id <= MAX_SCHEMA_ID ? mSchemas.get(id) : null;
+			if(schema == null) {
+				Log.w(TAG, "Unknown message schema " + id + " from " + address);
+				return;
+			}
+			in.wrap(message);
+			schema.dispatch(address, in);
+		} catch (BufferUnderflowException e) {
+			Log.w(TAG, "Malformed message from " + address);
+		} finally {
+			in.wrap(null);
+		}
+	}
+
+	/**
+	 * Creates an instance of the message class.
+	 *
+	 * @param <T> the message type
+	 * @param type the message class
+	 * @return the instance
+	 * @throws IllegalArgumentException when the class cannot be instantiated
+	 */
+	private static <T> T newInstance(Class<T> type) {
+		try {
+			return type.newInstance();
+		} catch (InstantiationException e) {
+			throw new IllegalArgumentException("Cannot instantiate " + type.getName(), e);
+		} catch (IllegalAccessException e) {
+			throw new IllegalArgumentException("Cannot instantiate " + type.getName(), e);
+		}
+	}
+}
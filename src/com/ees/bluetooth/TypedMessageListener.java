@@ -0,0 +1,19 @@
+package com.ees.bluetooth;
+
+/**
+ * The listener interface for receiving messages of one registered type.
+ *
+ * @param <T> the message type
+ * @see TypedMessageEndpoint#register(int, Class, TypedMessageListener)
+ */
+public interface TypedMessageListener<T extends TypedMessage> {
+
+	/**
+	 * Called on the channel thread for every received message of the type.
+	 * The instance is reused for the next message, copy what has to be kept.
+	 *
+	 * @param address the device address
+	 * @param message the message
+	 */
+	void onMessageReceived(String address, T message);
+}
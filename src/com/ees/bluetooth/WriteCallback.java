@@ -0,0 +1,21 @@
+package com.ees.bluetooth;
+
+import java.io.IOException;
+
+/**
+ * The callback interface notified when a queued write completes. One instance
+ * may serve any number of writes, so senders do not allocate per message.
+ */
+public interface WriteCallback {
+
+	/**
+	 * Called once the data have been written to the socket or the write failed.
+	 * It runs on the channel writer thread, or on the caller thread when the
+	 * write is rejected up front.
+	 *
+	 * @param address the device address
+	 * @param length the length of written data
+	 * @param error the failure, null on success
+	 */
+	void onWriteCompleted(String address, int length, IOException error);
+}
@@ -0,0 +1,22 @@
+package com.ees.bluetooth;
+
+import java.io.IOException;
+
+/**
+ * The Class WriteFuture. Write callback exposing completion as a future,
+ * its value is the number of written bytes.
+ */
+public class WriteFuture extends ResultFuture<Integer> implements WriteCallback {
+
+	/* (non-Javadoc)
+	 * @see com.ees.bluetooth.WriteCallback#onWriteCompleted(java.lang.String, int, java.io.IOException)
+	 */
+	@Override
+	public void onWriteCompleted(String address, int length, IOException error) {
+		if(error == null) {
+			complete(Integer.valueOf(length));
+		} else {
+			fail(error);
+		}
+	}
+}
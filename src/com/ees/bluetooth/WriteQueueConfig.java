@@ -0,0 +1,125 @@
+package com.ees.bluetooth;
+
+/**
+ * The Class WriteQueueConfig. Settings of the per channel write queue.
+ *
+ * @see ConnectionManager#setWriteQueueConfig(WriteQueueConfig)
+ */
+public class WriteQueueConfig {
+
+	/** The default queue capacity in messages. */
+	public static final int DEFAULT_CAPACITY = 256;
+
+	/** The default maximum size of one coalesced socket write. */
+	public static final int DEFAULT_MAX_BATCH_BYTES = 4096;
+
+	/** The default coalescing delay, no waiting for further messages. */
+	public static final long DEFAULT_MAX_DELAY_MICROS = 0;
+
+	/** The default chunk size, a few milliseconds of radio time. */
+	public static final int DEFAULT_CHUNK_SIZE = 512;
+
+	/** The queue capacity in messages. */
+	private final int mCapacity;
+
+	/** The maximum size of one coalesced socket write. */
+	private final int mMaxBatchBytes;
+
+	/** The maximum time the first message of batch waits for others. */
+	private final long mMaxDelayMicros;
+
+	/** The backpressure policy. */
+	private final BackpressurePolicy mPolicy;
+
+	/** The maximum chunk of message sent at once when streams are enabled. */
+	private final int mChunkSize;
+
+	/**
+	 * Instantiates a new write queue config with default settings and
+	 * blocking backpressure.
+	 */
+	public WriteQueueConfig() {
+		this(DEFAULT_CAPACITY, DEFAULT_MAX_BATCH_BYTES, DEFAULT_MAX_DELAY_MICROS, BackpressurePolicy.BLOCK);
+	}
+
+	/**
+	 * Instantiates a new write queue config.
+	 *
+	 * @param capacity the queue capacity in messages
+	 * @param maxBatchBytes the maximum size of one coalesced socket write
+	 * @param maxDelayMicros the time the first message of batch may wait for
+	 *            further messages, 0 coalesces only already queued messages
+	 * @param policy the backpressure policy
+	 */
+	public WriteQueueConfig(int capacity, int maxBatchBytes, long maxDelayMicros, BackpressurePolicy policy) {
+		this(capacity, maxBatchBytes, maxDelayMicros, policy, DEFAULT_CHUNK_SIZE);
+	}
+
+	/**
+	 * Instantiates a new write queue config.
+	 *
+	 * @param capacity the queue capacity in messages
+	 * @param maxBatchBytes the maximum size of one coalesced socket write
+	 * @param maxDelayMicros the time the first message of batch may wait for
+	 *            further messages, 0 coalesces only already queued messages
+	 * @param policy the backpressure policy
+	 * @param chunkSize the maximum chunk of message sent at once when streams
+	 *            are enabled, the longest time a higher priority message waits
+	 */
+	public WriteQueueConfig(int capacity, int maxBatchBytes, long maxDelayMicros, BackpressurePolicy policy,
+			int chunkSize) {
+		if(capacity <= 0 || maxBatchBytes <= 0 || maxDelayMicros < 0 || policy == null || chunkSize <= 0) {
+			throw new IllegalArgumentException("Invalid write queue settings");
+		}
+		mCapacity = capacity;
+		mMaxBatchBytes = maxBatchBytes;
+		mMaxDelayMicros = maxDelayMicros;
+		mPolicy = policy;
+		mChunkSize = chunkSize;
+	}
+
+	/**
+	 * Gets the queue capacity.
+	 *
+	 * @return the capacity in messages
+	 */
+	public int getCapacity() {
+		return mCapacity;
+	}
+
+	/**
+	 * Gets the maximum size of one coalesced socket write.
+	 *
+	 * @return the maximum batch size in bytes
+	 */
+	public int getMaxBatchBytes() {
+		return mMaxBatchBytes;
+	}
+
+	/**
+	 * Gets the coalescing delay.
+	 *
+	 * @return the maximum delay in microseconds
+	 */
+	public long getMaxDelayMicros() {
+		return mMaxDelayMicros;
+	}
+
+	/**
+	 * Gets the backpressure policy.
+	 *
+	 * @return the policy
+	 */
+	public BackpressurePolicy getPolicy() {
+		return mPolicy;
+	}
+
+	/**
+	 * Gets the chunk size.
+	 *
+	 * @return the maximum chunk in bytes
+	 */
+	public int getChunkSize() {
+		return mChunkSize;
+	}
+}
@@ -0,0 +1,76 @@
+package com.ees.bluetooth;
+
+/**
+ * The Class WriteRequest. Pending write in the channel write queue. Requests
+ * are recycled by the writer, so queued writes do not allocate.
+ */
+class WriteRequest {
+
+	/** The data array. */
+	byte[] mArray;
+
+	/** The data offset. */
+	int mOffset;
+
+	/** The data length. */
+	int mLength;
+
+	/** The pooled buffer backing the data, released once written. */
+	PooledBuffer mOwned;
+
+	/** The completion callback, may be null. */
+	WriteCallback mCallback;
+
+	/** The stream id. */
+	int mStreamId;
+
+	/** The priority class of the stream. */
+	StreamPriority mPriority = StreamPriority.NORMAL;
+
+	/** The number of bytes already taken into chunks. */
+	int mSent;
+
+	/** The flag of message sent to every hub client, the only kind dropped for a newer one. */
+	boolean mBroadcast;
+
+	/**
+	 * Sets the request content.
+	 *
+	 * @param array the data array
+	 * @param offset the data offset
+	 * @param length the data length
+	 * @param owned the pooled buffer backing the data or null
+	 * @param callback the callback or null
+	 */
+	void set(byte[] array, int offset, int length, PooledBuffer owned, WriteCallback callback) {
+		mArray = array;
+		mOffset = offset;
+		mLength = length;
+		mOwned = owned;
+		mCallback = callback;
+		mSent = 0;
+	}
+
+	/**
+	 * Sets the stream of the request.
+	 *
+	 * @param streamId the stream id
+	 * @param priority the priority class
+	 */
+	void setStream(int streamId, StreamPriority priority) {
+		mStreamId = streamId;
+		mPriority = priority;
+	}
+
+	/**
+	 * Clears the request, releasing owned buffer.
+	 */
+	void clear() {
+		if(mOwned != null) {
+			mOwned.release();
+		}
+		set(null, 0, 0, null, null);
+		setStream(0, StreamPriority.NORMAL);
+		mBroadcast = false;
+	}
+}
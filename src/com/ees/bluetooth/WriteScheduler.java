@@ -0,0 +1,346 @@
+package com.ees.bluetooth;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The Class WriteScheduler. Bounded write queue of a channel with one queue
+ * per {@link StreamPriority}. Callers put requests like into a blocking
+ * queue, the writer asks for the request whose next chunk goes out. Strict
+ * classes are always served first, weighted classes take turns of as many
+ * chunks as their weight. A request stays current in its class until its
+ * last chunk is taken, so messages of one class are never interleaved.
+ * With flow control only classes whose next chunk is covered by credit are
+ * served.
+ */
+class WriteScheduler {
+
+	/** The priority classes. */
+	private static final StreamPriority[] CLASSES = StreamPriority.values();
+
+	/** The lock guarding the queues. */
+	private final ReentrantLock mLock = new ReentrantLock();
+
+	/** The condition of queued request. */
+	private final Condition mNotEmpty = mLock.newCondition();
+
+	/** The condition of free queue slot. */
+	private final Condition mNotFull = mLock.newCondition();
+
+	/** The queues indexed by class ordinal. */
+	private final ArrayDeque<WriteRequest>[] mQueues;
+
+	/** The requests being chunked, indexed by class ordinal, used by the writer thread only. */
+	private final WriteRequest[] mCurrent = new WriteRequest[CLASSES.length];
+
+	/** The capacity in requests. */
+	private final int mCapacity;
+
+	/** The credit state, null when flow control is disabled. */
+	private final FlowControl mFlow;
+
+	/** The number of queued requests. */
+	private int mCount;
+
+	/** The weighted class having its turn. */
+	private int mTurn;
+
+	/** The chunks sent in current turn. */
+	private int mRun;
+
+	/** The flag of control frames waiting for the writer. */
+	private volatile boolean mWakeup;
+
+	/**
+	 * Instantiates a new write scheduler.
+	 *
+	 * @param capacity the capacity in requests
+	 * @param flow the credit state, null when flow control is disabled
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	WriteScheduler(int capacity, FlowControl flow) {
+		mCapacity = capacity;
+		mFlow = flow;
+		mQueues = new ArrayDeque[CLASSES.length];
+		for(int i = 0; i < mQueues.length; i++) {
+			mQueues[i] = new ArrayDeque<WriteRequest>();
+		}
+	}
+
+	/**
+	 * Queues the request if there is room.
+	 *
+	 * @param request the request
+	 * @return true, if queued
+	 */
+	boolean offer(WriteRequest request) {
+		mLock.lock();
+		try {
+			if(mCount == mCapacity) {
+				return false;
+			}
+			insert(request);
+			return true;
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	/**
+	 * Queues the request, waiting for room.
+	 *
+	 * @param request the request
+	 * @throws InterruptedException Signals that the caller was interrupted.
+	 */
+	void put(WriteRequest request) throws InterruptedException {
+		mLock.lockInterruptibly();
+		try {
+			while(mCount == mCapacity) {
+				mNotFull.await();
+			}
+			insert(request);
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	/**
+	 * Removes the oldest request of the lowest non empty class, requests
+	 * being chunked are never dropped.
+	 *
+	 * @return the request or null
+	 */
+	WriteRequest pollOldest() {
+		mLock.lock();
+		try {
+			for(int i = mQueues.length - 1; i >= 0; i--) {
+				WriteRequest request = mQueues[i].poll();
+				if(request != null) {
+					removed();
+					return request;
+				}
+			}
+			return null;
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	/**
+	 * Queues the broadcast, removing the oldest broadcast of the lowest class
+	 * holding one when there is no room. Other requests are never dropped
+	 * for a broadcast, nor are requests being chunked.
+	 *
+	 * @param request the request
+	 * @return null when queued into free room, the dropped broadcast, or
+	 *         the request itself when not queued as no broadcast is queued
+	 */
+	WriteRequest offerDroppingBroadcast(WriteRequest request) {
+		mLock.lock();
+		try {
+			if(mCount < mCapacity) {
+				insert(request);
+				return null;
+			}
+			for(int i = mQueues.length - 1; i >= 0; i--) {
+				Iterator<WriteRequest> it = mQueues[i].iterator();
+				while(it.hasNext()) {
+					WriteRequest oldest = it.next();
+					if(oldest.mBroadcast) {
+						it.remove();
+						removed();
+						insert(request);
+						return oldest;
+					}
+				}
+			}
+			return request;
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	/**
+	 * Removes a request being chunked, used by the writer to fail them
+	 * when it stops.
+	 *
+	 * @return the request or null
+	 */
+	WriteRequest pollCurrent() {
+		for(int i = 0; i < mCurrent.length; i++) {
+			WriteRequest request = mCurrent[i];
+			if(request != null) {
+				mCurrent[i] = null;
+				return request;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Gets the request whose chunk goes out next, it becomes current in its
+	 * class until {@link #done(WriteRequest)}. Called by the writer only.
+	 *
+	 * @param timeoutNanos the time to wait, 0 not to wait, negative to wait until a request comes
+	 * @return the request or null on timeout or when control frames are waiting
+	 * @throws InterruptedException Signals that the writer was cancelled.
+	 */
+	WriteRequest next(long timeoutNanos) throws InterruptedException {
+		mLock.lockInterruptibly();
+		try {
+			while(true) {
+				int c = select();
+				if(c >= 0) {
+					WriteRequest request = mCurrent[c];
+					if(request == null) {
+						request = mQueues[c].poll();
+						removed();
+						mCurrent[c] = request;
+					}
+					return request;
+				}
+				if(timeoutNanos == 0 || mWakeup) {
+					return null;
+				}
+				if(timeoutNanos < 0) {
+					mNotEmpty.await();
+				} else {
+					timeoutNanos = mNotEmpty.awaitNanos(timeoutNanos);
+					if(timeoutNanos <= 0) {
+						timeoutNanos = 0;
+					}
+				}
+			}
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	/**
+	 * Releases the request whose last chunk has been taken.
+	 *
+	 * @param request the request
+	 */
+	void done(WriteRequest request) {
+		mCurrent[request.mPriority.ordinal()] = null;
+	}
+
+	/**
+	 * Wakes the writer waiting for a request, after credit was received or
+	 * when control frames are waiting. Unless cleared by the writer, the
+	 * writer gets null instead of waiting.
+	 *
+	 * @param control true, if control frames are waiting
+	 */
+	void signal(boolean control) {
+		mLock.lock();
+		try {
+			if(control) {
+				mWakeup = true;
+			}
+			mNotEmpty.signal();
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	/**
+	 * Clears the wakeup flag, called by the writer before it writes control frames.
+	 */
+	void clearWakeup() {
+		mWakeup = false;
+	}
+
+	/**
+	 * Checks if requests are queued or being chunked. Called by the writer only.
+	 *
+	 * @return true, if pending
+	 */
+	boolean hasPending() {
+		for(WriteRequest request : mCurrent) {
+			if(request != null) {
+				return true;
+			}
+		}
+		return size() != 0;
+	}
+
+	/**
+	 * Gets the number of queued requests.
+	 *
+	 * @return the size
+	 */
+	int size() {
+		mLock.lock();
+		try {
+			return mCount;
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	/**
+	 * Selects the class to serve, strict classes in order of priority,
+	 * then weighted ones in turns.
+	 *
+	 * @return the class ordinal or -1 when nothing is pending
+	 */
+	private int select() {
+		for(int c = 0; c < CLASSES.length; c++) {
+			if(CLASSES[c].getWeight() == 0 && isReady(c)) {
+				return c;
+			}
+		}
+		for(int i = 0; i < CLASSES.length; i++) {
+			int c = (mTurn + i) % CLASSES.length;
+			int weight = CLASSES[c].getWeight();
+			if(weight == 0 || !isReady(c)) {
+				continue;
+			}
+			if(c != mTurn) {
+				mTurn = c;
+				mRun = 0;
+			}
+			if(++mRun >= weight) {
+				mTurn = (c + 1) % CLASSES.length;
+				mRun = 0;
+			}
+			return c;
+		}
+		return -1;
+	}
+
+	/**
+	 * Checks if the class has a chunk to send and credit for it.
+	 *
+	 * @param c the class ordinal
+	 * @return true, if ready
+	 */
+	private boolean isReady(int c) {
+		if(mCurrent[c] != null) {
+			return mFlow == null || mFlow.canSend(false);
+		}
+		return !mQueues[c].isEmpty() && (mFlow == null || mFlow.canSend(true));
+	}
+
+	/**
+	 * Inserts the request, holding the lock.
+	 *
+	 * @param request the request
+	 */
+	private void insert(WriteRequest request) {
+		mQueues[request.mPriority.ordinal()].add(request);
+		mCount++;
+		mNotEmpty.signal();
+	}
+
+	/**
+	 * Accounts removed request, holding the lock.
+	 */
+	private void removed() {
+		mCount--;
+		mNotFull.signal();
+	}
+}